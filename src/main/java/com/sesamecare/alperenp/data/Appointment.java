@@ -70,6 +70,22 @@ public class Appointment {
 	 */
 	double price;
 	
+	/**
+	 * Appointment version, incremented by store on every replace and status transition (book/cancel); version sent by
+	 * client is ignored
+	 * <p>
+	 * Used as an optimistic concurrency guard by clients racing for the same slot
+	 */
+	long version;
+	
+	/**
+	 * Constructor without version, new appointments start from version 0
+	 */
+	public Appointment(String id, long createdTime, long appointmentDate, long appointmentDuration, String doctorName,
+			Status status, double price) {
+		this(id, createdTime, appointmentDate, appointmentDuration, doctorName, status, price, 0);
+	}
+	
 	/**
 	 * Status of appointment
 	 * <p>
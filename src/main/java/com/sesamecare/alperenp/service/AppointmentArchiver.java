@@ -0,0 +1,162 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.IndexOptions;
+import io.vertx.ext.mongo.MongoClient;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Background job moving past appointments to archive collection
+ * <p>
+ * Every "archive_interval_ms" (default 60000), appointments scheduled more than "archive_after_ms" ago are archived in
+ * batches of "archive_batch_size" (default 500) with "archive_batch_pause_ms" (default 100) between batches, so the job
+ * never competes with requests for long. Only one verticle instance of a {@link Vertx} archives at a time. If
+ * "archive_ttl_s" is given, archived appointments are removed by mongo that many seconds after archival.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class AppointmentArchiver {
+	
+	private static final String LOCK_NAME = "appointment.archiver";
+	
+	private final Vertx vertx;
+	
+	private final JsonObject config;
+	
+	private final Supplier<AppointmentStore> store;
+	
+	private final long horizonMs;
+	
+	private final int batchSize;
+	
+	private final long batchPauseMs;
+	
+	private long timerID = -1;
+	
+	private boolean closed;
+	
+	/**
+	 * @param vertx
+	 * @param config
+	 * @param store supplies store to be archived
+	 */
+	public AppointmentArchiver(@NonNull Vertx vertx, @NonNull JsonObject config,
+			@NonNull Supplier<AppointmentStore> store) {
+		this.vertx = vertx;
+		this.config = config;
+		this.store = store;
+		this.horizonMs = config.getLong("archive_after_ms");
+		this.batchSize = config.getInteger("archive_batch_size", 500);
+		this.batchPauseMs = config.getLong("archive_batch_pause_ms", 100L);
+	}
+	
+	/**
+	 * @param config
+	 * @return true if archival is configured
+	 */
+	public static boolean isEnabled(JsonObject config) {
+		return config.getLong("archive_after_ms") != null;
+	}
+	
+	/**
+	 * Creates TTL index of archive (if configured) and starts periodic archival
+	 */
+	public void start() {
+		Long ttl = config.getLong("archive_ttl_s");
+		if (ttl != null) {
+			for (JsonObject mongoConfig : ShardedAppointmentStore.mongoConfigs(config)) {
+				String archiveCollection = BucketedAppointmentStore.isEnabled(mongoConfig)
+						? BucketedAppointmentStore.archiveCollection(mongoConfig)
+						: mongoConfig.getString("archive_collection",
+								mongoConfig.getString("mongo_collection", "appointments") + "_archive");
+				MongoClient mongoClient = MongoClient.createShared(vertx, mongoConfig,
+						MongoPoolMetrics.poolName(mongoConfig));
+				mongoClient.createIndexWithOptions(archiveCollection, new JsonObject().put("archivedAt", 1),
+						new IndexOptions().expireAfter(ttl, TimeUnit.SECONDS), result -> {
+							if (result.failed()) {
+								log.error("TTL index of {} cannot be created. Details: {}", archiveCollection,
+										result.cause().toString());
+							}
+						});
+			}
+		}
+		timerID = vertx.setPeriodic(config.getLong("archive_interval_ms", 60000L), id -> run());
+	}
+	
+	public void close() {
+		closed = true;
+		if (timerID >= 0) {
+			vertx.cancelTimer(timerID);
+		}
+	}
+	
+	/**
+	 * Archives every appointment older than horizon unless another instance is already archiving
+	 */
+	void run() {
+		vertx.sharedData().getLockWithTimeout(LOCK_NAME, 1, locked -> {
+			if (locked.failed()) {
+				return;
+			}
+			long startTime = System.currentTimeMillis();
+			archiveBatches(startTime - horizonMs, 0, Future.future()).setHandler(result -> {
+				locked.result().release();
+				if (result.succeeded() && result.result() > 0) {
+					log.info("{} appointments archived in {} ms", result.result(),
+							System.currentTimeMillis() - startTime);
+				}
+			});
+		});
+	}
+	
+	/**
+	 * Archives batches one after another until a batch archives nothing
+	 */
+	private Future<Long> archiveBatches(long before, long archived, Future<Long> done) {
+		if (closed) {
+			done.complete(archived);
+			return done;
+		}
+		store.get().archiveAppointments(before, batchSize).setHandler(result -> {
+			boolean succeeded = result.succeeded() && result.result().getBoolean("result", false);
+			long count = result.succeeded() ? result.result().getLong("archived", 0L) : 0;
+			if (count == 0 || !succeeded) {
+				done.complete(archived + count);
+			} else {
+				vertx.setTimer(Math.max(1, batchPauseMs), id -> archiveBatches(before, archived + count, done));
+			}
+		});
+		return done;
+	}
+}
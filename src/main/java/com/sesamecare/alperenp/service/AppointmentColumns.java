@@ -0,0 +1,458 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sesamecare.alperenp.data.Appointment;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Column oriented in-memory store of {@link Appointment}s
+ * <p>
+ * Every field is kept in its own primitive array, rows are sorted by appointmentDate. Doctor names and statuses are
+ * dictionary encoded. Rows are keyed by mongo document identifier (_id) since appointment id is not unique in mongo.
+ * <p>
+ * Not thread safe, expected to be used from a single event loop
+ *
+ * @author alperenp
+ *
+ */
+public class AppointmentColumns {
+
+	private static final Appointment.Status[] STATUSES = Appointment.Status.values();
+
+	private int size;
+
+	private String[] mongoIds = new String[16];
+
+	private String[] ids = new String[16];
+
+	private long[] createdTimes = new long[16];
+
+	private long[] dates = new long[16];
+
+	private long[] durations = new long[16];
+
+	private double[] prices = new double[16];
+
+	private int[] doctors = new int[16];
+
+	private byte[] statuses = new byte[16];
+
+	private long[] versions = new long[16];
+
+	/**
+	 * Doctor name dictionary, code -> name
+	 */
+	private final List<String> doctorNames = new ArrayList<>();
+
+	/**
+	 * Doctor name dictionary, name -> code
+	 */
+	private final Map<String, Integer> doctorCodes = new HashMap<>();
+
+	/**
+	 * mongo _id -> appointmentDate, used for locating a row with binary search
+	 */
+	private final Map<String, Long> rowDates = new HashMap<>();
+
+	/**
+	 * Appointment id -> mongo _id of last written document with that id
+	 */
+	private final Map<String, String> idToMongoId = new HashMap<>();
+
+	/**
+	 * @return number of appointments
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes every appointment
+	 */
+	public void clear() {
+		Arrays.fill(mongoIds, 0, size, null);
+		Arrays.fill(ids, 0, size, null);
+		size = 0;
+		rowDates.clear();
+		idToMongoId.clear();
+	}
+
+	/**
+	 * Inserts or replaces appointment stored in mongo document with given _id
+	 *
+	 * @param mongoId
+	 * @param appointment
+	 */
+	public void upsert(String mongoId, Appointment appointment) {
+		remove(mongoId);
+		ensureCapacity(size + 1);
+		int row = upperBound(appointment.getAppointmentDate());
+		shift(row, row + 1, size - row);
+		mongoIds[row] = mongoId;
+		ids[row] = appointment.getId();
+		createdTimes[row] = appointment.getCreatedTime();
+		dates[row] = appointment.getAppointmentDate();
+		durations[row] = appointment.getAppointmentDuration();
+		prices[row] = appointment.getPrice();
+		doctors[row] = doctorCode(appointment.getDoctorName());
+		statuses[row] = (byte) (appointment.getStatus() == null ? -1 : appointment.getStatus().ordinal());
+		versions[row] = appointment.getVersion();
+		size++;
+		rowDates.put(mongoId, appointment.getAppointmentDate());
+		idToMongoId.put(appointment.getId(), mongoId);
+	}
+
+	/**
+	 * Removes appointment stored in mongo document with given _id
+	 *
+	 * @param mongoId
+	 * @return id of removed appointment or null if it did not exist
+	 */
+	public String remove(String mongoId) {
+		int row = rowOf(mongoId);
+		if (row < 0) {
+			return null;
+		}
+		String id = ids[row];
+		shift(row + 1, row, size - row - 1);
+		size--;
+		mongoIds[size] = null;
+		ids[size] = null;
+		rowDates.remove(mongoId);
+		if (mongoId.equals(idToMongoId.get(id))) {
+			idToMongoId.remove(id);
+		}
+		return id;
+	}
+
+	/**
+	 * Finds appointment with given id
+	 *
+	 * @param id
+	 * @return appointment json or null if it does not exist
+	 */
+	public JsonObject find(String id) {
+		String mongoId = idToMongoId.get(id);
+		if (mongoId == null) {
+			return null;
+		}
+		int row = rowOf(mongoId);
+		return row < 0 ? null : toJson(row);
+	}
+
+	/**
+	 * Finds booked appointments scheduled between start and end (inclusive), sorted by price in ascending order
+	 *
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public List<JsonObject> findBookedInRangeSortedByPrice(long start, long end) {
+		byte booked = (byte) Appointment.Status.BOOKED.ordinal();
+		int from = lowerBound(start);
+		int to = upperBound(end);
+		int[] rows = new int[Math.max(0, to - from)];
+		int count = 0;
+		for (int row = from; row < to; row++) {
+			if (statuses[row] == booked) {
+				rows[count++] = row;
+			}
+		}
+		sortByPrice(rows, count);
+		List<JsonObject> result = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			result.add(toJson(rows[i]));
+		}
+		return result;
+	}
+
+	/**
+	 * @return every appointment ordered by appointmentDate
+	 */
+	public List<JsonObject> all() {
+		List<JsonObject> result = new ArrayList<>(size);
+		for (int row = 0; row < size; row++) {
+			result.add(toJson(row));
+		}
+		return result;
+	}
+
+	/**
+	 * Writes doctor dictionary and every row in date order, see {@link #readFrom(ByteBuffer)}
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(doctorNames.size());
+		for (String doctorName : doctorNames) {
+			writeString(out, doctorName);
+		}
+		out.writeInt(size);
+		for (int row = 0; row < size; row++) {
+			writeString(out, mongoIds[row]);
+			writeString(out, ids[row]);
+			out.writeLong(createdTimes[row]);
+			out.writeLong(dates[row]);
+			out.writeLong(durations[row]);
+			out.writeDouble(prices[row]);
+			out.writeInt(doctors[row]);
+			out.writeByte(statuses[row]);
+			out.writeLong(versions[row]);
+		}
+	}
+
+	/**
+	 * Reads columns written by {@link #writeTo(DataOutput)}
+	 *
+	 * @param in
+	 * @return
+	 * @throws IllegalArgumentException if content is not valid columns
+	 */
+	public static AppointmentColumns readFrom(ByteBuffer in) {
+		AppointmentColumns columns = new AppointmentColumns();
+		int doctorCount = in.getInt();
+		for (int i = 0; i < doctorCount; i++) {
+			columns.doctorCode(readString(in));
+		}
+		int rows = in.getInt();
+		if (doctorCount < 0 || rows < 0) {
+			throw new IllegalArgumentException("Negative column size");
+		}
+		columns.ensureCapacity(rows);
+		for (int row = 0; row < rows; row++) {
+			columns.mongoIds[row] = readString(in);
+			columns.ids[row] = readString(in);
+			columns.createdTimes[row] = in.getLong();
+			columns.dates[row] = in.getLong();
+			columns.durations[row] = in.getLong();
+			columns.prices[row] = in.getDouble();
+			columns.doctors[row] = in.getInt();
+			columns.statuses[row] = in.get();
+			columns.versions[row] = in.getLong();
+			if (columns.mongoIds[row] == null || columns.ids[row] == null || columns.doctors[row] < 0
+					|| columns.doctors[row] >= doctorCount || columns.statuses[row] >= STATUSES.length
+					|| (row > 0 && columns.dates[row] < columns.dates[row - 1])) {
+				throw new IllegalArgumentException("Invalid row " + row);
+			}
+			columns.size++;
+			columns.rowDates.put(columns.mongoIds[row], columns.dates[row]);
+			columns.idToMongoId.put(columns.ids[row], columns.mongoIds[row]);
+		}
+		return columns;
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Materializes given row as appointment json
+	 *
+	 * @param row
+	 * @return
+	 */
+	private JsonObject toJson(int row) {
+		return new JsonObject().put("id", ids[row]).put("createdTime", createdTimes[row])
+				.put("appointmentDate", dates[row]).put("appointmentDuration", durations[row])
+				.put("doctorName", doctorNames.get(doctors[row]))
+				.put("status", statuses[row] < 0 ? null : STATUSES[statuses[row]].toString())
+				.put("price", prices[row]).put("version", versions[row]);
+	}
+
+	/**
+	 * Finds row of given mongo _id using binary search over appointmentDate
+	 *
+	 * @param mongoId
+	 * @return row or -1 if it does not exist
+	 */
+	private int rowOf(String mongoId) {
+		Long date = rowDates.get(mongoId);
+		if (date == null) {
+			return -1;
+		}
+		for (int row = lowerBound(date); row < size && dates[row] == date; row++) {
+			if (mongoIds[row].equals(mongoId)) {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param date
+	 * @return first row whose date is greater than or equal to given date
+	 */
+	private int lowerBound(long date) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (dates[mid] < date) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @param date
+	 * @return first row whose date is greater than given date
+	 */
+	private int upperBound(long date) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (dates[mid] <= date) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Stable sort of first count rows by price (insertion sort for small inputs, merge sort otherwise)
+	 *
+	 * @param rows
+	 * @param count
+	 */
+	private void sortByPrice(int[] rows, int count) {
+		if (count < 32) {
+			for (int i = 1; i < count; i++) {
+				int row = rows[i];
+				int j = i - 1;
+				while (j >= 0 && prices[rows[j]] > prices[row]) {
+					rows[j + 1] = rows[j];
+					j--;
+				}
+				rows[j + 1] = row;
+			}
+			return;
+		}
+		int[] buffer = new int[count];
+		for (int width = 1; width < count; width <<= 1) {
+			for (int low = 0; low < count - width; low += width << 1) {
+				int mid = low + width;
+				int high = Math.min(low + (width << 1), count);
+				int i = low;
+				int j = mid;
+				int k = low;
+				while (i < mid && j < high) {
+					buffer[k++] = prices[rows[j]] < prices[rows[i]] ? rows[j++] : rows[i++];
+				}
+				while (i < mid) {
+					buffer[k++] = rows[i++];
+				}
+				while (j < high) {
+					buffer[k++] = rows[j++];
+				}
+				System.arraycopy(buffer, low, rows, low, high - low);
+			}
+		}
+	}
+
+	/**
+	 * @param doctorName
+	 * @return dictionary code of doctor name
+	 */
+	private int doctorCode(String doctorName) {
+		Integer code = doctorCodes.get(doctorName);
+		if (code == null) {
+			code = doctorNames.size();
+			doctorNames.add(doctorName);
+			doctorCodes.put(doctorName, code);
+		}
+		return code;
+	}
+
+	/**
+	 * Moves length rows of every column from one position to another
+	 */
+	private void shift(int from, int to, int length) {
+		if (length <= 0) {
+			return;
+		}
+		System.arraycopy(mongoIds, from, mongoIds, to, length);
+		System.arraycopy(ids, from, ids, to, length);
+		System.arraycopy(createdTimes, from, createdTimes, to, length);
+		System.arraycopy(dates, from, dates, to, length);
+		System.arraycopy(durations, from, durations, to, length);
+		System.arraycopy(prices, from, prices, to, length);
+		System.arraycopy(doctors, from, doctors, to, length);
+		System.arraycopy(statuses, from, statuses, to, length);
+		System.arraycopy(versions, from, versions, to, length);
+	}
+
+	/**
+	 * Grows every column if needed
+	 *
+	 * @param capacity
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity <= dates.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, dates.length << 1);
+		mongoIds = Arrays.copyOf(mongoIds, newCapacity);
+		ids = Arrays.copyOf(ids, newCapacity);
+		createdTimes = Arrays.copyOf(createdTimes, newCapacity);
+		dates = Arrays.copyOf(dates, newCapacity);
+		durations = Arrays.copyOf(durations, newCapacity);
+		prices = Arrays.copyOf(prices, newCapacity);
+		doctors = Arrays.copyOf(doctors, newCapacity);
+		statuses = Arrays.copyOf(statuses, newCapacity);
+		versions = Arrays.copyOf(versions, newCapacity);
+	}
+}
@@ -0,0 +1,712 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import com.mongodb.async.AsyncBatchCursor;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.sesamecare.alperenp.data.Appointment;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.MongoClient;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * CQRS read model of appointments collection
+ * <p>
+ * Holds every appointment in {@link AppointmentColumns}. It is bootstrapped from a collection scan and kept current by
+ * a mongo change stream (requires replica set). Until bootstrap completes reads should fall back to mongo, and so
+ * should reads of an id while a local write of it has not been observed on the change stream yet, so a client always
+ * reads its own write of an appointment. Range and all reads are served while writes are pending, they may miss
+ * local writes of the last "lagMs".
+ * <p>
+ * With "read_model_snapshot_path", columns and resume token are written to that file every
+ * "read_model_snapshot_interval_ms" (default 60000). On start a snapshot younger than
+ * "read_model_snapshot_max_age_ms" (default 3600000) is loaded and the change stream is resumed after it, so a restart
+ * catches up on changes made since the snapshot instead of scanning whole collection; reads fall back to mongo until
+ * a change stream batch comes back short. If the stream cannot be resumed, read model is bootstrapped as usual.
+ * <p>
+ * All state is accessed from the context which created the read model
+ *
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class AppointmentReadModel {
+
+	/**
+	 * Events requested per change stream batch, a shorter batch means stream has caught up
+	 */
+	private static final int CHANGE_BATCH_SIZE = 1000;
+
+	private final Vertx vertx;
+
+	private final JsonObject config;
+
+	private final Context context;
+
+	private final String COLLECTIONNAME;
+
+	/**
+	 * Unobserved local writes older than this are dropped
+	 */
+	private final long pendingTimeoutMs;
+
+	private AppointmentColumns columns = new AppointmentColumns();
+
+	/**
+	 * ETag version of collection, increased on every applied change
+	 */
+	private final ChangeVersion changeVersion;
+
+	/**
+	 * Change events received while collection scan is in progress
+	 */
+	private final Queue<ChangeStreamDocument<BsonDocument>> buffered = new ArrayDeque<>();
+
+	/**
+	 * Appointment id -> {nano time of oldest, number of} local writes which are not yet observed on change stream
+	 */
+	private final Map<String, long[]> pendingWrites = new HashMap<>();
+
+	/**
+	 * Snapshot file, null if snapshots are disabled
+	 */
+	private final Path snapshotPath;
+
+	private final long snapshotMaxAgeMs;
+
+	private com.mongodb.async.client.MongoClient changeStreamClient;
+
+	private AsyncBatchCursor<ChangeStreamDocument<BsonDocument>> cursor;
+
+	private BsonDocument resumeToken;
+
+	/**
+	 * Incremented whenever change stream is reopened, callbacks of older streams are ignored
+	 */
+	private int generation;
+
+	private boolean scanning;
+
+	private boolean ready;
+
+	/**
+	 * Columns are loaded from snapshot and change stream has not caught up with changes made since then yet
+	 */
+	private boolean restored;
+
+	private boolean closed;
+
+	private long timerID;
+
+	private long snapshotTimerID = -1;
+
+	/**
+	 * Events applied when last snapshot was taken, a snapshot is only written if there are new ones
+	 */
+	private long snapshotEvents = -1;
+
+	private boolean writingSnapshot;
+
+	/* Metrics */
+
+	private long lastLagMs;
+
+	private long maxObservedLagMs;
+
+	private long eventsApplied;
+
+	private long fallbacks;
+
+	private long servedReads;
+
+	private long restoredRows;
+
+	private long snapshotTime;
+
+	/**
+	 * Read model constructor, must be called from the context which will use it
+	 *
+	 * @param vertx
+	 * @param config
+	 */
+	public AppointmentReadModel(@NonNull Vertx vertx, @NonNull JsonObject config) {
+		this.vertx = vertx;
+		this.config = config;
+		this.context = vertx.getOrCreateContext();
+		this.COLLECTIONNAME = config.getString("mongo_collection", "appointments");
+		this.pendingTimeoutMs = config.getLong("read_model_pending_timeout_ms", 5000L);
+		this.changeVersion = ChangeVersion.get(vertx, config);
+		String snapshotFile = config.getString("read_model_snapshot_path");
+		this.snapshotPath = snapshotFile == null ? null : Paths.get(snapshotFile);
+		this.snapshotMaxAgeMs = config.getLong("read_model_snapshot_max_age_ms", 3600000L);
+	}
+
+	/**
+	 * Loads snapshot if there is one, then opens change stream and starts bootstrap (unless snapshot is resumed).
+	 * Reads fall back to mongo until bootstrap completes or change stream catches up with snapshot
+	 */
+	public void start() {
+		changeStreamClient = MongoClients.create(connectionString(config));
+		timerID = vertx.setPeriodic(pendingTimeoutMs, id -> expirePendingWrites());
+		if (snapshotPath == null) {
+			openChangeStream();
+			return;
+		}
+		snapshotTimerID = vertx.setPeriodic(config.getLong("read_model_snapshot_interval_ms", 60000L),
+				id -> writeSnapshot());
+		vertx.<ReadModelSnapshot>executeBlocking(future -> {
+			try {
+				future.complete(ReadModelSnapshot.read(snapshotPath, snapshotMaxAgeMs));
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, loaded -> {
+			if (closed) {
+				return;
+			}
+			if (loaded.failed()) {
+				log.warn("Read model snapshot cannot be loaded, bootstrapping. Details: {}", loaded.cause().toString());
+			} else if (loaded.result() != null) {
+				ReadModelSnapshot snapshot = loaded.result();
+				columns = snapshot.getColumns();
+				resumeToken = snapshot.getResumeToken();
+				restored = true;
+				restoredRows = columns.size();
+				log.info("Read model snapshot of {} appointments loaded, taken {} ms ago", columns.size(),
+						System.currentTimeMillis() - snapshot.getCreatedTime());
+			}
+			openChangeStream();
+		});
+	}
+
+	/**
+	 * Closes change stream
+	 */
+	public void close() {
+		closed = true;
+		vertx.cancelTimer(timerID);
+		if (snapshotTimerID != -1) {
+			vertx.cancelTimer(snapshotTimerID);
+		}
+		if (cursor != null) {
+			cursor.close();
+		}
+		if (changeStreamClient != null) {
+			changeStreamClient.close();
+		}
+	}
+
+	/**
+	 * Mongo connection string built from service config
+	 *
+	 * @param config
+	 * @return
+	 */
+	static String connectionString(JsonObject config) {
+		String connectionString = config.getString("connection_string");
+		if (connectionString != null) {
+			return connectionString;
+		}
+		return "mongodb://" + config.getString("host", "127.0.0.1") + ":" + config.getInteger("port", 27017);
+	}
+
+	/* ------ READS ------ */
+
+	/**
+	 * Finds appointment with given id if read model is up to date for it
+	 *
+	 * @param id
+	 * @return result list (empty if appointment does not exist) or null if read should fall back to mongo
+	 */
+	public List<JsonObject> findAppointment(String id) {
+		if (!ready || pendingWrites.containsKey(id)) {
+			fallbacks++;
+			return null;
+		}
+		servedReads++;
+		JsonObject appointment = columns.find(id);
+		return appointment == null ? Collections.emptyList() : Collections.singletonList(appointment);
+	}
+
+	/**
+	 * Finds booked appointments in range sorted by price if read model is bootstrapped
+	 *
+	 * @param start
+	 * @param end
+	 * @return result list or null if read should fall back to mongo
+	 */
+	public List<JsonObject> findAppointmentsWithRangeAndSort(long start, long end) {
+		if (!ready) {
+			fallbacks++;
+			return null;
+		}
+		servedReads++;
+		return columns.findBookedInRangeSortedByPrice(start, end);
+	}
+
+	/**
+	 * Returns every appointment if read model is bootstrapped
+	 *
+	 * @return result list or null if read should fall back to mongo
+	 */
+	public List<JsonObject> getAllAppointments() {
+		if (!ready) {
+			fallbacks++;
+			return null;
+		}
+		servedReads++;
+		return columns.all();
+	}
+
+	/* ------ WRITES ------ */
+
+	/**
+	 * Called by controller before writing appointment with given id, reads of that id fall back to mongo until the
+	 * write is observed on change stream
+	 *
+	 * @param id
+	 */
+	public void expectChange(String id) {
+		if (id != null) {
+			pendingWrites.computeIfAbsent(id, key -> new long[] { System.nanoTime(), 0 })[1]++;
+		}
+	}
+
+	/**
+	 * Called by controller after a write announced by {@link #expectChange} failed or changed nothing, so no change
+	 * event will clear it
+	 *
+	 * @param id
+	 */
+	public void unchanged(String id) {
+		long[] pending = id == null ? null : pendingWrites.get(id);
+		if (pending != null && --pending[1] <= 0) {
+			pendingWrites.remove(id);
+		}
+	}
+
+	/**
+	 * Called by controller after all appointments are deleted
+	 */
+	public void cleared() {
+		columns.clear();
+		pendingWrites.clear();
+	}
+
+	/* ------ METRICS ------ */
+
+	/**
+	 * @return read model metrics including change stream lag
+	 */
+	public JsonObject metrics() {
+		return new JsonObject().put("ready", ready).put("size", columns.size()).put("lagMs", lastLagMs)
+				.put("maxLagMs", maxObservedLagMs).put("oldestPendingMs", oldestPendingMs())
+				.put("pendingWrites", pendingWrites.size()).put("eventsApplied", eventsApplied)
+				.put("servedReads", servedReads).put("fallbacks", fallbacks).put("restoredRows", restoredRows)
+				.put("snapshotTime", snapshotTime);
+	}
+
+	/**
+	 * @return age of oldest unobserved local write in ms
+	 */
+	private long oldestPendingMs() {
+		long now = System.nanoTime();
+		long oldest = 0;
+		for (long[] pending : pendingWrites.values()) {
+			oldest = Math.max(oldest, (now - pending[0]) / 1000000);
+		}
+		return oldest;
+	}
+
+	/**
+	 * Drops unobserved local writes which were not reported {@link #unchanged}, e.g. a timed out write which was not
+	 * applied
+	 */
+	private void expirePendingWrites() {
+		long now = System.nanoTime();
+		Iterator<long[]> i = pendingWrites.values().iterator();
+		while (i.hasNext()) {
+			if ((now - i.next()[0]) / 1000000 > pendingTimeoutMs) {
+				i.remove();
+			}
+		}
+	}
+
+	/* ------ SNAPSHOT ------ */
+
+	/**
+	 * Encodes columns on this context and writes them to snapshot file on a worker, if read model is ready and
+	 * changed since last snapshot
+	 */
+	private void writeSnapshot() {
+		if (!ready || resumeToken == null || writingSnapshot || snapshotEvents == eventsApplied) {
+			return;
+		}
+		byte[] snapshot = ReadModelSnapshot.encode(columns, resumeToken);
+		long events = eventsApplied;
+		writingSnapshot = true;
+		vertx.<Void>executeBlocking(future -> {
+			try {
+				ReadModelSnapshot.write(snapshotPath, snapshot);
+				future.complete();
+			} catch (IOException e) {
+				future.fail(e);
+			}
+		}, false, written -> {
+			writingSnapshot = false;
+			if (written.succeeded()) {
+				snapshotEvents = events;
+				snapshotTime = System.currentTimeMillis();
+			} else {
+				log.warn("Read model snapshot cannot be written. Details: {}", written.cause().toString());
+			}
+		});
+	}
+
+	/* ------ CHANGE STREAM ------ */
+
+	/**
+	 * Opens change stream (resuming after last token if there is one), then scans collection if read model is not
+	 * bootstrapped yet
+	 */
+	private void openChangeStream() {
+		int streamGeneration = ++generation;
+		MongoCollection<BsonDocument> collection = changeStreamClient
+				.getDatabase(config.getString("db_name", MongoClient.DEFAULT_DB_NAME))
+				.getCollection(COLLECTIONNAME, BsonDocument.class);
+		com.mongodb.async.client.ChangeStreamIterable<BsonDocument> changeStream = collection.watch()
+				.fullDocument(FullDocument.UPDATE_LOOKUP).batchSize(CHANGE_BATCH_SIZE);
+		if (resumeToken != null) {
+			changeStream.resumeAfter(resumeToken);
+		}
+		changeStream.batchCursor((openedCursor, error) -> context.runOnContext(v -> {
+			if (closed || streamGeneration != generation) {
+				if (openedCursor != null) {
+					openedCursor.close();
+				}
+				return;
+			}
+			if (error != null) {
+				log.warn("Read model change stream cannot be opened, reads fall back to mongo. Details: {}",
+						error.toString());
+				reopenLater(true);
+				return;
+			}
+			cursor = openedCursor;
+			if (!ready && !scanning && !restored) {
+				bootstrap(streamGeneration);
+			}
+			nextBatch(streamGeneration);
+		}));
+	}
+
+	/**
+	 * Requests next change stream batch
+	 *
+	 * @param streamGeneration
+	 */
+	private void nextBatch(int streamGeneration) {
+		cursor.next((batch, error) -> context.runOnContext(v -> {
+			if (closed || streamGeneration != generation) {
+				return;
+			}
+			if (error != null) {
+				log.warn("Read model change stream failed. Details: {}", error.toString());
+				// a snapshot which cannot be resumed (e.g. token is no longer in oplog) is dropped
+				reopenLater(restored);
+				return;
+			}
+			if (batch != null) {
+				batch.forEach(this::onChange);
+			}
+			// a full batch means more changes made since snapshot are waiting
+			if (restored && (batch == null || batch.size() < CHANGE_BATCH_SIZE)) {
+				restored = false;
+				ready = true;
+				log.info("Read model caught up with snapshot of {} appointments", columns.size());
+			}
+			if (cursor.isClosed()) {
+				reopenLater(false);
+			} else {
+				nextBatch(streamGeneration);
+			}
+		}));
+	}
+
+	/**
+	 * Reopens change stream after a delay. If stream cannot be resumed, read model is bootstrapped again
+	 *
+	 * @param reset
+	 */
+	private void reopenLater(boolean reset) {
+		generation++;
+		if (cursor != null) {
+			cursor.close();
+			cursor = null;
+		}
+		if (reset) {
+			resumeToken = null;
+		}
+		if (resumeToken == null) {
+			ready = false;
+			restored = false;
+			scanning = false;
+			buffered.clear();
+		}
+		int reopenGeneration = generation;
+		vertx.setTimer(1000, id -> {
+			if (!closed && reopenGeneration == generation) {
+				openChangeStream();
+			}
+		});
+	}
+
+	/**
+	 * Scans collection in appointment date order, so every row is appended to columns. Change events are buffered
+	 * until scan completes
+	 *
+	 * @param streamGeneration
+	 */
+	private void bootstrap(int streamGeneration) {
+		scanning = true;
+		columns.clear();
+		long startTime = System.currentTimeMillis();
+		MongoClient mongoClient = MongoClient.createShared(vertx, config);
+		JsonObject byDate = new JsonObject().put("appointmentDate", 1);
+		// sorted scan of a large collection needs an index, in-memory sort is limited
+		mongoClient.createIndex(COLLECTIONNAME, byDate, indexed -> {
+			if (streamGeneration != generation) {
+				return;
+			}
+			if (indexed.failed()) {
+				log.warn("Read model bootstrap failed. Details: {}", indexed.cause().toString());
+				reopenLater(true);
+				return;
+			}
+			scan(mongoClient, byDate, streamGeneration, startTime);
+		});
+	}
+
+	/**
+	 * Loads every appointment of collection sorted by given sort into columns, then applies buffered change events
+	 *
+	 * @param mongoClient
+	 * @param sort
+	 * @param streamGeneration
+	 * @param startTime
+	 */
+	private void scan(MongoClient mongoClient, JsonObject sort, int streamGeneration, long startTime) {
+		ReadStream<JsonObject> documents = mongoClient.findBatchWithOptions(COLLECTIONNAME, new JsonObject(),
+				new FindOptions().setSort(sort));
+		documents.exceptionHandler(error -> {
+			if (streamGeneration == generation) {
+				log.warn("Read model bootstrap failed. Details: {}", error.toString());
+				reopenLater(true);
+			}
+		}).handler(document -> {
+			if (streamGeneration != generation) {
+				return;
+			}
+			Appointment appointment = decode(document);
+			if (appointment != null) {
+				columns.upsert(mongoId(document.getValue("_id")), appointment);
+			}
+		}).endHandler(v -> {
+			if (streamGeneration != generation) {
+				return;
+			}
+			scanning = false;
+			while (!buffered.isEmpty()) {
+				apply(buffered.poll());
+			}
+			ready = true;
+			log.info("Read model bootstrapped with {} appointments in {} ms", columns.size(),
+					System.currentTimeMillis() - startTime);
+		});
+	}
+
+	/**
+	 * Applies change event, or buffers it while scanning
+	 *
+	 * @param change
+	 */
+	private void onChange(ChangeStreamDocument<BsonDocument> change) {
+		resumeToken = change.getResumeToken();
+		if (scanning) {
+			buffered.add(change);
+		} else {
+			apply(change);
+		}
+	}
+
+	/**
+	 * Applies change event to columns
+	 *
+	 * @param change
+	 */
+	private void apply(ChangeStreamDocument<BsonDocument> change) {
+		eventsApplied++;
+		switch (change.getOperationType()) {
+		case INSERT:
+		case REPLACE:
+		case UPDATE:
+			BsonDocument document = change.getFullDocument();
+			if (document != null) {
+				Appointment appointment = decode(document);
+				if (appointment != null) {
+					columns.upsert(mongoId(document.get("_id")), appointment);
+					observed(appointment.getId());
+				}
+			}
+			break;
+		case DELETE:
+			String id = columns.remove(mongoId(change.getDocumentKey().get("_id")));
+			if (id != null) {
+				observed(id);
+			}
+			break;
+		case INVALIDATE:
+			log.warn("Read model change stream invalidated, bootstrapping again");
+			reopenLater(true);
+			break;
+		default:
+			break;
+		}
+		// writes of other processes are only visible here
+		changeVersion.changed();
+	}
+
+	/**
+	 * Local write of given appointment is observed on change stream, updates lag metric
+	 *
+	 * @param id
+	 */
+	private void observed(String id) {
+		long[] pending = pendingWrites.remove(id);
+		if (pending != null) {
+			lastLagMs = (System.nanoTime() - pending[0]) / 1000000;
+			maxObservedLagMs = Math.max(maxObservedLagMs, lastLagMs);
+		}
+	}
+
+	/* ------ DECODING ------ */
+
+	/**
+	 * @param id mongo _id either as json value or bson value
+	 * @return _id as string (hex string for object ids)
+	 */
+	private static String mongoId(Object id) {
+		if (id instanceof JsonObject) {
+			return ((JsonObject) id).getString("$oid");
+		}
+		if (id instanceof BsonValue) {
+			BsonValue value = (BsonValue) id;
+			if (value.isObjectId()) {
+				return value.asObjectId().getValue().toHexString();
+			}
+			if (value.isString()) {
+				return value.asString().getValue();
+			}
+		}
+		return String.valueOf(id);
+	}
+
+	/**
+	 * Decodes appointment from scanned document
+	 *
+	 * @param document
+	 * @return appointment or null if document is not an appointment
+	 */
+	private static Appointment decode(JsonObject document) {
+		JsonObject copy = document.copy();
+		copy.remove("_id");
+		try {
+			return copy.mapTo(Appointment.class);
+		} catch (IllegalArgumentException e) {
+			log.warn("Document {} is not Appointment object!", document);
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes appointment from change event document
+	 *
+	 * @param document
+	 * @return appointment or null if document is not an appointment
+	 */
+	private static Appointment decode(BsonDocument document) {
+		try {
+			Appointment appointment = new Appointment();
+			appointment.setId(document.getString("id").getValue());
+			appointment.setCreatedTime(longValue(document, "createdTime"));
+			appointment.setAppointmentDate(longValue(document, "appointmentDate"));
+			appointment.setAppointmentDuration(longValue(document, "appointmentDuration"));
+			BsonValue doctorName = document.get("doctorName");
+			appointment.setDoctorName(doctorName != null && doctorName.isString() ? doctorName.asString().getValue()
+					: null);
+			BsonValue status = document.get("status");
+			appointment.setStatus(status != null && status.isString()
+					? Appointment.Status.valueOf(status.asString().getValue())
+					: null);
+			BsonValue price = document.get("price");
+			appointment.setPrice(price != null && price.isNumber() ? price.asNumber().doubleValue() : 0);
+			appointment.setVersion(longValue(document, "version"));
+			return appointment;
+		} catch (RuntimeException e) {
+			log.warn("Document {} is not Appointment object!", document);
+			return null;
+		}
+	}
+
+	/**
+	 * @param document
+	 * @param key
+	 * @return numeric field as long, 0 if it does not exist
+	 */
+	private static long longValue(BsonDocument document, String key) {
+		BsonValue value = document.get(key);
+		return value != null && value.isNumber() ? value.asNumber().longValue() : 0;
+	}
+}
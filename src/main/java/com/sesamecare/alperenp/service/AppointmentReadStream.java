@@ -0,0 +1,110 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import com.sesamecare.alperenp.data.Appointment;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link ReadStream} of {@link Appointment}s decoded from a stream of stored documents
+ * <p>
+ * Demand is passed through to underlying stream one to one, so a consumer fetching n appointments makes the cursor
+ * read at most one more batch. Documents which are not appointments are skipped and their demand is fetched again.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+class AppointmentReadStream implements ReadStream<Appointment> {
+	
+	private final ReadStream<JsonObject> documents;
+	
+	AppointmentReadStream(@NonNull ReadStream<JsonObject> documents) {
+		this.documents = documents;
+	}
+	
+	@Override
+	public ReadStream<Appointment> exceptionHandler(Handler<Throwable> handler) {
+		documents.exceptionHandler(handler);
+		return this;
+	}
+	
+	@Override
+	public ReadStream<Appointment> handler(Handler<Appointment> handler) {
+		if (handler == null) {
+			documents.handler(null);
+			return this;
+		}
+		documents.handler(document -> {
+			Appointment appointment = decode(document);
+			if (appointment == null) {
+				documents.fetch(1);
+			} else {
+				handler.handle(appointment);
+			}
+		});
+		return this;
+	}
+	
+	@Override
+	public ReadStream<Appointment> pause() {
+		documents.pause();
+		return this;
+	}
+	
+	@Override
+	public ReadStream<Appointment> resume() {
+		documents.resume();
+		return this;
+	}
+	
+	@Override
+	public ReadStream<Appointment> fetch(long amount) {
+		documents.fetch(amount);
+		return this;
+	}
+	
+	@Override
+	public ReadStream<Appointment> endHandler(Handler<Void> endHandler) {
+		documents.endHandler(endHandler);
+		return this;
+	}
+	
+	/**
+	 * @param document
+	 * @return appointment or null if document is not an appointment
+	 */
+	private static Appointment decode(JsonObject document) {
+		document.remove("_id");
+		try {
+			return document.mapTo(Appointment.class);
+		} catch (IllegalArgumentException e) {
+			log.warn("Document {} is not Appointment object, skipped", document);
+			return null;
+		}
+	}
+}
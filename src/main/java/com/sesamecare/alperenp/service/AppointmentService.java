@@ -21,22 +21,36 @@ SOFTWARE.
  */
 package com.sesamecare.alperenp.service;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 
 import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+import com.sesamecare.alperenp.storage.EmbeddedAppointmentStore;
 
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.JsonEventType;
+import io.vertx.core.parsetools.JsonParser;
+import io.vertx.core.streams.ReadStream;
 import io.vertx.ext.web.Route;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
@@ -53,20 +67,192 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class AppointmentService extends AbstractVerticle {
 	
+	/**
+	 * Constant response bodies, encoded once (a {@link Buffer} is duplicated when written, so it can be sent again)
+	 */
+	private static final Buffer RESULT_TRUE = Buffer.buffer("{\"result\":true}");
+	
+	private static final Buffer RESULT_FALSE = Buffer.buffer("{\"result\":false}");
+	
+	private static final Buffer EMPTY_OBJECT = Buffer.buffer("{}");
+	
 	/**
 	 * Router for specifying URLs of HTTP requests
 	 */
 	Router restAPI;
 	
+	/**
+	 * Optional in-memory read model fed by mongo change stream, enabled with "read_model" config
+	 */
+	AppointmentReadModel readModel;
+	
+	/**
+	 * Embedded store used instead of mongo if "storage" config is "embedded"
+	 */
+	EmbeddedAppointmentStore embeddedStore;
+	
+	/**
+	 * Store spreading appointments over several mongo deployments if "shards" are configured
+	 */
+	ShardedAppointmentStore shardedStore;
+	
+	/**
+	 * Background archival of past appointments, enabled with "archive_after_ms" config (mongo only)
+	 */
+	AppointmentArchiver archiver;
+	
+	/**
+	 * Liveness/readiness of service
+	 */
+	ServiceHealth health;
+	
+	/**
+	 * Change version of collection, used as ETag of cacheable reads
+	 */
+	ChangeVersion changeVersion;
+	
+	/**
+	 * True if change version sees writes of other processes too (or there are none), so reads are answered with ETag
+	 * and 304. Set with "conditional_reads" config, by default if storage is embedded, read model or near cache is on
+	 */
+	boolean conditionalReads;
+	
+	/**
+	 * Config of every workload class, each naming its own mongo pool
+	 */
+	Map<WorkloadClass, JsonObject> workloadConfigs = new EnumMap<>(WorkloadClass.class);
+	
+	/**
+	 * Sharded store of every workload class (on pools of that class), empty if service is not sharded
+	 */
+	Map<WorkloadClass, ShardedAppointmentStore> shardedStores = new EnumMap<>(WorkloadClass.class);
+	
+	/**
+	 * Store of every workload class with its decorators (change version, doctor index, near cache), built once all of
+	 * them are created so requests share them instead of building a store chain each
+	 */
+	Map<WorkloadClass, AppointmentStore> stores = new EnumMap<>(WorkloadClass.class);
+	
+	/**
+	 * Pool metrics of every workload class, empty if service does not run on a single mongo deployment
+	 */
+	Map<WorkloadClass, MongoPoolMetrics> poolMetrics = new EnumMap<>(WorkloadClass.class);
+	
+	/**
+	 * Serializes large read results on worker pool
+	 */
+	ResponseEncoder encoder;
+	
+	/**
+	 * Blocked time of event loop of this verticle, null if loop is monitored by another instance
+	 */
+	EventLoopMonitor loopMonitor;
+	
+	/**
+	 * Doctor name prefix index used by autocomplete, null if "doctor_index" is false
+	 */
+	DoctorIndex doctorIndex;
+	
+	/**
+	 * True if this verticle rebuilds doctor index periodically
+	 */
+	boolean maintainsDoctorIndex;
+	
+	/**
+	 * Booked/available counters per day, null if "day_counters" is false
+	 */
+	DayCounters dayCounters;
+	
+	/**
+	 * True if this verticle reloads and reconciles day counters periodically
+	 */
+	boolean maintainsDayCounters;
+	
+	/**
+	 * Cache of id and range reads, null unless "near_cache" is true
+	 */
+	NearCache nearCache;
+	
+	/**
+	 * Publishes invalidations of local writes to peers and applies theirs, null unless "near_cache" is true
+	 */
+	NearCacheInvalidator invalidator;
+	
+	/**
+	 * True if this verticle applies invalidations of peers
+	 */
+	boolean appliesInvalidations;
+	
 	/**
 	 * start method of service
 	 */
 	@Override
 	public void start(Future<Void> fut) throws Exception {
+		for (WorkloadClass workload : WorkloadClass.values()) {
+			workloadConfigs.put(workload, workload.mongoConfig(config()));
+		}
+		if ("embedded".equals(config().getString("storage", "mongo"))) {
+			embeddedStore = EmbeddedAppointmentStore.open(vertx, config());
+		} else if (ShardedAppointmentStore.isSharded(config())) {
+			shardedStore = new ShardedAppointmentStore(vertx, config());
+			for (WorkloadClass workload : WorkloadClass.values()) {
+				shardedStores.put(workload, workload == WorkloadClass.INTERACTIVE ? shardedStore
+						: shardedStore.withConfig(vertx, workloadConfigs.get(workload)));
+			}
+			if (config().getBoolean("read_model", false)) {
+				log.warn("Read model is not supported with shards, reads are served from shards");
+			}
+		} else if (BucketedAppointmentStore.isEnabled(config())) {
+			if (config().getBoolean("read_model", false)) {
+				log.warn("Read model is not supported with bucket schema, reads are served from buckets");
+			}
+		} else if (config().getBoolean("read_model", false)) {
+			readModel = new AppointmentReadModel(vertx, config());
+			readModel.start();
+		}
+		if (embeddedStore == null && BucketedAppointmentStore.isEnabled(config())) {
+			ShardedAppointmentStore.mongoConfigs(config())
+					.forEach(mongoConfig -> BucketedAppointmentStore.createIndexes(vertx, mongoConfig));
+		}
+		health = new ServiceHealth(vertx, config(), embeddedStore == null);
+		changeVersion = ChangeVersion.get(vertx, config());
+		encoder = new ResponseEncoder(vertx, config());
+		loopMonitor = EventLoopMonitor.start(vertx, config());
+		if (embeddedStore == null && AppointmentArchiver.isEnabled(config())) {
+			archiver = new AppointmentArchiver(vertx, config(), () -> store(WorkloadClass.BULK));
+			archiver.start();
+		}
+		if (embeddedStore == null && !BucketedAppointmentStore.isEnabled(config())) {
+			DoctorIndex.createMongoIndexes(vertx, config());
+		}
+		if (NearCache.isEnabled(config())) {
+			nearCache = NearCache.get(vertx, config());
+			invalidator = NearCacheInvalidator.get(vertx, config());
+			appliesInvalidations = invalidator.start();
+		}
+		if (config().getBoolean("day_counters", false)) {
+			boolean flat = embeddedStore == null && shardedStore == null
+					&& !BucketedAppointmentStore.isEnabled(config());
+			dayCounters = DayCounters.get(vertx, config(), flat);
+			maintainsDayCounters = dayCounters.start(() -> store(WorkloadClass.BULK));
+		}
+		if (DoctorIndex.isEnabled(config())) {
+			doctorIndex = DoctorIndex.get(vertx, config());
+			maintainsDoctorIndex = doctorIndex.start(vertx, config(), () -> store(WorkloadClass.BULK));
+		}
+		conditionalReads = config().getBoolean("conditional_reads",
+				embeddedStore != null || readModel != null || invalidator != null);
+		for (WorkloadClass workload : WorkloadClass.values()) {
+			stores.put(workload, newStore(workload));
+			if (embeddedStore == null && shardedStore == null) {
+				poolMetrics.put(workload, MongoPoolMetrics.get(vertx, workloadConfigs.get(workload)));
+			}
+		}
 		int port = config().getInteger("http.port", -1);
 		startRestService(port).setHandler(started -> {
 			if (started.succeeded()) {
 				log.info("Service successfully deployed!");
+				warmUp(started.result().actualPort());
 				fut.complete();
 			} else {
 				fut.fail(started.cause());
@@ -75,6 +261,50 @@ public class AppointmentService extends AbstractVerticle {
 		
 	}
 	
+	/**
+	 * stop method of service
+	 */
+	@Override
+	public void stop() throws Exception {
+		if (readModel != null) {
+			readModel.close();
+		}
+		if (embeddedStore != null) {
+			embeddedStore.close();
+		}
+		if (archiver != null) {
+			archiver.close();
+		}
+		if (maintainsDoctorIndex) {
+			doctorIndex.close();
+		}
+		if (appliesInvalidations) {
+			invalidator.close();
+		}
+		if (maintainsDayCounters) {
+			dayCounters.close();
+		}
+		health.close();
+		encoder.close();
+		if (loopMonitor != null) {
+			loopMonitor.stop();
+		}
+	}
+	
+	/**
+	 * Warms service up in background, readiness turns green when it completes. Retried until it succeeds.
+	 * 
+	 * @param port
+	 */
+	private void warmUp(int port) {
+		health.warmUp(port).setHandler(ready -> {
+			if (ready.failed()) {
+				log.warn("Service warm-up failed, retrying. Details: {}", ready.cause().toString());
+				vertx.setTimer(config().getLong("health_ping_interval_ms", 5000L), id -> warmUp(port));
+			}
+		});
+	}
+	
 	/**
 	 * Creates a router, creates an HTTP server with given router and given port number read in config
 	 */
@@ -116,34 +346,123 @@ public class AppointmentService extends AbstractVerticle {
 		// Create a router object.
 		restAPI = Router.router(vertx);
 		
+		// Trace of every request, reported in Server-Timing header
+		restAPI.route().handler(RequestTrace.handler(config()));
+		
+		// Flight recorder event of every request while a recording collects them
+		restAPI.route().handler(FlightRecordings.handler());
+		
+		// Per client budgets of routes listed in "rate_limits"
+		restAPI.route().handler(RateLimiter.handler(vertx, config()));
+		
+		// Admin routes need "Authorization: Bearer <admin_token>" and are refused without "admin_token", metrics need
+		// the token only if it is set
+		String adminToken = config().getString("admin_token");
+		restAPI.route("/admin/*").handler(routingContext -> authorizeAdmin(routingContext, adminToken));
+		if (adminToken != null) {
+			restAPI.route("/metrics/*").handler(routingContext -> authorizeAdmin(routingContext, adminToken));
+		}
+		
 		// REST API for base web page
-		restAPI.get("/").handler(this::baseWebPage);
+		restAPI.get("/").handler(workload(WorkloadClass.INTERACTIVE)).handler(this::baseWebPage);
 		
 		// REST API to delete appointment
 		restAPI.route("/rest/deleteAppointment/*").handler(BodyHandler.create());
-		restAPI.delete("/rest/deleteAppointment").handler(this::deleteAppointment);
+		restAPI.delete("/rest/deleteAppointment").handler(workload(WorkloadClass.INTERACTIVE))
+				.handler(this::deleteAppointment);
 		
 		// REST API to insert appointment
 		restAPI.route("/rest/insertAppointment/*").handler(BodyHandler.create());
-		restAPI.post("/rest/insertAppointment").handler(this::insertAppointment);
+		restAPI.post("/rest/insertAppointment").handler(workload(WorkloadClass.INTERACTIVE))
+				.handler(this::insertAppointment);
 		
 		// REST API to update appointment
 		restAPI.route("/rest/updateAppointment/*").handler(BodyHandler.create());
-		restAPI.put("/rest/updateAppointment").handler(this::updateAppointment);
+		restAPI.put("/rest/updateAppointment").handler(workload(WorkloadClass.INTERACTIVE))
+				.handler(this::updateAppointment);
 		
 		// REST API to get appointment
 		restAPI.route("/rest/findAppointment/*").handler(BodyHandler.create());
-		restAPI.get("/rest/findAppointment").handler(this::findAppointment);
+		restAPI.get("/rest/findAppointment").handler(workload(WorkloadClass.INTERACTIVE))
+				.handler(this::findAppointment);
+		
+		// REST API to get many appointments by id
+		restAPI.route("/rest/findAppointments/*").handler(BodyHandler.create());
+		restAPI.get("/rest/findAppointments").handler(workload(WorkloadClass.INTERACTIVE))
+				.handler(this::findAppointments);
 		
 		// REST API to get appointment
 		restAPI.route("/rest/findAppointmentsInRange/*").handler(BodyHandler.create());
-		restAPI.get("/rest/findAppointmentsInRange").handler(this::findAppointmentsWithRangeAndSort);
+		restAPI.get("/rest/findAppointmentsInRange")
+				.handler(WorkloadLimiter.handler(vertx, config(), this::rangeWorkload))
+				.handler(this::findAppointmentsWithRangeAndSort);
+		
+		// REST API to book an available appointment
+		restAPI.route("/rest/book/*").handler(BodyHandler.create());
+		restAPI.post("/rest/book").handler(workload(WorkloadClass.INTERACTIVE)).handler(this::bookAppointment);
+		
+		// REST API to cancel a booked appointment
+		restAPI.route("/rest/cancel/*").handler(BodyHandler.create());
+		restAPI.post("/rest/cancel").handler(workload(WorkloadClass.INTERACTIVE)).handler(this::cancelAppointment);
+		
+		// REST API for booked/available appointment counts of next days
+		restAPI.get("/rest/dailyCounts").handler(workload(WorkloadClass.INTERACTIVE)).handler(this::dailyCounts);
+		
+		// REST API for doctor name autocomplete
+		restAPI.get("/rest/doctors").handler(workload(WorkloadClass.INTERACTIVE)).handler(this::suggestDoctors);
+		
+		// REST API to stream appointments out/in as newline delimited json (no BodyHandler, bodies are streamed)
+		restAPI.get("/rest/export").handler(workload(WorkloadClass.BULK)).handler(this::exportAppointments);
+		restAPI.post("/rest/import").handler(workload(WorkloadClass.BULK)).handler(this::importAppointments);
 		
 		// REST API to get all appointments
-		restAPI.get("/rest/allAppointments/").handler(this::getAllAppointments);
+		restAPI.get("/rest/allAppointments/").handler(workload(WorkloadClass.BULK)).handler(this::getAllAppointments);
 		
 		// REST API to delete all appointments
-		restAPI.get("/rest/deleteAllAppointments/").handler(this::deleteAllAppointments);
+		restAPI.get("/rest/deleteAllAppointments/").handler(workload(WorkloadClass.BULK))
+				.handler(this::deleteAllAppointments);
+		
+		// REST API for liveness and readiness probes
+		restAPI.get("/health/live").handler(workload(WorkloadClass.INTERACTIVE)).handler(this::liveness);
+		restAPI.get("/health/ready").handler(workload(WorkloadClass.INTERACTIVE)).handler(this::readiness);
+		
+		// REST API to move appointments to their shards after shards are added
+		restAPI.post("/admin/rebalance").handler(workload(WorkloadClass.ADMIN)).handler(this::rebalanceShards);
+		
+		// REST API to copy flat collection into per doctor per day buckets
+		restAPI.post("/admin/migrateToBuckets").handler(workload(WorkloadClass.ADMIN)).handler(this::migrateToBuckets);
+		
+		// REST API to get last slow mongo operations with their query plans
+		restAPI.get("/admin/slowOperations").handler(workload(WorkloadClass.ADMIN)).handler(this::slowOperations);
+		
+		// REST API to record and download flight recordings
+		restAPI.get("/admin/profiling").handler(workload(WorkloadClass.ADMIN)).handler(this::profilingStatus);
+		restAPI.post("/admin/profiling/start").handler(workload(WorkloadClass.ADMIN)).handler(this::startProfiling);
+		restAPI.post("/admin/profiling/stop").handler(workload(WorkloadClass.ADMIN)).handler(this::stopProfiling);
+		
+		// REST API to get blocked time of event loops
+		restAPI.get("/metrics/eventLoops").handler(workload(WorkloadClass.ADMIN)).handler(this::eventLoopMetrics);
+		
+		// REST API to get concurrency and pool usage of workload classes
+		restAPI.get("/metrics/workloads").handler(workload(WorkloadClass.ADMIN)).handler(this::workloadMetrics);
+		
+		// REST API to get budgets and counters of rate limited routes
+		restAPI.get("/metrics/rateLimits").handler(workload(WorkloadClass.ADMIN)).handler(this::rateLimitMetrics);
+		
+		// REST API to get hedged read and write retry metrics of mongo pools
+		restAPI.get("/metrics/mongoRetries").handler(workload(WorkloadClass.ADMIN)).handler(this::mongoRetryMetrics);
+		
+		// REST API to get near cache hit and invalidation metrics
+		restAPI.get("/metrics/nearCache").handler(workload(WorkloadClass.ADMIN)).handler(this::nearCacheMetrics);
+		
+		// REST API to get day counter reconciliation metrics
+		restAPI.get("/metrics/dayCounters").handler(workload(WorkloadClass.ADMIN)).handler(this::dayCounterMetrics);
+		
+		// REST API to get read model metrics
+		restAPI.get("/metrics/readModel").handler(workload(WorkloadClass.ADMIN)).handler(this::readModelMetrics);
+		
+		// REST API to get doctor index metrics
+		restAPI.get("/metrics/doctorIndex").handler(workload(WorkloadClass.ADMIN)).handler(this::doctorIndexMetrics);
 		
 		return restAPI;
 	}
@@ -165,239 +484,1256 @@ public class AppointmentService extends AbstractVerticle {
 	}
 	
 	/**
-	 * Returns all existing entries in DB
+	 * Liveness probe, service is live as long as it responds
 	 * 
 	 * @param routingContext
 	 */
-	private void getAllAppointments(RoutingContext routingContext) {
-		serviceCallMessage(routingContext);
-		// Main operation
-		AppointmentServiceController controller = new AppointmentServiceController(vertx, config());
-		Future<List<JsonObject>> future = controller.getAllAppointments();
-		future.setHandler(result -> {
-			List<JsonObject> jsonResult = Collections.emptyList();
-			int statuscode = -1;
-			if (future.succeeded()) {
-				statuscode = 200;
-				jsonResult = future.result();
-			} else {
-				statuscode = 400;
-				log.error("Get All Appointments failed. Details: {}", future.cause().toString());
-			}
-			
-			// Output
-			sendResponseToClient(routingContext, statuscode, "application/json; charset=utf-8", jsonResult.toString());
-		});
+	private void liveness(RoutingContext routingContext) {
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+				new JsonObject().put("status", "UP").toString());
 	}
 	
 	/**
-	 * Returns all existing entries in DB
+	 * Readiness probe, 200 once mongo pool is warm, mongo responds to ping and warm-up is completed, else 503
 	 * 
 	 * @param routingContext
 	 */
-	private void deleteAllAppointments(RoutingContext routingContext) {
-		serviceCallMessage(routingContext);
-		// Main operation
-		AppointmentServiceController controller = new AppointmentServiceController(vertx, config());
-		Future<JsonObject> future = controller.deleteAllAppointments();
-		future.setHandler(result -> {
-			JsonObject jsonResult = new JsonObject();
-			int statuscode = -1;
-			if (future.succeeded()) {
-				statuscode = 200;
-				jsonResult = future.result();
-			} else {
-				statuscode = 400;
-				log.error("Delete All Appointments failed. Details: {}", future.cause().toString());
-			}
-			
-			// Output
-			sendResponseToClient(routingContext, statuscode, "application/json; charset=utf-8", jsonResult.toString());
-		});
+	private void readiness(RoutingContext routingContext) {
+		sendResponseToClient(routingContext, health.isReady() ? 200 : 503, "application/json; charset=utf-8",
+				health.readiness().toString());
 	}
 	
 	/**
-	 * Inserts new entry to DB sent from client.
-	 * <p>
-	 * Returns true if insertions succeeds, else returns false
+	 * Returns read model metrics (lag, size, fallbacks) or 404 if read model is disabled
 	 * 
 	 * @param routingContext
 	 */
-	private void insertAppointment(RoutingContext routingContext) {
-		// Input check
+	private void readModelMetrics(RoutingContext routingContext) {
 		serviceCallMessage(routingContext);
-		JsonObject appointmentJson = routingContext.getBodyAsJson();
-		Optional<Appointment> appointment = decodeAppointment(appointmentJson);
-		if (!appointment.isPresent()) {
-			routingContext.response().setStatusCode(400).end();
+		if (readModel == null) {
+			routingContext.response().setStatusCode(404).end();
 			return;
 		}
-		
-		// Main operation
-		AppointmentServiceController controller = new AppointmentServiceController(vertx, config());
-		Future<JsonObject> future = controller.insertAppointment(appointment.get());
-		future.setHandler(result -> {
-			JsonObject jsonResult = new JsonObject();
-			// Output
-			if (result.succeeded()) {
-				jsonResult = future.result();
-				sendResponseToClient(routingContext, 200, "application/json; charset=utf-8", jsonResult.toString());
-			} else {
-				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", jsonResult.toString());
-				log.error("Insert Appointment failed. Details: {}", future.cause().toString());
-			}
-		});
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8", readModel.metrics().toString());
 	}
 	
 	/**
-	 * Removes Appointment with given identifier.
-	 * <p>
-	 * Returns true to client if successful removal, else returns false
+	 * Returns near cache size, hits and invalidations or 404 if near cache is disabled
 	 * 
 	 * @param routingContext
 	 */
-	private void deleteAppointment(RoutingContext routingContext) {
-		// Input check
+	private void nearCacheMetrics(RoutingContext routingContext) {
 		serviceCallMessage(routingContext);
-		JsonObject json = routingContext.getBodyAsJson();
-		if (json == null || json.getString("id") == null) {
-			log.info("failed!");
-			routingContext.response().setStatusCode(400).end();
+		if (nearCache == null) {
+			routingContext.response().setStatusCode(404).end();
 			return;
 		}
-		
-		// Main operation
-		AppointmentServiceController controller = new AppointmentServiceController(vertx, config());
-		Future<JsonObject> future = controller.deleteOne(json.getString("id"));
-		future.setHandler(result -> {
-			JsonObject jsonResult = new JsonObject();
-			if (result.succeeded()) {
-				jsonResult = future.result();
-				sendResponseToClient(routingContext, 200, "application/json; charset=utf-8", jsonResult.toString());
-				
-			} else {
-				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", jsonResult.toString());
-				log.error("Delete Appointment failed. Details: {}", future.cause().toString());
-			}
-		});
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+				nearCache.toJson().put("invalidator", invalidator.toJson()).toString());
 	}
 	
-	private void updateAppointment(RoutingContext routingContext) {
-		// Input check
+	/**
+	 * Returns day counter reconciliation metrics or 404 if day counters are disabled
+	 * 
+	 * @param routingContext
+	 */
+	private void dayCounterMetrics(RoutingContext routingContext) {
 		serviceCallMessage(routingContext);
-		JsonObject appointmentJson = routingContext.getBodyAsJson();
-		Optional<Appointment> appointment = decodeAppointment(appointmentJson);
-		if (!appointment.isPresent()) {
-			routingContext.response().setStatusCode(400).end();
+		if (dayCounters == null) {
+			routingContext.response().setStatusCode(404).end();
 			return;
 		}
-		
-		// Main operation
-		AppointmentServiceController controller = new AppointmentServiceController(vertx, config());
-		Future<JsonObject> future = controller.replaceAppointment(appointment.get());
-		future.setHandler(result -> {
-			JsonObject jsonResult = new JsonObject();
-			// Output
-			if (result.succeeded()) {
-				jsonResult = future.result();
-				sendResponseToClient(routingContext, 200, "application/json; charset=utf-8", jsonResult.toString());
-			} else {
-				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", jsonResult.toString());
-				log.error("Insert Appointment failed. Details: {}", future.cause().toString());
-			}
-		});
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8", dayCounters.toJson().toString());
 	}
 	
 	/**
-	 * Finds Appointment with given identifier.
-	 * <p>
-	 * Returns true to client if successful removal, else returns false
+	 * Returns doctor index metrics (size, builds) or 404 if doctor index is disabled
 	 * 
 	 * @param routingContext
 	 */
-	private void findAppointment(RoutingContext routingContext) {
-		// Input check
+	private void doctorIndexMetrics(RoutingContext routingContext) {
 		serviceCallMessage(routingContext);
-		JsonObject json = routingContext.getBodyAsJson();
-		if (json == null || json.getString("id") == null) {
-			log.info("failed!");
-			routingContext.response().setStatusCode(400).end();
+		if (doctorIndex == null) {
+			routingContext.response().setStatusCode(404).end();
 			return;
 		}
-		
-		AppointmentServiceController controller = new AppointmentServiceController(vertx, config());
-		Future<List<JsonObject>> future = controller.findAppointment(json.getString("id"));
-		future.setHandler(result -> {
-			JsonObject jsonResult = new JsonObject();
-			if (result.succeeded()) {
-				if (future.result().size() == 0) {
-					sendResponseToClient(routingContext, 200, "application/json; charset=utf-8", jsonResult.toString());
-				} else {
-					jsonResult = future.result().get(0);
-					jsonResult.remove("_id");
-					sendResponseToClient(routingContext, 200, "application/json; charset=utf-8", jsonResult.toString());
-				}
-				
-			} else {
-				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", jsonResult.toString());
-				log.error("Find Appointment failed. Details: {}", future.cause().toString());
-			}
-		});
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8", doctorIndex.toJson().toString());
 	}
 	
 	/**
-	 * Retrieve all appointments that are scheduled between a date range and sorted by price.
-	 * <p>
-	 * Returns true to client if successful removal, else returns false
+	 * Returns blocked time metrics of every monitored event loop
 	 * 
 	 * @param routingContext
 	 */
-	private void findAppointmentsWithRangeAndSort(RoutingContext routingContext) {
-		// Input check
+	private void eventLoopMetrics(RoutingContext routingContext) {
 		serviceCallMessage(routingContext);
-		JsonObject json = routingContext.getBodyAsJson();
-		if (json == null || json.getLong("start") == null || json.getLong("end") == null) {
-			log.info("failed!");
-			routingContext.response().setStatusCode(400).end();
-			return;
-		}
-		
-		AppointmentServiceController controller = new AppointmentServiceController(vertx, config());
-		Future<List<JsonObject>> future = controller.findAppointmentsWithRangeAndSort(json.getLong("start"),
-				json.getLong("end"));
-		future.setHandler(result -> {
-			List<JsonObject> jsonResult = Collections.emptyList();
-			if (result.succeeded()) {
-				jsonResult = result.result();
-				jsonResult.forEach(jsonEntry -> jsonEntry.remove("_id"));
-				sendResponseToClient(routingContext, 200, "application/json; charset=utf-8", jsonResult.toString());
-			} else {
-				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", jsonResult.toString());
-				log.error("Find Appointments in range and sort failed. Details: {}", future.cause().toString());
-			}
-		});
-		
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+				EventLoopMonitor.toJson(vertx).toString());
 	}
 	
-	/* ------ COMMON METHODS ------ */
-	
 	/**
-	 * De-serializes {@link JsonObject} into {@link Appointment} if possible
+	 * Returns concurrency budget usage and mongo pool metrics of every workload class
 	 * 
-	 * @param appointmentJson
-	 * @return
+	 * @param routingContext
 	 */
-	private Optional<Appointment> decodeAppointment(JsonObject appointmentJson) {
-		if (appointmentJson == null) {
-			return Optional.empty();
+	private void workloadMetrics(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		JsonObject metrics = new JsonObject();
+		for (WorkloadClass workload : WorkloadClass.values()) {
+			JsonObject classMetrics = WorkloadLimiter.get(vertx, config(), workload).toJson();
+			if (embeddedStore == null) {
+				classMetrics.put("pool", MongoPoolMetrics.get(vertx, workloadConfigs.get(workload)).toJson());
+			}
+			metrics.put(workload.key(), classMetrics);
 		}
-		Appointment appointment = null;
-		try {
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8", metrics.toString());
+	}
+	
+	/**
+	 * Returns budget, allowed/limited counters and number of tracked clients of every rate limited route
+	 * 
+	 * @param routingContext
+	 */
+	private void rateLimitMetrics(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+				RateLimiter.toJson(vertx).toString());
+	}
+	
+	/**
+	 * Returns hedge delays, hedge/retry counters and remaining retry budget of every mongo pool
+	 * 
+	 * @param routingContext
+	 */
+	private void mongoRetryMetrics(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+				MongoRetryPolicy.toJson(vertx).toString());
+	}
+	
+	/**
+	 * Returns last slow mongo operations (newest first) with winning plans of their query shapes
+	 * 
+	 * @param routingContext
+	 */
+	private void slowOperations(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+				SlowOperationLog.get(vertx, config()).toJson().toString());
+	}
+	
+	/**
+	 * Lets request through if it carries admin token as bearer token, responds 401 otherwise or 403 if there is no
+	 * admin token configured
+	 * 
+	 * @param routingContext
+	 * @param adminToken null if admin routes are disabled
+	 */
+	private void authorizeAdmin(RoutingContext routingContext, String adminToken) {
+		if (adminToken == null) {
+			routingContext.response().setStatusCode(403).end();
+			return;
+		}
+		String authorization = routingContext.request().getHeader("Authorization");
+		// constant time comparison, response time does not reveal how much of token matched
+		if (authorization != null && MessageDigest.isEqual(("Bearer " + adminToken).getBytes(StandardCharsets.UTF_8),
+				authorization.getBytes(StandardCharsets.UTF_8))) {
+			routingContext.next();
+		} else {
+			routingContext.response().setStatusCode(401).putHeader("WWW-Authenticate", "Bearer").end();
+		}
+	}
+	
+	/**
+	 * Returns state of last flight recording
+	 * 
+	 * @param routingContext
+	 */
+	private void profilingStatus(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+				FlightRecordings.get(vertx, config()).toJson().toString());
+	}
+	
+	/**
+	 * Starts a flight recording with settings profile "settings" (default "profile") for "durationSeconds" (default
+	 * 60) query parameters, responds 409 if one is already running
+	 * 
+	 * @param routingContext
+	 */
+	private void startProfiling(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		String settings = routingContext.request().getParam("settings");
+		long durationMs;
+		try {
+			Long durationSeconds = longParam(routingContext, "durationSeconds");
+			durationMs = (durationSeconds == null ? 60 : durationSeconds) * 1000;
+		} catch (NumberFormatException e) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		FlightRecordings recordings = FlightRecordings.get(vertx, config());
+		vertx.<JsonObject>executeBlocking(future -> {
+			try {
+				future.complete(recordings.start(settings == null ? "profile" : settings, durationMs));
+			} catch (Exception e) {
+				future.fail(e);
+			}
+		}, false, started -> {
+			if (started.succeeded()) {
+				log.info("Flight recording started: {}", started.result());
+				sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+						started.result().toString());
+			} else {
+				log.warn("Flight recording cannot be started. Details: {}", started.cause().toString());
+				sendResponseToClient(routingContext, started.cause() instanceof IllegalStateException ? 409 : 400,
+						"application/json; charset=utf-8",
+						new JsonObject().put("error", started.cause().getMessage()).toString());
+			}
+		});
+	}
+	
+	/**
+	 * Stops last flight recording (if it did not end already) and streams it as a .jfr file, responds 404 if there
+	 * is no recording
+	 * 
+	 * @param routingContext
+	 */
+	private void stopProfiling(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		FlightRecordings recordings = FlightRecordings.get(vertx, config());
+		vertx.<Path>executeBlocking(future -> {
+			try {
+				future.complete(recordings.stop());
+			} catch (Exception e) {
+				future.fail(e);
+			}
+		}, false, stopped -> {
+			if (stopped.failed()) {
+				log.error("Flight recording cannot be dumped. Details: {}", stopped.cause().toString());
+				routingContext.response().setStatusCode(500).end();
+			} else if (stopped.result() == null) {
+				routingContext.response().setStatusCode(404).end();
+			} else {
+				String file = stopped.result().toString();
+				routingContext.response().putHeader("Content-Type", "application/octet-stream")
+						.putHeader("Content-Disposition", "attachment; filename=\"appointment-service.jfr\"")
+						.sendFile(file, sent -> vertx.fileSystem().delete(file, deleted -> {
+							if (deleted.failed()) {
+								log.warn("Flight recording {} cannot be deleted", file);
+							}
+						}));
+			}
+		});
+	}
+	
+	/**
+	 * Moves appointments to the shards owning them, responds when done or 404 if service is not sharded
+	 * 
+	 * @param routingContext
+	 */
+	private void rebalanceShards(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		if (shardedStore == null) {
+			routingContext.response().setStatusCode(404).end();
+			return;
+		}
+		shardedStores.get(WorkloadClass.ADMIN).rebalance().setHandler(result -> {
+			// order of equally priced appointments in range results may change
+			changeVersion.changed();
+			if (result.succeeded()) {
+				sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+						result.result().toString());
+			} else {
+				log.error("Rebalance failed. Details: {}", result.cause().toString());
+				sendResponseToClient(routingContext, 500, "application/json; charset=utf-8",
+						new JsonObject().put("result", false).toString());
+			}
+		});
+	}
+	
+	/**
+	 * Copies flat collection into buckets, responds when done. 404 unless service uses bucket schema on a single mongo
+	 * deployment, 500 if migration fails or buckets are not empty.
+	 * 
+	 * @param routingContext
+	 */
+	private void migrateToBuckets(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		if (embeddedStore != null || shardedStore != null || !BucketedAppointmentStore.isEnabled(config())) {
+			routingContext.response().setStatusCode(404).end();
+			return;
+		}
+		JsonObject adminConfig = workloadConfigs.get(WorkloadClass.ADMIN);
+		new BucketedAppointmentStore(vertx, adminConfig).migrateFromFlat().setHandler(result -> {
+			changeVersion.changed();
+			if (result.succeeded()) {
+				sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+						result.result().toString());
+			} else {
+				log.error("Migration to buckets failed. Details: {}", result.cause().toString());
+				sendResponseToClient(routingContext, 500, "application/json; charset=utf-8",
+						new JsonObject().put("result", false).put("error", result.cause().getMessage()).toString());
+			}
+		});
+	}
+	
+	/**
+	 * Returns all existing entries in DB
+	 * 
+	 * @param routingContext
+	 */
+	private void getAllAppointments(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		// Main operation
+		AppointmentStore controller = readStore(routingContext, null);
+		Future<List<JsonObject>> future = controller.getAllAppointments();
+		future.setHandler(result -> {
+			// Output
+			if (future.succeeded()) {
+				sendAppointmentsToClient(routingContext, future.result());
+			} else {
+				log.error("Get All Appointments failed. Details: {}", future.cause().toString());
+				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8",
+						Collections.emptyList().toString());
+			}
+		});
+	}
+	
+	/**
+	 * Returns all existing entries in DB
+	 * 
+	 * @param routingContext
+	 */
+	private void deleteAllAppointments(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		// Main operation
+		AppointmentStore controller = store(routingContext);
+		Future<JsonObject> future = controller.deleteAllAppointments();
+		future.setHandler(result -> {
+			// Output
+			if (future.succeeded()) {
+				sendResultToClient(routingContext, 200, future.result());
+			} else {
+				log.error("Delete All Appointments failed. Details: {}", future.cause().toString());
+				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", EMPTY_OBJECT);
+			}
+		});
+	}
+	
+	/**
+	 * Inserts new entry to DB sent from client.
+	 * <p>
+	 * Returns true if insertions succeeds, else returns false
+	 * 
+	 * @param routingContext
+	 */
+	private void insertAppointment(RoutingContext routingContext) {
+		// Input check
+		serviceCallMessage(routingContext);
+		JsonObject appointmentJson = bodyAsJson(routingContext);
+		Appointment appointment = decodeAppointment(routingContext, appointmentJson);
+		if (appointment == null) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		
+		// Main operation
+		AppointmentStore controller = store(routingContext);
+		Future<JsonObject> future = controller.insertAppointment(appointment);
+		future.setHandler(result -> {
+			// Output
+			if (result.succeeded()) {
+				sendResultToClient(routingContext, 200, future.result());
+			} else {
+				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", EMPTY_OBJECT);
+				log.error("Insert Appointment failed. Details: {}", future.cause().toString());
+			}
+		});
+	}
+	
+	/**
+	 * Removes Appointment with given identifier.
+	 * <p>
+	 * Returns true to client if successful removal, else returns false
+	 * 
+	 * @param routingContext
+	 */
+	private void deleteAppointment(RoutingContext routingContext) {
+		// Input check
+		serviceCallMessage(routingContext);
+		JsonObject json = bodyAsJson(routingContext);
+		if (json == null || json.getString("id") == null) {
+			log.debug("failed!");
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		
+		// Main operation
+		AppointmentStore controller = store(routingContext);
+		Future<JsonObject> future = controller.deleteOne(json.getString("id"));
+		future.setHandler(result -> {
+			if (result.succeeded()) {
+				sendResultToClient(routingContext, 200, future.result());
+			} else {
+				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", EMPTY_OBJECT);
+				log.error("Delete Appointment failed. Details: {}", future.cause().toString());
+			}
+		});
+	}
+	
+	private void updateAppointment(RoutingContext routingContext) {
+		// Input check
+		serviceCallMessage(routingContext);
+		JsonObject appointmentJson = bodyAsJson(routingContext);
+		Appointment appointment = decodeAppointment(routingContext, appointmentJson);
+		if (appointment == null) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		
+		// Main operation
+		AppointmentStore controller = store(routingContext);
+		Future<JsonObject> future = controller.replaceAppointment(appointment);
+		future.setHandler(result -> {
+			// Output
+			if (result.succeeded()) {
+				sendResultToClient(routingContext, 200, future.result());
+			} else {
+				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", EMPTY_OBJECT);
+				log.error("Insert Appointment failed. Details: {}", future.cause().toString());
+			}
+		});
+	}
+	
+	/**
+	 * Finds Appointment with given identifier.
+	 * <p>
+	 * Identifier is read from query parameter "id" (cacheable, see {@link #notModified}) or from request body
+	 * 
+	 * @param routingContext
+	 */
+	private void findAppointment(RoutingContext routingContext) {
+		// Input check
+		serviceCallMessage(routingContext);
+		boolean cacheable = routingContext.request().getParam("id") != null;
+		JsonObject json = cacheable ? new JsonObject().put("id", routingContext.request().getParam("id"))
+				: bodyAsJson(routingContext);
+		if (json == null || json.getString("id") == null) {
+			log.debug("failed!");
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		String etag = cacheable ? etag(routingContext) : null;
+		if (etag != null && notModified(routingContext, etag)) {
+			return;
+		}
+		
+		AppointmentStore controller = readStore(routingContext, json);
+		Future<List<JsonObject>> future = controller.findAppointment(json.getString("id"));
+		future.setHandler(result -> {
+			JsonObject jsonResult = new JsonObject();
+			if (result.succeeded()) {
+				if (etag != null) {
+					cacheHeaders(routingContext, etag);
+				}
+				if (future.result().size() == 0) {
+					sendObjectToClient(routingContext, jsonResult);
+				} else {
+					jsonResult = future.result().get(0);
+					jsonResult.remove("_id");
+					sendObjectToClient(routingContext, jsonResult);
+				}
+				
+			} else {
+				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", jsonResult.toString());
+				log.error("Find Appointment failed. Details: {}", future.cause().toString());
+			}
+		});
+	}
+	
+	/**
+	 * Finds appointments with given identifiers in one store lookup, responds with a json array in order of
+	 * identifiers having null for missing ones (or bson documents, empty for missing ones, see
+	 * {@link #sendAppointmentsToClient}).
+	 * <p>
+	 * Identifiers are read from comma separated query parameter "ids" (cacheable, see {@link #notModified}) or from
+	 * "ids" array of request body, at most "find_many_max_ids" (default 1000) of them
+	 * 
+	 * @param routingContext
+	 */
+	private void findAppointments(RoutingContext routingContext) {
+		// Input check
+		serviceCallMessage(routingContext);
+		String param = routingContext.request().getParam("ids");
+		boolean cacheable = param != null;
+		JsonObject json = cacheable ? null : bodyAsJson(routingContext);
+		List<String> ids = cacheable ? Arrays.asList(param.split(",", -1)) : idsOf(json);
+		if (ids == null || ids.size() > config().getInteger("find_many_max_ids", 1000)) {
+			log.debug("failed!");
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		String etag = cacheable ? etag(routingContext) : null;
+		if (etag != null && notModified(routingContext, etag)) {
+			return;
+		}
+		
+		AppointmentStore controller = readStore(routingContext, json);
+		Future<List<JsonObject>> future = controller.findAppointments(ids);
+		future.setHandler(result -> {
+			if (result.succeeded()) {
+				if (etag != null) {
+					cacheHeaders(routingContext, etag);
+				}
+				sendAppointmentsToClient(routingContext, result.result());
+			} else {
+				log.error("Find Appointments failed. Details: {}", future.cause().toString());
+				routingContext.response().setStatusCode(500).end();
+			}
+		});
+	}
+	
+	/**
+	 * @param json request body
+	 * @return "ids" of request body, null if body or its "ids" is missing or not an array of strings
+	 */
+	private static List<String> idsOf(JsonObject json) {
+		Object value = json == null ? null : json.getValue("ids");
+		if (!(value instanceof JsonArray)) {
+			return null;
+		}
+		JsonArray array = (JsonArray) value;
+		List<String> ids = new ArrayList<>(array.size());
+		for (Object id : array) {
+			if (!(id instanceof String)) {
+				return null;
+			}
+			ids.add((String) id);
+		}
+		return ids;
+	}
+	
+	/**
+	 * Retrieve all appointments that are scheduled between a date range and sorted by price.
+	 * <p>
+	 * Range is read from query parameters "start" and "end" (cacheable, see {@link #notModified}) or from request
+	 * body
+	 * 
+	 * @param routingContext
+	 */
+	private void findAppointmentsWithRangeAndSort(RoutingContext routingContext) {
+		// Input check
+		serviceCallMessage(routingContext);
+		boolean cacheable = routingContext.request().getParam("start") != null
+				|| routingContext.request().getParam("end") != null;
+		JsonObject json;
+		try {
+			json = cacheable ? new JsonObject().put("start", longParam(routingContext, "start")).put("end",
+					longParam(routingContext, "end")) : bodyAsJson(routingContext);
+		} catch (NumberFormatException e) {
+			json = null;
+		}
+		if (json == null || json.getLong("start") == null || json.getLong("end") == null) {
+			log.debug("failed!");
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		String etag = cacheable ? etag(routingContext) : null;
+		if (etag != null && notModified(routingContext, etag)) {
+			return;
+		}
+		
+		AppointmentStore controller = readStore(routingContext, json);
+		Future<List<JsonObject>> future = controller.findAppointmentsWithRangeAndSort(json.getLong("start"),
+				json.getLong("end"));
+		future.setHandler(result -> {
+			List<JsonObject> jsonResult = Collections.emptyList();
+			if (result.succeeded()) {
+				if (etag != null) {
+					cacheHeaders(routingContext, etag);
+				}
+				sendAppointmentsToClient(routingContext, result.result());
+			} else {
+				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", jsonResult.toString());
+				log.error("Find Appointments in range and sort failed. Details: {}", future.cause().toString());
+			}
+		});
+		
+	}
+	
+	/**
+	 * @param routingContext
+	 * @return current ETag of representation negotiated by "Accept" header ("-bson" suffix for bson), null if reads
+	 *         are not conditional (see {@link #conditionalReads})
+	 */
+	private String etag(RoutingContext routingContext) {
+		if (!conditionalReads) {
+			return null;
+		}
+		String etag = changeVersion.etag();
+		return acceptsBson(routingContext) ? etag.substring(0, etag.length() - 1) + "-bson\"" : etag;
+	}
+	
+	/**
+	 * Responds 304 without touching store if client already has current version of collection
+	 * <p>
+	 * ETag is the change version of collection taken before reading, so it can only be older than the data it is
+	 * sent with, never newer
+	 * 
+	 * @param routingContext
+	 * @param etag current ETag
+	 * @return true if 304 is sent
+	 */
+	private boolean notModified(RoutingContext routingContext, String etag) {
+		String ifNoneMatch = routingContext.request().getHeader("If-None-Match");
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			String trimmed = candidate.trim();
+			if (trimmed.equals(etag) || trimmed.equals("*")) {
+				cacheHeaders(routingContext, etag);
+				routingContext.response().setStatusCode(304).end();
+				if (log.isDebugEnabled()) {
+					log.debug("Not modified response sended to {} for the query: {}",
+							routingContext.request().remoteAddress().host(), routingContext.currentRoute().getPath());
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Puts ETag, Vary (representation depends on "Accept") and Cache-Control ("cache_max_age_s" config, default 0
+	 * meaning clients must revalidate) headers
+	 * 
+	 * @param routingContext
+	 * @param etag
+	 */
+	private void cacheHeaders(RoutingContext routingContext, String etag) {
+		int maxAge = config().getInteger("cache_max_age_s", 0);
+		routingContext.response().putHeader("ETag", etag).putHeader("Vary", "Accept").putHeader("Cache-Control",
+				maxAge > 0 ? "public, max-age=" + maxAge : "no-cache");
+	}
+	
+	/**
+	 * Books Appointment with given identifier if it is still available.
+	 * <p>
+	 * Request body: {"id": ..., "version": ...} where version is optional. Returns 409 if appointment is not
+	 * available anymore or its version has changed
+	 * 
+	 * @param routingContext
+	 */
+	private void bookAppointment(RoutingContext routingContext) {
+		changeAppointmentStatus(routingContext, "Book", AppointmentStore::bookAppointment);
+	}
+	
+	/**
+	 * Cancels Appointment with given identifier if it is booked.
+	 * <p>
+	 * Request body: {"id": ..., "version": ...} where version is optional. Returns 409 if appointment is not booked
+	 * or its version has changed
+	 * 
+	 * @param routingContext
+	 */
+	private void cancelAppointment(RoutingContext routingContext) {
+		changeAppointmentStatus(routingContext, "Cancel", AppointmentStore::cancelAppointment);
+	}
+	
+	/**
+	 * Common handler for atomic status transitions (book/cancel)
+	 * 
+	 * @param routingContext
+	 * @param operationName used in logs
+	 * @param operation controller operation to be called with id and optional version
+	 */
+	private void changeAppointmentStatus(RoutingContext routingContext, String operationName,
+			StatusOperation operation) {
+		// Input check
+		serviceCallMessage(routingContext);
+		JsonObject json = bodyAsJson(routingContext);
+		if (json == null || json.getString("id") == null) {
+			log.debug("failed!");
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		Long version;
+		try {
+			version = json.getLong("version");
+		} catch (ClassCastException e) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		
+		// Main operation
+		AppointmentStore controller = store(routingContext);
+		Future<JsonObject> future = operation.apply(controller, json.getString("id"), version);
+		future.setHandler(result -> {
+			if (result.succeeded()) {
+				JsonObject jsonResult = future.result();
+				sendResultToClient(routingContext, jsonResult.getBoolean("result") ? 200 : 409, jsonResult);
+			} else {
+				sendResponseToClient(routingContext, 400, "application/json; charset=utf-8", EMPTY_OBJECT);
+				log.error("{} Appointment failed. Details: {}", operationName, future.cause().toString());
+			}
+		});
+	}
+	
+	/**
+	 * Booked and available appointment counts of every day from today (UTC) on, for "days" (default and maximum
+	 * "day_counters_days", 90) days. Served from memory, 503 until counters are loaded, 404 if they are disabled.
+	 * 
+	 * @param routingContext
+	 */
+	private void dailyCounts(RoutingContext routingContext) {
+		// Input check
+		serviceCallMessage(routingContext);
+		if (dayCounters == null) {
+			routingContext.response().setStatusCode(404).end();
+			return;
+		}
+		int maxDays = config().getInteger("day_counters_days", 90);
+		Long days;
+		try {
+			days = longParam(routingContext, "days");
+		} catch (NumberFormatException e) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		if (days != null && days <= 0) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		if (!dayCounters.isReady()) {
+			routingContext.response().putHeader("Retry-After", "1").setStatusCode(503).end();
+			return;
+		}
+		
+		// Main operation
+		int count = days == null ? maxDays : (int) Math.min(days, maxDays);
+		sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+				dayCounters.histogram(DayCounters.today(), count).toString());
+	}
+	
+	/**
+	 * Doctor name autocomplete: up to "limit" (default "doctor_suggest_limit", 10, at most 100) doctors whose name or
+	 * a word of it starts with "prefix" (ignoring case), most upcoming available appointments first
+	 * <p>
+	 * Served from {@link DoctorIndex}. Until index is built (or if it is disabled) suggestions are computed by mongo,
+	 * matching prefix case sensitively against start of name; embedded storage and bucket schema respond 503 instead.
+	 * 
+	 * @param routingContext
+	 */
+	private void suggestDoctors(RoutingContext routingContext) {
+		// Input check
+		serviceCallMessage(routingContext);
+		String prefix = routingContext.request().getParam("prefix");
+		Long limit;
+		try {
+			limit = longParam(routingContext, "limit");
+		} catch (NumberFormatException e) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		if (limit == null) {
+			limit = config().getLong("doctor_suggest_limit", 10L);
+		}
+		if (limit <= 0) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		
+		// Main operation
+		String namePrefix = prefix == null ? "" : prefix;
+		int maxSuggestions = (int) Math.min(limit, 100);
+		RequestTrace.Span span = RequestTrace.of(routingContext).startSpan("suggest");
+		if (doctorIndex != null && doctorIndex.isReady()) {
+			List<JsonObject> doctors = doctorIndex.suggest(namePrefix, maxSuggestions);
+			span.describe("index").end();
+			sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+					new JsonArray(doctors).toString());
+		} else if (embeddedStore == null && !BucketedAppointmentStore.isEnabled(config())) {
+			span.describe("mongo");
+			DoctorIndex.findInMongo(vertx, workloadConfigs.get(WorkloadClass.of(routingContext)), namePrefix,
+					maxSuggestions).setHandler(result -> {
+						span.end();
+						if (result.succeeded()) {
+							sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+									new JsonArray(result.result()).toString());
+						} else {
+							log.error("Doctor suggestions failed. Details: {}", result.cause().toString());
+							routingContext.response().setStatusCode(500).end();
+						}
+					});
+		} else {
+			span.end();
+			routingContext.response().putHeader("Retry-After", "1");
+			routingContext.response().setStatusCode(503).end();
+		}
+	}
+	
+	/**
+	 * Streams appointments as newline delimited json (one appointment per line)
+	 * <p>
+	 * Optional query parameters "start" and "end" filter by appointmentDate. Store is read only as fast as client
+	 * consumes the response, so memory usage does not depend on number of exported appointments.
+	 * 
+	 * @param routingContext
+	 */
+	private void exportAppointments(RoutingContext routingContext) {
+		// Input check
+		serviceCallMessage(routingContext);
+		Long start;
+		Long end;
+		try {
+			start = longParam(routingContext, "start");
+			end = longParam(routingContext, "end");
+		} catch (NumberFormatException e) {
+			routingContext.response().setStatusCode(400).end();
+			return;
+		}
+		
+		// Main operation
+		HttpServerResponse response = routingContext.response();
+		response.setChunked(true).putHeader("Access-Control-Allow-Origin", "*").putHeader("content-type",
+				"application/x-ndjson");
+		ReadStream<JsonObject> appointments = store(WorkloadClass.of(routingContext)).exportAppointments(start, end);
+		long[] exported = { 0 };
+		response.closeHandler(v -> {
+			// client is gone: releases cursor instead of keeping it paused until it times out
+			appointments.endHandler(null);
+			appointments.handler(null);
+			log.info("Export to {} closed after {} appointments", routingContext.request().remoteAddress().host(),
+					exported[0]);
+		});
+		appointments.exceptionHandler(e -> {
+			log.error("Export Appointments failed after {} appointments. Details: {}", exported[0], e.toString());
+			// status line is already sent, closing connection is the only way to tell client export is incomplete
+			response.close();
+		});
+		appointments.endHandler(v -> {
+			response.end();
+			log.info("{} appointments exported to {}", exported[0], routingContext.request().remoteAddress().host());
+		});
+		appointments.handler(appointment -> {
+			appointment.remove("_id");
+			response.write(appointment.encode() + "\n");
+			exported[0]++;
+			if (response.writeQueueFull()) {
+				appointments.pause();
+				response.drainHandler(v -> appointments.resume());
+			}
+		});
+	}
+	
+	/**
+	 * Imports newline delimited json appointments streamed in request body
+	 * <p>
+	 * Body is parsed incrementally and inserted in batches of "import_batch_size" (default 500). Request is paused
+	 * while a batch is being written, so memory usage does not depend on size of uploaded file. Lines which are not
+	 * appointments are rejected and counted. Returns {"result": ..., "imported": n, "rejected": m}, or 400 with counts
+	 * of what has been imported before body turned out to be malformed.
+	 * 
+	 * @param routingContext
+	 */
+	private void importAppointments(RoutingContext routingContext) {
+		serviceCallMessage(routingContext);
+		HttpServerRequest request = routingContext.request();
+		AppointmentStore controller = store(WorkloadClass.of(routingContext));
+		int batchSize = config().getInteger("import_batch_size", 500);
+		NdjsonImport state = new NdjsonImport(batchSize);
+		JsonParser parser = JsonParser.newParser(request).objectValueMode();
+		parser.handler(event -> {
+			if (state.failure != null || event.type() != JsonEventType.VALUE) {
+				return;
+			}
+			Appointment appointment = event.value() instanceof JsonObject
+					? decodeAppointment((JsonObject) event.value())
+					: null;
+			if (appointment == null) {
+				state.rejected++;
+				return;
+			}
+			state.batch.add(appointment);
+			if (state.batch.size() >= batchSize) {
+				parser.pause();
+				request.pause();
+				state.flush(controller).setHandler(flushed -> {
+					parser.resume();
+					request.resume();
+				});
+			}
+		});
+		parser.exceptionHandler(e -> {
+			if (state.failure == null) {
+				state.failure = e;
+				log.warn("Import Appointments body is malformed. Details: {}", e.toString());
+				state.flush(controller).setHandler(flushed -> sendResponseToClient(routingContext, 400,
+						"application/json; charset=utf-8", state.toJson().toString()));
+			}
+		});
+		parser.endHandler(v -> {
+			if (state.failure == null) {
+				state.flush(controller).setHandler(flushed -> {
+					log.info("Import Appointments completed: {}", state.toJson());
+					sendResponseToClient(routingContext, 200, "application/json; charset=utf-8",
+							state.toJson().toString());
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Progress of an NDJSON import, batches are written one after another
+	 */
+	private static class NdjsonImport {
+		
+		private final int batchSize;
+		
+		private List<Appointment> batch;
+		
+		/**
+		 * Completes when last started batch is written, failed batches are counted as rejected and do not stop import
+		 */
+		private Future<Void> writes = Future.succeededFuture();
+		
+		private long imported;
+		
+		private long rejected;
+		
+		private boolean writeFailed;
+		
+		private Throwable failure;
+		
+		NdjsonImport(int batchSize) {
+			this.batchSize = batchSize;
+			this.batch = new ArrayList<>(batchSize);
+		}
+		
+		/**
+		 * Writes current batch after previous ones and starts a new batch
+		 * 
+		 * @param controller
+		 * @return completes when every batch started so far is written
+		 */
+		Future<Void> flush(AppointmentStore controller) {
+			List<Appointment> full = batch;
+			batch = new ArrayList<>(batchSize);
+			writes = writes.compose(v -> {
+				Future<Void> written = Future.future();
+				controller.insertAppointments(full).setHandler(result -> {
+					if (result.succeeded()) {
+						long inserted = result.result().getLong("inserted", 0L);
+						imported += inserted;
+						rejected += full.size() - inserted;
+						writeFailed |= !result.result().getBoolean("result", false);
+						written.complete();
+					} else {
+						log.error("Import batch of {} appointments failed. Details: {}", full.size(),
+								result.cause().toString());
+						rejected += full.size();
+						writeFailed = true;
+						written.complete();
+					}
+				});
+				return written;
+			});
+			return writes;
+		}
+		
+		JsonObject toJson() {
+			return new JsonObject().put("result", failure == null && !writeFailed && rejected == 0)
+					.put("imported", imported).put("rejected", rejected);
+		}
+	}
+	
+	/**
+	 * Controller operation changing status of an appointment
+	 */
+	@FunctionalInterface
+	private interface StatusOperation {
+		Future<JsonObject> apply(AppointmentStore controller, String id, Long version);
+	}
+	
+	/* ------ COMMON METHODS ------ */
+	
+	/**
+	 * Store to be used for an interactive request, see {@link #store(WorkloadClass)}
+	 * 
+	 * @return
+	 */
+	private AppointmentStore store() {
+		return store(WorkloadClass.INTERACTIVE);
+	}
+	
+	/**
+	 * Store to be used for given workload class, see {@link #newStore}
+	 * 
+	 * @param workload
+	 * @return
+	 */
+	private AppointmentStore store(WorkloadClass workload) {
+		AppointmentStore store = stores.get(workload);
+		// stores are built once start has created every decorator, components started earlier get a new one
+		return store != null ? store : newStore(workload);
+	}
+	
+	/**
+	 * Store of given workload class (see {@link #baseStore}), updating day counters, increasing change version,
+	 * updating doctor index and invalidating near cache on writes
+	 * 
+	 * @param workload
+	 * @return
+	 */
+	private AppointmentStore newStore(WorkloadClass workload) {
+		AppointmentStore store = baseStore(workload);
+		if (dayCounters != null) {
+			store = new DayCountedAppointmentStore(store, dayCounters);
+		}
+		store = new VersionedAppointmentStore(store, changeVersion);
+		if (doctorIndex != null) {
+			store = new DoctorIndexedAppointmentStore(store, doctorIndex);
+		}
+		return nearCache == null ? store : new NearCachedAppointmentStore(store, nearCache, invalidator);
+	}
+	
+	/**
+	 * Embedded, sharded, bucketed or flat mongo store on pool of given workload class
+	 * 
+	 * @param workload
+	 * @return
+	 */
+	private AppointmentStore baseStore(WorkloadClass workload) {
+		if (embeddedStore != null) {
+			return embeddedStore;
+		}
+		if (shardedStore != null) {
+			return shardedStores.get(workload);
+		}
+		JsonObject mongoConfig = workloadConfigs.get(workload);
+		if (BucketedAppointmentStore.isEnabled(mongoConfig)) {
+			return new BucketedAppointmentStore(vertx, mongoConfig);
+		}
+		return new AppointmentServiceController(vertx, mongoConfig, readModel);
+	}
+	
+	/**
+	 * Store to be used for a request (on pools of its workload class), recording its operations as spans of request
+	 * trace. Trace is per request, so is the wrapper; its allocation is part of RequestAllocationTest budgets
+	 * 
+	 * @param routingContext
+	 * @return
+	 */
+	private AppointmentStore store(RoutingContext routingContext) {
+		WorkloadClass workload = WorkloadClass.of(routingContext);
+		return new TracedAppointmentStore(store(workload), RequestTrace.of(routingContext),
+				embeddedStore == null ? "mongo" : "store", poolMetrics.get(workload));
+	}
+	
+	/**
+	 * @param workload
+	 * @return route handler admitting requests within budget of given workload class
+	 */
+	private Handler<RoutingContext> workload(WorkloadClass workload) {
+		return WorkloadLimiter.handler(vertx, config(), routingContext -> workload);
+	}
+	
+	/**
+	 * Range reads spanning more than "bulk_range_ms" (default 31 days) are bulk, shorter ones interactive
+	 * 
+	 * @param routingContext
+	 * @return
+	 */
+	private WorkloadClass rangeWorkload(RoutingContext routingContext) {
+		JsonObject json;
+		try {
+			json = routingContext.request().getParam("start") != null
+					? new JsonObject().put("start", longParam(routingContext, "start")).put("end",
+							longParam(routingContext, "end"))
+					: bodyAsJson(routingContext);
+		} catch (RuntimeException e) {
+			// rejected by route handler
+			return WorkloadClass.INTERACTIVE;
+		}
+		Long start = json == null ? null : json.getLong("start");
+		Long end = json == null ? null : json.getLong("end");
+		boolean bulk = start != null && end != null
+				&& end - start > config().getLong("bulk_range_ms", 31 * 24 * 3600000L);
+		return bulk ? WorkloadClass.BULK : WorkloadClass.INTERACTIVE;
+	}
+	
+	/**
+	 * @param routingContext
+	 * @param name
+	 * @return query parameter parsed as long, null if it is not given
+	 * @throws NumberFormatException if parameter is not a number
+	 */
+	private Long longParam(RoutingContext routingContext, String name) {
+		String value = routingContext.request().getParam(name);
+		return value == null ? null : Long.valueOf(value);
+	}
+	
+	/**
+	 * Store to be used for a read request, union of store and its archive if "includeArchived" is true in query
+	 * parameters or in request body
+	 * 
+	 * @param routingContext
+	 * @param json request body, null if not used
+	 * @return
+	 */
+	private AppointmentStore readStore(RoutingContext routingContext, JsonObject json) {
+		AppointmentStore store = store(routingContext);
+		boolean includeArchived = Boolean.parseBoolean(routingContext.request().getParam("includeArchived"))
+				|| (json != null && Boolean.TRUE.equals(json.getValue("includeArchived")));
+		AppointmentStore archive = includeArchived ? store.archive() : null;
+		return archive == null ? store : new ArchiveUnionAppointmentStore(store, archive);
+	}
+	
+	/**
+	 * Parses request body as json, or as bson if its "Content-Type" is "application/bson", traced as "parse" span
+	 * 
+	 * @param routingContext
+	 * @return body, null if there is no body
+	 * @throws DecodeException if body is not a json object
+	 */
+	private JsonObject bodyAsJson(RoutingContext routingContext) {
+		RequestTrace.Span span = RequestTrace.of(routingContext).startSpan("parse");
+		try {
+			String contentType = routingContext.request().getHeader("Content-Type");
+			if (contentType != null && contentType.startsWith(BsonCodec.CONTENT_TYPE)) {
+				Buffer body = routingContext.getBody();
+				return body == null || body.length() == 0 ? null : BsonCodec.decode(body);
+			}
+			return routingContext.getBodyAsJson();
+		} finally {
+			span.end();
+		}
+	}
+	
+	/**
+	 * {@link #decodeAppointment(JsonObject)} traced as "decode" span
+	 * 
+	 * @param routingContext
+	 * @param appointmentJson
+	 * @return
+	 */
+	private Appointment decodeAppointment(RoutingContext routingContext, JsonObject appointmentJson) {
+		RequestTrace.Span span = RequestTrace.of(routingContext).startSpan("decode");
+		Appointment appointment = decodeAppointment(appointmentJson);
+		span.end();
+		return appointment;
+	}
+	
+	/**
+	 * Sends json object in representation negotiated by "Accept" header, serialization traced as "encode" span
+	 * 
+	 * @param routingContext
+	 * @param body
+	 */
+	private void sendObjectToClient(RoutingContext routingContext, JsonObject body) {
+		boolean bson = acceptsBson(routingContext);
+		RequestTrace.Span span = RequestTrace.of(routingContext).startSpan("encode");
+		Buffer encoded = bson ? BsonCodec.encode(body) : body.toBuffer();
+		span.end();
+		routingContext.response().putHeader("Vary", "Accept");
+		sendResponseToClient(routingContext, 200, bson ? BsonCodec.CONTENT_TYPE : "application/json; charset=utf-8",
+				encoded);
+	}
+	
+	/**
+	 * @param routingContext
+	 * @return true if "Accept" header prefers "application/bson" to json (equal weights are decided by order)
+	 */
+	private boolean acceptsBson(RoutingContext routingContext) {
+		String accept = routingContext.request().getHeader("Accept");
+		if (accept == null || !accept.contains(BsonCodec.CONTENT_TYPE)) {
+			return false;
+		}
+		boolean bson = false;
+		float bestWeight = 0;
+		for (String range : accept.split(",")) {
+			String[] parameters = range.split(";");
+			String type = parameters[0].trim().toLowerCase();
+			float weight = 1;
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						weight = Float.parseFloat(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						weight = 0;
+					}
+				}
+			}
+			boolean json = "application/json".equals(type) || "application/*".equals(type) || "*/*".equals(type);
+			if ((json || BsonCodec.CONTENT_TYPE.equals(type)) && weight > bestWeight) {
+				bson = !json;
+				bestWeight = weight;
+			}
+		}
+		return bson;
+	}
+	
+	/**
+	 * Sends appointments without mongo "_id" as json array or as bson documents (negotiated by "Accept" header),
+	 * serialized by {@link ResponseEncoder} (on worker pool if there are many of them) and traced as "encode" span
+	 * 
+	 * @param routingContext
+	 * @param appointments
+	 */
+	private void sendAppointmentsToClient(RoutingContext routingContext, List<JsonObject> appointments) {
+		boolean bson = acceptsBson(routingContext);
+		RequestTrace.Span span = RequestTrace.of(routingContext).startSpan("encode");
+		if (encoder.offloads(appointments.size())) {
+			span.describe("worker");
+		}
+		encoder.encode(appointments, bson).setHandler(encoded -> {
+			span.end();
+			if (encoded.succeeded()) {
+				routingContext.response().putHeader("Vary", "Accept");
+				sendResponseToClient(routingContext, 200,
+						bson ? BsonCodec.CONTENT_TYPE : "application/json; charset=utf-8", encoded.result());
+			} else {
+				log.error("Encoding {} appointments failed. Details: {}", appointments.size(),
+						encoded.cause().toString());
+				routingContext.response().setStatusCode(500).end();
+			}
+		});
+	}
+	
+	/**
+	 * De-serializes {@link JsonObject} into {@link Appointment} if possible
+	 * 
+	 * @param appointmentJson
+	 * @return
+	 */
+	private Appointment decodeAppointment(JsonObject appointmentJson) {
+		if (appointmentJson == null) {
+			return null;
+		}
+		Appointment appointment = null;
+		try {
 			appointment = Json.decodeValue(appointmentJson.toBuffer(), Appointment.class);
 		} catch (DecodeException e) {
 			log.warn("Json {} is not Appointment object!", appointmentJson);
 		}
-		return Optional.ofNullable(appointment);
+		return appointment;
+	}
+	
+	/**
+	 * Sends result of a write as json, plain {"result": true/false} results are sent pre-encoded
+	 * 
+	 * @param routingContext
+	 * @param statusCode
+	 * @param result
+	 */
+	private void sendResultToClient(RoutingContext routingContext, int statusCode, JsonObject result) {
+		Object value = result.size() == 1 ? result.getValue("result") : null;
+		Buffer body = Boolean.TRUE.equals(value) ? RESULT_TRUE
+				: Boolean.FALSE.equals(value) ? RESULT_FALSE : result.toBuffer();
+		sendResponseToClient(routingContext, statusCode, "application/json; charset=utf-8", body);
 	}
 	
 	/**
@@ -413,21 +1749,39 @@ public class AppointmentService extends AbstractVerticle {
 	 */
 	private void sendResponseToClient(RoutingContext routingContext, int statusCode, String contentType,
 			String endArg) {
+		sendResponseToClient(routingContext, statusCode, contentType, Buffer.buffer(endArg));
+	}
+	
+	/**
+	 * {@link #sendResponseToClient(RoutingContext, int, String, String)} with an already encoded body
+	 * 
+	 * @param routingContext
+	 * @param statusCode
+	 * @param contentType
+	 * @param endArg
+	 */
+	private void sendResponseToClient(RoutingContext routingContext, int statusCode, String contentType,
+			Buffer endArg) {
 		routingContext.response().setStatusCode(statusCode);
 		routingContext.response().putHeader("Access-Control-Allow-Origin", "*");
 		routingContext.response().putHeader("content-type", contentType).end(endArg);
-		log.info("Response sended to {} for the query: {}", routingContext.request().remoteAddress().host(),
-				routingContext.currentRoute().getPath());
+		if (log.isDebugEnabled()) {
+			log.debug("Response sended to {} for the query: {}", routingContext.request().remoteAddress().host(),
+					routingContext.currentRoute().getPath());
+		}
 	}
 	
 	/**
-	 * Indicator of a service call
+	 * Indicator of a service call, also ends "read" span of request trace (time until route handler is called)
 	 * 
 	 * @param routingContext
 	 */
 	private void serviceCallMessage(@NonNull RoutingContext routingContext) {
-		log.info("Route: '{}' is called by host: '{}'", routingContext.currentRoute().getPath(),
-				routingContext.request().remoteAddress().host());
+		RequestTrace.of(routingContext).sinceArrival("read");
+		if (log.isDebugEnabled()) {
+			log.debug("Route: '{}' is called by host: '{}'", routingContext.currentRoute().getPath(),
+					routingContext.request().remoteAddress().host());
+		}
 	}
 	
 	/**
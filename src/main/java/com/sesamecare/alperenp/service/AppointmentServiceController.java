@@ -21,31 +21,48 @@ SOFTWARE.
  */
 package com.sesamecare.alperenp.service;
 
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.reactivestreams.Publisher;
 
 import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
 
 import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.BulkOperation;
+import io.vertx.ext.mongo.BulkWriteOptions;
 import io.vertx.ext.mongo.FindOptions;
 import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.mongo.MongoClientBulkWriteResult;
+import io.vertx.ext.mongo.MongoClientDeleteResult;
+import io.vertx.ext.mongo.UpdateOptions;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * Controller class for service logic implementation.
  * <p>
- * Operates service logic
+ * Operates service logic on mongo, see {@link AppointmentStore}
  * 
  * @author alperenp
  *
  */
 @Slf4j
-public class AppointmentServiceController {
+public class AppointmentServiceController implements AppointmentStore {
 	
 	private Vertx vertx;
 	
@@ -58,6 +75,54 @@ public class AppointmentServiceController {
 	 */
 	private String COLLECTIONNAME;
 	
+	/**
+	 * Mongo collection archived appointments are moved to
+	 * <p>
+	 * Default value is COLLECTIONNAME + "_archive"
+	 */
+	private String ARCHIVECOLLECTIONNAME;
+	
+	/**
+	 * Optional in-memory read model, reads fall back to mongo if it is null or not caught up
+	 */
+	private AppointmentReadModel readModel;
+	
+	/**
+	 * Usage metrics of shared mongo pool, reported by readiness check
+	 */
+	private MongoPoolMetrics poolMetrics;
+	
+	/**
+	 * Log of slow find/findOneAndReplace/findOneAndDelete/removeDocuments operations
+	 */
+	private SlowOperationLog slowOperations;
+	
+	/**
+	 * Hedges reads and retries writes of this pool
+	 */
+	private MongoRetryPolicy retryPolicy;
+	
+	/**
+	 * Config of pool hedged reads are sent through, null if reads are not hedged
+	 */
+	private JsonObject hedgeConfig;
+	
+	/**
+	 * Maximum number of ids in one $in query of multi-get, longer lists are queried in chunks concurrently
+	 */
+	private final int findChunkSize;
+	
+	/**
+	 * Option and update templates of every call, never modified after creation so they are shared by requests
+	 */
+	private final FindOptions noOptions = new FindOptions();
+	
+	private final FindOptions ascendingPrice = ascendingPrice();
+	
+	private final UpdateOptions returningNewDocument = new UpdateOptions().setReturningNewDocument(true);
+	
+	private final Map<Appointment.Status, JsonObject> statusUpdates = new EnumMap<>(Appointment.Status.class);
+	
 	/**
 	 * Controller constructor
 	 * 
@@ -65,9 +130,28 @@ public class AppointmentServiceController {
 	 * @param config
 	 */
 	public AppointmentServiceController(@NonNull Vertx vertx, @NonNull JsonObject config) {
+		this(vertx, config, null);
+	}
+	
+	/**
+	 * Controller constructor with read model
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @param readModel null if reads are always served from mongo
+	 */
+	public AppointmentServiceController(@NonNull Vertx vertx, @NonNull JsonObject config,
+			AppointmentReadModel readModel) {
 		this.vertx = vertx;
 		this.config = config;
 		this.COLLECTIONNAME = config.getString("mongo_collection", "appointments");
+		this.ARCHIVECOLLECTIONNAME = config.getString("archive_collection", COLLECTIONNAME + "_archive");
+		this.readModel = readModel;
+		this.poolMetrics = MongoPoolMetrics.get(vertx, config);
+		this.slowOperations = SlowOperationLog.get(vertx, config);
+		this.retryPolicy = MongoRetryPolicy.get(vertx, config);
+		this.hedgeConfig = retryPolicy.isHedged() ? MongoRetryPolicy.hedgeConfig(config) : null;
+		this.findChunkSize = Math.max(1, config.getInteger("find_many_chunk_size", 500));
 	}
 	
 	/**
@@ -78,10 +162,17 @@ public class AppointmentServiceController {
 	 */
 	public Future<JsonObject> deleteOne(String appointmentID) {
 		Future<JsonObject> future = Future.future();
-		MongoClient mongoClient = MongoClient.createShared(vertx, config);
-		mongoClient.findOneAndDelete(COLLECTIONNAME, createQueryWithID(appointmentID), asyncResult -> {
-			asyncOperation(asyncResult, future);
-		});
+		expectChange(appointmentID);
+		MongoClient mongoClient = MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
+		JsonObject query = createQueryWithID(appointmentID);
+		retryPolicy.<JsonObject>write(vertx, handler -> mongoClient.findOneAndDelete(COLLECTIONNAME, query,
+				poolMetrics.track(slowOperations.track(mongoClient, "findOneAndDelete", COLLECTIONNAME, query, null,
+						document -> 1, handler))), asyncResult -> {
+							if (asyncResult.failed() || asyncResult.result() == null) {
+								unchanged(appointmentID);
+							}
+							asyncOperation(asyncResult, future);
+						});
 		return future;
 	}
 	
@@ -93,30 +184,51 @@ public class AppointmentServiceController {
 	 */
 	public Future<JsonObject> insertAppointment(Appointment appointment) {
 		Future<JsonObject> future = Future.future();
-		MongoClient mongoClient = MongoClient.createShared(vertx, config);
+		MongoClient mongoClient = MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
 		JsonObject document = new JsonObject(Json.encode(appointment));
-		mongoClient.insert(COLLECTIONNAME, document, asyncResult -> {
-			asyncInsertOperation(asyncResult, future);
-		});
+		expectChange(appointment.getId());
+		retryPolicy.<String>write(vertx,
+				handler -> mongoClient.insert(COLLECTIONNAME, document, poolMetrics.track(
+						slowOperations.track(null, "insert", COLLECTIONNAME, null, null, id -> 1, handler))),
+				asyncResult -> {
+					if (asyncResult.failed()) {
+						unchanged(appointment.getId());
+					}
+					asyncInsertOperation(asyncResult, future);
+				});
 		return future;
 	}
 	
 	/**
 	 * 3- Replaces given appointment with the one which already exists in mongo
 	 * <p>
-	 * Replace is done according to Appointment.id
+	 * Replace is done according to Appointment.id, with a single update setting every field and incrementing stored
+	 * version (version of given appointment is ignored)
 	 * 
 	 * @param appointment
 	 * @return
 	 */
 	public Future<JsonObject> replaceAppointment(Appointment appointment) {
 		Future<JsonObject> future = Future.future();
-		MongoClient mongoClient = MongoClient.createShared(vertx, config);
+		MongoClient mongoClient = MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
 		JsonObject newAppointment = new JsonObject(Json.encode(appointment));
-		mongoClient.findOneAndReplace(COLLECTIONNAME, createQueryWithID(appointment.getId()), newAppointment,
-				asyncResult -> {
-					asyncOperation(asyncResult, future);
-				});
+		newAppointment.remove("version");
+		JsonObject update = new JsonObject().put("$set", newAppointment).put("$inc",
+				new JsonObject().put("version", 1));
+		expectChange(appointment.getId());
+		JsonObject query = createQueryWithID(appointment.getId());
+		retryPolicy.<JsonObject>write(vertx, handler -> mongoClient.findOneAndUpdate(COLLECTIONNAME, query, update,
+				poolMetrics.track(slowOperations.track(mongoClient, "findOneAndUpdate", COLLECTIONNAME, query, null,
+						document -> 1, handler))), asyncResult -> {
+							if (asyncResult.succeeded() && asyncResult.result() != null) {
+								// result is the replaced document
+								long version = asyncResult.result().getLong("version", 0L) + 1;
+								future.complete(new JsonObject().put("result", true).put("version", version));
+							} else {
+								unchanged(appointment.getId());
+								asyncOperation(asyncResult, future);
+							}
+						});
 		return future;
 	}
 	
@@ -127,9 +239,50 @@ public class AppointmentServiceController {
 	 * @return
 	 */
 	public Future<List<JsonObject>> findAppointment(String appointmentID) {
+		if (readModel != null) {
+			List<JsonObject> result = readModel.findAppointment(appointmentID);
+			if (result != null) {
+				return Future.succeededFuture(result);
+			}
+		}
 		JsonObject query = createQueryWithID(appointmentID);
-		FindOptions options = new FindOptions();
-		return search(query, options);
+		return search("findAppointment", query, noOptions);
+	}
+	
+	/**
+	 * 4- Finds {@link Appointment}s with given ids, served from read model where possible and from mongo with $in
+	 * queries on id otherwise
+	 * 
+	 * @param appointmentIDs
+	 * @return appointments in order of given ids, null for ids which do not exist
+	 */
+	public Future<List<JsonObject>> findAppointments(List<String> appointmentIDs) {
+		List<JsonObject> found = new ArrayList<>(appointmentIDs.size());
+		List<String> missing = new ArrayList<>();
+		for (String appointmentID : appointmentIDs) {
+			List<JsonObject> result = readModel == null ? null : readModel.findAppointment(appointmentID);
+			if (result == null) {
+				missing.add(appointmentID);
+			} else if (!result.isEmpty()) {
+				found.add(result.get(0));
+			}
+		}
+		List<Future> chunks = new ArrayList<>();
+		for (int from = 0; from < missing.size(); from += findChunkSize) {
+			JsonArray ids = new JsonArray(new ArrayList<>(missing.subList(from,
+					Math.min(from + findChunkSize, missing.size()))));
+			JsonObject query = new JsonObject().put("id", new JsonObject().put("$in", ids));
+			chunks.add(search("findAppointments", query, noOptions));
+		}
+		if (chunks.isEmpty()) {
+			return Future.succeededFuture(AppointmentStore.inRequestOrder(appointmentIDs, found));
+		}
+		return CompositeFuture.all(chunks).map(results -> {
+			for (int i = 0; i < results.size(); i++) {
+				found.addAll(results.<List<JsonObject>>resultAt(i));
+			}
+			return AppointmentStore.inRequestOrder(appointmentIDs, found);
+		});
 	}
 	
 	/**
@@ -141,9 +294,14 @@ public class AppointmentServiceController {
 	 * @return
 	 */
 	public Future<List<JsonObject>> findAppointmentsWithRangeAndSort(long start, long end) {
+		if (readModel != null) {
+			List<JsonObject> result = readModel.findAppointmentsWithRangeAndSort(start, end);
+			if (result != null) {
+				return Future.succeededFuture(result);
+			}
+		}
 		JsonObject query = createQueryWithTimeRange(start, end);
-		FindOptions options = ascendingPrice();
-		return search(query, options);
+		return search("findAppointmentsInRange", query, ascendingPrice);
 	}
 	
 	/**
@@ -154,9 +312,15 @@ public class AppointmentServiceController {
 	 * @return
 	 */
 	public Future<List<JsonObject>> getAllAppointments() {
+		if (readModel != null) {
+			List<JsonObject> result = readModel.getAllAppointments();
+			if (result != null) {
+				return Future.succeededFuture(result);
+			}
+		}
 		JsonObject query = new JsonObject();
-		FindOptions options = new FindOptions();
-		return search(query, options);
+		// whole collection reads are not hedged, a second copy would double the heaviest read
+		return search(null, query, noOptions);
 	}
 	
 	/**
@@ -167,32 +331,330 @@ public class AppointmentServiceController {
 	public Future<JsonObject> deleteAllAppointments() {
 		JsonObject query = new JsonObject();
 		Future<JsonObject> future = Future.future();
-		MongoClient mongoClient = MongoClient.createShared(vertx, config);
-		mongoClient.removeDocuments(COLLECTIONNAME, query, result -> {
+		MongoClient mongoClient = MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
+		retryPolicy.<MongoClientDeleteResult>write(vertx, handler -> mongoClient.removeDocuments(COLLECTIONNAME, query,
+				poolMetrics.track(slowOperations.track(mongoClient, "removeDocuments", COLLECTIONNAME, query, null,
+						MongoClientDeleteResult::getRemovedCount, handler))), result -> {
+							if (result.succeeded()) {
+								if (readModel != null) {
+									readModel.cleared();
+								}
+								JsonObject clientResponse = new JsonObject().put("result", true);
+								future.complete(clientResponse);
+							} else {
+								JsonObject clientResponse = new JsonObject().put("result", false);
+								future.complete(clientResponse);
+							}
+						});
+		return future;
+	}
+	
+	/**
+	 * 7- Books given {@link Appointment} atomically if it is {@link Appointment.Status#AVAILABLE}
+	 * <p>
+	 * If version is given, appointment is booked only if its version still matches. Result is false if appointment
+	 * does not exist, is already booked or has been modified concurrently.
+	 * 
+	 * @param appointmentID
+	 * @param version expected version, null for no version check
+	 * @return
+	 */
+	public Future<JsonObject> bookAppointment(String appointmentID, Long version) {
+		return changeStatus(appointmentID, version, Appointment.Status.AVAILABLE, Appointment.Status.BOOKED);
+	}
+	
+	/**
+	 * 8- Cancels given {@link Appointment} atomically if it is {@link Appointment.Status#BOOKED}
+	 * <p>
+	 * If version is given, appointment is cancelled only if its version still matches. Result is false if
+	 * appointment does not exist, is not booked or has been modified concurrently.
+	 * 
+	 * @param appointmentID
+	 * @param version expected version, null for no version check
+	 * @return
+	 */
+	public Future<JsonObject> cancelAppointment(String appointmentID, Long version) {
+		return changeStatus(appointmentID, version, Appointment.Status.BOOKED, Appointment.Status.AVAILABLE);
+	}
+	
+	/**
+	 * 9- Inserts given {@link Appointment}s to mongo with one unordered bulk write
+	 * <p>
+	 * Result is false if any of the inserts failed, "inserted" holds the number of inserted appointments
+	 * 
+	 * @param appointments
+	 * @return
+	 */
+	public Future<JsonObject> insertAppointments(List<Appointment> appointments) {
+		Future<JsonObject> future = Future.future();
+		if (appointments.isEmpty()) {
+			return Future.succeededFuture(new JsonObject().put("result", true).put("inserted", 0));
+		}
+		MongoClient mongoClient = MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
+		List<BulkOperation> operations = new ArrayList<>(appointments.size());
+		for (Appointment appointment : appointments) {
+			expectChange(appointment.getId());
+			operations.add(BulkOperation.createInsert(new JsonObject(Json.encode(appointment))));
+		}
+		mongoClient.bulkWriteWithOptions(COLLECTIONNAME, operations, new BulkWriteOptions(false),
+				poolMetrics.track(slowOperations.<MongoClientBulkWriteResult>track(null, "bulkWrite", COLLECTIONNAME,
+						null, null, MongoClientBulkWriteResult::getInsertedCount, asyncResult -> {
+					if (asyncResult.failed()) {
+						appointments.forEach(appointment -> unchanged(appointment.getId()));
+						log.error("Bulk insert of {} appointments failed. Details: {}", appointments.size(),
+								asyncResult.cause().toString());
+						future.complete(new JsonObject().put("result", false).put("inserted", 0));
+					} else {
+						long inserted = asyncResult.result().getInsertedCount();
+						future.complete(new JsonObject().put("result", inserted == appointments.size())
+								.put("inserted", inserted));
+					}
+				})));
+		return future;
+	}
+	
+	/**
+	 * 10- Streams {@link Appointment}s (any status) scheduled between start and end from a mongo cursor
+	 * <p>
+	 * Cursor is read in batches of "export_batch_size" (default 500) documents, next batch is fetched only when
+	 * consumer resumes the stream
+	 * 
+	 * @param start null for no lower bound
+	 * @param end null for no upper bound
+	 * @return
+	 */
+	public ReadStream<JsonObject> exportAppointments(Long start, Long end) {
+		MongoClient mongoClient = MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
+		JsonObject dateRange = new JsonObject();
+		if (start != null) {
+			dateRange.put("$gte", start);
+		}
+		if (end != null) {
+			dateRange.put("$lte", end);
+		}
+		JsonObject query = dateRange.isEmpty() ? new JsonObject() : new JsonObject().put("appointmentDate", dateRange);
+		FindOptions options = new FindOptions().setBatchSize(config.getInteger("export_batch_size", 500));
+		return mongoClient.findBatchWithOptions(COLLECTIONNAME, query, options);
+	}
+
+	/**
+	 * 10- Streams decoded {@link Appointment}s (any status) scheduled between start and end for in-process consumers
+	 * <p>
+	 * Same cursor as {@link #exportAppointments(Long, Long)}: pausing or fetching a few appointments at a time keeps at
+	 * most one batch in memory, however many appointments match.
+	 * 
+	 * @param start null for no lower bound
+	 * @param end null for no upper bound
+	 * @return
+	 */
+	public ReadStream<Appointment> streamAppointments(Long start, Long end) {
+		return new AppointmentReadStream(exportAppointments(start, end));
+	}
+	
+	/**
+	 * 10- Publishes {@link Appointment}s (any status) scheduled between start and end as a Reactive Streams
+	 * {@link Publisher}
+	 * <p>
+	 * Every subscriber opens its own cursor, which is read only as far as subscriber requests.
+	 * 
+	 * @param start null for no lower bound
+	 * @param end null for no upper bound
+	 * @return
+	 */
+	public Publisher<Appointment> publishAppointments(Long start, Long end) {
+		return new ReadStreamPublisher<>(vertx, () -> streamAppointments(start, end));
+	}
+	
+	/**
+	 * 11- Moves up to limit {@link Appointment}s scheduled before given time to archive collection
+	 * <p>
+	 * Appointments are first upserted to archive (by id, so a batch interrupted before delete can be archived again)
+	 * and then deleted from collection one by one, only if every field still has its archived value, so a write
+	 * in between (even one which does not change version) keeps the appointment. Its archive copy is dropped and a
+	 * later batch archives it again. Archived documents get an "archivedAt" date for optional TTL index (see
+	 * {@link AppointmentArchiver}).
+	 * 
+	 * @param before
+	 * @param limit
+	 * @return
+	 */
+	public Future<JsonObject> archiveAppointments(long before, int limit) {
+		Future<JsonObject> future = Future.future();
+		MongoClient mongoClient = MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
+		JsonObject past = new JsonObject().put("appointmentDate", new JsonObject().put("$lt", before));
+		FindOptions options = new FindOptions().setLimit(limit).setSort(new JsonObject().put("appointmentDate", 1));
+		Future<List<JsonObject>> found = Future.future();
+		mongoClient.findWithOptions(COLLECTIONNAME, past, options,
+				poolMetrics.track(slowOperations.track(mongoClient, "find", COLLECTIONNAME, past, options, List::size,
+						found)));
+		found.compose(documents -> {
+			if (documents.isEmpty()) {
+				return Future.succeededFuture(new JsonObject().put("archived", 0L).put("ids", new JsonArray()));
+			}
+			JsonObject archivedAt = new JsonObject().put("$date", Instant.now().toString());
+			List<String> ids = new ArrayList<>(documents.size());
+			List<BulkOperation> operations = new ArrayList<>(documents.size());
+			List<BulkOperation> deletes = new ArrayList<>(documents.size());
+			for (JsonObject document : documents) {
+				document.remove("_id");
+				String id = document.getString("id");
+				ids.add(id);
+				// delete matches archived copy field by field, version 0 also matching a missing one
+				JsonObject unchanged = document.copy();
+				unchanged.remove("version");
+				deletes.add(BulkOperation.createDelete(createQueryWithVersion(unchanged,
+						document.getLong("version", 0L))));
+				operations.add(BulkOperation.createReplace(createQueryWithID(id),
+						document.put("archivedAt", archivedAt), true));
+			}
+			Future<MongoClientBulkWriteResult> copied = Future.future();
+			mongoClient.bulkWriteWithOptions(ARCHIVECOLLECTIONNAME, operations, new BulkWriteOptions(false),
+					poolMetrics.track(slowOperations.track(null, "bulkWrite", ARCHIVECOLLECTIONNAME, null, null,
+							result -> result.getModifiedCount() + result.getUpserts().size(), copied)));
+			return copied.compose(v -> {
+				ids.forEach(this::expectChange);
+				Future<MongoClientBulkWriteResult> deleted = Future.future();
+				mongoClient.bulkWriteWithOptions(COLLECTIONNAME, deletes, new BulkWriteOptions(false),
+						poolMetrics.track(slowOperations.track(null, "bulkWrite", COLLECTIONNAME, null, null,
+								MongoClientBulkWriteResult::getDeletedCount, deleted)));
+				Future<List<String>> changed = deleted.compose(result -> result.getDeletedCount() == deletes.size()
+						? Future.succeededFuture(Collections.<String>emptyList())
+						: dropStaleCopies(mongoClient, ids));
+				return changed.recover(cause -> {
+					ids.forEach(this::unchanged);
+					return Future.failedFuture(cause);
+				}).map(changedIds -> {
+					changedIds.forEach(this::unchanged);
+					JsonArray archivedIds = new JsonArray();
+					ids.stream().filter(id -> !changedIds.contains(id)).forEach(archivedIds::add);
+					return new JsonObject().put("archived", deleted.result().getDeletedCount()).put("ids",
+							archivedIds);
+				});
+			});
+		}).setHandler(result -> {
 			if (result.succeeded()) {
-				JsonObject clientResponse = new JsonObject().put("result", true);
-				future.complete(clientResponse);
+				future.complete(result.result().put("result", true));
 			} else {
-				JsonObject clientResponse = new JsonObject().put("result", false);
-				future.complete(clientResponse);
+				log.error("Archiving appointments failed. Details: {}", result.cause().toString());
+				future.complete(new JsonObject().put("result", false).put("archived", 0));
 			}
 		});
 		return future;
 	}
 	
+	/**
+	 * Removes archive copies of appointments which changed while being archived and are still in collection, they
+	 * are archived again by a later batch if they are still in the past
+	 * 
+	 * @param mongoClient
+	 * @param ids ids of archived batch
+	 * @return ids which changed
+	 */
+	private Future<List<String>> dropStaleCopies(MongoClient mongoClient, List<String> ids) {
+		JsonObject query = new JsonObject().put("id", new JsonObject().put("$in", new JsonArray(ids)));
+		FindOptions options = new FindOptions().setFields(new JsonObject().put("id", 1).put("_id", 0));
+		Future<List<JsonObject>> remaining = Future.future();
+		mongoClient.findWithOptions(COLLECTIONNAME, query, options, poolMetrics.track(
+				slowOperations.track(mongoClient, "find", COLLECTIONNAME, query, options, List::size, remaining)));
+		return remaining.compose(documents -> {
+			log.info("{} appointments changed while archived, left to next batch", documents.size());
+			List<String> changed = new ArrayList<>(documents.size());
+			documents.forEach(document -> changed.add(document.getString("id")));
+			JsonObject stale = new JsonObject().put("id", new JsonObject().put("$in", new JsonArray(changed)));
+			Future<MongoClientDeleteResult> removed = Future.future();
+			mongoClient.removeDocuments(ARCHIVECOLLECTIONNAME, stale, poolMetrics.track(slowOperations.track(
+					mongoClient, "removeDocuments", ARCHIVECOLLECTIONNAME, stale, null,
+					MongoClientDeleteResult::getRemovedCount, removed)));
+			return removed.map(changed);
+		});
+	}
+	
+	/**
+	 * 12- Controller of archive collection
+	 * 
+	 * @return
+	 */
+	public AppointmentStore archive() {
+		return new AppointmentServiceController(vertx, config.copy().put("mongo_collection", ARCHIVECOLLECTIONNAME));
+	}
+	
+	/**
+	 * Moves appointment from one status to another with a single conditional findOneAndUpdate, so concurrent
+	 * clients cannot overwrite each other's booking
+	 * 
+	 * @param appointmentID
+	 * @param version
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	private Future<JsonObject> changeStatus(String appointmentID, Long version, Appointment.Status from,
+			Appointment.Status to) {
+		Future<JsonObject> future = Future.future();
+		MongoClient mongoClient = MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
+		JsonObject query = createQueryWithStatus(appointmentID, version, from);
+		expectChange(appointmentID);
+		JsonObject update = statusUpdates.computeIfAbsent(to, status -> new JsonObject()
+				.put("$set", new JsonObject().put("status", status.toString()))
+				.put("$inc", new JsonObject().put("version", 1)));
+		retryPolicy.<JsonObject>write(vertx, handler -> mongoClient.findOneAndUpdateWithOptions(COLLECTIONNAME, query,
+				update, noOptions, returningNewDocument, poolMetrics.track(slowOperations.track(mongoClient,
+						"findOneAndUpdate", COLLECTIONNAME, query, null, document -> 1, handler))), asyncResult -> {
+					if (asyncResult.failed() || asyncResult.result() == null) {
+						unchanged(appointmentID);
+					}
+					asyncStatusOperation(asyncResult, future);
+				});
+		return future;
+	}
+	
+	/**
+	 * Informs read model (if exists) that appointment with given id is about to change
+	 * 
+	 * @param appointmentID
+	 */
+	private void expectChange(String appointmentID) {
+		if (readModel != null) {
+			readModel.expectChange(appointmentID);
+		}
+	}
+	
+	/**
+	 * Informs read model (if exists) that write of appointment with given id failed or changed nothing
+	 * 
+	 * @param appointmentID
+	 */
+	private void unchanged(String appointmentID) {
+		if (readModel != null) {
+			readModel.unchanged(appointmentID);
+		}
+	}
+	
 	/**
 	 * Generic search/find method for mongo query with {@link FindOptions}
+	 * <p>
+	 * Read is hedged through hedge pool if it is slower than usual for its operation, see {@link MongoRetryPolicy}
 	 * 
+	 * @param operation name latencies are grouped by, null if read must not be hedged
 	 * @param query
 	 * @param options
 	 * @return
 	 */
-	private Future<List<JsonObject>> search(JsonObject query, FindOptions options) {
+	private Future<List<JsonObject>> search(String operation, JsonObject query, FindOptions options) {
 		Future<List<JsonObject>> future = Future.future();
-		MongoClient mongoClient = MongoClient.createShared(vertx, config);
-		mongoClient.findWithOptions(COLLECTIONNAME, query, options, asyncResult -> {
-			asyncFindOperation(asyncResult, future);
-		});
+		MongoClient mongoClient = MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
+		Consumer<Handler<AsyncResult<List<JsonObject>>>> find = handler -> mongoClient.findWithOptions(COLLECTIONNAME,
+				query, options, poolMetrics.track(slowOperations.track(mongoClient, "find", COLLECTIONNAME, query,
+						options, List::size, handler)));
+		if (operation == null) {
+			find.accept(asyncResult -> asyncFindOperation(asyncResult, future));
+			return future;
+		}
+		Consumer<Handler<AsyncResult<List<JsonObject>>>> hedge = hedgeConfig == null ? null
+				: handler -> MongoClient.createShared(vertx, hedgeConfig, MongoPoolMetrics.poolName(hedgeConfig))
+						.findWithOptions(COLLECTIONNAME, query, options,
+								MongoPoolMetrics.get(vertx, hedgeConfig).track(handler));
+		retryPolicy.read(vertx, operation, find, hedge, asyncResult -> asyncFindOperation(asyncResult, future));
 		return future;
 	}
 	
@@ -211,11 +673,11 @@ public class AppointmentServiceController {
 			
 			if (result == null) {
 				// No entry in db
-				log.info("No entry exist given query");
+				log.debug("No entry exist given query");
 				future.complete(Collections.emptyList());
 			} else {
 				// find succeeded
-				log.info("Find {} element(s) for given search", result.size());
+				log.debug("Find {} element(s) for given search", result.size());
 				future.complete(result);
 			}
 		}
@@ -239,12 +701,12 @@ public class AppointmentServiceController {
 			String RESULT = "result";
 			if (result == null) {
 				// insertion failed
-				log.info("Operation insert failed!");
+				log.debug("Operation insert failed!");
 				JsonObject response = new JsonObject().put(RESULT, false);
 				future.complete(response);
 			} else {
 				// insertion succeeded
-				log.info("Operation insert completed successfully for appointment");
+				log.debug("Operation insert completed successfully for appointment");
 				JsonObject response = new JsonObject().put(RESULT, true);
 				future.complete(response);
 			}
@@ -269,18 +731,44 @@ public class AppointmentServiceController {
 			String RESULT = "result";
 			if (result == null) {
 				// delete failed
-				log.info("Operation delete/update failed!");
+				log.debug("Operation delete/update failed!");
 				JsonObject response = new JsonObject().put(RESULT, false);
 				future.complete(response);
 			} else {
 				// delete succeeded
-				log.info("Operation delete/update completed successfully for appointment");
+				log.debug("Operation delete/update completed successfully for appointment");
 				JsonObject response = new JsonObject().put(RESULT, true);
 				future.complete(response);
 			}
 		}
 	}
 	
+	/**
+	 * After book/cancel, this method logs and prepares response to be sent to client
+	 * <p>
+	 * Response contains new version of appointment if status transition succeeded
+	 * 
+	 * @param asyncResult
+	 * @param future
+	 */
+	private void asyncStatusOperation(AsyncResult<JsonObject> asyncResult, Future<JsonObject> future) {
+		if (asyncResult.failed()) {
+			// async operation failed
+			future.fail("MongoClient failed to operate given operation!");
+		} else {
+			JsonObject result = asyncResult.result();
+			String RESULT = "result";
+			if (result == null) {
+				// no appointment in expected status/version
+				log.debug("Operation book/cancel conflicted!");
+				future.complete(new JsonObject().put(RESULT, false));
+			} else {
+				log.debug("Operation book/cancel completed successfully for appointment");
+				future.complete(new JsonObject().put(RESULT, true).put("version", result.getLong("version")));
+			}
+		}
+	}
+	
 	/**
 	 * Create query with respect to id
 	 * 
@@ -291,6 +779,35 @@ public class AppointmentServiceController {
 		return new JsonObject().put("id", id);
 	}
 	
+	/**
+	 * Create query with respect to id, expected status and optionally expected version
+	 * <p>
+	 * Documents written before versioning have no version field, they are treated as version 0
+	 * 
+	 * @param id
+	 * @param version
+	 * @param status
+	 * @return
+	 */
+	private JsonObject createQueryWithStatus(String id, Long version, Appointment.Status status) {
+		JsonObject query = createQueryWithID(id).put("status", status.toString());
+		return version == null ? query : createQueryWithVersion(query, version);
+	}
+	
+	/**
+	 * Adds expected version to query, documents written before versioning have no version field and match version 0
+	 * 
+	 * @param query
+	 * @param version
+	 * @return given query
+	 */
+	private static JsonObject createQueryWithVersion(JsonObject query, long version) {
+		if (version == 0) {
+			return query.put("version", new JsonObject().put("$in", new JsonArray().add(0).addNull()));
+		}
+		return query.put("version", version);
+	}
+	
 	/**
 	 * Creates mongo query with respect to given range of appointmentDate.
 	 * <p>
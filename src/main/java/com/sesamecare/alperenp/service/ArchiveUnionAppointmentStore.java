@@ -0,0 +1,180 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import lombok.NonNull;
+
+/**
+ * {@link AppointmentStore} reading from both a store and its archive, writes go to the store only
+ * <p>
+ * An appointment found in both (archived copy of a batch whose delete did not complete) is returned once, from the
+ * store. Range results of both are merged by price.
+ * 
+ * @author alperenp
+ *
+ */
+public class ArchiveUnionAppointmentStore implements AppointmentStore {
+	
+	private final AppointmentStore store;
+	
+	private final AppointmentStore archive;
+	
+	public ArchiveUnionAppointmentStore(@NonNull AppointmentStore store, @NonNull AppointmentStore archive) {
+		this.store = store;
+		this.archive = archive;
+	}
+	
+	@Override
+	public Future<JsonObject> deleteOne(String appointmentID) {
+		return store.deleteOne(appointmentID);
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointment(Appointment appointment) {
+		return store.insertAppointment(appointment);
+	}
+	
+	@Override
+	public Future<JsonObject> replaceAppointment(Appointment appointment) {
+		return store.replaceAppointment(appointment);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointment(String appointmentID) {
+		return store.findAppointment(appointmentID).compose(found -> found.isEmpty()
+				? archive.findAppointment(appointmentID).map(ArchiveUnionAppointmentStore::withoutArchiveFields)
+				: Future.succeededFuture(found));
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointments(List<String> appointmentIDs) {
+		return store.findAppointments(appointmentIDs).compose(found -> {
+			List<String> missing = new ArrayList<>();
+			for (int i = 0; i < found.size(); i++) {
+				if (found.get(i) == null) {
+					missing.add(appointmentIDs.get(i));
+				}
+			}
+			if (missing.isEmpty()) {
+				return Future.succeededFuture(found);
+			}
+			return archive.findAppointments(missing).map(archived -> {
+				List<JsonObject> all = new ArrayList<>(found);
+				all.addAll(withoutArchiveFields(archived));
+				return AppointmentStore.inRequestOrder(appointmentIDs, all);
+			});
+		});
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointmentsWithRangeAndSort(long start, long end) {
+		Future<List<JsonObject>> current = store.findAppointmentsWithRangeAndSort(start, end);
+		Future<List<JsonObject>> archived = archive.findAppointmentsWithRangeAndSort(start, end);
+		return CompositeFuture.all(current, archived).map(v -> ShardedAppointmentStore
+				.mergeByPrice(Arrays.asList(current.result(), notIn(current.result(), archived.result()))));
+	}
+	
+	@Override
+	public Future<List<JsonObject>> getAllAppointments() {
+		Future<List<JsonObject>> current = store.getAllAppointments();
+		Future<List<JsonObject>> archived = archive.getAllAppointments();
+		return CompositeFuture.all(current, archived).map(v -> {
+			List<JsonObject> all = new ArrayList<>(current.result());
+			all.addAll(notIn(current.result(), archived.result()));
+			return all;
+		});
+	}
+	
+	@Override
+	public Future<JsonObject> deleteAllAppointments() {
+		return store.deleteAllAppointments();
+	}
+	
+	@Override
+	public Future<JsonObject> bookAppointment(String appointmentID, Long version) {
+		return store.bookAppointment(appointmentID, version);
+	}
+	
+	@Override
+	public Future<JsonObject> cancelAppointment(String appointmentID, Long version) {
+		return store.cancelAppointment(appointmentID, version);
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointments(List<Appointment> appointments) {
+		return store.insertAppointments(appointments);
+	}
+	
+	@Override
+	public ReadStream<JsonObject> exportAppointments(Long start, Long end) {
+		return store.exportAppointments(start, end);
+	}
+	
+	@Override
+	public Future<JsonObject> archiveAppointments(long before, int limit) {
+		return store.archiveAppointments(before, limit);
+	}
+	
+	@Override
+	public AppointmentStore archive() {
+		return archive;
+	}
+	
+	/**
+	 * @param current
+	 * @param archived
+	 * @return archived appointments which are not in current ones, without archive fields
+	 */
+	private static List<JsonObject> notIn(List<JsonObject> current, List<JsonObject> archived) {
+		Set<String> ids = new HashSet<>();
+		current.forEach(json -> ids.add(json.getString("id")));
+		List<JsonObject> result = new ArrayList<>(archived.size());
+		for (JsonObject json : archived) {
+			if (!ids.contains(json.getString("id"))) {
+				result.add(json);
+			}
+		}
+		return withoutArchiveFields(result);
+	}
+	
+	private static List<JsonObject> withoutArchiveFields(List<JsonObject> archived) {
+		archived.forEach(json -> {
+			if (json != null) {
+				json.remove("archivedAt");
+			}
+		});
+		return archived;
+	}
+}
@@ -0,0 +1,217 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.io.BasicOutputBuffer;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Binary (BSON) representation of json objects, content type "application/bson"
+ * <p>
+ * Numbers keep their binary form (int32, int64, double), so clients reading numeric heavy appointments skip text
+ * number parsing. A list is a sequence of documents (same as mongodump output), a single object is one document.
+ * Mongo types without a json counterpart are read as: ObjectId as hex string, date as epoch millis.
+ * 
+ * @author alperenp
+ *
+ */
+public final class BsonCodec {
+	
+	public static final String CONTENT_TYPE = "application/bson";
+	
+	private BsonCodec() {
+	}
+	
+	/**
+	 * @param json
+	 * @return one bson document
+	 */
+	public static Buffer encode(JsonObject json) {
+		BasicOutputBuffer output = new BasicOutputBuffer();
+		try (BsonBinaryWriter writer = new BsonBinaryWriter(output)) {
+			writeDocument(writer, json);
+		}
+		return Buffer.buffer(output.toByteArray());
+	}
+	
+	/**
+	 * @param jsons
+	 * @return sequence of bson documents, an empty one for every null entry
+	 */
+	public static Buffer encode(List<JsonObject> jsons) {
+		// appointments are ~170 bytes, sizing up front saves repeated buffer growth
+		BasicOutputBuffer output = new BasicOutputBuffer(Math.max(1024, jsons.size() * 192));
+		for (JsonObject json : jsons) {
+			try (BsonBinaryWriter writer = new BsonBinaryWriter(output)) {
+				writeDocument(writer, json == null ? new JsonObject() : json);
+			}
+		}
+		return Buffer.buffer(output.toByteArray());
+	}
+	
+	/**
+	 * @param buffer one bson document
+	 * @return
+	 * @throws DecodeException if buffer is not a bson document
+	 */
+	public static JsonObject decode(Buffer buffer) {
+		List<JsonObject> documents = decodeAll(buffer);
+		if (documents.size() != 1) {
+			throw new DecodeException("Expected one bson document, found " + documents.size());
+		}
+		return documents.get(0);
+	}
+	
+	/**
+	 * @param buffer sequence of bson documents
+	 * @return
+	 * @throws DecodeException if buffer is not a sequence of bson documents
+	 */
+	public static List<JsonObject> decodeAll(Buffer buffer) {
+		List<JsonObject> documents = new ArrayList<>();
+		ByteBuffer bytes = ByteBuffer.wrap(buffer.getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			while (bytes.hasRemaining()) {
+				int length = bytes.getInt(bytes.position());
+				if (length < 5 || length > bytes.remaining()) {
+					throw new DecodeException("Invalid bson document length " + length);
+				}
+				ByteBuffer document = bytes.slice();
+				document.limit(length);
+				try (BsonBinaryReader reader = new BsonBinaryReader(document)) {
+					documents.add(readDocument(reader));
+				}
+				bytes.position(bytes.position() + length);
+			}
+		} catch (RuntimeException e) {
+			throw e instanceof DecodeException ? e : new DecodeException("Invalid bson: " + e.getMessage());
+		}
+		return documents;
+	}
+	
+	private static void writeDocument(BsonWriter writer, JsonObject json) {
+		writer.writeStartDocument();
+		for (Map.Entry<String, Object> entry : json.getMap().entrySet()) {
+			writer.writeName(entry.getKey());
+			writeValue(writer, entry.getValue());
+		}
+		writer.writeEndDocument();
+	}
+	
+	private static void writeValue(BsonWriter writer, Object value) {
+		if (value == null) {
+			writer.writeNull();
+		} else if (value instanceof String) {
+			writer.writeString((String) value);
+		} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			writer.writeInt32(((Number) value).intValue());
+		} else if (value instanceof Long) {
+			writer.writeInt64((Long) value);
+		} else if (value instanceof Number) {
+			writer.writeDouble(((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			writer.writeBoolean((Boolean) value);
+		} else if (value instanceof JsonObject) {
+			writeDocument(writer, (JsonObject) value);
+		} else if (value instanceof Map) {
+			writeDocument(writer, new JsonObject(castMap(value)));
+		} else if (value instanceof JsonArray || value instanceof List) {
+			JsonArray array = value instanceof JsonArray ? (JsonArray) value : new JsonArray((List<?>) value);
+			writer.writeStartArray();
+			for (Object element : array) {
+				writeValue(writer, element);
+			}
+			writer.writeEndArray();
+		} else if (value instanceof Instant) {
+			writer.writeDateTime(((Instant) value).toEpochMilli());
+		} else {
+			writer.writeString(value.toString());
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> castMap(Object map) {
+		return (Map<String, Object>) map;
+	}
+	
+	private static JsonObject readDocument(BsonReader reader) {
+		JsonObject json = new JsonObject();
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String name = reader.readName();
+			json.put(name, readValue(reader));
+		}
+		reader.readEndDocument();
+		return json;
+	}
+	
+	private static Object readValue(BsonReader reader) {
+		switch (reader.getCurrentBsonType()) {
+		case DOUBLE:
+			return reader.readDouble();
+		case STRING:
+			return reader.readString();
+		case DOCUMENT:
+			return readDocument(reader);
+		case ARRAY:
+			JsonArray array = new JsonArray();
+			reader.readStartArray();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				array.add(readValue(reader));
+			}
+			reader.readEndArray();
+			return array;
+		case BOOLEAN:
+			return reader.readBoolean();
+		case INT32:
+			return reader.readInt32();
+		case INT64:
+			return reader.readInt64();
+		case DATE_TIME:
+			return reader.readDateTime();
+		case OBJECT_ID:
+			return reader.readObjectId().toHexString();
+		case NULL:
+			reader.readNull();
+			return null;
+		default:
+			reader.skipValue();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,654 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.BulkOperation;
+import io.vertx.ext.mongo.BulkWriteOptions;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.mongo.MongoClientBulkWriteResult;
+import io.vertx.ext.mongo.MongoClientUpdateResult;
+import io.vertx.ext.mongo.UpdateOptions;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link AppointmentStore} keeping one mongo document (bucket) per doctor per day
+ * <p>
+ * A bucket {"_id": "doctorName|day", "doctorName", "day", "count", "appointments": [...]} holds appointments of that
+ * doctor on that day (day = appointmentDate / 24h) sorted by appointmentDate. Every write is a single atomic update of
+ * one bucket ($push/$pull/positional), except replacing an appointment with one of another doctor or day, which pushes
+ * to the new bucket before pulling from the old one. If the pull fails, the new copy is pulled again; a copy left by a
+ * failure of both is removed by the next replace of that appointment. Replace stores version of replaced appointment
+ * + 1. Range queries read buckets of the days in range, so they touch a few documents per doctor per day instead of
+ * one per appointment.
+ * <p>
+ * Enabled with "schema": "bucket" config, buckets are kept in "bucket_collection" (default mongo_collection +
+ * "_buckets"). {@link #migrateFromFlat()} copies an existing flat collection.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class BucketedAppointmentStore implements AppointmentStore {
+	
+	static final long DAY_MS = 24 * 3600000L;
+	
+	private Vertx vertx;
+	
+	private JsonObject config;
+	
+	/**
+	 * Flat collection, only read by migration
+	 */
+	private String COLLECTIONNAME;
+	
+	private String BUCKETCOLLECTIONNAME;
+	
+	private MongoPoolMetrics poolMetrics;
+	
+	public BucketedAppointmentStore(@NonNull Vertx vertx, @NonNull JsonObject config) {
+		this.vertx = vertx;
+		this.config = config;
+		this.COLLECTIONNAME = config.getString("mongo_collection", "appointments");
+		this.BUCKETCOLLECTIONNAME = bucketCollection(config);
+		this.poolMetrics = MongoPoolMetrics.get(vertx, config);
+	}
+	
+	/**
+	 * @param config
+	 * @return true if "schema" config is "bucket"
+	 */
+	public static boolean isEnabled(JsonObject config) {
+		return "bucket".equals(config.getString("schema", "flat"));
+	}
+	
+	/**
+	 * @param config
+	 * @return name of bucket collection
+	 */
+	public static String bucketCollection(JsonObject config) {
+		return config.getString("bucket_collection", config.getString("mongo_collection", "appointments") + "_buckets");
+	}
+	
+	/**
+	 * Creates indexes on bucket day (range queries) and appointment id (id operations)
+	 * 
+	 * @param vertx
+	 * @param config
+	 */
+	public static void createIndexes(Vertx vertx, JsonObject config) {
+		MongoClient mongoClient = MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
+		String collection = bucketCollection(config);
+		for (String field : new String[] { "day", "appointments.id" }) {
+			mongoClient.createIndex(collection, new JsonObject().put(field, 1), result -> {
+				if (result.failed()) {
+					log.error("Index {} of {} cannot be created. Details: {}", field, collection,
+							result.cause().toString());
+				}
+			});
+		}
+	}
+	
+	/* ------ OPERATIONS ------ */
+	
+	@Override
+	public Future<JsonObject> deleteOne(String appointmentID) {
+		JsonObject update = new JsonObject()
+				.put("$pull", new JsonObject().put("appointments", new JsonObject().put("id", appointmentID)))
+				.put("$inc", new JsonObject().put("count", -1));
+		Future<JsonObject> pulled = Future.future();
+		mongoClient().findOneAndUpdate(BUCKETCOLLECTIONNAME, containing(appointmentID), update,
+				poolMetrics.track(pulled));
+		return pulled.compose(bucket -> {
+			if (bucket == null) {
+				return Future.succeededFuture(result(false));
+			}
+			if (bucket.getJsonArray("appointments", new JsonArray()).size() <= 1) {
+				// remove bucket if it became empty, unless an appointment has been pushed meanwhile
+				mongoClient().removeDocuments(BUCKETCOLLECTIONNAME, new JsonObject().put("_id", bucket.getString("_id"))
+						.put("appointments", new JsonObject().put("$size", 0)), poolMetrics.track(removed -> {
+						}));
+			}
+			return Future.succeededFuture(result(true));
+		}).otherwise(cause -> {
+			log.error("Delete Appointment failed. Details: {}", cause.toString());
+			return result(false);
+		});
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointment(Appointment appointment) {
+		Future<MongoClientUpdateResult> pushed = Future.future();
+		List<Appointment> appointments = new ArrayList<>(1);
+		appointments.add(appointment);
+		mongoClient().updateCollectionWithOptions(BUCKETCOLLECTIONNAME, bucketQuery(bucketKey(appointment)),
+				push(appointments), new UpdateOptions().setUpsert(true), poolMetrics.track(pushed));
+		return pushed.map(v -> result(true)).otherwise(cause -> {
+			log.error("Insert Appointment failed. Details: {}", cause.toString());
+			return result(false);
+		});
+	}
+	
+	@Override
+	public Future<JsonObject> replaceAppointment(Appointment appointment) {
+		String key = bucketKey(appointment);
+		Future<List<JsonObject>> found = Future.future();
+		mongoClient().findWithOptions(BUCKETCOLLECTIONNAME, containing(appointment.getId()),
+				new FindOptions().setFields(new JsonObject().put("_id", 1).put("appointments.$", 1)),
+				poolMetrics.track(found));
+		return found.compose(buckets -> {
+			if (buckets.isEmpty()) {
+				return Future.succeededFuture(result(false));
+			}
+			// more than one bucket only if an earlier move failed to pull its old copy
+			JsonArray others = new JsonArray();
+			buckets.stream().map(bucket -> bucket.getString("_id")).filter(id -> !id.equals(key))
+					.forEach(others::add);
+			if (others.size() < buckets.size()) {
+				// same bucket: positional set of every field and version increment, then restore order in case
+				// appointmentDate changed
+				JsonObject fields = new JsonObject();
+				new JsonObject(Json.encode(appointment)).forEach(field -> {
+					if (!"version".equals(field.getKey())) {
+						fields.put("appointments.$." + field.getKey(), field.getValue());
+					}
+				});
+				JsonObject update = new JsonObject().put("$set", fields).put("$inc",
+						new JsonObject().put("appointments.$.version", 1));
+				Future<JsonObject> set = Future.future();
+				mongoClient().findOneAndUpdateWithOptions(BUCKETCOLLECTIONNAME,
+						bucketQuery(key).put("appointments.id", appointment.getId()), update, new FindOptions(),
+						new UpdateOptions().setReturningNewDocument(true), poolMetrics.track(set));
+				return set.compose(bucket -> {
+					if (bucket == null) {
+						// moved or deleted meanwhile
+						return Future.succeededFuture(result(false));
+					}
+					Future<MongoClientUpdateResult> sorted = Future.future();
+					mongoClient().updateCollection(BUCKETCOLLECTIONNAME, bucketQuery(key), push(new ArrayList<>()),
+							poolMetrics.track(sorted));
+					return sorted.compose(v -> others.isEmpty() ? Future.succeededFuture()
+							: pull(appointment.getId(), others))
+							.map(v -> result(true).put("version", versionOf(bucket, appointment.getId())));
+				});
+			}
+			// other doctor or day: push to new bucket first, so appointment is never missing
+			long version = buckets.stream().mapToLong(bucket -> versionOf(bucket, appointment.getId())).max()
+					.getAsLong() + 1;
+			Appointment moved = new Appointment(appointment.getId(), appointment.getCreatedTime(),
+					appointment.getAppointmentDate(), appointment.getAppointmentDuration(), appointment.getDoctorName(),
+					appointment.getStatus(), appointment.getPrice(), version);
+			return insertAppointment(moved).compose(inserted -> {
+				if (!inserted.getBoolean("result")) {
+					return Future.succeededFuture(inserted);
+				}
+				return pull(appointment.getId(), others).map(v -> inserted.put("version", version)).recover(cause -> {
+					// old copy is kept, so new one is removed instead of leaving appointment in both buckets
+					log.warn("Old copy of moved appointment {} cannot be removed, move is undone. Details: {}",
+							appointment.getId(), cause.toString());
+					return pull(appointment.getId(), new JsonArray().add(key))
+							.compose(v -> Future.failedFuture(cause));
+				});
+			});
+		}).otherwise(cause -> {
+			log.error("Replace Appointment failed. Details: {}", cause.toString());
+			return result(false);
+		});
+	}
+	
+	/**
+	 * @param bucket
+	 * @param appointmentID
+	 * @return version of given appointment in bucket, 0 if it has none
+	 */
+	private static long versionOf(JsonObject bucket, String appointmentID) {
+		for (Object element : bucket.getJsonArray("appointments", new JsonArray())) {
+			JsonObject appointment = (JsonObject) element;
+			if (appointmentID.equals(appointment.getString("id"))) {
+				return appointment.getLong("version", 0L);
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Removes appointment from given buckets
+	 * 
+	 * @param appointmentID
+	 * @param keys bucket identifiers
+	 * @return
+	 */
+	private Future<MongoClientUpdateResult> pull(String appointmentID, JsonArray keys) {
+		Future<MongoClientUpdateResult> pulled = Future.future();
+		mongoClient().updateCollectionWithOptions(BUCKETCOLLECTIONNAME,
+				containing(appointmentID).put("_id", new JsonObject().put("$in", keys)),
+				new JsonObject()
+						.put("$pull", new JsonObject().put("appointments", new JsonObject().put("id", appointmentID)))
+						.put("$inc", new JsonObject().put("count", -1)),
+				new UpdateOptions().setMulti(true), poolMetrics.track(pulled));
+		return pulled;
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointment(String appointmentID) {
+		FindOptions options = new FindOptions().setFields(new JsonObject().put("appointments.$", 1));
+		return findBuckets(containing(appointmentID), options, 1L, Long.MIN_VALUE, Long.MAX_VALUE, false);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointments(List<String> appointmentIDs) {
+		// positional projection returns one appointment per bucket, so whole buckets are read and filtered
+		Set<String> ids = new HashSet<>(appointmentIDs);
+		JsonObject query = new JsonObject().put("appointments.id",
+				new JsonObject().put("$in", new JsonArray(new ArrayList<>(ids))));
+		FindOptions options = new FindOptions().setFields(new JsonObject().put("appointments", 1));
+		return findBuckets(query, options, -1L, Long.MIN_VALUE, Long.MAX_VALUE, false).map(appointments -> {
+			appointments.removeIf(appointment -> !ids.contains(appointment.getString("id")));
+			return AppointmentStore.inRequestOrder(appointmentIDs, appointments);
+		});
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointmentsWithRangeAndSort(long start, long end) {
+		FindOptions options = new FindOptions().setFields(new JsonObject().put("appointments", 1));
+		return findBuckets(dayRange(start, end), options, -1L, start, end, true).map(appointments -> {
+			appointments.sort(Comparator.comparingDouble(json -> json.getDouble("price", 0.0)));
+			return appointments;
+		});
+	}
+	
+	@Override
+	public Future<List<JsonObject>> getAllAppointments() {
+		FindOptions options = new FindOptions().setFields(new JsonObject().put("appointments", 1));
+		return findBuckets(new JsonObject(), options, -1L, Long.MIN_VALUE, Long.MAX_VALUE, false);
+	}
+	
+	@Override
+	public Future<JsonObject> deleteAllAppointments() {
+		Future<JsonObject> future = Future.future();
+		mongoClient().removeDocuments(BUCKETCOLLECTIONNAME, new JsonObject(),
+				poolMetrics.track(result -> future.complete(result(result.succeeded()))));
+		return future;
+	}
+	
+	@Override
+	public Future<JsonObject> bookAppointment(String appointmentID, Long version) {
+		return changeStatus(appointmentID, version, Appointment.Status.AVAILABLE, Appointment.Status.BOOKED);
+	}
+	
+	@Override
+	public Future<JsonObject> cancelAppointment(String appointmentID, Long version) {
+		return changeStatus(appointmentID, version, Appointment.Status.BOOKED, Appointment.Status.AVAILABLE);
+	}
+	
+	/**
+	 * Moves appointment from one status to another with a single conditional positional update of its bucket
+	 */
+	private Future<JsonObject> changeStatus(String appointmentID, Long version, Appointment.Status from,
+			Appointment.Status to) {
+		JsonObject element = new JsonObject().put("id", appointmentID).put("status", from.toString());
+		if (version != null) {
+			element.put("version", version == 0 ? new JsonObject().put("$in", new JsonArray().add(0).addNull())
+					: version);
+		}
+		JsonObject query = new JsonObject().put("appointments", new JsonObject().put("$elemMatch", element));
+		JsonObject update = new JsonObject().put("$set", new JsonObject().put("appointments.$.status", to.toString()))
+				.put("$inc", new JsonObject().put("appointments.$.version", 1));
+		Future<JsonObject> updated = Future.future();
+		mongoClient().findOneAndUpdateWithOptions(BUCKETCOLLECTIONNAME, query, update, new FindOptions(),
+				new UpdateOptions().setReturningNewDocument(true), poolMetrics.track(updated));
+		return updated.map(bucket -> {
+			if (bucket != null) {
+				for (Object appointment : bucket.getJsonArray("appointments", new JsonArray())) {
+					JsonObject json = (JsonObject) appointment;
+					if (appointmentID.equals(json.getString("id"))) {
+						return result(true).put("version", json.getLong("version", 0L));
+					}
+				}
+			}
+			return result(false);
+		}).otherwise(cause -> {
+			log.error("Status change of appointment {} failed. Details: {}", appointmentID, cause.toString());
+			return result(false);
+		});
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointments(List<Appointment> appointments) {
+		if (appointments.isEmpty()) {
+			return Future.succeededFuture(result(true).put("inserted", 0));
+		}
+		Map<String, List<Appointment>> buckets = new LinkedHashMap<>();
+		appointments.forEach(appointment -> buckets.computeIfAbsent(bucketKey(appointment), key -> new ArrayList<>())
+				.add(appointment));
+		List<BulkOperation> operations = new ArrayList<>(buckets.size());
+		buckets.forEach((key, bucket) -> operations
+				.add(BulkOperation.createUpdate(bucketQuery(key), push(bucket), true, false)));
+		Future<MongoClientBulkWriteResult> pushed = Future.future();
+		mongoClient().bulkWriteWithOptions(BUCKETCOLLECTIONNAME, operations, new BulkWriteOptions(false),
+				poolMetrics.track(pushed));
+		return pushed.map(v -> result(true).put("inserted", appointments.size())).otherwise(cause -> {
+			log.error("Bulk insert of {} appointments failed. Details: {}", appointments.size(), cause.toString());
+			return result(false).put("inserted", 0);
+		});
+	}
+	
+	@Override
+	public ReadStream<JsonObject> exportAppointments(Long start, Long end) {
+		long from = start == null ? Long.MIN_VALUE : start;
+		long to = end == null ? Long.MAX_VALUE : end;
+		JsonObject query = start == null && end == null ? new JsonObject() : dayRange(from, to);
+		FindOptions options = new FindOptions().setBatchSize(config.getInteger("export_batch_size", 500));
+		return new AppointmentsOfBuckets(mongoClient().findBatchWithOptions(BUCKETCOLLECTIONNAME, query, options),
+				from, to);
+	}
+	
+	/**
+	 * Moves up to limit buckets of days before given time to archive bucket collection
+	 * <p>
+	 * A bucket is deleted only if its count did not change while it was being copied
+	 */
+	@Override
+	public Future<JsonObject> archiveAppointments(long before, int limit) {
+		JsonObject past = new JsonObject().put("day", new JsonObject().put("$lt", Math.floorDiv(before, DAY_MS)));
+		Future<List<JsonObject>> found = Future.future();
+		mongoClient().findWithOptions(BUCKETCOLLECTIONNAME, past, new FindOptions().setLimit(limit),
+				poolMetrics.track(found));
+		return found.compose(buckets -> {
+			if (buckets.isEmpty()) {
+				return Future.succeededFuture(0L);
+			}
+			JsonObject archivedAt = new JsonObject().put("$date", Instant.now().toString());
+			List<BulkOperation> copies = new ArrayList<>(buckets.size());
+			List<BulkOperation> deletes = new ArrayList<>(buckets.size());
+			long appointments = 0;
+			for (JsonObject bucket : buckets) {
+				JsonObject key = bucketQuery(bucket.getString("_id"));
+				copies.add(BulkOperation.createReplace(key, bucket.copy().put("archivedAt", archivedAt), true));
+				deletes.add(BulkOperation.createDelete(key.copy().put("count", bucket.getValue("count"))));
+				appointments += bucket.getJsonArray("appointments", new JsonArray()).size();
+			}
+			long archived = appointments;
+			Future<MongoClientBulkWriteResult> copied = Future.future();
+			mongoClient().bulkWriteWithOptions(archiveCollection(config), copies, new BulkWriteOptions(false),
+					poolMetrics.track(copied));
+			return copied.compose(v -> {
+				Future<MongoClientBulkWriteResult> deleted = Future.future();
+				mongoClient().bulkWriteWithOptions(BUCKETCOLLECTIONNAME, deletes, new BulkWriteOptions(false),
+						poolMetrics.track(deleted));
+				return deleted.map(result -> result.getDeletedCount() == buckets.size() ? archived
+						: result.getDeletedCount());
+			});
+		}).map(archived -> result(true).put("archived", archived)).otherwise(cause -> {
+			log.error("Archiving buckets failed. Details: {}", cause.toString());
+			return result(false).put("archived", 0);
+		});
+	}
+	
+	/**
+	 * @return bucket store of archive bucket collection
+	 */
+	@Override
+	public AppointmentStore archive() {
+		return new BucketedAppointmentStore(vertx, config.copy().put("bucket_collection", archiveCollection(config)));
+	}
+	
+	/**
+	 * @param config
+	 * @return name of archive bucket collection, "archive_collection" if given else bucket collection + "_archive"
+	 */
+	public static String archiveCollection(JsonObject config) {
+		return config.getString("archive_collection", bucketCollection(config) + "_archive");
+	}
+	
+	/* ------ MIGRATION ------ */
+	
+	/**
+	 * Copies every appointment of flat collection ("mongo_collection") into buckets, in batches of
+	 * "migration_batch_size" (default 500). Flat collection is left as it is.
+	 * <p>
+	 * Refuses to run if bucket collection is not empty, so running it twice cannot duplicate appointments.
+	 * 
+	 * @return {"result": true, "migrated": n, "skipped": m} where skipped documents are not appointments
+	 */
+	public Future<JsonObject> migrateFromFlat() {
+		Future<Long> counted = Future.future();
+		mongoClient().count(BUCKETCOLLECTIONNAME, new JsonObject(), poolMetrics.track(counted));
+		return counted.compose(count -> {
+			if (count > 0) {
+				return Future.failedFuture("Bucket collection " + BUCKETCOLLECTIONNAME + " is not empty");
+			}
+			long startTime = System.currentTimeMillis();
+			int batchSize = config.getInteger("migration_batch_size", 500);
+			long[] counts = new long[2];
+			List<Appointment> batch = new ArrayList<>(batchSize);
+			Future<Void> done = Future.future();
+			ReadStream<JsonObject> flat = mongoClient().findBatchWithOptions(COLLECTIONNAME, new JsonObject(),
+					new FindOptions().setBatchSize(batchSize));
+			flat.exceptionHandler(done::tryFail);
+			flat.endHandler(v -> migrateBatch(batch, counts).setHandler(done));
+			flat.handler(json -> {
+				json.remove("_id");
+				try {
+					batch.add(json.mapTo(Appointment.class));
+				} catch (IllegalArgumentException e) {
+					log.warn("Json {} is not Appointment object, not migrated", json);
+					counts[1]++;
+				}
+				if (batch.size() >= batchSize) {
+					flat.pause();
+					migrateBatch(batch, counts).setHandler(migrated -> {
+						if (migrated.succeeded()) {
+							flat.resume();
+						} else {
+							done.tryFail(migrated.cause());
+						}
+					});
+				}
+			});
+			return done.map(v -> {
+				log.info("{} appointments migrated to buckets in {} ms, {} skipped", counts[0],
+						System.currentTimeMillis() - startTime, counts[1]);
+				return result(true).put("migrated", counts[0]).put("skipped", counts[1]);
+			});
+		});
+	}
+	
+	private Future<Void> migrateBatch(List<Appointment> batch, long[] counts) {
+		List<Appointment> appointments = new ArrayList<>(batch);
+		batch.clear();
+		return insertAppointments(appointments).compose(result -> {
+			if (!result.getBoolean("result")) {
+				return Future.failedFuture("Bulk insert to buckets failed");
+			}
+			counts[0] += appointments.size();
+			return Future.succeededFuture();
+		});
+	}
+	
+	/* ------ INTERNALS ------ */
+	
+	private MongoClient mongoClient() {
+		return MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
+	}
+	
+	/**
+	 * Reads matching buckets and flattens their appointments
+	 * 
+	 * @param query
+	 * @param options
+	 * @param limit max number of appointments, negative for no limit
+	 * @param start appointments scheduled before are skipped
+	 * @param end appointments scheduled after are skipped
+	 * @param bookedOnly
+	 * @return
+	 */
+	private Future<List<JsonObject>> findBuckets(JsonObject query, FindOptions options, long limit, long start,
+			long end, boolean bookedOnly) {
+		Future<List<JsonObject>> found = Future.future();
+		mongoClient().findWithOptions(BUCKETCOLLECTIONNAME, query, options, poolMetrics.track(found));
+		String booked = Appointment.Status.BOOKED.toString();
+		return found.map(buckets -> {
+			List<JsonObject> appointments = new ArrayList<>();
+			for (JsonObject bucket : buckets) {
+				for (Object element : bucket.getJsonArray("appointments", new JsonArray())) {
+					JsonObject appointment = (JsonObject) element;
+					if (inRange(appointment, start, end)
+							&& (!bookedOnly || booked.equals(appointment.getString("status")))
+							&& (limit < 0 || appointments.size() < limit)) {
+						appointments.add(appointment);
+					}
+				}
+			}
+			return appointments;
+		}).recover(cause -> Future.failedFuture("MongoClient failed to operate find operation!"));
+	}
+	
+	private static boolean inRange(JsonObject appointment, long start, long end) {
+		long date = appointment.getLong("appointmentDate", 0L);
+		return date >= start && date <= end;
+	}
+	
+	/**
+	 * @param appointment
+	 * @return identifier of bucket given appointment belongs to
+	 */
+	static String bucketKey(Appointment appointment) {
+		String doctorName = appointment.getDoctorName() == null ? "" : appointment.getDoctorName();
+		return doctorName + "|" + Math.floorDiv(appointment.getAppointmentDate(), DAY_MS);
+	}
+	
+	private static JsonObject bucketQuery(String key) {
+		return new JsonObject().put("_id", key);
+	}
+	
+	private static JsonObject containing(String appointmentID) {
+		return new JsonObject().put("appointments.id", appointmentID);
+	}
+	
+	private static JsonObject dayRange(long start, long end) {
+		return new JsonObject().put("day",
+				new JsonObject().put("$gte", Math.floorDiv(start, DAY_MS)).put("$lte", Math.floorDiv(end, DAY_MS)));
+	}
+	
+	/**
+	 * Update pushing given appointments (of the same bucket) and keeping bucket sorted by appointmentDate, creating
+	 * bucket if it does not exist
+	 */
+	private static JsonObject push(List<Appointment> appointments) {
+		JsonArray documents = new JsonArray();
+		appointments.forEach(appointment -> documents.add(new JsonObject(Json.encode(appointment))));
+		JsonObject update = new JsonObject().put("$push", new JsonObject().put("appointments",
+				new JsonObject().put("$each", documents).put("$sort", new JsonObject().put("appointmentDate", 1))));
+		if (!appointments.isEmpty()) {
+			Appointment first = appointments.get(0);
+			update.put("$inc", new JsonObject().put("count", appointments.size())).put("$setOnInsert",
+					new JsonObject().put("doctorName", first.getDoctorName())
+							.put("day", Math.floorDiv(first.getAppointmentDate(), DAY_MS)));
+		}
+		return update;
+	}
+	
+	private static JsonObject result(boolean result) {
+		return new JsonObject().put("result", result);
+	}
+	
+	/**
+	 * Stream of appointments in given range of a stream of buckets, backpressure is applied per bucket
+	 */
+	private static class AppointmentsOfBuckets implements ReadStream<JsonObject> {
+		
+		private final ReadStream<JsonObject> buckets;
+		
+		private final long start;
+		
+		private final long end;
+		
+		AppointmentsOfBuckets(ReadStream<JsonObject> buckets, long start, long end) {
+			this.buckets = buckets;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> exceptionHandler(Handler<Throwable> handler) {
+			buckets.exceptionHandler(handler);
+			return this;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> handler(Handler<JsonObject> handler) {
+			buckets.handler(handler == null ? null : bucket -> {
+				for (Object element : bucket.getJsonArray("appointments", new JsonArray())) {
+					if (inRange((JsonObject) element, start, end)) {
+						handler.handle((JsonObject) element);
+					}
+				}
+			});
+			return this;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> pause() {
+			buckets.pause();
+			return this;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> resume() {
+			buckets.resume();
+			return this;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> fetch(long amount) {
+			buckets.fetch(amount);
+			return this;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> endHandler(Handler<Void> endHandler) {
+			buckets.endHandler(endHandler);
+			return this;
+		}
+	}
+}
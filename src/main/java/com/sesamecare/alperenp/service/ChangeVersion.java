@@ -0,0 +1,97 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * Change version of an appointment collection, used as strong ETag of read responses
+ * <p>
+ * Version is increased after every write is completed, so a version taken before a read is never newer than the
+ * data read. Shared by every verticle of a {@link Vertx} instance through local shared data. Writes of other processes
+ * are only seen if read model (it reports every change event) or near cache invalidation is enabled, service answers
+ * conditional reads only then. Each process starts a new generation, so ETags of a previous run (or of another node)
+ * never match.
+ * 
+ * @author alperenp
+ *
+ */
+public class ChangeVersion implements Shareable {
+	
+	private static final String MAP_NAME = "appointment.change.version";
+	
+	private final String generation = Long.toHexString(ThreadLocalRandom.current().nextLong());
+	
+	private final AtomicLong version = new AtomicLong();
+	
+	private ChangeVersion() {
+	}
+	
+	/**
+	 * Change version of collection (or embedded file) used with given config
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @return
+	 */
+	public static ChangeVersion get(Vertx vertx, JsonObject config) {
+		return vertx.sharedData().<String, ChangeVersion>getLocalMap(MAP_NAME).computeIfAbsent(collection(config),
+				name -> new ChangeVersion());
+	}
+	
+	/**
+	 * @param config
+	 * @return name of collection (or embedded file) used with given config
+	 */
+	static String collection(JsonObject config) {
+		return "embedded".equals(config.getString("storage", "mongo"))
+				? "embedded:" + config.getString("embedded_path", "appointments.db")
+				: "mongo:" + config.getString("db_name", "") + "."
+						+ config.getString("mongo_collection", "appointments");
+	}
+	
+	/**
+	 * Marks collection as changed, must be called after write is completed
+	 */
+	public void changed() {
+		version.incrementAndGet();
+	}
+	
+	/**
+	 * @return current version
+	 */
+	public long current() {
+		return version.get();
+	}
+	
+	/**
+	 * @return strong ETag of current version
+	 */
+	public String etag() {
+		return "\"" + generation + "-" + version.get() + "\"";
+	}
+}
@@ -0,0 +1,92 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring mapping keys to nodes
+ * <p>
+ * Every node is placed on the ring at "virtualNodes" points derived from its name, a key belongs to the first node
+ * point at or after the key's hash. Adding a node therefore only moves the keys which fall onto its points (about
+ * 1/n of them), and the mapping depends on node names only, not on their order.
+ * 
+ * @author alperenp
+ *
+ */
+public class ConsistentHashRing {
+	
+	private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+	
+	/**
+	 * Point on ring -> node index
+	 */
+	private final TreeMap<Long, Integer> ring = new TreeMap<>();
+	
+	/**
+	 * @param nodes node names, must be unique and stable across restarts
+	 * @param virtualNodes number of points of each node on ring
+	 */
+	public ConsistentHashRing(List<String> nodes, int virtualNodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("Hash ring needs at least one node");
+		}
+		for (int node = 0; node < nodes.size(); node++) {
+			for (int point = 0; point < virtualNodes; point++) {
+				ring.put(hash(nodes.get(node) + "#" + point), node);
+			}
+		}
+	}
+	
+	/**
+	 * @param key
+	 * @return index of node owning given key
+	 */
+	public int nodeOf(String key) {
+		Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(key));
+		return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+	}
+	
+	/**
+	 * @param value
+	 * @return first 8 bytes of MD5 digest, evenly spread over the ring and stable across processes
+	 */
+	static long hash(String value) {
+		byte[] digest = MD5.get().digest(value.getBytes(StandardCharsets.UTF_8));
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xff);
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,174 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import lombok.NonNull;
+
+/**
+ * {@link AppointmentStore} reporting writes of underlying store (any backend) to {@link DayCounters}
+ * <p>
+ * Delete, replace, book and cancel read the appointment before writing it, since counters need its day and status
+ * before the write. A concurrent write of the same appointment between read and write, or a bulk insert which fails
+ * partially, may miscount a day until next reconciliation.
+ * 
+ * @author alperenp
+ *
+ */
+public class DayCountedAppointmentStore implements AppointmentStore {
+	
+	private final AppointmentStore store;
+	
+	private final DayCounters counters;
+	
+	public DayCountedAppointmentStore(@NonNull AppointmentStore store, @NonNull DayCounters counters) {
+		this.store = store;
+		this.counters = counters;
+	}
+	
+	@Override
+	public Future<JsonObject> deleteOne(String appointmentID) {
+		return counted(appointmentID, () -> store.deleteOne(appointmentID), before -> null);
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointment(Appointment appointment) {
+		return counted(store.insertAppointment(appointment), () -> counters.changed(null, json(appointment)));
+	}
+	
+	@Override
+	public Future<JsonObject> replaceAppointment(Appointment appointment) {
+		return counted(appointment.getId(), () -> store.replaceAppointment(appointment), before -> json(appointment));
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointment(String appointmentID) {
+		return store.findAppointment(appointmentID);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointments(List<String> appointmentIDs) {
+		return store.findAppointments(appointmentIDs);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointmentsWithRangeAndSort(long start, long end) {
+		return store.findAppointmentsWithRangeAndSort(start, end);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> getAllAppointments() {
+		return store.getAllAppointments();
+	}
+	
+	@Override
+	public Future<JsonObject> deleteAllAppointments() {
+		return counted(store.deleteAllAppointments(), counters::cleared);
+	}
+	
+	@Override
+	public Future<JsonObject> bookAppointment(String appointmentID, Long version) {
+		return counted(appointmentID, () -> store.bookAppointment(appointmentID, version),
+				before -> before.copy().put("status", Appointment.Status.BOOKED.toString()));
+	}
+	
+	@Override
+	public Future<JsonObject> cancelAppointment(String appointmentID, Long version) {
+		return counted(appointmentID, () -> store.cancelAppointment(appointmentID, version),
+				before -> before.copy().put("status", Appointment.Status.AVAILABLE.toString()));
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointments(List<Appointment> appointments) {
+		return counted(store.insertAppointments(appointments),
+				() -> appointments.forEach(appointment -> counters.changed(null, json(appointment))));
+	}
+	
+	@Override
+	public ReadStream<JsonObject> exportAppointments(Long start, Long end) {
+		return store.exportAppointments(start, end);
+	}
+	
+	@Override
+	public Future<JsonObject> archiveAppointments(long before, int limit) {
+		// only past appointments are archived, counters start from today
+		return store.archiveAppointments(before, limit);
+	}
+	
+	@Override
+	public AppointmentStore archive() {
+		return store.archive();
+	}
+	
+	/**
+	 * @param write
+	 * @param update applied to counters if write succeeds with result true
+	 * @return future completing after counters are updated
+	 */
+	private Future<JsonObject> counted(Future<JsonObject> write, Runnable update) {
+		Future<JsonObject> future = Future.future();
+		write.setHandler(result -> {
+			if (result.succeeded() && result.result().getBoolean("result", false)) {
+				update.run();
+			}
+			future.handle(result);
+		});
+		return future;
+	}
+	
+	/**
+	 * Reads appointment with given id, then writes it
+	 * 
+	 * @param appointmentID
+	 * @param write
+	 * @param after appointment after write given the one before it, null if it is deleted
+	 * @return future completing after counters are updated
+	 */
+	private Future<JsonObject> counted(String appointmentID, Supplier<Future<JsonObject>> write,
+			Function<JsonObject, JsonObject> after) {
+		Future<JsonObject> future = Future.future();
+		store.findAppointment(appointmentID).setHandler(found -> {
+			JsonObject before = found.succeeded() && !found.result().isEmpty() ? found.result().get(0) : null;
+			// write is not counted if appointment could not be read, reconciliation repairs it
+			counted(write.get(), () -> {
+				if (before != null) {
+					counters.changed(before, after.apply(before));
+				}
+			}).setHandler(future);
+		});
+		return future;
+	}
+	
+	private static JsonObject json(Appointment appointment) {
+		return new JsonObject(Json.encode(appointment));
+	}
+}
@@ -0,0 +1,385 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.mongo.UpdateOptions;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Number of booked and available appointments per day (UTC), for dashboards
+ * <p>
+ * Counters live in memory and, with flat mongo storage, in "day_counters_collection" (default
+ * {@code <mongo_collection>_day_counters}) as {"_id": epoch day, "booked", "available"}. Every write of any store
+ * is reported by {@link DayCountedAppointmentStore} with the appointment before and after it ({@link #changed}),
+ * which updates memory and increments mongo counters with {@code $inc}. The mirror is reloaded from mongo every
+ * "day_counters_refresh_ms" (default 5000) with one find, so writes of other processes show up. Every "day_counters_reconcile_ms" (default
+ * 600000) counters of the next "day_counters_days" (default 90) days are recomputed from an export of the store and
+ * drifted days are repaired; a day written during reconciliation is left to the next run. With embedded, sharded or
+ * bucketed storage counters are kept in memory only. Shared by every verticle of a {@link Vertx} instance through
+ * local shared data.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class DayCounters implements Shareable {
+	
+	private static final String MAP_NAME = "appointment.day.counters";
+	
+	private static final long DAY_MS = BucketedAppointmentStore.DAY_MS;
+	
+	private static final String BOOKED = "booked";
+	
+	private static final String AVAILABLE = "available";
+	
+	/**
+	 * Epoch day -> {booked, available}
+	 */
+	private final TreeMap<Long, long[]> days = new TreeMap<>();
+	
+	private final Vertx vertx;
+	
+	private final JsonObject config;
+	
+	/**
+	 * Mongo collection of counters, null if counters are kept in memory only
+	 */
+	private final String collection;
+	
+	private final int window;
+	
+	/**
+	 * Days changed while reconciliation runs, null if it does not run
+	 */
+	private Set<Long> touched;
+	
+	private boolean ready;
+	
+	private long reconciliations;
+	
+	private long repairedDays;
+	
+	private long lastReconcileTime;
+	
+	private long refreshTimerID = -1;
+	
+	private long reconcileTimerID = -1;
+	
+	DayCounters(Vertx vertx, JsonObject config, boolean persisted) {
+		this.vertx = vertx;
+		this.config = config;
+		this.collection = persisted ? config.getString("day_counters_collection",
+				config.getString("mongo_collection", "appointments") + "_day_counters") : null;
+		this.window = config.getInteger("day_counters_days", 90);
+	}
+	
+	/**
+	 * Counters of collection (or embedded file) used with given config
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @param persisted true if counters are kept in mongo too (flat schema on one deployment)
+	 * @return
+	 */
+	public static DayCounters get(Vertx vertx, JsonObject config, boolean persisted) {
+		return vertx.sharedData().<String, DayCounters>getLocalMap(MAP_NAME)
+				.computeIfAbsent(ChangeVersion.collection(config), name -> new DayCounters(vertx, config, persisted));
+	}
+	
+	/**
+	 * Loads counters, then reloads and reconciles them periodically, unless another verticle already does
+	 * 
+	 * @param store supplies store to reconcile counters with
+	 * @return false if counters are already maintained by another verticle
+	 */
+	public synchronized boolean start(@NonNull Supplier<AppointmentStore> store) {
+		if (reconcileTimerID >= 0) {
+			return false;
+		}
+		if (collection != null) {
+			refreshTimerID = vertx.setPeriodic(config.getLong("day_counters_refresh_ms", 5000L), id -> refresh());
+		}
+		reconcileTimerID = vertx.setPeriodic(config.getLong("day_counters_reconcile_ms", 600000L),
+				id -> reconcile(store.get()));
+		refresh().setHandler(loaded -> reconcile(store.get()));
+		return true;
+	}
+	
+	/**
+	 * Stops periodic reload and reconciliation
+	 */
+	public synchronized void close() {
+		if (reconcileTimerID >= 0) {
+			vertx.cancelTimer(refreshTimerID);
+			vertx.cancelTimer(reconcileTimerID);
+			refreshTimerID = -1;
+			reconcileTimerID = -1;
+		}
+	}
+	
+	/**
+	 * @return true once counters have been loaded or reconciled
+	 */
+	public synchronized boolean isReady() {
+		return ready;
+	}
+	
+	/**
+	 * Accounts a completed write
+	 * 
+	 * @param before appointment before write, null if it was inserted
+	 * @param after appointment after write, null if it was deleted
+	 */
+	public void changed(JsonObject before, JsonObject after) {
+		Map<Long, long[]> deltas = new HashMap<>();
+		count(deltas, before, -1);
+		count(deltas, after, 1);
+		synchronized (this) {
+			for (Map.Entry<Long, long[]> delta : deltas.entrySet()) {
+				long[] counts = days.computeIfAbsent(delta.getKey(), day -> new long[2]);
+				counts[0] += delta.getValue()[0];
+				counts[1] += delta.getValue()[1];
+				if (touched != null) {
+					touched.add(delta.getKey());
+				}
+			}
+		}
+		if (collection == null) {
+			return;
+		}
+		MongoClient mongoClient = mongoClient();
+		for (Map.Entry<Long, long[]> delta : deltas.entrySet()) {
+			if (delta.getValue()[0] == 0 && delta.getValue()[1] == 0) {
+				continue;
+			}
+			JsonObject increment = new JsonObject().put(BOOKED, delta.getValue()[0]).put(AVAILABLE,
+					delta.getValue()[1]);
+			mongoClient.updateCollectionWithOptions(collection, new JsonObject().put("_id", delta.getKey()),
+					new JsonObject().put("$inc", increment), new UpdateOptions().setUpsert(true), result -> {
+						if (result.failed()) {
+							log.error("Day counter {} cannot be increased. Details: {}", delta.getKey(),
+									result.cause().toString());
+						}
+					});
+		}
+	}
+	
+	/**
+	 * Accounts deletion of every appointment
+	 */
+	public void cleared() {
+		synchronized (this) {
+			if (touched != null) {
+				touched.addAll(days.keySet());
+			}
+			days.clear();
+		}
+		if (collection != null) {
+			mongoClient().removeDocuments(collection, new JsonObject(), result -> {
+				if (result.failed()) {
+					log.error("Day counters cannot be cleared. Details: {}", result.cause().toString());
+				}
+			});
+		}
+	}
+	
+	/**
+	 * @param from first day
+	 * @param count number of days
+	 * @return {"day": "yyyy-mm-dd", "booked", "available"} of every day (days without appointments too)
+	 */
+	public synchronized JsonArray histogram(long from, int count) {
+		JsonArray histogram = new JsonArray();
+		for (long day = from; day < from + count; day++) {
+			long[] counts = days.getOrDefault(day, new long[2]);
+			histogram.add(new JsonObject().put("day", LocalDate.ofEpochDay(day).toString()).put(BOOKED, counts[0])
+					.put(AVAILABLE, counts[1]));
+		}
+		return histogram;
+	}
+	
+	/**
+	 * @return epoch day of today (UTC)
+	 */
+	public static long today() {
+		return Math.floorDiv(System.currentTimeMillis(), DAY_MS);
+	}
+	
+	/**
+	 * @return reconciliation metrics
+	 */
+	public synchronized JsonObject toJson() {
+		return new JsonObject().put("ready", ready).put("days", days.size()).put("persisted", collection != null)
+				.put("reconciliations", reconciliations).put("repairedDays", repairedDays)
+				.put("lastReconcileTime", lastReconcileTime);
+	}
+	
+	/**
+	 * Reloads counters from mongo with one find
+	 * 
+	 * @return completed when mirror is reloaded (immediately if counters are not persisted)
+	 */
+	Future<Void> refresh() {
+		if (collection == null) {
+			return Future.succeededFuture();
+		}
+		Future<List<JsonObject>> found = Future.future();
+		mongoClient().find(collection, new JsonObject(), found);
+		return found.<Void>map(documents -> {
+			synchronized (this) {
+				days.clear();
+				for (JsonObject document : documents) {
+					days.put(document.getLong("_id"), new long[] { document.getLong(BOOKED, 0L),
+							document.getLong(AVAILABLE, 0L) });
+				}
+				ready = true;
+			}
+			return null;
+		}).otherwise(e -> {
+			log.error("Day counters cannot be loaded. Details: {}", e.toString());
+			return null;
+		});
+	}
+	
+	/**
+	 * Recomputes counters of next "day_counters_days" days from store, repairing drifted days
+	 * 
+	 * @param store
+	 * @return number of repaired days, fails if reconciliation is already running or export fails
+	 */
+	Future<Integer> reconcile(AppointmentStore store) {
+		Future<Integer> future = Future.future();
+		synchronized (this) {
+			if (touched != null) {
+				future.fail("Day counters are already being reconciled");
+				return future;
+			}
+			touched = new HashSet<>();
+		}
+		long from = today();
+		Map<Long, long[]> actual = new HashMap<>();
+		ReadStream<JsonObject> appointments = store.exportAppointments(from * DAY_MS, (from + window) * DAY_MS - 1);
+		appointments.exceptionHandler(e -> {
+			synchronized (this) {
+				touched = null;
+			}
+			log.error("Day counters cannot be reconciled. Details: {}", e.toString());
+			future.tryFail(e);
+		});
+		appointments.endHandler(v -> future.tryComplete(repair(from, actual)));
+		appointments.handler(appointment -> count(actual, appointment, 1));
+		return future;
+	}
+	
+	/**
+	 * Replaces counters of days which differ from actual ones, unless they were written during reconciliation
+	 * <p>
+	 * Mongo counters are corrected by the difference, only if they still hold the values repair started from, so
+	 * increments of other processes are not overwritten; a day they changed is left to next run.
+	 */
+	private int repair(long from, Map<Long, long[]> actual) {
+		List<Long> repaired = new ArrayList<>();
+		Map<Long, long[]> drifted = new HashMap<>();
+		synchronized (this) {
+			for (long day = from; day < from + window; day++) {
+				long[] counts = actual.getOrDefault(day, new long[2]);
+				long[] current = days.getOrDefault(day, new long[2]);
+				if (!touched.contains(day) && (counts[0] != current[0] || counts[1] != current[1])) {
+					days.put(day, counts);
+					repaired.add(day);
+					drifted.put(day, current);
+				}
+			}
+			touched = null;
+			ready = true;
+			reconciliations++;
+			repairedDays += repaired.size();
+			lastReconcileTime = System.currentTimeMillis();
+		}
+		if (!repaired.isEmpty()) {
+			log.warn("Day counters of {} days drifted and are repaired", repaired.size());
+		}
+		if (collection != null) {
+			for (Long day : repaired) {
+				long[] counts = actual.getOrDefault(day, new long[2]);
+				long[] current = drifted.get(day);
+				// a missing document counts as zero, it is inserted (or collides with a concurrent insert)
+				boolean missing = current[0] == 0 && current[1] == 0;
+				JsonObject query = new JsonObject().put("_id", day).put(BOOKED, current[0]).put(AVAILABLE, current[1]);
+				JsonObject increment = new JsonObject().put(BOOKED, counts[0] - current[0]).put(AVAILABLE,
+						counts[1] - current[1]);
+				mongoClient().updateCollectionWithOptions(collection, query, new JsonObject().put("$inc", increment),
+						new UpdateOptions().setUpsert(missing), result -> {
+							if (result.failed() && !String.valueOf(result.cause().getMessage()).contains("E11000")) {
+								log.error("Day counter {} cannot be repaired. Details: {}", day,
+										result.cause().toString());
+							} else if (result.failed() || (!missing && result.result().getDocMatched() == 0)) {
+								log.info("Day counter {} changed during reconciliation, left to next run", day);
+							}
+						});
+			}
+		}
+		return repaired.size();
+	}
+	
+	private MongoClient mongoClient() {
+		return MongoClient.createShared(vertx, config, MongoPoolMetrics.poolName(config));
+	}
+	
+	/**
+	 * Adds appointment to counters of its day
+	 */
+	private static void count(Map<Long, long[]> counters, JsonObject appointment, int delta) {
+		if (appointment == null || appointment.getLong("appointmentDate") == null) {
+			return;
+		}
+		long[] counts = counters.computeIfAbsent(Math.floorDiv(appointment.getLong("appointmentDate"), DAY_MS),
+				day -> new long[2]);
+		String status = appointment.getString("status");
+		if (Appointment.Status.BOOKED.toString().equals(status)) {
+			counts[0] += delta;
+		} else if (Appointment.Status.AVAILABLE.toString().equals(status)) {
+			counts[1] += delta;
+		}
+	}
+}
@@ -0,0 +1,487 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.MongoClient;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-memory prefix index of doctor names, each with its number of upcoming {@link Appointment.Status#AVAILABLE}
+ * appointments
+ * <p>
+ * A doctor is kept in a sorted map under its lower cased name and under every further word of it, so both "dr. sm"
+ * and "smi" match "Dr. Smith". Index is kept current by {@link DoctorIndexedAppointmentStore} as writes complete and
+ * is rebuilt every "doctor_index_refresh_ms" (default 60000) from an export of upcoming appointments, which drops
+ * appointments that are no longer upcoming and picks up writes of other processes. Writes completing while index is
+ * rebuilt are applied to rebuilt index too. Until first build completes suggestions are computed by mongo
+ * ({@link #findInMongo}). Shared by every verticle of a {@link Vertx} instance through local shared data.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class DoctorIndex implements Shareable {
+	
+	private static final String MAP_NAME = "doctor.index";
+	
+	/**
+	 * Most available first, then by name
+	 */
+	private static final Comparator<Doctor> RANK = Comparator.comparingInt((Doctor doctor) -> -doctor.available)
+			.thenComparing(doctor -> doctor.name);
+	
+	private State state = new State();
+	
+	/**
+	 * Changes completed while index is rebuilt (null for removed appointment), null if index is not being rebuilt
+	 */
+	private Map<String, Slot> pending;
+	
+	/**
+	 * Increased when every appointment is deleted, a rebuild started before is discarded
+	 */
+	private long clears;
+	
+	private boolean ready;
+	
+	private long lastBuildTime;
+	
+	private long builds;
+	
+	private Vertx vertx;
+	
+	private long timerID = -1;
+	
+	DoctorIndex() {
+	}
+	
+	/**
+	 * Index of collection (or embedded file) used with given config
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @return
+	 */
+	public static DoctorIndex get(Vertx vertx, JsonObject config) {
+		return vertx.sharedData().<String, DoctorIndex>getLocalMap(MAP_NAME)
+				.computeIfAbsent(ChangeVersion.collection(config), name -> new DoctorIndex());
+	}
+	
+	/**
+	 * @param config
+	 * @return true unless "doctor_index" is false
+	 */
+	public static boolean isEnabled(JsonObject config) {
+		return config.getBoolean("doctor_index", true);
+	}
+	
+	/**
+	 * Builds index and rebuilds it every "doctor_index_refresh_ms", unless another verticle already does
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @param store supplies store to export upcoming appointments from
+	 * @return false if index is already maintained by another verticle
+	 */
+	public synchronized boolean start(@NonNull Vertx vertx, @NonNull JsonObject config,
+			@NonNull Supplier<AppointmentStore> store) {
+		if (timerID >= 0) {
+			return false;
+		}
+		this.vertx = vertx;
+		timerID = vertx.setPeriodic(config.getLong("doctor_index_refresh_ms", 60000L), id -> refresh(store.get()));
+		refresh(store.get());
+		return true;
+	}
+	
+	/**
+	 * Stops periodic rebuild
+	 */
+	public synchronized void close() {
+		if (timerID >= 0) {
+			vertx.cancelTimer(timerID);
+			timerID = -1;
+		}
+	}
+	
+	/**
+	 * Rebuilds index from upcoming appointments of given store
+	 * 
+	 * @param store
+	 * @return number of doctors, fails if index is already being rebuilt or export fails
+	 */
+	public Future<Integer> refresh(AppointmentStore store) {
+		Future<Integer> future = Future.future();
+		long clearsBefore;
+		synchronized (this) {
+			if (pending != null) {
+				future.fail("Doctor index is already being rebuilt");
+				return future;
+			}
+			pending = new HashMap<>();
+			clearsBefore = clears;
+		}
+		long now = System.currentTimeMillis();
+		State rebuilt = new State();
+		ReadStream<JsonObject> appointments = store.exportAppointments(now, null);
+		appointments.exceptionHandler(e -> {
+			synchronized (this) {
+				pending = null;
+			}
+			log.error("Doctor index cannot be rebuilt. Details: {}", e.toString());
+			future.tryFail(e);
+		});
+		appointments.endHandler(v -> {
+			int doctors;
+			synchronized (this) {
+				if (clears == clearsBefore) {
+					pending.forEach(rebuilt::put);
+					state = rebuilt;
+					lastBuildTime = now;
+					builds++;
+				}
+				pending = null;
+				ready = true;
+				doctors = state.doctors.size();
+			}
+			log.debug("Doctor index rebuilt with {} doctors", doctors);
+			future.tryComplete(doctors);
+		});
+		appointments.handler(document -> rebuilt.put(document.getString("id"), Slot.of(document.getString("doctorName"),
+				document.getLong("appointmentDate", 0L), document.getString("status"), now)));
+		return future;
+	}
+	
+	/**
+	 * @return true once index has been built
+	 */
+	public synchronized boolean isReady() {
+		return ready;
+	}
+	
+	/**
+	 * Records an inserted or replaced appointment
+	 * 
+	 * @param appointment
+	 */
+	public synchronized void added(Appointment appointment) {
+		change(appointment.getId(), Slot.of(appointment.getDoctorName(), appointment.getAppointmentDate(),
+				String.valueOf(appointment.getStatus()), System.currentTimeMillis()));
+	}
+	
+	/**
+	 * Records a deleted appointment
+	 * 
+	 * @param appointmentID
+	 */
+	public synchronized void removed(String appointmentID) {
+		change(appointmentID, null);
+	}
+	
+	/**
+	 * Records a booked or cancelled appointment, ignored if appointment is not upcoming
+	 * 
+	 * @param appointmentID
+	 * @param available true if appointment has been cancelled
+	 */
+	public synchronized void statusChanged(String appointmentID, boolean available) {
+		Slot slot = state.slots.get(appointmentID);
+		if (slot != null) {
+			change(appointmentID, new Slot(slot.doctorName, available));
+		}
+	}
+	
+	/**
+	 * Records deletion of every appointment, index is ready afterwards since nothing is left to index
+	 */
+	public synchronized void cleared() {
+		state = new State();
+		clears++;
+		ready = true;
+	}
+	
+	/**
+	 * Doctors whose name (or a word of it) starts with given prefix, ignoring case
+	 * 
+	 * @param prefix empty for every doctor
+	 * @param limit
+	 * @return up to limit {"doctorName", "available", "upcoming"}, most available first
+	 */
+	public synchronized List<JsonObject> suggest(@NonNull String prefix, int limit) {
+		String key = normalize(prefix);
+		Collection<Doctor> matches = key.isEmpty() ? state.doctors.values()
+				: state.tokens.subMap(key, true, key + Character.MAX_VALUE, false).values();
+		PriorityQueue<Doctor> top = new PriorityQueue<>(limit + 1, RANK.reversed());
+		Set<Doctor> seen = new HashSet<>();
+		for (Doctor doctor : matches) {
+			if (seen.add(doctor)) {
+				top.add(doctor);
+				if (top.size() > limit) {
+					top.poll();
+				}
+			}
+		}
+		List<Doctor> ranked = new ArrayList<>(top);
+		ranked.sort(RANK);
+		List<JsonObject> result = new ArrayList<>(ranked.size());
+		for (Doctor doctor : ranked) {
+			result.add(toJson(doctor.name, doctor.available, doctor.upcoming));
+		}
+		return result;
+	}
+	
+	/**
+	 * @return index size and build metrics
+	 */
+	public synchronized JsonObject toJson() {
+		return new JsonObject().put("ready", ready).put("doctors", state.doctors.size())
+				.put("upcoming", state.slots.size()).put("tokens", state.tokens.size()).put("builds", builds)
+				.put("lastBuildTime", lastBuildTime).put("rebuilding", pending != null);
+	}
+	
+	/**
+	 * Creates {doctorName, appointmentDate} index used by {@link #findInMongo} on every mongo deployment
+	 * 
+	 * @param vertx
+	 * @param config
+	 */
+	public static void createMongoIndexes(Vertx vertx, JsonObject config) {
+		for (JsonObject mongoConfig : ShardedAppointmentStore.mongoConfigs(config)) {
+			MongoClient mongoClient = MongoClient.createShared(vertx, mongoConfig,
+					MongoPoolMetrics.poolName(mongoConfig));
+			String collection = mongoConfig.getString("mongo_collection", "appointments");
+			mongoClient.createIndex(collection, new JsonObject().put("doctorName", 1).put("appointmentDate", 1),
+					result -> {
+						if (result.failed()) {
+							log.error("Doctor index of {} cannot be created. Details: {}", collection,
+									result.cause().toString());
+						}
+					});
+		}
+	}
+	
+	/**
+	 * Same suggestions as {@link #suggest} computed by an aggregation on every mongo deployment (flat schema only)
+	 * <p>
+	 * Prefix is matched case sensitively against start of name, so that the match can use mongo index
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @param prefix
+	 * @param limit
+	 * @return
+	 */
+	public static Future<List<JsonObject>> findInMongo(Vertx vertx, JsonObject config, @NonNull String prefix,
+			int limit) {
+		JsonObject match = new JsonObject().put("appointmentDate",
+				new JsonObject().put("$gte", System.currentTimeMillis()));
+		if (!prefix.isEmpty()) {
+			match.put("doctorName", new JsonObject().put("$regex", "^" + Pattern.quote(prefix)));
+		}
+		JsonObject isAvailable = new JsonObject().put("$cond", new JsonArray()
+				.add(new JsonObject().put("$eq", new JsonArray().add("$status").add(Appointment.Status.AVAILABLE
+						.toString())))
+				.add(1).add(0));
+		JsonArray pipeline = new JsonArray().add(new JsonObject().put("$match", match))
+				.add(new JsonObject().put("$group", new JsonObject().put("_id", "$doctorName")
+						.put("available", new JsonObject().put("$sum", isAvailable))
+						.put("upcoming", new JsonObject().put("$sum", 1))));
+		List<Future> shards = new ArrayList<>();
+		Map<String, Doctor> doctors = new HashMap<>();
+		for (JsonObject mongoConfig : ShardedAppointmentStore.mongoConfigs(config)) {
+			MongoClient mongoClient = MongoClient.createShared(vertx, mongoConfig,
+					MongoPoolMetrics.poolName(mongoConfig));
+			Future<Void> shard = Future.future();
+			ReadStream<JsonObject> groups = mongoClient
+					.aggregate(mongoConfig.getString("mongo_collection", "appointments"), pipeline);
+			groups.exceptionHandler(shard::tryFail);
+			groups.endHandler(v -> shard.tryComplete());
+			groups.handler(group -> {
+				String name = group.getString("_id");
+				if (name != null) {
+					Doctor doctor = doctors.computeIfAbsent(name, Doctor::new);
+					doctor.available += group.getInteger("available", 0);
+					doctor.upcoming += group.getInteger("upcoming", 0);
+				}
+			});
+			shards.add(shard);
+		}
+		return CompositeFuture.all(shards).map(v -> {
+			List<Doctor> ranked = new ArrayList<>(doctors.values());
+			ranked.sort(RANK);
+			List<JsonObject> result = new ArrayList<>(Math.min(limit, ranked.size()));
+			for (Doctor doctor : ranked.subList(0, Math.min(limit, ranked.size()))) {
+				result.add(toJson(doctor.name, doctor.available, doctor.upcoming));
+			}
+			return result;
+		});
+	}
+	
+	/**
+	 * Applies change to index, and to index being rebuilt
+	 * 
+	 * @param appointmentID
+	 * @param slot null if appointment is removed or is not upcoming
+	 */
+	private void change(String appointmentID, Slot slot) {
+		state.put(appointmentID, slot);
+		if (pending != null) {
+			pending.put(appointmentID, slot);
+		}
+	}
+	
+	private static JsonObject toJson(String name, int available, int upcoming) {
+		return new JsonObject().put("doctorName", name).put("available", available).put("upcoming", upcoming);
+	}
+	
+	private static String normalize(String name) {
+		return name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+	}
+	
+	/**
+	 * Keys of doctor in token map: normalized name and every further word of it, followed by name itself so that
+	 * doctors sharing a word get distinct keys
+	 * 
+	 * @param name
+	 * @return
+	 */
+	private static Set<String> tokens(String name) {
+		String normalized = normalize(name);
+		Set<String> tokens = new LinkedHashSet<>();
+		tokens.add(normalized + '\u0000' + name);
+		String[] words = normalized.split(" ");
+		for (int i = 1; i < words.length; i++) {
+			tokens.add(words[i] + '\u0000' + name);
+		}
+		return tokens;
+	}
+	
+	/**
+	 * Upcoming appointment as seen by index
+	 */
+	private static class Slot {
+		
+		final String doctorName;
+		
+		final boolean available;
+		
+		Slot(String doctorName, boolean available) {
+			this.doctorName = doctorName;
+			this.available = available;
+		}
+		
+		/**
+		 * @return null if appointment has no doctor or is not upcoming
+		 */
+		static Slot of(String doctorName, long appointmentDate, String status, long now) {
+			if (doctorName == null || doctorName.trim().isEmpty() || appointmentDate < now) {
+				return null;
+			}
+			return new Slot(doctorName, Appointment.Status.AVAILABLE.toString().equals(status));
+		}
+	}
+	
+	private static class Doctor {
+		
+		final String name;
+		
+		int available;
+		
+		int upcoming;
+		
+		Doctor(String name) {
+			this.name = name;
+		}
+	}
+	
+	/**
+	 * Upcoming appointments by id, their doctors by name and by token
+	 */
+	private static class State {
+		
+		final Map<String, Slot> slots = new HashMap<>();
+		
+		final Map<String, Doctor> doctors = new HashMap<>();
+		
+		final NavigableMap<String, Doctor> tokens = new TreeMap<>();
+		
+		/**
+		 * @param appointmentID
+		 * @param slot null to remove appointment
+		 */
+		void put(String appointmentID, Slot slot) {
+			Slot previous = slot == null ? slots.remove(appointmentID) : slots.put(appointmentID, slot);
+			if (previous != null) {
+				count(previous, -1);
+			}
+			if (slot != null) {
+				count(slot, 1);
+			}
+		}
+		
+		private void count(Slot slot, int delta) {
+			Doctor doctor = doctors.get(slot.doctorName);
+			if (doctor == null) {
+				doctor = new Doctor(slot.doctorName);
+				doctors.put(doctor.name, doctor);
+				for (String token : tokens(doctor.name)) {
+					tokens.put(token, doctor);
+				}
+			}
+			doctor.upcoming += delta;
+			if (slot.available) {
+				doctor.available += delta;
+			}
+			if (doctor.upcoming == 0) {
+				doctors.remove(doctor.name);
+				tokens.keySet().removeAll(tokens(doctor.name));
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.List;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import lombok.NonNull;
+
+/**
+ * {@link AppointmentStore} keeping {@link DoctorIndex} current as writes of underlying store succeed
+ * <p>
+ * A bulk insert which fails partially is not applied, since it is not known which appointments were inserted; next
+ * rebuild of index picks them up
+ * 
+ * @author alperenp
+ *
+ */
+public class DoctorIndexedAppointmentStore implements AppointmentStore {
+	
+	private final AppointmentStore store;
+	
+	private final DoctorIndex index;
+	
+	public DoctorIndexedAppointmentStore(@NonNull AppointmentStore store, @NonNull DoctorIndex index) {
+		this.store = store;
+		this.index = index;
+	}
+	
+	@Override
+	public Future<JsonObject> deleteOne(String appointmentID) {
+		return indexed(store.deleteOne(appointmentID), () -> index.removed(appointmentID));
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointment(Appointment appointment) {
+		return indexed(store.insertAppointment(appointment), () -> index.added(appointment));
+	}
+	
+	@Override
+	public Future<JsonObject> replaceAppointment(Appointment appointment) {
+		return indexed(store.replaceAppointment(appointment), () -> index.added(appointment));
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointment(String appointmentID) {
+		return store.findAppointment(appointmentID);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointments(List<String> appointmentIDs) {
+		return store.findAppointments(appointmentIDs);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointmentsWithRangeAndSort(long start, long end) {
+		return store.findAppointmentsWithRangeAndSort(start, end);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> getAllAppointments() {
+		return store.getAllAppointments();
+	}
+	
+	@Override
+	public Future<JsonObject> deleteAllAppointments() {
+		return indexed(store.deleteAllAppointments(), index::cleared);
+	}
+	
+	@Override
+	public Future<JsonObject> bookAppointment(String appointmentID, Long version) {
+		return indexed(store.bookAppointment(appointmentID, version), () -> index.statusChanged(appointmentID, false));
+	}
+	
+	@Override
+	public Future<JsonObject> cancelAppointment(String appointmentID, Long version) {
+		return indexed(store.cancelAppointment(appointmentID, version),
+				() -> index.statusChanged(appointmentID, true));
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointments(List<Appointment> appointments) {
+		return indexed(store.insertAppointments(appointments), () -> appointments.forEach(index::added));
+	}
+	
+	@Override
+	public ReadStream<JsonObject> exportAppointments(Long start, Long end) {
+		return store.exportAppointments(start, end);
+	}
+	
+	@Override
+	public Future<JsonObject> archiveAppointments(long before, int limit) {
+		// only past appointments are archived, they leave index on its next rebuild
+		return store.archiveAppointments(before, limit);
+	}
+	
+	@Override
+	public AppointmentStore archive() {
+		return store.archive();
+	}
+	
+	/**
+	 * @param write
+	 * @param update applied to index if write succeeds with result true
+	 * @return future completing after index is updated
+	 */
+	private Future<JsonObject> indexed(Future<JsonObject> write, Runnable update) {
+		Future<JsonObject> future = Future.future();
+		write.setHandler(result -> {
+			if (result.succeeded() && result.result().getBoolean("result", false)) {
+				update.run();
+			}
+			future.handle(result);
+		});
+		return future;
+	}
+}
@@ -0,0 +1,154 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Measures how long an event loop is blocked
+ * <p>
+ * A timer is re-armed every "loop_probe_interval_ms" (default 50) on the loop; how late it fires is the time the loop
+ * was busy with something else. Delays over "blocked_loop_warn_ms" (default 100) are counted and logged. Unlike
+ * vert.x blocked thread checker this also sees many short stalls adding up, and reports them per loop. Metrics of
+ * every monitored loop are kept in local shared data, keyed by thread name.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class EventLoopMonitor implements Shareable {
+	
+	private static final String MAP_NAME = "event.loop.monitor";
+	
+	private final Vertx vertx;
+	
+	private final String thread;
+	
+	private final long intervalMs;
+	
+	private final long warnMs;
+	
+	private long probes;
+	
+	private long blockedMs;
+	
+	private long maxBlockedMs;
+	
+	private long warnings;
+	
+	private long lastWarningTime;
+	
+	private long timerID = -1;
+	
+	private boolean stopped;
+	
+	private EventLoopMonitor(Vertx vertx, JsonObject config) {
+		this.vertx = vertx;
+		this.thread = Thread.currentThread().getName();
+		this.intervalMs = Math.max(1, config.getLong("loop_probe_interval_ms", 50L));
+		this.warnMs = config.getLong("blocked_loop_warn_ms", 100L);
+	}
+	
+	/**
+	 * Starts monitoring event loop of caller, must be called on that loop
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @return monitor, null if loop is already monitored (by another verticle instance on the same loop)
+	 */
+	public static EventLoopMonitor start(Vertx vertx, JsonObject config) {
+		EventLoopMonitor monitor = new EventLoopMonitor(vertx, config);
+		if (loops(vertx).putIfAbsent(monitor.thread, monitor) != null) {
+			return null;
+		}
+		monitor.probe(System.nanoTime());
+		return monitor;
+	}
+	
+	/**
+	 * Stops monitoring and removes metrics of loop
+	 */
+	public void stop() {
+		stopped = true;
+		if (timerID >= 0) {
+			vertx.cancelTimer(timerID);
+		}
+		loops(vertx).remove(thread);
+	}
+	
+	/**
+	 * @param vertx
+	 * @return metrics of every monitored loop, keyed by thread name
+	 */
+	public static JsonObject toJson(Vertx vertx) {
+		JsonObject json = new JsonObject();
+		LocalMap<String, EventLoopMonitor> loops = loops(vertx);
+		for (String thread : loops.keySet()) {
+			EventLoopMonitor monitor = loops.get(thread);
+			if (monitor != null) {
+				json.put(thread, monitor.metrics());
+			}
+		}
+		return json;
+	}
+	
+	/**
+	 * @return probes, total/max blocked time and warnings of this loop
+	 */
+	public synchronized JsonObject metrics() {
+		return new JsonObject().put("probes", probes).put("blockedMs", blockedMs).put("maxBlockedMs", maxBlockedMs)
+				.put("warnings", warnings).put("lastWarningTime", lastWarningTime).put("warnThresholdMs", warnMs);
+	}
+	
+	private void probe(long armedAt) {
+		if (stopped) {
+			return;
+		}
+		timerID = vertx.setTimer(intervalMs, id -> {
+			long now = System.nanoTime();
+			record((now - armedAt) / 1000000 - intervalMs);
+			probe(now);
+		});
+	}
+	
+	private synchronized void record(long delayMs) {
+		probes++;
+		if (delayMs <= 0) {
+			return;
+		}
+		blockedMs += delayMs;
+		maxBlockedMs = Math.max(maxBlockedMs, delayMs);
+		if (delayMs >= warnMs) {
+			warnings++;
+			lastWarningTime = System.currentTimeMillis();
+			log.warn("Event loop {} was blocked for {} ms", thread, delayMs);
+		}
+	}
+	
+	private static LocalMap<String, EventLoopMonitor> loops(Vertx vertx) {
+		return vertx.sharedData().getLocalMap(MAP_NAME);
+	}
+}
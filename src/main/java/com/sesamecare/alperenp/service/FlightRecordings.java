@@ -0,0 +1,179 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.ext.web.RoutingContext;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import lombok.NonNull;
+
+/**
+ * On-demand Java Flight Recorder recording of this process, one at a time
+ * <p>
+ * A recording uses a settings profile of the JDK ("default" or "profile") and stops by itself after its duration
+ * (at most "profiling_max_duration_s", default 300). Besides JDK events it collects {@link RouteEvent}s and
+ * {@link MongoOperationEvent}s, so CPU samples and allocations line up with requests and mongo operations. Shared by
+ * every verticle of a {@link Vertx} instance through local shared data, since flight recorder belongs to the JVM.
+ * <p>
+ * Starting and dumping read and write files, so they are blocking.
+ * 
+ * @author alperenp
+ *
+ */
+public class FlightRecordings implements Shareable {
+	
+	private static final String MAP_NAME = "flight.recordings";
+	
+	private final long maxDurationMs;
+	
+	/**
+	 * Last started recording, null if there is none or it has been dumped
+	 */
+	private Recording recording;
+	
+	private String settings;
+	
+	FlightRecordings(long maxDurationMs) {
+		this.maxDurationMs = maxDurationMs;
+	}
+	
+	/**
+	 * Flight recordings of given vertx instance
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @return
+	 */
+	public static FlightRecordings get(Vertx vertx, JsonObject config) {
+		return vertx.sharedData().<String, FlightRecordings>getLocalMap(MAP_NAME).computeIfAbsent(MAP_NAME,
+				name -> new FlightRecordings(config.getLong("profiling_max_duration_s", 300L) * 1000));
+	}
+	
+	/**
+	 * Handler emitting a {@link RouteEvent} for every request while it is recorded, to be routed before route handlers
+	 * 
+	 * @return
+	 */
+	public static Handler<RoutingContext> handler() {
+		return routingContext -> {
+			if (RouteEvent.isRecorded()) {
+				RouteEvent event = new RouteEvent();
+				event.begin();
+				routingContext.addBodyEndHandler(v -> {
+					event.end();
+					if (event.shouldCommit()) {
+						HttpServerResponse response = routingContext.response();
+						event.method = routingContext.request().method().name();
+						event.route = routingContext.request().path();
+						event.statusCode = response.getStatusCode();
+						event.responseSize = response.bytesWritten();
+						event.commit();
+					}
+				});
+			}
+			routingContext.next();
+		};
+	}
+	
+	/**
+	 * Starts a recording, blocking
+	 * 
+	 * @param settingsName name of a JDK settings profile, i.e. "default" (low overhead) or "profile"
+	 * @param durationMs limited to max duration
+	 * @return recording status
+	 * @throws IOException if settings profile does not exist
+	 * @throws ParseException if settings profile cannot be parsed
+	 * @throws IllegalStateException if a recording is already running
+	 */
+	public synchronized JsonObject start(@NonNull String settingsName, long durationMs)
+			throws IOException, ParseException {
+		if (recording != null && recording.getState() == RecordingState.RUNNING) {
+			throw new IllegalStateException("A recording is already running");
+		}
+		Configuration configuration = Configuration.getConfiguration(settingsName);
+		if (recording != null) {
+			recording.close();
+		}
+		recording = new Recording(configuration);
+		recording.setName("appointment-service");
+		recording.setToDisk(true);
+		recording.setDuration(Duration.ofMillis(Math.max(1, Math.min(durationMs, maxDurationMs))));
+		recording.enable(RouteEvent.class);
+		recording.enable(MongoOperationEvent.class);
+		recording.start();
+		settings = settingsName;
+		return toJson();
+	}
+	
+	/**
+	 * Stops recording if it is still running and dumps it, blocking. Recording is closed afterwards
+	 * 
+	 * @return file of recording in JFR format to be deleted by caller, null if there is no recording
+	 * @throws IOException
+	 */
+	public synchronized Path stop() throws IOException {
+		if (recording == null) {
+			return null;
+		}
+		try {
+			if (recording.getState() == RecordingState.RUNNING) {
+				recording.stop();
+			}
+			Path file = Files.createTempFile("appointment-service", ".jfr");
+			try {
+				recording.dump(file);
+			} catch (IOException e) {
+				Files.deleteIfExists(file);
+				throw e;
+			}
+			return file;
+		} finally {
+			recording.close();
+			recording = null;
+		}
+	}
+	
+	/**
+	 * @return state, settings, start time and duration of last recording
+	 */
+	public synchronized JsonObject toJson() {
+		JsonObject json = new JsonObject().put("maxDurationMs", maxDurationMs);
+		if (recording == null) {
+			return json.put("state", "NONE");
+		}
+		return json.put("state", recording.getState().toString()).put("settings", settings)
+				.put("startTime", recording.getStartTime() == null ? null : recording.getStartTime().toEpochMilli())
+				.put("durationMs", recording.getDuration() == null ? null : recording.getDuration().toMillis());
+	}
+}
@@ -0,0 +1,65 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of one mongo operation of {@link AppointmentServiceController}, from sending it until its
+ * result is handled
+ * 
+ * @author alperenp
+ *
+ */
+@Name("com.sesamecare.alperenp.MongoOperation")
+@Label("Mongo Operation")
+@Category("Appointment Service")
+@Description("Mongo operation tracked by SlowOperationLog")
+class MongoOperationEvent extends jdk.jfr.Event {
+	
+	private static final EventType TYPE = EventType.getEventType(MongoOperationEvent.class);
+	
+	@Label("Operation")
+	String operation;
+	
+	@Label("Collection")
+	String collection;
+	
+	@Label("Query Shape")
+	@Description("Query with literals replaced by \"?\"")
+	String queryShape;
+	
+	@Label("Result Size")
+	@Description("Number of documents, -1 if operation failed")
+	long resultSize;
+	
+	/**
+	 * @return true if a recording is collecting this event
+	 */
+	static boolean isRecorded() {
+		return TYPE.isEnabled();
+	}
+}
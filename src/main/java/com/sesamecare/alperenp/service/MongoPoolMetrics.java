@@ -0,0 +1,129 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.ext.mongo.MongoClient;
+
+/**
+ * Usage metrics of shared mongo connection pool
+ * <p>
+ * Vert.x mongo client does not expose its pool, so saturation is derived from operations in flight relative to
+ * configured "maxPoolSize" (driver default 100). Shared by every verticle of a {@link Vertx} instance through local
+ * shared data, same as {@link MongoClient#createShared(Vertx, JsonObject, String)} shares the pool itself.
+ * 
+ * @author alperenp
+ *
+ */
+public class MongoPoolMetrics implements Shareable {
+	
+	private static final String MAP_NAME = "mongo.pool.metrics";
+	
+	private final int maxPoolSize;
+	
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	private final AtomicInteger peakInFlight = new AtomicInteger();
+	
+	private final AtomicLong operations = new AtomicLong();
+	
+	private final AtomicLong failures = new AtomicLong();
+	
+	private MongoPoolMetrics(int maxPoolSize) {
+		this.maxPoolSize = maxPoolSize;
+	}
+	
+	/**
+	 * Metrics of shared pool used with given config
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @return
+	 */
+	public static MongoPoolMetrics get(Vertx vertx, JsonObject config) {
+		return vertx.sharedData().<String, MongoPoolMetrics>getLocalMap(MAP_NAME).computeIfAbsent(poolName(config),
+				name -> new MongoPoolMetrics(config.getInteger("maxPoolSize", 100)));
+	}
+	
+	/**
+	 * Name of shared mongo pool used with given config, "mongo_pool_name" (every shard has its own pool)
+	 * 
+	 * @param config
+	 * @return
+	 */
+	public static String poolName(JsonObject config) {
+		return config.getString("mongo_pool_name", MongoClient.DEFAULT_POOL_NAME);
+	}
+	
+	/**
+	 * Wraps handler of a mongo operation, counting the operation as in flight until handler is called
+	 * 
+	 * @param handler
+	 * @return
+	 */
+	public <T> Handler<AsyncResult<T>> track(Handler<AsyncResult<T>> handler) {
+		int current = inFlight.incrementAndGet();
+		peakInFlight.accumulateAndGet(current, Math::max);
+		operations.incrementAndGet();
+		return asyncResult -> {
+			inFlight.decrementAndGet();
+			if (asyncResult.failed()) {
+				failures.incrementAndGet();
+			}
+			handler.handle(asyncResult);
+		};
+	}
+	
+	/**
+	 * @return operations in flight
+	 */
+	public int inFlight() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * @return configured "maxPoolSize"
+	 */
+	public int maxPoolSize() {
+		return maxPoolSize;
+	}
+	
+	/**
+	 * @return operations in flight / max pool size
+	 */
+	public double saturation() {
+		return (double) inFlight.get() / maxPoolSize;
+	}
+	
+	public JsonObject toJson() {
+		return new JsonObject().put("inFlight", inFlight.get()).put("peakInFlight", peakInFlight.get())
+				.put("maxPoolSize", maxPoolSize).put("saturation", saturation()).put("operations", operations.get())
+				.put("failures", failures.get());
+	}
+}
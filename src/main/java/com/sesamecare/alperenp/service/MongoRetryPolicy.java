@@ -0,0 +1,384 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketOpenException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWaitQueueFullException;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hedged reads and write retries of a mongo pool, both paid from one retry budget
+ * <p>
+ * If "hedge_reads" is true (default false), a read which has not completed after the "hedge_percentile" (default
+ * 95) latency of its operation, measured over its last 1024 reads, is sent once more through a second pool reading
+ * from "hedge_read_preference" (default "primary") members. First successful attempt answers, result of the other is
+ * dropped (mongo client cannot abort a running operation). Reads are not hedged until 100 latencies are measured.
+ * Hedging to secondaries lets a lagging member answer with data older than the current change version, which is then
+ * served with its ETag and kept in the near cache until the next write; so default hedge is a second primary
+ * connection, which only hides a slow connection or pool wait.
+ * <p>
+ * Writes failing before reaching server (connection cannot be opened, no server could be selected, pool wait queue
+ * is full, member is not primary or is recovering) are retried up to "write_max_retries" (default 2) times after a
+ * random delay up to "retry_base_delay_ms" (default 10) doubled per retry, at most "retry_max_delay_ms" (default
+ * 500). Other failures (e.g. socket closed while reading reply) may have been applied, they are not retried.
+ * <p>
+ * Every operation deposits "retry_budget_ratio" (default 0.1) token and budget refills by "retry_budget_min_per_s"
+ * (default 10) tokens per second, up to "retry_budget_max" (default 100). Every hedge and retry takes a token, so when
+ * mongo is down retries add at most ratio of the traffic instead of multiplying it. Shared by every verticle of a
+ * {@link Vertx} instance through local shared data, one policy per pool.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class MongoRetryPolicy implements Shareable {
+	
+	private static final String MAP_NAME = "mongo.retry.policies";
+	
+	/**
+	 * Number of latest latencies hedge delay is computed from
+	 */
+	private static final int WINDOW = 1024;
+	
+	private static final int MIN_SAMPLES = 100;
+	
+	/**
+	 * Minimum time between two computations of hedge delay of an operation
+	 */
+	private static final long RECOMPUTE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	
+	/**
+	 * Budget is kept in thousandths of a token
+	 */
+	private static final long TOKEN = 1000;
+	
+	private final boolean hedged;
+	
+	private final double percentile;
+	
+	private final long minHedgeDelayMs;
+	
+	private final int maxRetries;
+	
+	private final long baseDelayMs;
+	
+	private final long maxDelayMs;
+	
+	private final long deposit;
+	
+	private final long refillPerSecond;
+	
+	private final long maxBalance;
+	
+	private final AtomicLong balance;
+	
+	private final AtomicLong lastRefill = new AtomicLong(System.nanoTime());
+	
+	/**
+	 * Operation name -> its latest latencies
+	 */
+	private final Map<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+	
+	private final LongAdder hedges = new LongAdder();
+	
+	private final LongAdder hedgeWins = new LongAdder();
+	
+	private final LongAdder retries = new LongAdder();
+	
+	private final LongAdder budgetExhausted = new LongAdder();
+	
+	MongoRetryPolicy(@NonNull JsonObject config) {
+		this.hedged = config.getBoolean("hedge_reads", false);
+		this.percentile = Math.min(100, Math.max(1, config.getDouble("hedge_percentile", 95.0)));
+		this.minHedgeDelayMs = Math.max(1, config.getLong("hedge_min_delay_ms", 2L));
+		this.maxRetries = Math.max(0, config.getInteger("write_max_retries", 2));
+		this.baseDelayMs = Math.max(1, config.getLong("retry_base_delay_ms", 10L));
+		this.maxDelayMs = Math.max(baseDelayMs, config.getLong("retry_max_delay_ms", 500L));
+		this.deposit = (long) (config.getDouble("retry_budget_ratio", 0.1) * TOKEN);
+		this.refillPerSecond = config.getLong("retry_budget_min_per_s", 10L) * TOKEN;
+		this.maxBalance = Math.max(1, config.getLong("retry_budget_max", 100L)) * TOKEN;
+		this.balance = new AtomicLong(Math.min(maxBalance, refillPerSecond));
+	}
+	
+	/**
+	 * Policy of pool used with given config
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @return
+	 */
+	public static MongoRetryPolicy get(Vertx vertx, JsonObject config) {
+		return vertx.sharedData().<String, MongoRetryPolicy>getLocalMap(MAP_NAME)
+				.computeIfAbsent(MongoPoolMetrics.poolName(config), name -> new MongoRetryPolicy(config));
+	}
+	
+	/**
+	 * Config of pool hedged reads are sent through: given config reading from "hedge_read_preference" members
+	 * 
+	 * @param config
+	 * @return
+	 */
+	public static JsonObject hedgeConfig(JsonObject config) {
+		return config.copy().put("readPreference", config.getString("hedge_read_preference", "primary"))
+				.put("mongo_pool_name", MongoPoolMetrics.poolName(config) + ".hedge");
+	}
+	
+	/**
+	 * @param vertx
+	 * @return metrics of every pool
+	 */
+	public static JsonObject toJson(Vertx vertx) {
+		JsonObject metrics = new JsonObject();
+		vertx.sharedData().<String, MongoRetryPolicy>getLocalMap(MAP_NAME)
+				.forEach((pool, policy) -> metrics.put(pool, policy.toJson()));
+		return metrics;
+	}
+	
+	/**
+	 * @return true if reads are hedged
+	 */
+	public boolean isHedged() {
+		return hedged;
+	}
+	
+	/**
+	 * Runs an idempotent read, hedging it if it is slower than usual
+	 * 
+	 * @param vertx
+	 * @param operation name latencies are grouped by
+	 * @param primary runs read, calling given handler with its result
+	 * @param hedge runs same read through hedge pool, null for no hedging
+	 * @param handler called once with first successful result, or with last failure
+	 */
+	public <T> void read(Vertx vertx, String operation, Consumer<Handler<AsyncResult<T>>> primary,
+			Consumer<Handler<AsyncResult<T>>> hedge, Handler<AsyncResult<T>> handler) {
+		deposit();
+		LatencyWindow window = windows.computeIfAbsent(operation, name -> new LatencyWindow());
+		HedgedRead<T> read = new HedgedRead<>(vertx, handler);
+		long delayMs = hedged && hedge != null ? window.hedgeDelayMs() : -1;
+		if (delayMs > 0) {
+			read.timerID = vertx.setTimer(delayMs, id -> {
+				read.timerID = -1;
+				if (!read.done && withdraw()) {
+					hedges.increment();
+					hedge.accept(read.attempt(true, null));
+				}
+			});
+		}
+		long startTime = System.nanoTime();
+		primary.accept(read.attempt(false, asyncResult -> {
+			if (asyncResult.succeeded()) {
+				window.record(System.nanoTime() - startTime);
+			}
+		}));
+	}
+	
+	/**
+	 * Runs a write, retrying it with jittered exponential backoff while it fails before reaching server
+	 * 
+	 * @param vertx
+	 * @param operation runs write, calling given handler with its result
+	 * @param handler called once with result of last attempt
+	 */
+	public <T> void write(Vertx vertx, Consumer<Handler<AsyncResult<T>>> operation, Handler<AsyncResult<T>> handler) {
+		deposit();
+		attempt(vertx, operation, handler, 0);
+	}
+	
+	private <T> void attempt(Vertx vertx, Consumer<Handler<AsyncResult<T>>> operation,
+			Handler<AsyncResult<T>> handler, int retry) {
+		operation.accept(asyncResult -> {
+			if (asyncResult.succeeded() || retry >= maxRetries || !isTransient(asyncResult.cause()) || !withdraw()) {
+				handler.handle(asyncResult);
+				return;
+			}
+			retries.increment();
+			long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(retry, 20));
+			long delayMs = 1 + ThreadLocalRandom.current().nextLong(ceiling);
+			log.warn("Mongo write failed before reaching server, retry {} in {} ms. Details: {}", retry + 1, delayMs,
+					asyncResult.cause().toString());
+			vertx.setTimer(delayMs, id -> attempt(vertx, operation, handler, retry + 1));
+		});
+	}
+	
+	/**
+	 * @param error
+	 * @return true if operation failed before it could be applied
+	 */
+	static boolean isTransient(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof MongoSocketOpenException || cause instanceof MongoTimeoutException
+					|| cause instanceof MongoWaitQueueFullException || cause instanceof MongoNotPrimaryException
+					|| cause instanceof MongoNodeIsRecoveringException) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void deposit() {
+		balance.accumulateAndGet(deposit, (current, amount) -> Math.min(maxBalance, current + amount));
+	}
+	
+	/**
+	 * Takes a token from budget
+	 * 
+	 * @return false if budget is exhausted
+	 */
+	boolean withdraw() {
+		long now = System.nanoTime();
+		long last = lastRefill.get();
+		long refill = refillPerSecond * (now - last) / TimeUnit.SECONDS.toNanos(1);
+		if (refill > 0 && lastRefill.compareAndSet(last, now)) {
+			balance.accumulateAndGet(refill, (current, amount) -> Math.min(maxBalance, current + amount));
+		}
+		long current;
+		do {
+			current = balance.get();
+			if (current < TOKEN) {
+				budgetExhausted.increment();
+				return false;
+			}
+		} while (!balance.compareAndSet(current, current - TOKEN));
+		return true;
+	}
+	
+	public JsonObject toJson() {
+		JsonObject hedgeDelays = new JsonObject();
+		windows.forEach((operation, window) -> hedgeDelays.put(operation, window.hedgeDelayMs));
+		return new JsonObject().put("hedged", hedged).put("hedgeDelayMs", hedgeDelays).put("hedges", hedges.sum())
+				.put("hedgeWins", hedgeWins.sum()).put("retries", retries.sum())
+				.put("budgetExhausted", budgetExhausted.sum()).put("budget", (double) balance.get() / TOKEN);
+	}
+	
+	/**
+	 * Latest latencies of an operation
+	 */
+	private class LatencyWindow {
+		
+		/**
+		 * Ring of latencies in microseconds
+		 */
+		private final AtomicLongArray latencies = new AtomicLongArray(WINDOW);
+		
+		private final AtomicLong samples = new AtomicLong();
+		
+		private final AtomicLong lastComputed = new AtomicLong(System.nanoTime() - RECOMPUTE_INTERVAL);
+		
+		/**
+		 * -1 until enough latencies are measured
+		 */
+		private volatile long hedgeDelayMs = -1;
+		
+		void record(long nanos) {
+			latencies.set((int) (samples.getAndIncrement() % WINDOW), nanos / 1000);
+		}
+		
+		/**
+		 * @return percentile of latest latencies (recomputed at most once per second), -1 if not known yet
+		 */
+		long hedgeDelayMs() {
+			long now = System.nanoTime();
+			long last = lastComputed.get();
+			if (now - last >= RECOMPUTE_INTERVAL && samples.get() >= MIN_SAMPLES
+					&& lastComputed.compareAndSet(last, now)) {
+				int size = (int) Math.min(WINDOW, samples.get());
+				long[] sorted = new long[size];
+				for (int i = 0; i < size; i++) {
+					sorted[i] = latencies.get(i);
+				}
+				Arrays.sort(sorted);
+				long micros = sorted[Math.max(0, (int) Math.ceil(percentile / 100 * size) - 1)];
+				hedgeDelayMs = Math.max(minHedgeDelayMs, (micros + 999) / 1000);
+			}
+			return hedgeDelayMs;
+		}
+	}
+	
+	/**
+	 * Attempts of one read, only touched on context of read
+	 */
+	private class HedgedRead<T> {
+		
+		private final Vertx vertx;
+		
+		private final Handler<AsyncResult<T>> handler;
+		
+		private int outstanding;
+		
+		private boolean done;
+		
+		private long timerID = -1;
+		
+		HedgedRead(Vertx vertx, Handler<AsyncResult<T>> handler) {
+			this.vertx = vertx;
+			this.handler = handler;
+		}
+		
+		/**
+		 * @param hedge true for hedged attempt
+		 * @param completed called with result of attempt even if other attempt has answered, may be null
+		 * @return handler of attempt
+		 */
+		Handler<AsyncResult<T>> attempt(boolean hedge, Handler<AsyncResult<T>> completed) {
+			outstanding++;
+			return asyncResult -> {
+				outstanding--;
+				if (completed != null) {
+					completed.handle(asyncResult);
+				}
+				// a failed attempt waits for the other one, it may still succeed
+				if (done || (asyncResult.failed() && outstanding > 0)) {
+					return;
+				}
+				done = true;
+				if (timerID >= 0) {
+					vertx.cancelTimer(timerID);
+				}
+				if (hedge && asyncResult.succeeded()) {
+					hedgeWins.increment();
+				}
+				handler.handle(asyncResult);
+			};
+		}
+	}
+}
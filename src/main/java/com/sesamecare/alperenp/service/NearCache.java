@@ -0,0 +1,257 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * In-process cache of findAppointment (by id) and range results, enabled with "near_cache"
+ * <p>
+ * Entries are dropped by invalidations of local writes (see {@link NearCachedAppointmentStore}) and of writes on other
+ * nodes of the cluster (see {@link NearCacheInvalidator}). Every entry remembers when its read started, so an
+ * invalidation of a write which completed before that (more than "cluster_clock_skew_ms", default 100, before) is
+ * stale and dropped: the entry already reflects the write. A read is cached only if no invalidation was applied while
+ * it was in flight. Entries older than "near_cache_ttl_ms" (default 60000) are not served, which bounds staleness if an
+ * invalidation is lost. At most "near_cache_size" (default 10000) ids and "near_cache_range_size" (default 256) ranges
+ * are kept, least recently used are evicted. Shared by every verticle of a {@link Vertx} instance through local shared
+ * data.
+ * 
+ * @author alperenp
+ *
+ */
+public class NearCache implements Shareable {
+	
+	private static final String MAP_NAME = "appointment.near.cache";
+	
+	private final long ttlMs;
+	
+	private final long skewMs;
+	
+	private final Map<String, Entry> appointments;
+	
+	private final Map<String, Entry> ranges;
+	
+	/**
+	 * Increased by every applied invalidation
+	 */
+	private long epoch;
+	
+	private long hits;
+	
+	private long misses;
+	
+	private long invalidations;
+	
+	private long staleInvalidations;
+	
+	NearCache(int maxAppointments, int maxRanges, long ttlMs, long skewMs) {
+		this.ttlMs = ttlMs;
+		this.skewMs = skewMs;
+		this.appointments = lru(maxAppointments);
+		this.ranges = lru(maxRanges);
+	}
+	
+	/**
+	 * Cache of collection (or embedded file) used with given config
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @return
+	 */
+	public static NearCache get(Vertx vertx, JsonObject config) {
+		return vertx.sharedData().<String, NearCache>getLocalMap(MAP_NAME).computeIfAbsent(
+				ChangeVersion.collection(config),
+				name -> new NearCache(config.getInteger("near_cache_size", 10000),
+						config.getInteger("near_cache_range_size", 256), config.getLong("near_cache_ttl_ms", 60000L),
+						config.getLong("cluster_clock_skew_ms", 100L)));
+	}
+	
+	/**
+	 * @param config
+	 * @return true if "near_cache" is true
+	 */
+	public static boolean isEnabled(JsonObject config) {
+		return config.getBoolean("near_cache", false);
+	}
+	
+	/**
+	 * @return epoch to be passed to put methods by a read starting now
+	 */
+	public synchronized long epoch() {
+		return epoch;
+	}
+	
+	/**
+	 * @param appointmentID
+	 * @return copy of cached find result, null if not cached
+	 */
+	public synchronized List<JsonObject> findAppointment(String appointmentID) {
+		return get(appointments, appointmentID);
+	}
+	
+	/**
+	 * @param start
+	 * @param end
+	 * @return copy of cached range result, null if not cached
+	 */
+	public synchronized List<JsonObject> findAppointmentsWithRangeAndSort(long start, long end) {
+		return get(ranges, start + ":" + end);
+	}
+	
+	/**
+	 * Caches find result unless an invalidation was applied since read started
+	 * 
+	 * @param appointmentID
+	 * @param result
+	 * @param readTime wall clock time read started
+	 * @param readEpoch {@link #epoch()} when read started
+	 */
+	public synchronized void putAppointment(String appointmentID, List<JsonObject> result, long readTime,
+			long readEpoch) {
+		if (readEpoch == epoch) {
+			appointments.put(appointmentID, new Entry(copy(result), readTime));
+		}
+	}
+	
+	/**
+	 * Caches range result unless an invalidation was applied since read started
+	 * 
+	 * @param start
+	 * @param end
+	 * @param result
+	 * @param readTime wall clock time read started
+	 * @param readEpoch {@link #epoch()} when read started
+	 */
+	public synchronized void putRange(long start, long end, List<JsonObject> result, long readTime, long readEpoch) {
+		if (readEpoch == epoch) {
+			ranges.put(start + ":" + end, new Entry(copy(result), readTime));
+		}
+	}
+	
+	/**
+	 * Drops appointments with given ids and every range read before the write, unless invalidation is stale
+	 * 
+	 * @param appointmentIDs
+	 * @param writeTime wall clock time (of writing node) the write completed
+	 * @return number of ids whose invalidation was stale
+	 */
+	public synchronized int invalidate(Iterable<String> appointmentIDs, long writeTime) {
+		int stale = 0;
+		for (String appointmentID : appointmentIDs) {
+			Entry entry = appointments.get(appointmentID);
+			if (entry != null && isNewer(entry, writeTime)) {
+				stale++;
+				continue;
+			}
+			appointments.remove(appointmentID);
+			invalidations++;
+		}
+		staleInvalidations += stale;
+		ranges.values().removeIf(entry -> !isNewer(entry, writeTime));
+		epoch++;
+		return stale;
+	}
+	
+	/**
+	 * Drops every entry read before the write
+	 * 
+	 * @param writeTime wall clock time (of writing node) the write completed
+	 */
+	public synchronized void invalidateAll(long writeTime) {
+		appointments.values().removeIf(entry -> !isNewer(entry, writeTime));
+		ranges.values().removeIf(entry -> !isNewer(entry, writeTime));
+		invalidations++;
+		epoch++;
+	}
+	
+	/**
+	 * @return size, hit/miss and invalidation counters
+	 */
+	public synchronized JsonObject toJson() {
+		return new JsonObject().put("appointments", appointments.size()).put("ranges", ranges.size())
+				.put("hits", hits).put("misses", misses).put("invalidations", invalidations)
+				.put("staleInvalidations", staleInvalidations);
+	}
+	
+	private List<JsonObject> get(Map<String, Entry> entries, String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && System.currentTimeMillis() - entry.readTime > ttlMs) {
+			entries.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return copy(entry.result);
+	}
+	
+	/**
+	 * @return true if entry was read after write completed, allowing for clock skew between nodes
+	 */
+	private boolean isNewer(Entry entry, long writeTime) {
+		return entry.readTime - skewMs > writeTime;
+	}
+	
+	/**
+	 * Results are copied in and out, since callers modify returned documents (e.g. remove "_id")
+	 */
+	private static List<JsonObject> copy(List<JsonObject> result) {
+		List<JsonObject> copy = new ArrayList<>(result.size());
+		for (JsonObject document : result) {
+			copy.add(document.copy());
+		}
+		return copy;
+	}
+	
+	private static Map<String, Entry> lru(int maxEntries) {
+		return new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+	
+	private static class Entry {
+		
+		final List<JsonObject> result;
+		
+		final long readTime;
+		
+		Entry(List<JsonObject> result, long readTime) {
+			this.result = result;
+			this.readTime = readTime;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps {@link NearCache}s of cluster nodes coherent over the event bus
+ * <p>
+ * Ids written on this node are collected for "invalidation_debounce_ms" (default 10) or until "invalidation_max_batch"
+ * (default 500) ids are pending, then published as one compact message
+ * {"node", "writeTime", "ids": [...]} (or "all": true after deleting every appointment) to "invalidation_address"
+ * (default "appointments.invalidate"). Peers apply a message to their cache in one step, dropping stale invalidations
+ * (see {@link NearCache}), and increase their {@link ChangeVersion} so ETags of peer writes do not match anymore.
+ * Messages reach other processes only if vertx is clustered. Shared by every verticle of a {@link Vertx} instance
+ * through local shared data.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class NearCacheInvalidator implements Shareable {
+	
+	private static final String MAP_NAME = "appointment.near.cache.invalidator";
+	
+	private final String node = UUID.randomUUID().toString();
+	
+	private final Vertx vertx;
+	
+	private final String address;
+	
+	private final long debounceMs;
+	
+	private final int maxBatch;
+	
+	private final NearCache cache;
+	
+	private final ChangeVersion changeVersion;
+	
+	private final Set<String> pending = new LinkedHashSet<>();
+	
+	private boolean pendingAll;
+	
+	private long pendingWriteTime;
+	
+	private long timerID = -1;
+	
+	private MessageConsumer<JsonObject> consumer;
+	
+	private long published;
+	
+	private long received;
+	
+	private long staleInvalidations;
+	
+	NearCacheInvalidator(Vertx vertx, JsonObject config, NearCache cache, ChangeVersion changeVersion) {
+		this.vertx = vertx;
+		this.address = config.getString("invalidation_address", "appointments.invalidate");
+		this.debounceMs = config.getLong("invalidation_debounce_ms", 10L);
+		this.maxBatch = config.getInteger("invalidation_max_batch", 500);
+		this.cache = cache;
+		this.changeVersion = changeVersion;
+	}
+	
+	/**
+	 * Invalidator of collection (or embedded file) used with given config
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @return
+	 */
+	public static NearCacheInvalidator get(Vertx vertx, JsonObject config) {
+		return vertx.sharedData().<String, NearCacheInvalidator>getLocalMap(MAP_NAME).computeIfAbsent(
+				ChangeVersion.collection(config), name -> new NearCacheInvalidator(vertx, config,
+						NearCache.get(vertx, config), ChangeVersion.get(vertx, config)));
+	}
+	
+	/**
+	 * Starts applying invalidations of peers, unless another verticle already does
+	 * 
+	 * @return false if invalidations are already applied by another verticle
+	 */
+	public synchronized boolean start() {
+		if (consumer != null) {
+			return false;
+		}
+		consumer = vertx.eventBus().consumer(address, message -> apply(message.body()));
+		return true;
+	}
+	
+	/**
+	 * Stops applying invalidations of peers and publishes pending ones
+	 */
+	public synchronized void close() {
+		if (consumer != null) {
+			consumer.unregister();
+			consumer = null;
+		}
+		flush();
+	}
+	
+	/**
+	 * Schedules publication of a written appointment
+	 * 
+	 * @param appointmentID
+	 * @param writeTime
+	 */
+	public synchronized void written(@NonNull String appointmentID, long writeTime) {
+		pending.add(appointmentID);
+		schedule(writeTime);
+	}
+	
+	/**
+	 * Schedules publication of deletion of every appointment
+	 * 
+	 * @param writeTime
+	 */
+	public synchronized void writtenAll(long writeTime) {
+		pendingAll = true;
+		pending.clear();
+		schedule(writeTime);
+	}
+	
+	/**
+	 * @return node id and message counters
+	 */
+	public synchronized JsonObject toJson() {
+		return new JsonObject().put("node", node).put("address", address).put("published", published)
+				.put("received", received).put("staleInvalidations", staleInvalidations).put("pending", pending.size());
+	}
+	
+	/**
+	 * Applies invalidation message of a peer, own messages are ignored
+	 * 
+	 * @param message
+	 */
+	void apply(JsonObject message) {
+		if (node.equals(message.getString("node"))) {
+			return;
+		}
+		long writeTime = message.getLong("writeTime", Long.MAX_VALUE);
+		int stale = 0;
+		if (message.getBoolean("all", false)) {
+			cache.invalidateAll(writeTime);
+		} else {
+			@SuppressWarnings("unchecked")
+			Iterable<String> ids = message.getJsonArray("ids", new JsonArray()).getList();
+			stale = cache.invalidate(ids, writeTime);
+		}
+		changeVersion.changed();
+		synchronized (this) {
+			received++;
+			staleInvalidations += stale;
+		}
+	}
+	
+	private void schedule(long writeTime) {
+		pendingWriteTime = Math.max(pendingWriteTime, writeTime);
+		if (pendingAll || pending.size() >= maxBatch) {
+			flush();
+		} else if (timerID < 0) {
+			timerID = vertx.setTimer(debounceMs, id -> {
+				synchronized (this) {
+					timerID = -1;
+					flush();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Publishes pending invalidations as one message
+	 */
+	private void flush() {
+		if (timerID >= 0) {
+			vertx.cancelTimer(timerID);
+			timerID = -1;
+		}
+		if (!pendingAll && pending.isEmpty()) {
+			return;
+		}
+		JsonObject message = new JsonObject().put("node", node).put("writeTime", pendingWriteTime);
+		if (pendingAll) {
+			message.put("all", true);
+		} else {
+			message.put("ids", new JsonArray(new ArrayList<>(pending)));
+		}
+		pending.clear();
+		pendingAll = false;
+		pendingWriteTime = 0;
+		published++;
+		vertx.eventBus().publish(address, message);
+		log.debug("Published invalidation of {}", message);
+	}
+}
@@ -0,0 +1,240 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import lombok.NonNull;
+
+/**
+ * {@link AppointmentStore} serving id lookups and range reads from {@link NearCache}
+ * <p>
+ * Whenever a write of underlying store completes, its appointments are invalidated in local cache and published to
+ * peers by {@link NearCacheInvalidator}. Invalidation happens even if write fails, since a failed write may still have
+ * been applied partially.
+ * 
+ * @author alperenp
+ *
+ */
+public class NearCachedAppointmentStore implements AppointmentStore {
+	
+	private final AppointmentStore store;
+	
+	private final NearCache cache;
+	
+	private final NearCacheInvalidator invalidator;
+	
+	public NearCachedAppointmentStore(@NonNull AppointmentStore store, @NonNull NearCache cache,
+			@NonNull NearCacheInvalidator invalidator) {
+		this.store = store;
+		this.cache = cache;
+		this.invalidator = invalidator;
+	}
+	
+	@Override
+	public Future<JsonObject> deleteOne(String appointmentID) {
+		return written(store.deleteOne(appointmentID), appointmentID);
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointment(Appointment appointment) {
+		return written(store.insertAppointment(appointment), appointment.getId());
+	}
+	
+	@Override
+	public Future<JsonObject> replaceAppointment(Appointment appointment) {
+		return written(store.replaceAppointment(appointment), appointment.getId());
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointment(String appointmentID) {
+		List<JsonObject> cached = cache.findAppointment(appointmentID);
+		if (cached != null) {
+			return Future.succeededFuture(cached);
+		}
+		long readTime = System.currentTimeMillis();
+		long readEpoch = cache.epoch();
+		return store.findAppointment(appointmentID).map(result -> {
+			cache.putAppointment(appointmentID, result, readTime, readEpoch);
+			return result;
+		});
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointments(List<String> appointmentIDs) {
+		List<JsonObject> found = new ArrayList<>(appointmentIDs.size());
+		List<String> missing = new ArrayList<>();
+		for (String appointmentID : appointmentIDs) {
+			List<JsonObject> cached = cache.findAppointment(appointmentID);
+			if (cached == null) {
+				missing.add(appointmentID);
+			} else if (!cached.isEmpty()) {
+				found.add(cached.get(0));
+			}
+		}
+		if (missing.isEmpty()) {
+			return Future.succeededFuture(AppointmentStore.inRequestOrder(appointmentIDs, found));
+		}
+		long readTime = System.currentTimeMillis();
+		long readEpoch = cache.epoch();
+		return store.findAppointments(missing).map(result -> {
+			for (int i = 0; i < missing.size(); i++) {
+				JsonObject appointment = result.get(i);
+				cache.putAppointment(missing.get(i), appointment == null ? Collections.emptyList()
+						: Collections.singletonList(appointment), readTime, readEpoch);
+				if (appointment != null) {
+					found.add(appointment);
+				}
+			}
+			return AppointmentStore.inRequestOrder(appointmentIDs, found);
+		});
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointmentsWithRangeAndSort(long start, long end) {
+		List<JsonObject> cached = cache.findAppointmentsWithRangeAndSort(start, end);
+		if (cached != null) {
+			return Future.succeededFuture(cached);
+		}
+		long readTime = System.currentTimeMillis();
+		long readEpoch = cache.epoch();
+		return store.findAppointmentsWithRangeAndSort(start, end).map(result -> {
+			cache.putRange(start, end, result, readTime, readEpoch);
+			return result;
+		});
+	}
+	
+	@Override
+	public Future<List<JsonObject>> getAllAppointments() {
+		return store.getAllAppointments();
+	}
+	
+	@Override
+	public Future<JsonObject> deleteAllAppointments() {
+		return writtenAll(store.deleteAllAppointments());
+	}
+	
+	@Override
+	public Future<JsonObject> bookAppointment(String appointmentID, Long version) {
+		return written(store.bookAppointment(appointmentID, version), appointmentID);
+	}
+	
+	@Override
+	public Future<JsonObject> cancelAppointment(String appointmentID, Long version) {
+		return written(store.cancelAppointment(appointmentID, version), appointmentID);
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointments(List<Appointment> appointments) {
+		Future<JsonObject> future = Future.future();
+		store.insertAppointments(appointments).setHandler(result -> {
+			long writeTime = System.currentTimeMillis();
+			List<String> ids = new ArrayList<>(appointments.size());
+			for (Appointment appointment : appointments) {
+				ids.add(appointment.getId());
+				invalidator.written(appointment.getId(), writeTime);
+			}
+			cache.invalidate(ids, writeTime);
+			future.handle(result);
+		});
+		return future;
+	}
+	
+	@Override
+	public ReadStream<JsonObject> exportAppointments(Long start, Long end) {
+		return store.exportAppointments(start, end);
+	}
+	
+	@Override
+	public Future<JsonObject> archiveAppointments(long before, int limit) {
+		Future<JsonObject> future = Future.future();
+		store.archiveAppointments(before, limit).setHandler(result -> {
+			// a failed batch may have moved some appointments
+			boolean failed = result.failed() || !result.result().getBoolean("result", false);
+			if (!failed && result.result().getLong("archived", 0L) == 0) {
+				future.handle(result);
+				return;
+			}
+			long writeTime = System.currentTimeMillis();
+			JsonArray ids = failed ? null : result.result().getJsonArray("ids");
+			if (ids == null) {
+				// archived ids are not reported, everything read before is invalidated
+				cache.invalidateAll(writeTime);
+				invalidator.writtenAll(writeTime);
+			} else {
+				List<String> archived = new ArrayList<>(ids.size());
+				for (Object id : ids) {
+					archived.add((String) id);
+					invalidator.written((String) id, writeTime);
+				}
+				cache.invalidate(archived, writeTime);
+			}
+			future.handle(result);
+		});
+		return future;
+	}
+	
+	@Override
+	public AppointmentStore archive() {
+		return store.archive();
+	}
+	
+	/**
+	 * @param write
+	 * @param appointmentID
+	 * @return future completing after appointment is invalidated
+	 */
+	private Future<JsonObject> written(Future<JsonObject> write, String appointmentID) {
+		Future<JsonObject> future = Future.future();
+		write.setHandler(result -> {
+			long writeTime = System.currentTimeMillis();
+			cache.invalidate(Collections.singletonList(appointmentID), writeTime);
+			invalidator.written(appointmentID, writeTime);
+			future.handle(result);
+		});
+		return future;
+	}
+	
+	/**
+	 * @param write
+	 * @return future completing after every appointment is invalidated
+	 */
+	private Future<JsonObject> writtenAll(Future<JsonObject> write) {
+		Future<JsonObject> future = Future.future();
+		write.setHandler(result -> {
+			long writeTime = System.currentTimeMillis();
+			cache.invalidateAll(writeTime);
+			invalidator.writtenAll(writeTime);
+			future.handle(result);
+		});
+		return future;
+	}
+}
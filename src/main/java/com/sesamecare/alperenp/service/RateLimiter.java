@@ -0,0 +1,334 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.ext.web.RoutingContext;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Per client request budget of a route, a token bucket of "burst" tokens refilled at "rate" tokens per second
+ * <p>
+ * Clients are identified by remote address, and by "rate_limit_key_header" (default "X-API-Key") if request has it.
+ * Keys are not validated, so one address gets buckets for at most "rate_limit_keys_per_address" (default 10) keys
+ * at a time; requests with further keys share the bucket of the address, and a fresh key per request does not buy a
+ * fresh burst.
+ * Bucket of a client is kept as its theoretical arrival time (GCRA): the time at which its bucket would be full again.
+ * It is a single {@link AtomicLong} updated with compare-and-set in a {@link ConcurrentHashMap}, so verticles on
+ * different event loops share buckets without a lock. A bucket which is full again is dropped when table reaches
+ * "rate_limit_max_clients" (default 10000); if no bucket can be dropped, new clients share one overflow bucket until
+ * next sweep. A client whose bucket is dropped while it takes a token gets that token back. Requests over budget are
+ * answered with 429 and "Retry-After". Shared by every verticle of a {@link Vertx} instance through local shared data.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class RateLimiter implements Shareable {
+	
+	private static final String MAP_NAME = "rate.limiters";
+	
+	/**
+	 * Client prefix of buckets of an address
+	 */
+	private static final String ADDRESS = "ip:";
+	
+	/**
+	 * Client prefix of buckets of a key, followed by address and key separated with "/"
+	 */
+	private static final String KEY = "key:";
+	
+	/**
+	 * Budgets used if "rate_limits" is not configured: whole collection reads and deletes
+	 */
+	private static final JsonObject DEFAULT_LIMITS = new JsonObject()
+			.put("/rest/allAppointments", new JsonObject().put("rate", 5).put("burst", 10))
+			.put("/rest/deleteAllAppointments", new JsonObject().put("rate", 1).put("burst", 5));
+	
+	/**
+	 * Minimum time between two sweeps of a full table
+	 */
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	
+	/**
+	 * Nanoseconds between two tokens
+	 */
+	private final long interval;
+	
+	/**
+	 * How far theoretical arrival time may run ahead of now, (burst - 1) intervals
+	 */
+	private final long tolerance;
+	
+	private final int burst;
+	
+	private final int maxClients;
+	
+	private final int maxKeysPerAddress;
+	
+	private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+	
+	/**
+	 * Remote address -> number of key buckets it has
+	 */
+	private final ConcurrentHashMap<String, Integer> keysPerAddress = new ConcurrentHashMap<>();
+	
+	private final AtomicLong overflow = new AtomicLong(System.nanoTime());
+	
+	private final AtomicLong lastSweep = new AtomicLong(System.nanoTime() - SWEEP_INTERVAL);
+	
+	private final LongAdder allowed = new LongAdder();
+	
+	private final LongAdder limited = new LongAdder();
+	
+	private final LongAdder evicted = new LongAdder();
+	
+	private final LongAdder overflowed = new LongAdder();
+	
+	/**
+	 * @param rate tokens per second
+	 * @param burst bucket size
+	 * @param maxClients
+	 * @param maxKeysPerAddress
+	 */
+	RateLimiter(double rate, int burst, int maxClients, int maxKeysPerAddress) {
+		if (rate <= 0 || burst <= 0) {
+			throw new IllegalArgumentException("Rate and burst of rate limit must be positive");
+		}
+		this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		this.tolerance = interval * (burst - 1);
+		this.burst = burst;
+		this.maxClients = maxClients;
+		this.maxKeysPerAddress = maxKeysPerAddress;
+	}
+	
+	/**
+	 * Limiter of given route, null if route has no budget in "rate_limits"
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @param route path of route
+	 * @return
+	 */
+	public static RateLimiter get(Vertx vertx, JsonObject config, String route) {
+		String path = normalize(route);
+		JsonObject limits = limits(config);
+		JsonObject budget = null;
+		for (String limitedRoute : limits.fieldNames()) {
+			if (normalize(limitedRoute).equals(path)) {
+				budget = limits.getJsonObject(limitedRoute);
+			}
+		}
+		if (budget == null) {
+			return null;
+		}
+		JsonObject routeBudget = budget;
+		int maxClients = config.getInteger("rate_limit_max_clients", 10000);
+		int maxKeysPerAddress = config.getInteger("rate_limit_keys_per_address", 10);
+		return vertx.sharedData().<String, RateLimiter>getLocalMap(MAP_NAME).computeIfAbsent(path,
+				name -> new RateLimiter(routeBudget.getDouble("rate"), routeBudget.getInteger("burst", 1), maxClients,
+						maxKeysPerAddress));
+	}
+	
+	/**
+	 * Route handler limiting every route of "rate_limits" (routes without budget are not limited)
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @return
+	 */
+	public static Handler<RoutingContext> handler(@NonNull Vertx vertx, @NonNull JsonObject config) {
+		Map<String, RateLimiter> limiters = new HashMap<>();
+		for (String route : limits(config).fieldNames()) {
+			limiters.put(normalize(route), get(vertx, config, route));
+		}
+		String keyHeader = config.getString("rate_limit_key_header", "X-API-Key");
+		return routingContext -> {
+			RateLimiter limiter = limiters.isEmpty() ? null : limiters.get(normalize(routingContext.normalisedPath()));
+			if (limiter == null) {
+				routingContext.next();
+				return;
+			}
+			String apiKey = routingContext.request().getHeader(keyHeader);
+			String address = routingContext.request().remoteAddress().host();
+			String client = apiKey != null ? KEY + address + "/" + apiKey : ADDRESS + address;
+			long wait = limiter.acquire(client, System.nanoTime());
+			if (wait == 0) {
+				routingContext.next();
+				return;
+			}
+			log.debug("Request of {} to {} is rate limited", client, routingContext.normalisedPath());
+			long retryAfter = Math.max(1, (wait + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+			routingContext.response().putHeader("Retry-After", String.valueOf(retryAfter)).setStatusCode(429).end();
+		};
+	}
+	
+	/**
+	 * @param vertx
+	 * @return budget and counters of every limited route
+	 */
+	public static JsonObject toJson(Vertx vertx) {
+		JsonObject json = new JsonObject();
+		LocalMap<String, RateLimiter> limiters = vertx.sharedData().getLocalMap(MAP_NAME);
+		for (String route : limiters.keySet()) {
+			RateLimiter limiter = limiters.get(route);
+			if (limiter != null) {
+				json.put(route, limiter.toJson());
+			}
+		}
+		return json;
+	}
+	
+	/**
+	 * Takes a token of given client
+	 * 
+	 * @param client "ip:" and address, or "key:", address, "/" and key
+	 * @param now {@link System#nanoTime()}
+	 * @return 0 if token is taken, else nanoseconds until next token
+	 */
+	long acquire(String client, long now) {
+		AtomicLong bucket = bucket(client, now);
+		while (true) {
+			long arrival = bucket.get();
+			long start = arrival - now < 0 ? now : arrival;
+			if (start - now > tolerance) {
+				limited.increment();
+				return start - now - tolerance;
+			}
+			if (bucket.compareAndSet(arrival, start + interval)) {
+				allowed.increment();
+				return 0;
+			}
+		}
+	}
+	
+	/**
+	 * @return number of tracked clients
+	 */
+	int clients() {
+		return buckets.size();
+	}
+	
+	/**
+	 * @return budget, counters and number of tracked clients
+	 */
+	public JsonObject toJson() {
+		return new JsonObject().put("rate", TimeUnit.SECONDS.toNanos(1) / (double) interval).put("burst", burst)
+				.put("clients", buckets.size()).put("maxClients", maxClients).put("allowed", allowed.sum())
+				.put("limited", limited.sum()).put("evicted", evicted.sum()).put("overflowed", overflowed.sum());
+	}
+	
+	/**
+	 * Bucket of client, overflow bucket if table is full of clients which have used their burst recently. A key client
+	 * whose address has too many keys gets bucket of its address
+	 */
+	private AtomicLong bucket(String client, long now) {
+		AtomicLong bucket = buckets.get(client);
+		if (bucket != null) {
+			return bucket;
+		}
+		if (buckets.size() >= maxClients && !sweep(now)) {
+			overflowed.increment();
+			return overflow;
+		}
+		if (!client.startsWith(KEY)) {
+			return buckets.computeIfAbsent(client, key -> new AtomicLong(now));
+		}
+		String address = addressOf(client);
+		// reserved only if bucket is created
+		bucket = buckets.computeIfAbsent(client, key -> reserveKey(address) ? new AtomicLong(now) : null);
+		return bucket != null ? bucket : bucket(ADDRESS + address, now);
+	}
+	
+	/**
+	 * Counts a new key bucket of address
+	 * 
+	 * @param address
+	 * @return false if address has max number of keys
+	 */
+	private boolean reserveKey(String address) {
+		boolean[] reserved = new boolean[1];
+		keysPerAddress.compute(address, (key, keys) -> {
+			int count = keys == null ? 0 : keys;
+			reserved[0] = count < maxKeysPerAddress;
+			return reserved[0] ? Integer.valueOf(count + 1) : keys;
+		});
+		return reserved[0];
+	}
+	
+	/**
+	 * @param client key client
+	 * @return address part of client
+	 */
+	private static String addressOf(String client) {
+		return client.substring(KEY.length(), client.indexOf('/', KEY.length()));
+	}
+	
+	/**
+	 * Drops buckets which are full again (a new bucket would behave the same), at most once per second
+	 * 
+	 * @param now
+	 * @return true if table has room afterwards
+	 */
+	private boolean sweep(long now) {
+		long last = lastSweep.get();
+		if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) {
+			return false;
+		}
+		int before = buckets.size();
+		buckets.entrySet().removeIf(entry -> {
+			if (entry.getValue().get() - now > 0) {
+				return false;
+			}
+			if (entry.getKey().startsWith(KEY)) {
+				keysPerAddress.computeIfPresent(addressOf(entry.getKey()), (key, keys) -> keys > 1 ? keys - 1 : null);
+			}
+			return true;
+		});
+		evicted.add(before - buckets.size());
+		return buckets.size() < maxClients;
+	}
+	
+	private static JsonObject limits(JsonObject config) {
+		return config.getJsonObject("rate_limits", DEFAULT_LIMITS);
+	}
+	
+	/**
+	 * @param route
+	 * @return route path without trailing slash
+	 */
+	private static String normalize(String route) {
+		return route.length() > 1 && route.endsWith("/") ? route.substring(0, route.length() - 1) : route;
+	}
+}
@@ -0,0 +1,176 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.bson.BsonDocument;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Snapshot of {@link AppointmentReadModel} on local disk, so a restarted process resumes change stream after the
+ * snapshot instead of scanning whole collection
+ * <p>
+ * Binary layout: magic, format version, creation time, resume token (extended json), columns (see
+ * {@link AppointmentColumns#writeTo(java.io.DataOutput)}) and a CRC32 of everything before it. Files are written to a
+ * temporary file and atomically moved in place, so readers never see a partial snapshot.
+ *
+ * @author alperenp
+ *
+ */
+public class ReadModelSnapshot {
+
+	private static final int MAGIC = 0x41505253;
+
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Magic, format version and creation time
+	 */
+	private static final int HEADER_SIZE = 16;
+
+	@Getter
+	private final long createdTime;
+
+	@Getter
+	private final BsonDocument resumeToken;
+
+	@Getter
+	private final AppointmentColumns columns;
+
+	private ReadModelSnapshot(long createdTime, BsonDocument resumeToken, AppointmentColumns columns) {
+		this.createdTime = createdTime;
+		this.resumeToken = resumeToken;
+		this.columns = columns;
+	}
+
+	/**
+	 * Encodes snapshot of given columns, to be called from the context owning them
+	 *
+	 * @param columns
+	 * @param resumeToken token of last change applied to columns
+	 * @return snapshot bytes without checksum, see {@link #write(Path, byte[])}
+	 */
+	public static byte[] encode(@NonNull AppointmentColumns columns, @NonNull BsonDocument resumeToken) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + columns.size() * 96);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(System.currentTimeMillis());
+			byte[] token = resumeToken.toJson().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(token.length);
+			out.write(token);
+			columns.writeTo(out);
+		} catch (IOException e) {
+			// not thrown by in-memory streams
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Appends checksum to encoded snapshot and replaces file at given path, blocking
+	 *
+	 * @param path
+	 * @param snapshot bytes returned by {@link #encode(AppointmentColumns, BsonDocument)}
+	 * @throws IOException
+	 */
+	public static void write(@NonNull Path path, @NonNull byte[] snapshot) throws IOException {
+		CRC32 checksum = new CRC32();
+		checksum.update(snapshot);
+		Path directory = path.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES).putLong(0, checksum.getValue());
+				ByteBuffer[] buffers = { ByteBuffer.wrap(snapshot), trailer };
+				while (trailer.hasRemaining()) {
+					channel.write(buffers);
+				}
+				channel.force(true);
+			}
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Reads snapshot at given path, blocking. File is memory mapped; header is checked first, so a snapshot of another
+	 * format or one which is too old is skipped without reading the rest
+	 *
+	 * @param path
+	 * @param maxAgeMs
+	 * @return snapshot or null if file does not exist or is older than max age
+	 * @throws IOException if file cannot be read or is corrupted
+	 */
+	public static ReadModelSnapshot read(@NonNull Path path, long maxAgeMs) throws IOException {
+		if (!Files.exists(path)) {
+			return null;
+		}
+		MappedByteBuffer mapped;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		int contentSize = mapped.capacity() - Long.BYTES;
+		if (contentSize < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+			throw new IOException("Not a read model snapshot: " + path);
+		}
+		if (mapped.getInt(4) != FORMAT_VERSION) {
+			throw new IOException("Unsupported read model snapshot version " + mapped.getInt(4) + ": " + path);
+		}
+		long createdTime = mapped.getLong(8);
+		if (System.currentTimeMillis() - createdTime > maxAgeMs) {
+			return null;
+		}
+		ByteBuffer content = mapped.duplicate();
+		content.limit(contentSize);
+		CRC32 checksum = new CRC32();
+		checksum.update(content);
+		if (checksum.getValue() != mapped.getLong(contentSize)) {
+			throw new IOException("Read model snapshot checksum mismatch: " + path);
+		}
+		content.clear().limit(contentSize).position(HEADER_SIZE);
+		try {
+			byte[] token = new byte[content.getInt()];
+			content.get(token);
+			BsonDocument resumeToken = BsonDocument.parse(new String(token, StandardCharsets.UTF_8));
+			return new ReadModelSnapshot(createdTime, resumeToken, AppointmentColumns.readFrom(content));
+		} catch (RuntimeException e) {
+			throw new IOException("Read model snapshot cannot be decoded: " + path, e);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.function.Supplier;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.streams.ReadStream;
+import lombok.NonNull;
+
+/**
+ * Reactive Streams {@link Publisher} over a Vert.x {@link ReadStream}
+ * <p>
+ * Publisher is cold: every subscriber gets its own stream, opened on subscribing context (or an event loop context
+ * when subscribed from a non Vert.x thread). Stream stays paused until subscriber requests items, requested amount is
+ * fetched from stream as is. All signals are delivered on that context, {@link Subscription#request(long)} and
+ * {@link Subscription#cancel()} can be called from any thread. Cancelling unsets stream handler, which closes
+ * underlying cursor, and takes effect immediately when called on that context (e.g. from onNext).
+ * 
+ * @author alperenp
+ *
+ */
+class ReadStreamPublisher<T> implements Publisher<T> {
+	
+	private final Vertx vertx;
+	
+	private final Supplier<ReadStream<T>> streams;
+	
+	/**
+	 * @param vertx
+	 * @param streams opens a new stream per subscriber
+	 */
+	ReadStreamPublisher(@NonNull Vertx vertx, @NonNull Supplier<ReadStream<T>> streams) {
+		this.vertx = vertx;
+		this.streams = streams;
+	}
+	
+	@Override
+	public void subscribe(Subscriber<? super T> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("Subscriber is null");
+		}
+		Context context = vertx.getOrCreateContext();
+		context.runOnContext(v -> new StreamSubscription<T>(context, subscriber).start(streams));
+	}
+	
+	/**
+	 * Subscription of one subscriber, only touched on its context
+	 */
+	private static class StreamSubscription<T> implements Subscription {
+		
+		private final Context context;
+		
+		private final Subscriber<? super T> subscriber;
+		
+		private ReadStream<T> stream;
+		
+		private boolean done;
+		
+		StreamSubscription(Context context, Subscriber<? super T> subscriber) {
+			this.context = context;
+			this.subscriber = subscriber;
+		}
+		
+		void start(Supplier<ReadStream<T>> streams) {
+			try {
+				stream = streams.get();
+			} catch (RuntimeException e) {
+				done = true;
+				subscriber.onSubscribe(this);
+				subscriber.onError(e);
+				return;
+			}
+			stream.pause();
+			stream.exceptionHandler(e -> {
+				if (!done) {
+					cancelStream();
+					subscriber.onError(e);
+				}
+			});
+			stream.endHandler(v -> {
+				if (!done) {
+					done = true;
+					subscriber.onComplete();
+				}
+			});
+			stream.handler(item -> {
+				if (!done) {
+					subscriber.onNext(item);
+				}
+			});
+			subscriber.onSubscribe(this);
+		}
+		
+		@Override
+		public void request(long n) {
+			context.runOnContext(v -> {
+				if (done) {
+					return;
+				}
+				if (n <= 0) {
+					cancelStream();
+					subscriber.onError(new IllegalArgumentException("Requested " + n + " items, must be positive"));
+					return;
+				}
+				stream.fetch(n);
+			});
+		}
+		
+		@Override
+		public void cancel() {
+			if (Vertx.currentContext() != context) {
+				context.runOnContext(v -> cancel());
+			} else if (!done) {
+				cancelStream();
+			}
+		}
+		
+		private void cancelStream() {
+			done = true;
+			stream.handler(null);
+		}
+	}
+}
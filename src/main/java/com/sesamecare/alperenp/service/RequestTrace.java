@@ -0,0 +1,305 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Lightweight trace of one HTTP request: a server span and child spans of its phases (body read, json parse,
+ * appointment decode, store operation, response encode)
+ * <p>
+ * Trace context follows W3C Trace Context, so it interoperates with OpenTelemetry/OpenTracing instrumented callers:
+ * an incoming "traceparent" header is continued (its span becomes parent of server span), otherwise a new trace is
+ * started. Every response carries a "Server-Timing" header with duration of each phase in milliseconds. With
+ * "trace_export" config "log", sampled traces are written as one json line per request to logger of this class
+ * (local exporter); "trace_sample_ratio" (default 1.0) samples requests without incoming trace context.
+ * <p>
+ * A trace belongs to one request and is only touched on its event loop, so it is not thread safe.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class RequestTrace {
+	
+	private static final String CONTEXT_KEY = "request.trace";
+	
+	private static final Pattern TRACEPARENT = Pattern.compile("00-[0-9a-f]{32}-[0-9a-f]{16}-[0-9a-f]{2}");
+	
+	private static final String INVALID_TRACE_ID = "00000000000000000000000000000000";
+	
+	private static final String INVALID_SPAN_ID = "0000000000000000";
+	
+	/**
+	 * Ids are created on first use, most requests are neither exported nor propagated
+	 */
+	private String traceId;
+	
+	/**
+	 * Span of caller, null if trace is started here
+	 */
+	@Getter
+	private final String parentSpanId;
+	
+	private String spanId;
+	
+	@Getter
+	private final boolean sampled;
+	
+	private final String name;
+	
+	private final long startTime = System.currentTimeMillis();
+	
+	private final long startNanos = System.nanoTime();
+	
+	private final List<Span> spans = new ArrayList<>();
+	
+	RequestTrace(String name, String traceparent, boolean sampled) {
+		this.name = name;
+		if (traceparent != null && TRACEPARENT.matcher(traceparent).matches()
+				&& !INVALID_TRACE_ID.equals(traceparent.substring(3, 35))
+				&& !INVALID_SPAN_ID.equals(traceparent.substring(36, 52))) {
+			this.traceId = traceparent.substring(3, 35);
+			this.parentSpanId = traceparent.substring(36, 52);
+			this.sampled = (Integer.parseInt(traceparent.substring(53, 55), 16) & 1) == 1;
+		} else {
+			this.parentSpanId = null;
+			this.sampled = sampled;
+		}
+	}
+	
+	/**
+	 * Handler starting a trace for every request, to be routed before any other handler
+	 * 
+	 * @param config
+	 * @return
+	 */
+	public static Handler<RoutingContext> handler(@NonNull JsonObject config) {
+		boolean export = "log".equals(config.getString("trace_export", "none"));
+		double sampleRatio = config.getDouble("trace_sample_ratio", 1.0);
+		return routingContext -> {
+			RequestTrace trace = new RequestTrace(
+					routingContext.request().method() + " " + routingContext.request().path(),
+					routingContext.request().getHeader("traceparent"),
+					ThreadLocalRandom.current().nextDouble() < sampleRatio);
+			routingContext.put(CONTEXT_KEY, trace);
+			routingContext.addHeadersEndHandler(v -> routingContext.response().putHeader("Server-Timing",
+					trace.serverTiming()));
+			if (export) {
+				routingContext.addBodyEndHandler(v -> trace.export(routingContext.response().getStatusCode()));
+			}
+			routingContext.next();
+		};
+	}
+	
+	/**
+	 * @param routingContext
+	 * @return trace of request, a new unsampled trace if request was not routed through {@link #handler(JsonObject)}
+	 */
+	public static RequestTrace of(@NonNull RoutingContext routingContext) {
+		RequestTrace trace = routingContext.get(CONTEXT_KEY);
+		if (trace == null) {
+			trace = new RequestTrace(routingContext.request().path(), null, false);
+			routingContext.put(CONTEXT_KEY, trace);
+		}
+		return trace;
+	}
+	
+	public String getTraceId() {
+		if (traceId == null) {
+			traceId = newSpanId() + newSpanId();
+		}
+		return traceId;
+	}
+	
+	public String getSpanId() {
+		if (spanId == null) {
+			spanId = newSpanId();
+		}
+		return spanId;
+	}
+	
+	/**
+	 * Starts a child span of server span
+	 * 
+	 * @param spanName
+	 * @return
+	 */
+	public Span startSpan(@NonNull String spanName) {
+		Span span = new Span(spanName, System.nanoTime());
+		spans.add(span);
+		return span;
+	}
+	
+	/**
+	 * Records a child span which started when request arrived and ends now, i.e. time spent before route handler
+	 * is called (reading body)
+	 * 
+	 * @param spanName
+	 * @return
+	 */
+	public Span sinceArrival(@NonNull String spanName) {
+		Span span = new Span(spanName, startNanos);
+		spans.add(span);
+		return span.end();
+	}
+	
+	/**
+	 * @return "Server-Timing" header value of ended spans and total time so far
+	 */
+	public String serverTiming() {
+		StringBuilder builder = new StringBuilder();
+		for (Span span : spans) {
+			if (span.endNanos != 0) {
+				appendMillis(builder.append(span.name).append(";dur="), span.endNanos - span.startNanos);
+				if (span.description != null) {
+					builder.append(";desc=\"").append(span.description).append('"');
+				}
+				builder.append(", ");
+			}
+		}
+		return appendMillis(builder.append("total;dur="), System.nanoTime() - startNanos).toString();
+	}
+	
+	/**
+	 * @param span
+	 * @return "traceparent" header value for a call made within given span
+	 */
+	public String traceparent(Span span) {
+		return "00-" + getTraceId() + "-" + span.getSpanId() + (sampled ? "-01" : "-00");
+	}
+	
+	/**
+	 * @param statusCode
+	 * @return trace in json, spans are relative to request start in microseconds
+	 */
+	public JsonObject toJson(int statusCode) {
+		JsonArray children = new JsonArray();
+		for (Span span : spans) {
+			children.add(new JsonObject().put("spanId", span.getSpanId()).put("name", span.name)
+					.put("description", span.description).put("startUs", (span.startNanos - startNanos) / 1000)
+					.put("durationUs", span.endNanos == 0 ? null : (span.endNanos - span.startNanos) / 1000));
+		}
+		return new JsonObject().put("traceId", getTraceId()).put("spanId", getSpanId())
+				.put("parentSpanId", parentSpanId).put("name", name).put("startTime", startTime)
+				.put("statusCode", statusCode).put("durationUs", (System.nanoTime() - startNanos) / 1000)
+				.put("spans", children);
+	}
+	
+	private void export(int statusCode) {
+		if (sampled) {
+			log.info("{}", toJson(statusCode).encode());
+		}
+	}
+	
+	/**
+	 * Appends given duration in milliseconds with microsecond precision, as {@code String.valueOf(micros / 1000.0)}
+	 * would print it but without creating a string
+	 * 
+	 * @param builder
+	 * @param nanos
+	 * @return builder
+	 */
+	private static StringBuilder appendMillis(StringBuilder builder, long nanos) {
+		long micros = nanos / 1000;
+		int fraction = (int) (micros % 1000);
+		builder.append(micros / 1000).append('.');
+		if (fraction == 0) {
+			return builder.append('0');
+		}
+		if (fraction < 100) {
+			builder.append(fraction < 10 ? "00" : "0");
+		}
+		while (fraction % 10 == 0) {
+			fraction /= 10;
+		}
+		return builder.append(fraction);
+	}
+	
+	private static String newSpanId() {
+		String hex = Long.toHexString(ThreadLocalRandom.current().nextLong());
+		return INVALID_SPAN_ID.substring(hex.length()) + hex;
+	}
+	
+	/**
+	 * Phase of a request
+	 * 
+	 * @author alperenp
+	 *
+	 */
+	public static class Span {
+		
+		private String spanId;
+		
+		private final String name;
+		
+		private final long startNanos;
+		
+		private long endNanos;
+		
+		private String description;
+		
+		private Span(String name, long startNanos) {
+			this.name = name;
+			this.startNanos = startNanos;
+		}
+		
+		public String getSpanId() {
+			if (spanId == null) {
+				spanId = newSpanId();
+			}
+			return spanId;
+		}
+		
+		/**
+		 * @param description shown as "desc" of span in "Server-Timing", must not contain double quotes
+		 * @return this span
+		 */
+		public Span describe(String description) {
+			this.description = description;
+			return this;
+		}
+		
+		/**
+		 * Ends span, later calls are ignored
+		 * 
+		 * @return this span
+		 */
+		public Span end() {
+			if (endNanos == 0) {
+				endNanos = System.nanoTime();
+			}
+			return this;
+		}
+	}
+}
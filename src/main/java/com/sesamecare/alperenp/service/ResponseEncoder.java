@@ -0,0 +1,96 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.List;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import lombok.NonNull;
+
+/**
+ * Size aware serialization of appointment lists, as json array or as bson documents (see {@link BsonCodec})
+ * <p>
+ * Lists longer than "offload_threshold" (default 1000) are serialized on a shared worker pool
+ * ("encoder_pool_size", default 4) so one large response does not stall every other request of the event loop;
+ * shorter ones are serialized in place, where a worker round trip would cost more than it saves.
+ * 
+ * @author alperenp
+ *
+ */
+public class ResponseEncoder {
+	
+	private static final String POOL_NAME = "appointment-encoder";
+	
+	private final int threshold;
+	
+	private final WorkerExecutor executor;
+	
+	public ResponseEncoder(@NonNull Vertx vertx, @NonNull JsonObject config) {
+		this.threshold = config.getInteger("offload_threshold", 1000);
+		this.executor = vertx.createSharedWorkerExecutor(POOL_NAME, config.getInteger("encoder_pool_size", 4));
+	}
+	
+	/**
+	 * @param size number of appointments
+	 * @return true if a list of given size is serialized on worker pool
+	 */
+	public boolean offloads(int size) {
+		return size > threshold;
+	}
+	
+	/**
+	 * Removes mongo "_id" of appointments and serializes them. Appointments must not be used by caller until returned
+	 * future completes.
+	 * 
+	 * @param appointments null entries are encoded as json null, or as empty bson document
+	 * @param bson true for bson documents, false for json array
+	 * @return serialized appointments, completed on caller's context
+	 */
+	public Future<Buffer> encode(@NonNull List<JsonObject> appointments, boolean bson) {
+		if (!offloads(appointments.size())) {
+			return Future.succeededFuture(encodeNow(appointments, bson));
+		}
+		Future<Buffer> future = Future.future();
+		executor.<Buffer>executeBlocking(blocking -> blocking.complete(encodeNow(appointments, bson)), false, future);
+		return future;
+	}
+	
+	/**
+	 * Releases this instance's reference to shared worker pool
+	 */
+	public void close() {
+		executor.close();
+	}
+	
+	private static Buffer encodeNow(List<JsonObject> appointments, boolean bson) {
+		for (JsonObject appointment : appointments) {
+			if (appointment != null) {
+				appointment.remove("_id");
+			}
+		}
+		return bson ? BsonCodec.encode(appointments) : Buffer.buffer(appointments.toString());
+	}
+}
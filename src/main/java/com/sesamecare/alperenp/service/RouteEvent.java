@@ -0,0 +1,65 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of one REST request, from routing until its response body is written
+ * 
+ * @author alperenp
+ *
+ */
+@Name("com.sesamecare.alperenp.Route")
+@Label("REST Route")
+@Category("Appointment Service")
+@Description("HTTP request served by AppointmentService")
+class RouteEvent extends jdk.jfr.Event {
+	
+	private static final EventType TYPE = EventType.getEventType(RouteEvent.class);
+	
+	@Label("Method")
+	String method;
+	
+	@Label("Route")
+	String route;
+	
+	@Label("Status Code")
+	int statusCode;
+	
+	@Label("Response Size")
+	@DataAmount
+	long responseSize;
+	
+	/**
+	 * @return true if a recording is collecting this event, checked before creating one so requests do not allocate
+	 *         events while nothing is recorded
+	 */
+	static boolean isRecorded() {
+		return TYPE.isEnabled();
+	}
+}
@@ -0,0 +1,241 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Liveness/readiness of {@link AppointmentService}
+ * <p>
+ * Service is live as soon as its HTTP port is bound. It becomes ready once
+ * <ol>
+ * <li>mongo pool is pre-filled to "minPoolSize" connections (by running that many concurrent pings),</li>
+ * <li>a ping round trip has succeeded,</li>
+ * <li>optional warm-up pass ("warmup_iterations" > 0) has called id and range read routes, so their query plans are
+ * cached and request path is JIT compiled before real traffic arrives (allAppointments is skipped, it reads the whole
+ * collection).</li>
+ * </ol>
+ * After that mongo is pinged every "health_ping_interval_ms" and readiness follows the last ping. With embedded
+ * storage there is no mongo to check.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class ServiceHealth {
+	
+	private final Vertx vertx;
+	
+	private final JsonObject config;
+	
+	private final boolean mongo;
+	
+	/**
+	 * Config of every mongo deployment (one per shard)
+	 */
+	private final List<JsonObject> mongoConfigs;
+	
+	private final MongoPoolMetrics poolMetrics;
+	
+	private boolean poolWarmed;
+	
+	private boolean warmedUp;
+	
+	private boolean lastPingSucceeded;
+	
+	private long lastPingLatencyMs = -1;
+	
+	private long lastPingTime;
+	
+	private String lastPingError;
+	
+	private long warmupDurationMs = -1;
+	
+	private long timerID = -1;
+	
+	/**
+	 * @param vertx
+	 * @param config
+	 * @param mongo false if service runs on embedded storage
+	 */
+	public ServiceHealth(@NonNull Vertx vertx, @NonNull JsonObject config, boolean mongo) {
+		this.vertx = vertx;
+		this.config = config;
+		this.mongo = mongo;
+		this.mongoConfigs = ShardedAppointmentStore.mongoConfigs(config);
+		this.poolMetrics = MongoPoolMetrics.get(vertx, mongoConfigs.get(0));
+	}
+	
+	/**
+	 * Pre-fills mongo pool, pings mongo and runs warm-up pass against service listening on given port
+	 * 
+	 * @param port
+	 * @return completed when service is ready
+	 */
+	public Future<Void> warmUp(int port) {
+		long startTime = System.currentTimeMillis();
+		Future<Void> pool = mongo ? prefillPool() : Future.succeededFuture();
+		return pool.compose(v -> {
+			poolWarmed = true;
+			return mongo ? ping() : Future.<Void>succeededFuture();
+		}).compose(v -> warmRoutes(port)).map(v -> {
+			warmedUp = true;
+			warmupDurationMs = System.currentTimeMillis() - startTime;
+			log.info("Service warmed up in {} ms", warmupDurationMs);
+			if (mongo) {
+				timerID = vertx.setPeriodic(config.getLong("health_ping_interval_ms", 5000L), id -> ping());
+			}
+			return v;
+		});
+	}
+	
+	/**
+	 * Stops periodic ping
+	 */
+	public void close() {
+		if (timerID >= 0) {
+			vertx.cancelTimer(timerID);
+		}
+	}
+	
+	/**
+	 * @return true if service can take traffic
+	 */
+	public boolean isReady() {
+		return warmedUp && (!mongo || lastPingSucceeded);
+	}
+	
+	/**
+	 * @return readiness details including pool saturation and ping latency
+	 */
+	public JsonObject readiness() {
+		JsonObject checks = new JsonObject().put("warmup",
+				new JsonObject().put("done", warmedUp).put("durationMs", warmupDurationMs));
+		if (mongo) {
+			checks.put("mongo", new JsonObject().put("poolWarmed", poolWarmed).put("ping", lastPingSucceeded)
+					.put("pingLatencyMs", lastPingLatencyMs).put("lastPingTime", lastPingTime)
+					.put("error", lastPingError)).put("pool", poolMetrics.toJson());
+			if (mongoConfigs.size() > 1) {
+				JsonObject pools = new JsonObject();
+				mongoConfigs.forEach(mongoConfig -> pools.put(MongoPoolMetrics.poolName(mongoConfig),
+						MongoPoolMetrics.get(vertx, mongoConfig).toJson()));
+				checks.put("pools", pools);
+			}
+		}
+		return new JsonObject().put("status", isReady() ? "UP" : "DOWN").put("checks", checks);
+	}
+	
+	/**
+	 * Runs "minPoolSize" pings concurrently on every mongo deployment, forcing driver to open that many connections
+	 */
+	private Future<Void> prefillPool() {
+		int minPoolSize = Math.max(1, config.getInteger("minPoolSize", 1));
+		List<Future> pings = new ArrayList<>(minPoolSize * mongoConfigs.size());
+		for (JsonObject mongoConfig : mongoConfigs) {
+			MongoClient mongoClient = MongoClient.createShared(vertx, mongoConfig,
+					MongoPoolMetrics.poolName(mongoConfig));
+			MongoPoolMetrics metrics = MongoPoolMetrics.get(vertx, mongoConfig);
+			for (int i = 0; i < minPoolSize; i++) {
+				Future<JsonObject> ping = Future.future();
+				mongoClient.runCommand("ping", new JsonObject().put("ping", 1), metrics.track(ping));
+				pings.add(ping);
+			}
+		}
+		return CompositeFuture.all(pings).map(v -> {
+			log.info("Mongo pool pre-filled with {} connections per deployment", minPoolSize);
+			return null;
+		});
+	}
+	
+	/**
+	 * Pings every mongo deployment and records slowest round trip latency
+	 */
+	private Future<Void> ping() {
+		long startTime = System.nanoTime();
+		List<Future> pings = new ArrayList<>(mongoConfigs.size());
+		for (JsonObject mongoConfig : mongoConfigs) {
+			Future<JsonObject> ping = Future.future();
+			MongoClient mongoClient = MongoClient.createShared(vertx, mongoConfig,
+					MongoPoolMetrics.poolName(mongoConfig));
+			mongoClient.runCommand("ping", new JsonObject().put("ping", 1),
+					MongoPoolMetrics.get(vertx, mongoConfig).track(ping));
+			pings.add(ping);
+		}
+		Future<Void> future = Future.future();
+		CompositeFuture.all(pings).setHandler(result -> {
+			lastPingTime = System.currentTimeMillis();
+			lastPingSucceeded = result.succeeded();
+			if (result.succeeded()) {
+				lastPingLatencyMs = (System.nanoTime() - startTime) / 1000000;
+				lastPingError = null;
+				future.complete();
+			} else {
+				lastPingError = result.cause().toString();
+				log.warn("Mongo ping failed. Details: {}", lastPingError);
+				future.fail(result.cause());
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Calls every read route "warmup_iterations" times
+	 */
+	private Future<Void> warmRoutes(int port) {
+		int iterations = config.getInteger("warmup_iterations", 0);
+		if (iterations <= 0) {
+			return Future.succeededFuture();
+		}
+		WebClient client = WebClient.create(vertx);
+		Future<Void> future = Future.succeededFuture();
+		for (int i = 0; i < iterations; i++) {
+			future = future.compose(v -> warmRoutesOnce(client, port));
+		}
+		return future.map(v -> {
+			client.close();
+			return v;
+		});
+	}
+	
+	private Future<Void> warmRoutesOnce(WebClient client, int port) {
+		long now = System.currentTimeMillis();
+		Future<HttpResponse<Buffer>> find = Future.future();
+		client.get(port, "localhost", "/rest/findAppointment")
+				.sendJsonObject(new JsonObject().put("id", "warmup-" + now), find);
+		Future<HttpResponse<Buffer>> range = Future.future();
+		client.get(port, "localhost", "/rest/findAppointmentsInRange")
+				.sendJsonObject(new JsonObject().put("start", now).put("end", now + 3600000), range);
+		return CompositeFuture.all(find, range).mapEmpty();
+	}
+}
@@ -0,0 +1,594 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.core.streams.ReadStream;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link AppointmentStore} spreading appointments over several mongo deployments (shards)
+ * <p>
+ * Every appointment lives on the shard owning its shard key on a {@link ConsistentHashRing}. Shard key is the
+ * appointment id, or the part of id before "shard_key_delimiter" if configured (e.g. "drsmith-42" with "-" keeps every
+ * appointment of "drsmith" on one shard). Doctor name cannot be the key, since delete/find/book only know the id.
+ * Id operations go to a single shard, range and all queries are sent to every shard and merged; range results are
+ * merged by price so they stay sorted.
+ * <p>
+ * Config: "shards" array of {"name", "connection_string", "db_name", "mongo_collection", ...} entries overriding the
+ * top level config, "shard_virtual_nodes" (default 160). Shard names place shards on the ring, so they must not change.
+ * After adding shards, {@link #rebalance()} moves appointments to their new owners. While it runs, stores of every
+ * verticle of the {@link Vertx} instance look up missing ids on every shard; other processes do not know about it, so
+ * their lookups of not yet moved appointments miss until it completes.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class ShardedAppointmentStore implements AppointmentStore {
+	
+	private final List<String> names;
+	
+	private final List<AppointmentStore> shards;
+	
+	private final ConsistentHashRing ring;
+	
+	private final String keyDelimiter;
+	
+	/**
+	 * Running while a store of same shards in this {@link Vertx} instance is rebalancing, id lookups missing on owner
+	 * shard are retried on every shard
+	 */
+	private final Rebalancing rebalancing;
+	
+	/**
+	 * Creates a mongo controller for every configured shard
+	 * 
+	 * @param vertx
+	 * @param config
+	 */
+	public ShardedAppointmentStore(@NonNull Vertx vertx, @NonNull JsonObject config) {
+		this(shardNames(config), controllers(vertx, config), new ConsistentHashRing(shardNames(config),
+				config.getInteger("shard_virtual_nodes", 160)), config.getString("shard_key_delimiter"),
+				Rebalancing.get(vertx, shardNames(config)));
+		log.info("Appointments are sharded over {}", names);
+	}
+	
+	/**
+	 * @param names stable shard names
+	 * @param shards stores of shards, in same order as names
+	 * @param virtualNodes points of each shard on hash ring
+	 * @param keyDelimiter null to use whole id as shard key
+	 */
+	ShardedAppointmentStore(List<String> names, List<AppointmentStore> shards, int virtualNodes,
+			String keyDelimiter) {
+		this(names, shards, new ConsistentHashRing(names, virtualNodes), keyDelimiter, new Rebalancing());
+		log.info("Appointments are sharded over {}", names);
+	}
+	
+	private ShardedAppointmentStore(List<String> names, List<AppointmentStore> shards, ConsistentHashRing ring,
+			String keyDelimiter, Rebalancing rebalancing) {
+		this.names = names;
+		this.shards = shards;
+		this.ring = ring;
+		this.keyDelimiter = keyDelimiter;
+		this.rebalancing = rebalancing;
+	}
+	
+	/**
+	 * Same shards through connection pools of given config (see {@link WorkloadClass#mongoConfig}), sharing ring and
+	 * rebalancing state with this store
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @return
+	 */
+	public ShardedAppointmentStore withConfig(@NonNull Vertx vertx, @NonNull JsonObject config) {
+		return new ShardedAppointmentStore(names, controllers(vertx, config), ring, keyDelimiter, rebalancing);
+	}
+	
+	/**
+	 * Configs of mongo deployments used with given config: one per shard (each with its own pool, prefixed by
+	 * "mongo_pool_name" if it is set), or given config if it is not sharded
+	 * 
+	 * @param config
+	 * @return
+	 */
+	public static List<JsonObject> mongoConfigs(JsonObject config) {
+		JsonArray shards = config.getJsonArray("shards");
+		if (shards == null || shards.isEmpty()) {
+			return Collections.singletonList(config);
+		}
+		List<String> names = shardNames(config);
+		String poolPrefix = config.containsKey("mongo_pool_name") ? config.getString("mongo_pool_name") + "-" : "";
+		List<JsonObject> configs = new ArrayList<>(shards.size());
+		for (int i = 0; i < shards.size(); i++) {
+			JsonObject shardConfig = config.copy().mergeIn(shards.getJsonObject(i));
+			shardConfig.remove("shards");
+			configs.add(shardConfig.put("mongo_pool_name", poolPrefix + "shard-" + names.get(i)));
+		}
+		return configs;
+	}
+	
+	/**
+	 * @param config
+	 * @return true if "shards" are configured
+	 */
+	public static boolean isSharded(JsonObject config) {
+		JsonArray shards = config.getJsonArray("shards");
+		return shards != null && !shards.isEmpty();
+	}
+	
+	private static List<String> shardNames(JsonObject config) {
+		JsonArray shards = config.getJsonArray("shards");
+		List<String> names = new ArrayList<>(shards.size());
+		for (int i = 0; i < shards.size(); i++) {
+			names.add(shards.getJsonObject(i).getString("name", "shard" + i));
+		}
+		return names;
+	}
+	
+	private static List<AppointmentStore> controllers(Vertx vertx, JsonObject config) {
+		List<AppointmentStore> controllers = new ArrayList<>();
+		mongoConfigs(config).forEach(shardConfig -> controllers.add(BucketedAppointmentStore.isEnabled(shardConfig)
+				? new BucketedAppointmentStore(vertx, shardConfig)
+				: new AppointmentServiceController(vertx, shardConfig)));
+		return controllers;
+	}
+	
+	/* ------ OPERATIONS ------ */
+	
+	@Override
+	public Future<JsonObject> deleteOne(String appointmentID) {
+		return shardOf(appointmentID).deleteOne(appointmentID);
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointment(Appointment appointment) {
+		return shardOf(appointment.getId()).insertAppointment(appointment);
+	}
+	
+	@Override
+	public Future<JsonObject> replaceAppointment(Appointment appointment) {
+		return shardOf(appointment.getId()).replaceAppointment(appointment);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointment(String appointmentID) {
+		Future<List<JsonObject>> found = shardOf(appointmentID).findAppointment(appointmentID);
+		if (!rebalancing.isRunning()) {
+			return found;
+		}
+		// appointment may not have been moved to its owner yet
+		return found.compose(result -> result.isEmpty() ? gather(shard -> shard.findAppointment(appointmentID))
+				.map(ShardedAppointmentStore::concat) : Future.succeededFuture(result));
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointments(List<String> appointmentIDs) {
+		if (rebalancing.isRunning()) {
+			// appointments may not have been moved to their owners yet
+			return gather(shard -> shard.findAppointments(appointmentIDs))
+					.map(results -> AppointmentStore.inRequestOrder(appointmentIDs, concat(results)));
+		}
+		Map<Integer, List<String>> idsByShard = new TreeMap<>();
+		for (String appointmentID : appointmentIDs) {
+			idsByShard.computeIfAbsent(shardIndexOf(appointmentID), shard -> new ArrayList<>()).add(appointmentID);
+		}
+		List<Future> results = new ArrayList<>(idsByShard.size());
+		idsByShard.forEach((shard, ids) -> results.add(shards.get(shard).findAppointments(ids)));
+		return CompositeFuture.all(results)
+				.map(found -> AppointmentStore.inRequestOrder(appointmentIDs, concat(found.list())));
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointmentsWithRangeAndSort(long start, long end) {
+		return gather(shard -> shard.findAppointmentsWithRangeAndSort(start, end))
+				.map(ShardedAppointmentStore::mergeByPrice);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> getAllAppointments() {
+		return gather(AppointmentStore::getAllAppointments).map(ShardedAppointmentStore::concat);
+	}
+	
+	@Override
+	public Future<JsonObject> deleteAllAppointments() {
+		return gather(AppointmentStore::deleteAllAppointments).map(results -> {
+			boolean result = results.stream().allMatch(json -> json.getBoolean("result", false));
+			return new JsonObject().put("result", result);
+		});
+	}
+	
+	@Override
+	public Future<JsonObject> bookAppointment(String appointmentID, Long version) {
+		return shardOf(appointmentID).bookAppointment(appointmentID, version);
+	}
+	
+	@Override
+	public Future<JsonObject> cancelAppointment(String appointmentID, Long version) {
+		return shardOf(appointmentID).cancelAppointment(appointmentID, version);
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointments(List<Appointment> appointments) {
+		List<List<Appointment>> batches = new ArrayList<>(shards.size());
+		shards.forEach(shard -> batches.add(new ArrayList<>()));
+		appointments.forEach(appointment -> batches.get(shardIndexOf(appointment.getId())).add(appointment));
+		List<Future> writes = new ArrayList<>(shards.size());
+		for (int i = 0; i < shards.size(); i++) {
+			writes.add(shards.get(i).insertAppointments(batches.get(i)));
+		}
+		return CompositeFuture.join(writes).map(v -> {
+			boolean result = true;
+			long inserted = 0;
+			for (Future write : writes) {
+				JsonObject json = (JsonObject) write.result();
+				result &= json.getBoolean("result", false);
+				inserted += json.getLong("inserted", 0L);
+			}
+			return new JsonObject().put("result", result).put("inserted", inserted);
+		});
+	}
+	
+	@Override
+	public ReadStream<JsonObject> exportAppointments(Long start, Long end) {
+		List<Supplier<ReadStream<JsonObject>>> streams = new ArrayList<>(shards.size());
+		shards.forEach(shard -> streams.add(() -> shard.exportAppointments(start, end)));
+		return new ConcatReadStream<>(streams.iterator());
+	}
+	
+	@Override
+	public Future<JsonObject> archiveAppointments(long before, int limit) {
+		return gather(shard -> shard.archiveAppointments(before, limit)).map(results -> {
+			boolean result = results.stream().allMatch(json -> json.getBoolean("result", false));
+			long archived = results.stream().mapToLong(json -> json.getLong("archived", 0L)).sum();
+			JsonObject json = new JsonObject().put("result", result).put("archived", archived);
+			if (results.stream().allMatch(shardResult -> shardResult.getJsonArray("ids") != null)) {
+				JsonArray ids = new JsonArray();
+				results.forEach(shardResult -> ids.addAll(shardResult.getJsonArray("ids")));
+				json.put("ids", ids);
+			}
+			return json;
+		});
+	}
+	
+	/**
+	 * @return archives of shards, sharded the same way
+	 */
+	@Override
+	public AppointmentStore archive() {
+		List<AppointmentStore> archives = new ArrayList<>(shards.size());
+		for (AppointmentStore shard : shards) {
+			AppointmentStore archive = shard.archive();
+			if (archive == null) {
+				return null;
+			}
+			archives.add(archive);
+		}
+		return new ShardedAppointmentStore(names, archives, ring, keyDelimiter, new Rebalancing());
+	}
+	
+	/* ------ REBALANCING ------ */
+	
+	/**
+	 * Moves every appointment which is not on the shard owning its key
+	 * <p>
+	 * Shards are scanned one by one, an appointment is first written to its owner (replaced if it already exists
+	 * there, so an interrupted rebalance can be run again) and then deleted from the shard it was found on. A shard is
+	 * scanned again until a scan moves nothing. Writes to an appointment while it is being moved may be lost, so it
+	 * should be run when write traffic is low.
+	 * 
+	 * @return {"result": true, "scanned": n, "moved": m}
+	 */
+	public Future<JsonObject> rebalance() {
+		rebalancing.running.incrementAndGet();
+		long startTime = System.currentTimeMillis();
+		long[] counts = new long[2];
+		Future<Void> future = Future.succeededFuture();
+		for (int i = 0; i < shards.size(); i++) {
+			int shard = i;
+			future = future.compose(v -> rebalanceShard(shard, counts));
+		}
+		Future<JsonObject> result = Future.future();
+		future.setHandler(done -> {
+			rebalancing.running.decrementAndGet();
+			if (done.succeeded()) {
+				log.info("Rebalance completed in {} ms: {} appointments scanned, {} moved",
+						System.currentTimeMillis() - startTime, counts[0], counts[1]);
+				result.complete(new JsonObject().put("result", true).put("scanned", counts[0]).put("moved",
+						counts[1]));
+			} else {
+				result.fail(done.cause());
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Scans given shard until a scan moves nothing
+	 * 
+	 * @param shard
+	 * @param counts scanned and moved counters
+	 */
+	private Future<Void> rebalanceShard(int shard, long[] counts) {
+		long movedBefore = counts[1];
+		return scanShard(shard, counts).compose(v -> counts[1] == movedBefore ? Future.succeededFuture()
+				: rebalanceShard(shard, counts));
+	}
+	
+	/**
+	 * Scans given shard once, moving appointments one at a time
+	 */
+	private Future<Void> scanShard(int shard, long[] counts) {
+		Future<Void> future = Future.future();
+		ReadStream<JsonObject> stream = shards.get(shard).exportAppointments(null, null);
+		stream.exceptionHandler(future::tryFail);
+		stream.endHandler(v -> future.tryComplete());
+		stream.handler(json -> {
+			counts[0]++;
+			json.remove("_id");
+			Appointment appointment;
+			try {
+				appointment = json.mapTo(Appointment.class);
+			} catch (IllegalArgumentException e) {
+				log.warn("Json {} on shard {} is not Appointment object, not moved", json, names.get(shard));
+				return;
+			}
+			int owner = shardIndexOf(appointment.getId());
+			if (owner == shard) {
+				return;
+			}
+			stream.pause();
+			move(appointment, shard, owner).setHandler(moved -> {
+				if (moved.failed()) {
+					log.error("Appointment {} cannot be moved from {} to {}. Details: {}", appointment.getId(),
+							names.get(shard), names.get(owner), moved.cause().toString());
+					future.tryFail(moved.cause());
+					return;
+				}
+				counts[1]++;
+				stream.resume();
+			});
+		});
+		return future;
+	}
+	
+	private Future<Void> move(Appointment appointment, int from, int to) {
+		AppointmentStore owner = shards.get(to);
+		return owner.replaceAppointment(appointment)
+				.compose(replaced -> replaced.getBoolean("result", false) ? Future.succeededFuture(replaced)
+						: owner.insertAppointment(appointment))
+				.compose(written -> written.getBoolean("result", false)
+						? shards.get(from).deleteOne(appointment.getId())
+						: Future.failedFuture("Write to owner shard failed"))
+				.mapEmpty();
+	}
+	
+	/* ------ INTERNALS ------ */
+	
+	private AppointmentStore shardOf(String appointmentID) {
+		return shards.get(shardIndexOf(appointmentID));
+	}
+	
+	/**
+	 * @param appointmentID
+	 * @return index of shard owning given appointment
+	 */
+	int shardIndexOf(String appointmentID) {
+		String key = appointmentID == null ? "" : appointmentID;
+		if (keyDelimiter != null) {
+			int end = key.indexOf(keyDelimiter);
+			key = end < 0 ? key : key.substring(0, end);
+		}
+		return ring.nodeOf(key);
+	}
+	
+	/**
+	 * Runs given operation on every shard
+	 * 
+	 * @param operation
+	 * @return results in shard order, fails if any shard fails
+	 */
+	private <T> Future<List<T>> gather(Function<AppointmentStore, Future<T>> operation) {
+		List<Future> results = new ArrayList<>(shards.size());
+		shards.forEach(shard -> results.add(operation.apply(shard)));
+		return CompositeFuture.all(results).map(CompositeFuture::list);
+	}
+	
+	private static List<JsonObject> concat(List<List<JsonObject>> results) {
+		List<JsonObject> all = new ArrayList<>();
+		results.forEach(all::addAll);
+		return all;
+	}
+	
+	/**
+	 * K-way merge of lists sorted by price, ties keep shard order
+	 * 
+	 * @param results
+	 * @return
+	 */
+	static List<JsonObject> mergeByPrice(List<List<JsonObject>> results) {
+		int total = 0;
+		// heads of lists: {list, position}
+		PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) -> {
+			int byPrice = Double.compare(price(results, a), price(results, b));
+			return byPrice != 0 ? byPrice : Integer.compare(a[0], b[0]);
+		});
+		for (int i = 0; i < results.size(); i++) {
+			total += results.get(i).size();
+			if (!results.get(i).isEmpty()) {
+				heads.add(new int[] { i, 0 });
+			}
+		}
+		List<JsonObject> merged = new ArrayList<>(total);
+		while (!heads.isEmpty()) {
+			int[] head = heads.poll();
+			List<JsonObject> list = results.get(head[0]);
+			merged.add(list.get(head[1]));
+			if (++head[1] < list.size()) {
+				heads.add(head);
+			}
+		}
+		return merged;
+	}
+	
+	private static double price(List<List<JsonObject>> results, int[] head) {
+		Double price = results.get(head[0]).get(head[1]).getDouble("price");
+		return price == null ? 0 : price;
+	}
+	
+	/**
+	 * Streams of given sources one after another, next source is opened when previous one ends
+	 */
+	private static class ConcatReadStream<T> implements ReadStream<T> {
+		
+		private final Iterator<Supplier<ReadStream<T>>> sources;
+		
+		private ReadStream<T> current;
+		
+		private boolean paused;
+		
+		private Handler<T> handler;
+		
+		private Handler<Void> endHandler;
+		
+		private Handler<Throwable> exceptionHandler;
+		
+		ConcatReadStream(Iterator<Supplier<ReadStream<T>>> sources) {
+			this.sources = sources;
+		}
+		
+		@Override
+		public ReadStream<T> exceptionHandler(Handler<Throwable> handler) {
+			this.exceptionHandler = handler;
+			return this;
+		}
+		
+		@Override
+		public ReadStream<T> handler(Handler<T> handler) {
+			this.handler = handler;
+			if (handler != null && current == null) {
+				next();
+			}
+			return this;
+		}
+		
+		@Override
+		public ReadStream<T> pause() {
+			paused = true;
+			if (current != null) {
+				current.pause();
+			}
+			return this;
+		}
+		
+		@Override
+		public ReadStream<T> resume() {
+			paused = false;
+			if (current != null) {
+				current.resume();
+			}
+			return this;
+		}
+		
+		@Override
+		public ReadStream<T> fetch(long amount) {
+			if (current != null) {
+				current.fetch(amount);
+			}
+			return this;
+		}
+		
+		@Override
+		public ReadStream<T> endHandler(Handler<Void> endHandler) {
+			this.endHandler = endHandler;
+			return this;
+		}
+		
+		private void next() {
+			if (!sources.hasNext()) {
+				if (endHandler != null) {
+					endHandler.handle(null);
+				}
+				return;
+			}
+			current = sources.next().get();
+			current.exceptionHandler(e -> {
+				if (exceptionHandler != null) {
+					exceptionHandler.handle(e);
+				}
+			});
+			current.endHandler(v -> next());
+			if (paused) {
+				current.pause();
+			}
+			current.handler(item -> handler.handle(item));
+		}
+	}
+	
+	/**
+	 * Number of rebalances running over a set of shards, shared by every verticle of a {@link Vertx} instance through
+	 * local shared data
+	 */
+	static class Rebalancing implements Shareable {
+		
+		private static final String MAP_NAME = "ShardedAppointmentStore.rebalancing";
+		
+		private final AtomicInteger running = new AtomicInteger();
+		
+		/**
+		 * @param vertx
+		 * @param names shard names
+		 * @return rebalancing state of given shards in given vertx instance
+		 */
+		static Rebalancing get(Vertx vertx, List<String> names) {
+			return vertx.sharedData().<String, Rebalancing>getLocalMap(MAP_NAME).computeIfAbsent(names.toString(),
+					key -> new Rebalancing());
+		}
+		
+		boolean isRunning() {
+			return running.get() > 0;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.MongoClient;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Records mongo operations slower than "slow_op_threshold_ms" (default 100, negative disables), keeping last
+ * "slow_op_log_size" (default 100) of them
+ * <p>
+ * Every entry has query shape (query with literals replaced by "?"), find options, result size and duration. First
+ * slow occurrence of a shape triggers an asynchronous "explain" (queryPlanner verbosity, query is not executed) and
+ * its winning plan is reported with every entry of that shape, so missing indexes can be found without profiler
+ * access. Shared by every verticle of a {@link Vertx} instance through local shared data.
+ * <p>
+ * While a flight recording collects {@link MongoOperationEvent}, every tracked operation is also emitted as one.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class SlowOperationLog implements Shareable {
+	
+	private static final String MAP_NAME = "mongo.slow.operations";
+	
+	/**
+	 * Explained shapes are not forgotten, so number of them is bounded against unbounded shape variety
+	 */
+	private static final int MAX_SHAPES = 1000;
+	
+	private final long thresholdMs;
+	
+	private final int size;
+	
+	private final Deque<JsonObject> entries;
+	
+	/**
+	 * Shape key -> winning plan, empty object while explain is running or if it failed
+	 */
+	private final Map<String, JsonObject> plans = new ConcurrentHashMap<>();
+	
+	SlowOperationLog(long thresholdMs, int size) {
+		this.thresholdMs = thresholdMs;
+		this.size = size;
+		this.entries = new ArrayDeque<>(size);
+	}
+	
+	/**
+	 * Slow operation log of given vertx instance
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @return
+	 */
+	public static SlowOperationLog get(Vertx vertx, JsonObject config) {
+		return vertx.sharedData().<String, SlowOperationLog>getLocalMap(MAP_NAME).computeIfAbsent(MAP_NAME,
+				name -> new SlowOperationLog(config.getLong("slow_op_threshold_ms", 100L),
+						Math.max(1, config.getInteger("slow_op_log_size", 100))));
+	}
+	
+	/**
+	 * Wraps handler of a mongo operation, recording operation when handler is called if it was slow, and emitting it as
+	 * flight recorder event if it is being recorded
+	 * 
+	 * @param mongoClient client used to explain query, null if operation cannot be explained
+	 * @param operation operation name (i.e. "find", "findOneAndDelete")
+	 * @param collection
+	 * @param query
+	 * @param options null if operation has no find options
+	 * @param resultSize size of successful result, result is never null
+	 * @param handler
+	 * @return
+	 */
+	public <T> Handler<AsyncResult<T>> track(MongoClient mongoClient, String operation, String collection,
+			JsonObject query, FindOptions options, ToLongFunction<T> resultSize, Handler<AsyncResult<T>> handler) {
+		MongoOperationEvent event = MongoOperationEvent.isRecorded() ? new MongoOperationEvent() : null;
+		if (thresholdMs < 0 && event == null) {
+			return handler;
+		}
+		if (event != null) {
+			event.begin();
+		}
+		long startTime = System.nanoTime();
+		return asyncResult -> {
+			long durationMs = (System.nanoTime() - startTime) / 1000000;
+			boolean slow = thresholdMs >= 0 && durationMs >= thresholdMs;
+			if (slow || event != null) {
+				long size = asyncResult.failed() ? -1
+						: asyncResult.result() == null ? 0 : resultSize.applyAsLong(asyncResult.result());
+				if (slow) {
+					record(mongoClient, operation, collection, query, options, size, durationMs);
+				}
+				if (event != null) {
+					event.end();
+					if (event.shouldCommit()) {
+						event.operation = operation;
+						event.collection = collection;
+						event.queryShape = shape(query).encode();
+						event.resultSize = size;
+						event.commit();
+					}
+				}
+			}
+			handler.handle(asyncResult);
+		};
+	}
+	
+	/**
+	 * Records a slow operation, explaining its shape if it is seen for the first time
+	 * 
+	 * @param mongoClient null to skip explain
+	 * @param operation
+	 * @param collection
+	 * @param query
+	 * @param options
+	 * @param resultSize -1 if operation failed
+	 * @param durationMs
+	 */
+	void record(MongoClient mongoClient, String operation, String collection, JsonObject query, FindOptions options,
+			long resultSize, long durationMs) {
+		JsonObject shape = shape(query);
+		JsonObject optionsJson = options == null ? null : options.toJson();
+		String key = operation + " " + collection + " " + shape.encode()
+				+ (options == null ? "" : " " + shape(options.getSort()).encode());
+		JsonObject entry = new JsonObject().put("time", System.currentTimeMillis()).put("operation", operation)
+				.put("collection", collection).put("shape", shape).put("options", optionsJson)
+				.put("resultSize", resultSize).put("durationMs", durationMs).put("key", key);
+		log.warn("Slow mongo {} on {} took {} ms, shape {}", operation, collection, durationMs, shape.encode());
+		synchronized (entries) {
+			if (entries.size() == size) {
+				entries.removeFirst();
+			}
+			entries.addLast(entry);
+		}
+		if (mongoClient != null && plans.size() < MAX_SHAPES && plans.putIfAbsent(key, new JsonObject()) == null) {
+			explain(mongoClient, key, explainCommand(operation, collection, query, options));
+		}
+	}
+	
+	/**
+	 * @return threshold and entries (newest first) with winning plans of their shapes
+	 */
+	public JsonObject toJson() {
+		JsonArray result = new JsonArray();
+		synchronized (entries) {
+			Iterator<JsonObject> iterator = entries.descendingIterator();
+			while (iterator.hasNext()) {
+				JsonObject entry = iterator.next().copy();
+				result.add(entry.put("winningPlan", plans.get(entry.remove("key"))));
+			}
+		}
+		return new JsonObject().put("thresholdMs", thresholdMs).put("explainedShapes", plans.size()).put("entries",
+				result);
+	}
+	
+	/**
+	 * @param query
+	 * @return query with every literal replaced by "?", arrays of literals by ["?"]
+	 */
+	static JsonObject shape(JsonObject query) {
+		JsonObject shape = new JsonObject();
+		if (query != null) {
+			query.forEach(entry -> shape.put(entry.getKey(), shapeOf(entry.getValue())));
+		}
+		return shape;
+	}
+	
+	private static Object shapeOf(Object value) {
+		if (value instanceof JsonObject) {
+			return shape((JsonObject) value);
+		}
+		if (value instanceof JsonArray) {
+			JsonArray shape = new JsonArray();
+			for (Object element : (JsonArray) value) {
+				Object elementShape = shapeOf(element);
+				if (!shape.contains(elementShape)) {
+					shape.add(elementShape);
+				}
+			}
+			return shape;
+		}
+		return "?";
+	}
+	
+	/**
+	 * @return explain command of operation, queryPlanner verbosity only plans it
+	 */
+	private static JsonObject explainCommand(String operation, String collection, JsonObject query,
+			FindOptions options) {
+		JsonObject explained;
+		switch (operation) {
+		case "findOneAndDelete":
+			explained = new JsonObject().put("findAndModify", collection).put("query", query).put("remove", true);
+			break;
+		case "findOneAndReplace":
+			explained = new JsonObject().put("findAndModify", collection).put("query", query).put("update",
+					new JsonObject());
+			break;
+		case "removeDocuments":
+			explained = new JsonObject().put("delete", collection).put("deletes",
+					new JsonArray().add(new JsonObject().put("q", query).put("limit", 0)));
+			break;
+		default:
+			explained = new JsonObject().put("find", collection).put("filter", query);
+			if (options != null) {
+				explained.put("sort", options.getSort()).put("projection", options.getFields());
+				if (options.getLimit() >= 0) {
+					explained.put("limit", options.getLimit());
+				}
+				if (options.getSkip() > 0) {
+					explained.put("skip", options.getSkip());
+				}
+			}
+		}
+		return new JsonObject().put("explain", explained).put("verbosity", "queryPlanner");
+	}
+	
+	private void explain(MongoClient mongoClient, String key, @NonNull JsonObject command) {
+		mongoClient.runCommand("explain", command, result -> {
+			if (result.succeeded()) {
+				JsonObject planner = result.result().getJsonObject("queryPlanner", new JsonObject());
+				plans.put(key, planner.getJsonObject("winningPlan", new JsonObject()));
+			} else {
+				log.warn("Explain of slow mongo operation failed. Details: {}", result.cause().toString());
+			}
+		});
+	}
+}
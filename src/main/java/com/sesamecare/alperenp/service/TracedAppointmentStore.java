@@ -0,0 +1,175 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.List;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import lombok.NonNull;
+
+/**
+ * {@link AppointmentStore} recording every operation of underlying store as a span of a {@link RequestTrace}
+ * <p>
+ * Span is described with operation name and, for mongo, pool usage when operation started ("pool=inFlight/max"), so
+ * a slow span with a full pool points at waiting for a connection rather than at the query itself. Export streams are
+ * not traced.
+ * 
+ * @author alperenp
+ *
+ */
+public class TracedAppointmentStore implements AppointmentStore {
+	
+	private final AppointmentStore store;
+	
+	private final RequestTrace trace;
+	
+	private final String spanName;
+	
+	/**
+	 * Metrics of mongo pool used by store, null if store does not use mongo
+	 */
+	private final MongoPoolMetrics poolMetrics;
+	
+	/**
+	 * @param store
+	 * @param trace
+	 * @param spanName name of spans in "Server-Timing" (i.e. "mongo")
+	 * @param poolMetrics metrics of mongo pool used by store, null if store does not use mongo
+	 */
+	public TracedAppointmentStore(@NonNull AppointmentStore store, @NonNull RequestTrace trace,
+			@NonNull String spanName, MongoPoolMetrics poolMetrics) {
+		this.store = store;
+		this.trace = trace;
+		this.spanName = spanName;
+		this.poolMetrics = poolMetrics;
+	}
+	
+	@Override
+	public Future<JsonObject> deleteOne(String appointmentID) {
+		RequestTrace.Span span = startSpan("deleteOne");
+		return ended(span, store.deleteOne(appointmentID));
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointment(Appointment appointment) {
+		RequestTrace.Span span = startSpan("insertAppointment");
+		return ended(span, store.insertAppointment(appointment));
+	}
+	
+	@Override
+	public Future<JsonObject> replaceAppointment(Appointment appointment) {
+		RequestTrace.Span span = startSpan("replaceAppointment");
+		return ended(span, store.replaceAppointment(appointment));
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointment(String appointmentID) {
+		RequestTrace.Span span = startSpan("findAppointment");
+		return ended(span, store.findAppointment(appointmentID));
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointments(List<String> appointmentIDs) {
+		RequestTrace.Span span = startSpan("findAppointments");
+		return ended(span, store.findAppointments(appointmentIDs));
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointmentsWithRangeAndSort(long start, long end) {
+		RequestTrace.Span span = startSpan("findAppointmentsWithRangeAndSort");
+		return ended(span, store.findAppointmentsWithRangeAndSort(start, end));
+	}
+	
+	@Override
+	public Future<List<JsonObject>> getAllAppointments() {
+		RequestTrace.Span span = startSpan("getAllAppointments");
+		return ended(span, store.getAllAppointments());
+	}
+	
+	@Override
+	public Future<JsonObject> deleteAllAppointments() {
+		RequestTrace.Span span = startSpan("deleteAllAppointments");
+		return ended(span, store.deleteAllAppointments());
+	}
+	
+	@Override
+	public Future<JsonObject> bookAppointment(String appointmentID, Long version) {
+		RequestTrace.Span span = startSpan("bookAppointment");
+		return ended(span, store.bookAppointment(appointmentID, version));
+	}
+	
+	@Override
+	public Future<JsonObject> cancelAppointment(String appointmentID, Long version) {
+		RequestTrace.Span span = startSpan("cancelAppointment");
+		return ended(span, store.cancelAppointment(appointmentID, version));
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointments(List<Appointment> appointments) {
+		RequestTrace.Span span = startSpan("insertAppointments");
+		return ended(span, store.insertAppointments(appointments));
+	}
+	
+	@Override
+	public ReadStream<JsonObject> exportAppointments(Long start, Long end) {
+		return store.exportAppointments(start, end);
+	}
+	
+	@Override
+	public Future<JsonObject> archiveAppointments(long before, int limit) {
+		RequestTrace.Span span = startSpan("archiveAppointments");
+		return ended(span, store.archiveAppointments(before, limit));
+	}
+	
+	@Override
+	public AppointmentStore archive() {
+		AppointmentStore archive = store.archive();
+		return archive == null ? null : new TracedAppointmentStore(archive, trace, spanName + "-archive", poolMetrics);
+	}
+	
+	private RequestTrace.Span startSpan(String operation) {
+		RequestTrace.Span span = trace.startSpan(spanName);
+		if (poolMetrics == null) {
+			return span.describe(operation);
+		}
+		return span.describe(operation + " pool=" + poolMetrics.inFlight() + "/" + poolMetrics.maxPoolSize());
+	}
+	
+	/**
+	 * @param span
+	 * @param operation
+	 * @return future completing after span is ended
+	 */
+	private <T> Future<T> ended(RequestTrace.Span span, Future<T> operation) {
+		Future<T> future = Future.future();
+		operation.setHandler(result -> {
+			span.end();
+			future.handle(result);
+		});
+		return future;
+	}
+}
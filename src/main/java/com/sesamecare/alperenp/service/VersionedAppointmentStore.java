@@ -0,0 +1,144 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.List;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import lombok.NonNull;
+
+/**
+ * {@link AppointmentStore} increasing {@link ChangeVersion} whenever a write of underlying store completes
+ * <p>
+ * Version is increased even if write fails, since a failed write may still have been applied partially
+ * 
+ * @author alperenp
+ *
+ */
+public class VersionedAppointmentStore implements AppointmentStore {
+	
+	private final AppointmentStore store;
+	
+	private final ChangeVersion changeVersion;
+	
+	public VersionedAppointmentStore(@NonNull AppointmentStore store, @NonNull ChangeVersion changeVersion) {
+		this.store = store;
+		this.changeVersion = changeVersion;
+	}
+	
+	@Override
+	public Future<JsonObject> deleteOne(String appointmentID) {
+		return changed(store.deleteOne(appointmentID));
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointment(Appointment appointment) {
+		return changed(store.insertAppointment(appointment));
+	}
+	
+	@Override
+	public Future<JsonObject> replaceAppointment(Appointment appointment) {
+		return changed(store.replaceAppointment(appointment));
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointment(String appointmentID) {
+		return store.findAppointment(appointmentID);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointments(List<String> appointmentIDs) {
+		return store.findAppointments(appointmentIDs);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> findAppointmentsWithRangeAndSort(long start, long end) {
+		return store.findAppointmentsWithRangeAndSort(start, end);
+	}
+	
+	@Override
+	public Future<List<JsonObject>> getAllAppointments() {
+		return store.getAllAppointments();
+	}
+	
+	@Override
+	public Future<JsonObject> deleteAllAppointments() {
+		return changed(store.deleteAllAppointments());
+	}
+	
+	@Override
+	public Future<JsonObject> bookAppointment(String appointmentID, Long version) {
+		return changed(store.bookAppointment(appointmentID, version));
+	}
+	
+	@Override
+	public Future<JsonObject> cancelAppointment(String appointmentID, Long version) {
+		return changed(store.cancelAppointment(appointmentID, version));
+	}
+	
+	@Override
+	public Future<JsonObject> insertAppointments(List<Appointment> appointments) {
+		return changed(store.insertAppointments(appointments));
+	}
+	
+	@Override
+	public ReadStream<JsonObject> exportAppointments(Long start, Long end) {
+		return store.exportAppointments(start, end);
+	}
+	
+	@Override
+	public Future<JsonObject> archiveAppointments(long before, int limit) {
+		Future<JsonObject> future = Future.future();
+		store.archiveAppointments(before, limit).setHandler(result -> {
+			// empty batches leave cached responses valid
+			if (result.failed() || result.result().getLong("archived", 0L) > 0
+					|| !result.result().getBoolean("result", false)) {
+				changeVersion.changed();
+			}
+			future.handle(result);
+		});
+		return future;
+	}
+	
+	@Override
+	public AppointmentStore archive() {
+		return store.archive();
+	}
+	
+	/**
+	 * @param write
+	 * @return future completing after version is increased
+	 */
+	private <T> Future<T> changed(Future<T> write) {
+		Future<T> future = Future.future();
+		write.setHandler(result -> {
+			changeVersion.changed();
+			future.handle(result);
+		});
+		return future;
+	}
+}
@@ -0,0 +1,117 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Class of an operation, every class has its own mongo connection pool and concurrency budget (see
+ * {@link WorkloadLimiter}), so bulk or admin work cannot take connections interactive requests are waiting for
+ * <p>
+ * Interactive operations use the pool configured at top level ("maxPoolSize") and are not limited. Others use pool
+ * named after their class sized "&lt;class&gt;_max_pool_size", and run at most "&lt;class&gt;_max_concurrency" at a
+ * time with up to "&lt;class&gt;_max_queue" waiting.
+ * 
+ * @author alperenp
+ *
+ */
+public enum WorkloadClass {
+	
+	/**
+	 * Single appointment reads and writes, short range reads
+	 */
+	INTERACTIVE(-1, -1, 0),
+	
+	/**
+	 * Whole collection reads and deletes, long range reads, import/export, archival
+	 */
+	BULK(5, 2, 16),
+	
+	/**
+	 * Rebalancing, migration, metrics
+	 */
+	ADMIN(2, 1, 4);
+	
+	private static final String CONTEXT_KEY = "workload.class";
+	
+	private final int defaultPoolSize;
+	
+	private final int defaultMaxConcurrency;
+	
+	private final int defaultMaxQueue;
+	
+	private WorkloadClass(int defaultPoolSize, int defaultMaxConcurrency, int defaultMaxQueue) {
+		this.defaultPoolSize = defaultPoolSize;
+		this.defaultMaxConcurrency = defaultMaxConcurrency;
+		this.defaultMaxQueue = defaultMaxQueue;
+	}
+	
+	/**
+	 * @return lower case name, prefix of config keys of this class
+	 */
+	public String key() {
+		return name().toLowerCase();
+	}
+	
+	/**
+	 * @param config
+	 * @return config of mongo pool of this class, given config itself for interactive class
+	 */
+	public JsonObject mongoConfig(JsonObject config) {
+		if (this == INTERACTIVE) {
+			return config;
+		}
+		int poolSize = config.getInteger(key() + "_max_pool_size", defaultPoolSize);
+		return config.copy().put("mongo_pool_name", key()).put("maxPoolSize", poolSize).put("minPoolSize",
+				Math.min(config.getInteger("minPoolSize", 0), poolSize));
+	}
+	
+	/**
+	 * @param config
+	 * @return maximum concurrent operations of this class, negative if unlimited
+	 */
+	public int maxConcurrency(JsonObject config) {
+		return config.getInteger(key() + "_max_concurrency", defaultMaxConcurrency);
+	}
+	
+	/**
+	 * @param config
+	 * @return maximum operations waiting for a slot, more are rejected
+	 */
+	public int maxQueue(JsonObject config) {
+		return config.getInteger(key() + "_max_queue", defaultMaxQueue);
+	}
+	
+	/**
+	 * @param routingContext
+	 * @return class request was admitted as, interactive if it was not classified
+	 */
+	public static WorkloadClass of(RoutingContext routingContext) {
+		WorkloadClass workload = routingContext.get(CONTEXT_KEY);
+		return workload == null ? INTERACTIVE : workload;
+	}
+	
+	void assignTo(RoutingContext routingContext) {
+		routingContext.put(CONTEXT_KEY, this);
+	}
+}
@@ -0,0 +1,206 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Function;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+import io.vertx.ext.web.RoutingContext;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Concurrency budget of a {@link WorkloadClass}
+ * <p>
+ * Requests over the budget wait in a bounded queue (their body is paused meanwhile) and are resumed on their own event
+ * loop when a slot is released; a full queue is answered with 503 and "Retry-After". A slot is released when response
+ * ends or connection closes. Shared by every verticle of a {@link Vertx} instance through local shared data.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class WorkloadLimiter implements Shareable {
+	
+	private static final String MAP_NAME = "workload.limiters";
+	
+	private final int maxConcurrency;
+	
+	private final int maxQueue;
+	
+	private final Deque<Waiter> queue = new ArrayDeque<>();
+	
+	private int inFlight;
+	
+	private long admitted;
+	
+	private long queued;
+	
+	private long rejected;
+	
+	WorkloadLimiter(int maxConcurrency, int maxQueue) {
+		this.maxConcurrency = maxConcurrency;
+		this.maxQueue = maxQueue;
+	}
+	
+	/**
+	 * Limiter of given class
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @param workload
+	 * @return
+	 */
+	public static WorkloadLimiter get(Vertx vertx, JsonObject config, WorkloadClass workload) {
+		return vertx.sharedData().<String, WorkloadLimiter>getLocalMap(MAP_NAME).computeIfAbsent(workload.key(),
+				name -> new WorkloadLimiter(workload.maxConcurrency(config), workload.maxQueue(config)));
+	}
+	
+	/**
+	 * Route handler classifying request and admitting it within budget of its class
+	 * 
+	 * @param vertx
+	 * @param config
+	 * @param classifier
+	 * @return
+	 */
+	public static Handler<RoutingContext> handler(@NonNull Vertx vertx, @NonNull JsonObject config,
+			@NonNull Function<RoutingContext, WorkloadClass> classifier) {
+		return routingContext -> {
+			WorkloadClass workload = classifier.apply(routingContext);
+			workload.assignTo(routingContext);
+			get(vertx, config, workload).admit(vertx.getOrCreateContext(), routingContext);
+		};
+	}
+	
+	/**
+	 * Calls next handler of request now, or once a slot is free
+	 * 
+	 * @param context event loop of request
+	 * @param routingContext
+	 */
+	void admit(Context context, RoutingContext routingContext) {
+		if (maxConcurrency < 0) {
+			routingContext.next();
+			return;
+		}
+		Waiter waiter = new Waiter(context, routingContext);
+		boolean start;
+		synchronized (this) {
+			if (inFlight < maxConcurrency) {
+				inFlight++;
+				admitted++;
+				waiter.holding = true;
+				start = true;
+			} else if (queue.size() < maxQueue) {
+				queued++;
+				queue.addLast(waiter);
+				start = false;
+			} else {
+				rejected++;
+				waiter.done = true;
+				start = false;
+			}
+		}
+		if (waiter.done) {
+			log.warn("{} rejected, workload queue is full", routingContext.request().path());
+			routingContext.response().setStatusCode(503).putHeader("Retry-After", "1").end();
+			return;
+		}
+		routingContext.response().endHandler(v -> finished(waiter));
+		if (start) {
+			routingContext.next();
+		} else {
+			// handed a slot at the earliest after this handler returns, see Waiter#start
+			routingContext.request().pause();
+		}
+	}
+	
+	/**
+	 * Frees slot of a finished request, handing it over to the oldest waiting request if there is one. A request
+	 * finished while waiting (connection closed) just leaves the queue.
+	 */
+	private void finished(Waiter waiter) {
+		Waiter next;
+		synchronized (this) {
+			if (waiter.done) {
+				return;
+			}
+			waiter.done = true;
+			if (!waiter.holding) {
+				queue.remove(waiter);
+				return;
+			}
+			next = queue.pollFirst();
+			if (next == null) {
+				inFlight--;
+			} else {
+				next.holding = true;
+				admitted++;
+			}
+		}
+		if (next != null) {
+			next.start();
+		}
+	}
+	
+	public synchronized JsonObject toJson() {
+		return new JsonObject().put("maxConcurrency", maxConcurrency).put("inFlight", inFlight)
+				.put("waiting", queue.size()).put("maxQueue", maxQueue).put("admitted", admitted)
+				.put("queued", queued).put("rejected", rejected);
+	}
+	
+	/**
+	 * Request waiting for (or holding) a slot, state is guarded by limiter
+	 */
+	private static class Waiter {
+		
+		private final Context context;
+		
+		private final RoutingContext routingContext;
+		
+		private boolean holding;
+		
+		private boolean done;
+		
+		Waiter(Context context, RoutingContext routingContext) {
+			this.context = context;
+			this.routingContext = routingContext;
+		}
+		
+		/**
+		 * Continues request on its own event loop
+		 */
+		void start() {
+			context.runOnContext(v -> {
+				routingContext.next();
+				routingContext.request().resume();
+			});
+		}
+	}
+}
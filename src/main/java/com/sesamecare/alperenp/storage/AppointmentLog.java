@@ -0,0 +1,543 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import com.sesamecare.alperenp.data.Appointment;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only, memory-mapped log of fixed-width {@link Appointment} records
+ * <p>
+ * File layout: 64 byte header (magic, record size, epoch) followed by {@value #RECORD_SIZE} byte records. Every
+ * record carries a CRC32 and the epoch of the log, recovery stops at the first record which is torn, corrupted or
+ * belongs to an older epoch (i.e. written before the log was truncated).
+ * <p>
+ * Not thread safe
+ *
+ * @author alperenp
+ *
+ */
+@Slf4j
+class AppointmentLog {
+
+	static final int HEADER_SIZE = 64;
+
+	static final int RECORD_SIZE = 256;
+
+	static final byte PUT = 1;
+
+	static final byte DELETE = 2;
+
+	/**
+	 * Maximum UTF-8 length of appointment id
+	 */
+	static final int MAX_ID_BYTES = 64;
+
+	/**
+	 * Maximum UTF-8 length of doctor name
+	 */
+	static final int MAX_DOCTOR_BYTES = 128;
+
+	private static final byte[] MAGIC = "APPTLOG1".getBytes(StandardCharsets.US_ASCII);
+
+	private static final Appointment.Status[] STATUSES = Appointment.Status.values();
+
+	/* Record layout */
+
+	private static final int CRC = 0;
+
+	private static final int TYPE = 4;
+
+	private static final int STATUS = 5;
+
+	private static final int ID_LENGTH = 6;
+
+	private static final int EPOCH = 8;
+
+	private static final int CREATED_TIME = 16;
+
+	private static final int DATE = 24;
+
+	private static final int DURATION = 32;
+
+	private static final int PRICE = 40;
+
+	private static final int VERSION = 48;
+
+	private static final int DOCTOR_LENGTH = 56;
+
+	private static final int ID = 58;
+
+	private static final int DOCTOR = ID + MAX_ID_BYTES;
+
+	/* Header layout */
+
+	private static final int HEADER_RECORD_SIZE = 8;
+
+	private static final int HEADER_EPOCH = 12;
+
+	private final Path path;
+
+	private final int initialSize;
+
+	private FileChannel channel;
+
+	private MappedByteBuffer buffer;
+
+	private long epoch;
+
+	/**
+	 * Offset where next record is appended
+	 */
+	private int end;
+
+	/**
+	 * Opens (or creates) log at given path. Call {@link #recover(RecordVisitor)} before appending.
+	 *
+	 * @param path
+	 * @param initialSize initial mapped size in bytes
+	 * @throws IOException
+	 */
+	AppointmentLog(Path path, int initialSize) throws IOException {
+		this.path = path;
+		this.initialSize = Math.max(initialSize, HEADER_SIZE + RECORD_SIZE);
+		// left over from a compaction which crashed before it was completed
+		Files.deleteIfExists(compactionPath());
+		open();
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean created = channel.size() < HEADER_SIZE;
+		map((int) Math.max(channel.size(), initialSize));
+		if (created) {
+			writeHeader(0);
+		} else {
+			byte[] magic = new byte[MAGIC.length];
+			for (int i = 0; i < magic.length; i++) {
+				magic[i] = buffer.get(i);
+			}
+			if (!Arrays.equals(magic, MAGIC) || buffer.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+				throw new IOException("File " + path + " is not an appointment log");
+			}
+			epoch = buffer.getLong(HEADER_EPOCH);
+		}
+		end = HEADER_SIZE;
+	}
+
+	private void writeHeader(long newEpoch) {
+		epoch = newEpoch;
+		for (int i = 0; i < MAGIC.length; i++) {
+			buffer.put(i, MAGIC[i]);
+		}
+		buffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+		buffer.putLong(HEADER_EPOCH, epoch);
+	}
+
+	private void map(int size) throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Replays every valid record, sets append position after the last valid one
+	 *
+	 * @param visitor
+	 * @return number of replayed records
+	 */
+	int recover(RecordVisitor visitor) {
+		int records = 0;
+		int offset = HEADER_SIZE;
+		while (offset + RECORD_SIZE <= buffer.capacity() && isValid(offset)) {
+			visitor.visit(buffer.get(offset + TYPE), offset);
+			offset += RECORD_SIZE;
+			records++;
+		}
+		end = offset;
+		if (offset + RECORD_SIZE <= buffer.capacity() && buffer.getInt(offset + CRC) != 0) {
+			log.warn("Appointment log {} has an invalid record at offset {}, ignoring the rest of the file", path,
+					offset);
+		}
+		return records;
+	}
+
+	/**
+	 * Visits every record up to append position without validating them, for a log which is known to be intact
+	 *
+	 * @param visitor
+	 * @return number of visited records
+	 */
+	int replay(RecordVisitor visitor) {
+		int records = 0;
+		for (int offset = HEADER_SIZE; offset < end; offset += RECORD_SIZE) {
+			visitor.visit(buffer.get(offset + TYPE), offset);
+			records++;
+		}
+		return records;
+	}
+
+	private boolean isValid(int offset) {
+		byte type = buffer.get(offset + TYPE);
+		return (type == PUT || type == DELETE) && buffer.getLong(offset + EPOCH) == epoch
+				&& buffer.getInt(offset + CRC) == checksum(offset);
+	}
+
+	private int checksum(int offset) {
+		CRC32 crc = new CRC32();
+		for (int i = offset + TYPE; i < offset + RECORD_SIZE; i++) {
+			crc.update(buffer.get(i));
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * @param appointment
+	 * @return true if id and doctor name fit into a record
+	 */
+	static boolean fits(Appointment appointment) {
+		return appointment.getId() != null
+				&& appointment.getId().getBytes(StandardCharsets.UTF_8).length <= MAX_ID_BYTES
+				&& (appointment.getDoctorName() == null || appointment.getDoctorName()
+						.getBytes(StandardCharsets.UTF_8).length <= MAX_DOCTOR_BYTES);
+	}
+
+	/**
+	 * Appends a put record
+	 *
+	 * @param appointment must {@link #fits(Appointment)}
+	 * @return offset of record
+	 * @throws IOException
+	 */
+	int appendPut(Appointment appointment) throws IOException {
+		int offset = reserve();
+		buffer.put(offset + TYPE, PUT);
+		buffer.put(offset + STATUS,
+				(byte) (appointment.getStatus() == null ? -1 : appointment.getStatus().ordinal()));
+		buffer.putLong(offset + EPOCH, epoch);
+		buffer.putLong(offset + CREATED_TIME, appointment.getCreatedTime());
+		buffer.putLong(offset + DATE, appointment.getAppointmentDate());
+		buffer.putLong(offset + DURATION, appointment.getAppointmentDuration());
+		buffer.putDouble(offset + PRICE, appointment.getPrice());
+		buffer.putLong(offset + VERSION, appointment.getVersion());
+		buffer.putShort(offset + ID_LENGTH, putString(offset + ID, appointment.getId()));
+		buffer.putShort(offset + DOCTOR_LENGTH, putString(offset + DOCTOR, appointment.getDoctorName()));
+		buffer.putInt(offset + CRC, checksum(offset));
+		end += RECORD_SIZE;
+		return offset;
+	}
+
+	/**
+	 * Appends a delete record (tombstone) of given id
+	 *
+	 * @param id
+	 * @return offset of record
+	 * @throws IOException
+	 */
+	int appendDelete(String id) throws IOException {
+		int offset = reserve();
+		buffer.put(offset + TYPE, DELETE);
+		buffer.putLong(offset + EPOCH, epoch);
+		buffer.putShort(offset + ID_LENGTH, putString(offset + ID, id));
+		buffer.putShort(offset + DOCTOR_LENGTH, (short) -1);
+		buffer.putInt(offset + CRC, checksum(offset));
+		end += RECORD_SIZE;
+		return offset;
+	}
+
+	/**
+	 * Zeroes next record slot, grows mapping if needed
+	 *
+	 * @return offset of next record
+	 * @throws IOException
+	 */
+	private int reserve() throws IOException {
+		if (end + RECORD_SIZE > buffer.capacity()) {
+			long newSize = Math.min((long) buffer.capacity() * 2, Integer.MAX_VALUE - RECORD_SIZE);
+			if (end + RECORD_SIZE > newSize) {
+				throw new IOException("Appointment log " + path + " is full");
+			}
+			map((int) newSize);
+		}
+		for (int i = end; i < end + RECORD_SIZE; i++) {
+			buffer.put(i, (byte) 0);
+		}
+		return end;
+	}
+
+	private short putString(int offset, String value) {
+		if (value == null) {
+			return -1;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < bytes.length; i++) {
+			buffer.put(offset + i, bytes[i]);
+		}
+		return (short) bytes.length;
+	}
+
+	private String getString(int offset, short length) {
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Discards every record by starting a new epoch, records of old epoch are ignored by recovery
+	 */
+	void truncate() {
+		writeHeader(epoch + 1);
+		buffer.putInt(HEADER_SIZE + CRC, 0);
+		end = HEADER_SIZE;
+	}
+
+	/* ------ RECORD ACCESS ------ */
+
+	String id(int offset) {
+		return getString(offset + ID, buffer.getShort(offset + ID_LENGTH));
+	}
+
+	/**
+	 * Compares id stored in record with given UTF-8 bytes without allocating
+	 *
+	 * @param offset
+	 * @param idBytes
+	 * @return
+	 */
+	boolean idEquals(int offset, byte[] idBytes) {
+		if (buffer.getShort(offset + ID_LENGTH) != idBytes.length) {
+			return false;
+		}
+		for (int i = 0; i < idBytes.length; i++) {
+			if (buffer.get(offset + ID + i) != idBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	long appointmentDate(int offset) {
+		return buffer.getLong(offset + DATE);
+	}
+
+	double price(int offset) {
+		return buffer.getDouble(offset + PRICE);
+	}
+
+	Appointment.Status status(int offset) {
+		byte status = buffer.get(offset + STATUS);
+		return status < 0 ? null : STATUSES[status];
+	}
+
+	/**
+	 * Decodes record at given offset
+	 *
+	 * @param offset
+	 * @return
+	 */
+	Appointment read(int offset) {
+		return new Appointment(id(offset), buffer.getLong(offset + CREATED_TIME), buffer.getLong(offset + DATE),
+				buffer.getLong(offset + DURATION), getString(offset + DOCTOR, buffer.getShort(offset + DOCTOR_LENGTH)),
+				status(offset), buffer.getDouble(offset + PRICE), buffer.getLong(offset + VERSION));
+	}
+
+	/**
+	 * @return size of log in bytes
+	 */
+	int end() {
+		return end;
+	}
+
+	/**
+	 * Flushes mapped pages to disk
+	 */
+	void force() {
+		buffer.force();
+	}
+
+	/* ------ COMPACTION ------ */
+
+	private Path compactionPath() {
+		return path.resolveSibling(path.getFileName() + ".compact");
+	}
+
+	/**
+	 * Starts rewriting log with only given live records. Records are copied by {@link Compaction#copy()} while this
+	 * log keeps taking appends, then {@link #finishCompaction(Compaction)} copies records appended meanwhile and
+	 * replaces this log.
+	 *
+	 * @param liveOffsets
+	 * @param count
+	 * @return compaction to be closed by caller
+	 */
+	Compaction startCompaction(int[] liveOffsets, int count) {
+		return new Compaction(liveOffsets, count);
+	}
+
+	/**
+	 * Copies records appended since compaction started, then atomically replaces this log with compacted one. Record
+	 * offsets change, call {@link #replay(RecordVisitor)} afterwards to rebuild indexes.
+	 *
+	 * @param compaction copied compaction
+	 * @return false if log was truncated since compaction started, log is left unchanged then
+	 * @throws IOException
+	 */
+	boolean finishCompaction(Compaction compaction) throws IOException {
+		if (epoch != compaction.epoch) {
+			return false;
+		}
+		int tail = end - compaction.mark;
+		compaction.ensureCapacity(compaction.end + tail + RECORD_SIZE);
+		compaction.put(buffer, compaction.mark, tail);
+		int compactedEnd = compaction.end;
+		compaction.target.force();
+		compaction.channel.close();
+		channel.close();
+		try {
+			Files.move(compactionPath(), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			open();
+		}
+		end = compactedEnd;
+		return true;
+	}
+
+	/**
+	 * Flushes and closes log
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		buffer.force();
+		channel.close();
+	}
+
+	/**
+	 * Live records of a log being copied to a compaction file next to it
+	 * <p>
+	 * Records are never changed once appended, so live records can be read while log takes appends, unless it is
+	 * truncated (its epoch changes) which is checked when compaction is finished.
+	 */
+	final class Compaction implements Closeable {
+
+		/**
+		 * View of log mapping when compaction started
+		 */
+		private final ByteBuffer source = buffer.duplicate();
+
+		private final int[] liveOffsets;
+
+		private final int count;
+
+		/**
+		 * Append position of log when compaction started
+		 */
+		private final int mark = AppointmentLog.this.end;
+
+		private final long epoch = AppointmentLog.this.epoch;
+
+		private FileChannel channel;
+
+		private MappedByteBuffer target;
+
+		/**
+		 * Append position of compaction file
+		 */
+		private int end = HEADER_SIZE;
+
+		private Compaction(int[] liveOffsets, int count) {
+			this.liveOffsets = liveOffsets;
+			this.count = count;
+		}
+
+		/**
+		 * Writes header and live records to compaction file, without accessing state which appends change
+		 *
+		 * @throws IOException
+		 */
+		void copy() throws IOException {
+			Path compactionPath = compactionPath();
+			Files.deleteIfExists(compactionPath);
+			channel = FileChannel.open(compactionPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			ensureCapacity(Math.max(initialSize, HEADER_SIZE + (count + 1) * RECORD_SIZE));
+			end = 0;
+			put(source, 0, HEADER_SIZE);
+			for (int i = 0; i < count; i++) {
+				put(source, liveOffsets[i], RECORD_SIZE);
+			}
+		}
+
+		/**
+		 * Appends given bytes of log to compaction file
+		 */
+		private void put(ByteBuffer from, int offset, int length) {
+			ByteBuffer bytes = from.duplicate();
+			bytes.limit(offset + length).position(offset);
+			target.position(end);
+			target.put(bytes);
+			end += length;
+		}
+
+		private void ensureCapacity(int size) throws IOException {
+			if (target == null || target.capacity() < size) {
+				target = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		}
+
+		/**
+		 * Deletes compaction file if it has not replaced log
+		 */
+		@Override
+		public void close() throws IOException {
+			if (channel != null) {
+				channel.close();
+			}
+			Files.deleteIfExists(compactionPath());
+		}
+	}
+
+	/**
+	 * Visitor of records during recovery
+	 */
+	@FunctionalInterface
+	interface RecordVisitor {
+		void visit(byte type, int offset);
+	}
+}
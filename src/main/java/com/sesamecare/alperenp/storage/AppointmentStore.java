@@ -0,0 +1,183 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sesamecare.alperenp.data.Appointment;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * Storage operations of appointment service
+ * <p>
+ * Write operations complete with {"result": true/false}, read operations complete with appointment documents.
+ * Implementations: mongo ({@link com.sesamecare.alperenp.service.AppointmentServiceController}) and embedded
+ * ({@link EmbeddedAppointmentStore})
+ * 
+ * @author alperenp
+ *
+ */
+public interface AppointmentStore {
+	
+	/**
+	 * Deletes {@link Appointment} with given id
+	 * 
+	 * @param appointmentID
+	 * @return
+	 */
+	Future<JsonObject> deleteOne(String appointmentID);
+	
+	/**
+	 * Inserts given {@link Appointment}
+	 * 
+	 * @param appointment
+	 * @return
+	 */
+	Future<JsonObject> insertAppointment(Appointment appointment);
+	
+	/**
+	 * Replaces existing {@link Appointment} having same id with given one
+	 * <p>
+	 * Version of given appointment is ignored, stored one is the version of replaced appointment + 1
+	 * 
+	 * @param appointment
+	 * @return result and new "version" if replaced
+	 */
+	Future<JsonObject> replaceAppointment(Appointment appointment);
+	
+	/**
+	 * Finds {@link Appointment} with given id
+	 * 
+	 * @param appointmentID
+	 * @return
+	 */
+	Future<List<JsonObject>> findAppointment(String appointmentID);
+	
+	/**
+	 * Finds {@link Appointment}s with given ids in one lookup
+	 * 
+	 * @param appointmentIDs
+	 * @return appointments in order of given ids, null for ids which do not exist
+	 */
+	Future<List<JsonObject>> findAppointments(List<String> appointmentIDs);
+	
+	/**
+	 * Finds booked {@link Appointment}s scheduled between start and end, sorted by price (ascending)
+	 * 
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	Future<List<JsonObject>> findAppointmentsWithRangeAndSort(long start, long end);
+	
+	/**
+	 * Returns all {@link Appointment}s
+	 * 
+	 * @return
+	 */
+	Future<List<JsonObject>> getAllAppointments();
+	
+	/**
+	 * Deletes all {@link Appointment}s
+	 * 
+	 * @return
+	 */
+	Future<JsonObject> deleteAllAppointments();
+	
+	/**
+	 * Books {@link Appointment} if it is available and its version matches (if given)
+	 * 
+	 * @param appointmentID
+	 * @param version null for no version check
+	 * @return result and new version
+	 */
+	Future<JsonObject> bookAppointment(String appointmentID, Long version);
+	
+	/**
+	 * Cancels {@link Appointment} if it is booked and its version matches (if given)
+	 * 
+	 * @param appointmentID
+	 * @param version null for no version check
+	 * @return result and new version
+	 */
+	Future<JsonObject> cancelAppointment(String appointmentID, Long version);
+	
+	/**
+	 * Inserts given {@link Appointment}s in one batch
+	 * 
+	 * @param appointments
+	 * @return result and number of inserted appointments
+	 */
+	Future<JsonObject> insertAppointments(List<Appointment> appointments);
+	
+	/**
+	 * Streams {@link Appointment}s (any status) scheduled between start and end, reading only as fast as consumer
+	 * demands
+	 * 
+	 * @param start null for no lower bound
+	 * @param end null for no upper bound
+	 * @return
+	 */
+	ReadStream<JsonObject> exportAppointments(Long start, Long end);
+	
+	/**
+	 * Moves up to limit {@link Appointment}s scheduled before given time to archive
+	 * 
+	 * @param before
+	 * @param limit
+	 * @return result and number of "archived" appointments, with their "ids" if store reports them. Result is false if
+	 *         store has no archive
+	 */
+	Future<JsonObject> archiveAppointments(long before, int limit);
+	
+	/**
+	 * @return store of archived {@link Appointment}s, null if store has no archive
+	 */
+	AppointmentStore archive();
+	
+	/**
+	 * Orders found appointments as requested, for {@link #findAppointments(List)} implementations
+	 * 
+	 * @param appointmentIDs
+	 * @param found appointments in any order, first one of an id is used
+	 * @return appointments in order of given ids, null for ids which are not found
+	 */
+	static List<JsonObject> inRequestOrder(List<String> appointmentIDs, Iterable<JsonObject> found) {
+		Map<String, JsonObject> byID = new HashMap<>();
+		for (JsonObject appointment : found) {
+			if (appointment != null) {
+				byID.putIfAbsent(appointment.getString("id"), appointment);
+			}
+		}
+		List<JsonObject> result = new ArrayList<>(appointmentIDs.size());
+		for (String appointmentID : appointmentIDs) {
+			result.add(byID.get(appointmentID));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,162 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.storage;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * {@link ReadStream} pulling items from a source in batches, only as fast as they are demanded
+ * <p>
+ * At most one batch is held in memory. Items are emitted on given context, which yields between batches so a long
+ * stream does not block its event loop.
+ *
+ * @author alperenp
+ *
+ */
+class BatchReadStream<T> implements ReadStream<T> {
+
+	private final Context context;
+
+	private final BatchSource<T> source;
+
+	private final int batchSize;
+
+	private final ArrayDeque<T> buffer = new ArrayDeque<>();
+
+	private long demand = Long.MAX_VALUE;
+
+	private boolean exhausted;
+
+	private boolean ended;
+
+	private boolean scheduled;
+
+	private Handler<T> handler;
+
+	private Handler<Void> endHandler;
+
+	private Handler<Throwable> exceptionHandler;
+
+	BatchReadStream(Context context, BatchSource<T> source, int batchSize) {
+		this.context = context;
+		this.source = source;
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public ReadStream<T> exceptionHandler(Handler<Throwable> handler) {
+		this.exceptionHandler = handler;
+		return this;
+	}
+
+	@Override
+	public ReadStream<T> handler(Handler<T> handler) {
+		this.handler = handler;
+		schedule();
+		return this;
+	}
+
+	@Override
+	public ReadStream<T> pause() {
+		demand = 0;
+		return this;
+	}
+
+	@Override
+	public ReadStream<T> resume() {
+		return fetch(Long.MAX_VALUE);
+	}
+
+	@Override
+	public ReadStream<T> fetch(long amount) {
+		demand = demand + amount < 0 ? Long.MAX_VALUE : demand + amount;
+		schedule();
+		return this;
+	}
+
+	@Override
+	public ReadStream<T> endHandler(Handler<Void> endHandler) {
+		this.endHandler = endHandler;
+		return this;
+	}
+
+	private void schedule() {
+		if (!scheduled && !ended && handler != null) {
+			scheduled = true;
+			context.runOnContext(v -> {
+				scheduled = false;
+				emit();
+			});
+		}
+	}
+
+	/**
+	 * Emits buffered items while there is demand, reads at most one new batch per call
+	 */
+	private void emit() {
+		if (buffer.isEmpty() && !exhausted) {
+			try {
+				List<T> batch = source.next(batchSize);
+				exhausted = batch.isEmpty();
+				buffer.addAll(batch);
+			} catch (RuntimeException e) {
+				ended = true;
+				if (exceptionHandler != null) {
+					exceptionHandler.handle(e);
+				}
+				return;
+			}
+		}
+		while (demand > 0 && handler != null && !buffer.isEmpty()) {
+			if (demand != Long.MAX_VALUE) {
+				demand--;
+			}
+			handler.handle(buffer.poll());
+		}
+		if (buffer.isEmpty() && exhausted) {
+			ended = true;
+			if (endHandler != null) {
+				endHandler.handle(null);
+			}
+		} else if (demand > 0) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Source of items
+	 */
+	@FunctionalInterface
+	interface BatchSource<T> {
+
+		/**
+		 * @param max
+		 * @return next items, empty list when source is exhausted
+		 */
+		List<T> next(int max);
+	}
+}
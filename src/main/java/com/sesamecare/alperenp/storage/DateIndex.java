@@ -0,0 +1,121 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.storage;
+
+import java.util.Arrays;
+
+/**
+ * appointmentDate ordered secondary index of record offsets
+ * <p>
+ * Sorted parallel primitive arrays, entries with equal dates are kept in insertion order.
+ * <p>
+ * Not thread safe
+ *
+ * @author alperenp
+ *
+ */
+class DateIndex {
+
+	private long[] dates = new long[64];
+
+	private int[] offsets = new int[64];
+
+	private int size;
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	void add(long date, int offset) {
+		if (size == dates.length) {
+			dates = Arrays.copyOf(dates, size * 2);
+			offsets = Arrays.copyOf(offsets, size * 2);
+		}
+		int position = upperBound(date);
+		System.arraycopy(dates, position, dates, position + 1, size - position);
+		System.arraycopy(offsets, position, offsets, position + 1, size - position);
+		dates[position] = date;
+		offsets[position] = offset;
+		size++;
+	}
+
+	boolean remove(long date, int offset) {
+		for (int position = lowerBound(date); position < size && dates[position] == date; position++) {
+			if (offsets[position] == offset) {
+				System.arraycopy(dates, position + 1, dates, position, size - position - 1);
+				System.arraycopy(offsets, position + 1, offsets, position, size - position - 1);
+				size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return first position whose date is greater than or equal to given date
+	 */
+	int lowerBound(long date) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (dates[mid] < date) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return first position whose date is greater than given date
+	 */
+	int upperBound(long date) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (dates[mid] <= date) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	int offset(int position) {
+		return offsets[position];
+	}
+
+	/**
+	 * @return copy of every offset in date order
+	 */
+	int[] offsets() {
+		return Arrays.copyOf(offsets, size);
+	}
+}
@@ -0,0 +1,466 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sesamecare.alperenp.data.Appointment;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Embedded {@link AppointmentStore} which does not need a mongo server
+ * <p>
+ * Appointments are kept in an {@link AppointmentLog} with an {@link IdIndex} and a {@link DateIndex} over it. Indexes
+ * are rebuilt from the log on startup, which also recovers from a crash in the middle of a write. Log is compacted
+ * periodically once it holds more dead records than live ones.
+ * <p>
+ * One store is shared by every verticle instance using the same file, operations are serialized on the store.
+ * <p>
+ * Config: "embedded_path" (default "appointments.db"), "embedded_initial_size" (bytes, default 4MB),
+ * "embedded_compaction_interval_ms" (default 60000), "embedded_fsync" (flush after every write, default false)
+ *
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class EmbeddedAppointmentStore implements AppointmentStore {
+
+	/**
+	 * Open stores by absolute file path
+	 */
+	private static final Map<Path, EmbeddedAppointmentStore> OPEN_STORES = new HashMap<>();
+
+	/**
+	 * Minimum number of dead records before compaction is considered
+	 */
+	private static final int COMPACTION_MIN_DEAD_RECORDS = 1024;
+
+	/**
+	 * Number of appointments read from log at once while exporting
+	 */
+	private static final int EXPORT_BATCH_SIZE = 256;
+
+	private final Vertx vertx;
+
+	private final Path path;
+
+	private final AppointmentLog appointmentLog;
+
+	private final IdIndex idIndex;
+
+	private final DateIndex dateIndex = new DateIndex();
+
+	private final boolean fsync;
+
+	private final long timerID;
+
+	private int references;
+
+	private boolean compacting;
+
+	private boolean closed;
+
+	/**
+	 * Opens store configured in given config, or returns already opened one. Every call must be paired with
+	 * {@link #close()}.
+	 *
+	 * @param vertx
+	 * @param config
+	 * @return
+	 * @throws IOException if log cannot be opened
+	 */
+	public static EmbeddedAppointmentStore open(@NonNull Vertx vertx, @NonNull JsonObject config)
+			throws IOException {
+		Path path = Paths.get(config.getString("embedded_path", "appointments.db")).toAbsolutePath();
+		synchronized (OPEN_STORES) {
+			EmbeddedAppointmentStore store = OPEN_STORES.get(path);
+			if (store == null) {
+				store = new EmbeddedAppointmentStore(vertx, path, config);
+				OPEN_STORES.put(path, store);
+			}
+			store.references++;
+			return store;
+		}
+	}
+
+	private EmbeddedAppointmentStore(Vertx vertx, Path path, JsonObject config) throws IOException {
+		this.vertx = vertx;
+		this.path = path;
+		this.fsync = config.getBoolean("embedded_fsync", false);
+		this.appointmentLog = new AppointmentLog(path, config.getInteger("embedded_initial_size", 4 * 1024 * 1024));
+		this.idIndex = new IdIndex(appointmentLog);
+		long startTime = System.currentTimeMillis();
+		int records = rebuildIndexes();
+		log.info("Embedded store {} recovered {} records ({} live) in {} ms", path, records, idIndex.size(),
+				System.currentTimeMillis() - startTime);
+		this.timerID = vertx.setPeriodic(config.getLong("embedded_compaction_interval_ms", 60000L),
+				id -> vertx.<Void>executeBlocking(future -> {
+					compactIfNeeded();
+					future.complete();
+				}, false, null));
+	}
+
+	/**
+	 * Releases store, last release closes the log
+	 */
+	public void close() {
+		synchronized (OPEN_STORES) {
+			if (--references > 0) {
+				return;
+			}
+			OPEN_STORES.remove(path);
+		}
+		vertx.cancelTimer(timerID);
+		synchronized (this) {
+			closed = true;
+			try {
+				appointmentLog.close();
+			} catch (IOException e) {
+				log.error("Embedded store {} cannot be closed. Details: {}", path, e.toString());
+			}
+		}
+	}
+
+	/* ------ OPERATIONS ------ */
+
+	@Override
+	public synchronized Future<JsonObject> deleteOne(String appointmentID) {
+		try {
+			int offset = appointmentID == null ? -1 : idIndex.remove(appointmentID);
+			if (offset < 0) {
+				return Future.succeededFuture(result(false));
+			}
+			dateIndex.remove(appointmentLog.appointmentDate(offset), offset);
+			appointmentLog.appendDelete(appointmentID);
+			flush();
+			return Future.succeededFuture(result(true));
+		} catch (IOException e) {
+			return failure(e);
+		}
+	}
+
+	@Override
+	public synchronized Future<JsonObject> insertAppointment(Appointment appointment) {
+		if (!AppointmentLog.fits(appointment)) {
+			return Future.succeededFuture(result(false));
+		}
+		try {
+			put(appointment);
+			return Future.succeededFuture(result(true));
+		} catch (IOException e) {
+			return failure(e);
+		}
+	}
+
+	@Override
+	public synchronized Future<JsonObject> replaceAppointment(Appointment appointment) {
+		int offset = idIndex.get(appointment.getId());
+		if (!AppointmentLog.fits(appointment) || offset < 0) {
+			return Future.succeededFuture(result(false));
+		}
+		Appointment replacement = new Appointment(appointment.getId(), appointment.getCreatedTime(),
+				appointment.getAppointmentDate(), appointment.getAppointmentDuration(), appointment.getDoctorName(),
+				appointment.getStatus(), appointment.getPrice(), appointmentLog.read(offset).getVersion() + 1);
+		try {
+			put(replacement);
+			return Future.succeededFuture(result(true).put("version", replacement.getVersion()));
+		} catch (IOException e) {
+			return failure(e);
+		}
+	}
+
+	@Override
+	public synchronized Future<List<JsonObject>> findAppointment(String appointmentID) {
+		List<JsonObject> result = new ArrayList<>(1);
+		int offset = appointmentID == null ? -1 : idIndex.get(appointmentID);
+		if (offset >= 0) {
+			result.add(JsonObject.mapFrom(appointmentLog.read(offset)));
+		}
+		return Future.succeededFuture(result);
+	}
+
+	@Override
+	public synchronized Future<List<JsonObject>> findAppointments(List<String> appointmentIDs) {
+		List<JsonObject> result = new ArrayList<>(appointmentIDs.size());
+		for (String appointmentID : appointmentIDs) {
+			int offset = appointmentID == null ? -1 : idIndex.get(appointmentID);
+			result.add(offset < 0 ? null : JsonObject.mapFrom(appointmentLog.read(offset)));
+		}
+		return Future.succeededFuture(result);
+	}
+
+	@Override
+	public synchronized Future<List<JsonObject>> findAppointmentsWithRangeAndSort(long start, long end) {
+		List<Appointment> appointments = new ArrayList<>();
+		for (int position = dateIndex.lowerBound(start); position < dateIndex.upperBound(end); position++) {
+			int offset = dateIndex.offset(position);
+			if (appointmentLog.status(offset) == Appointment.Status.BOOKED) {
+				appointments.add(appointmentLog.read(offset));
+			}
+		}
+		appointments.sort(Comparator.comparingDouble(Appointment::getPrice));
+		return Future.succeededFuture(toJson(appointments));
+	}
+
+	@Override
+	public synchronized Future<List<JsonObject>> getAllAppointments() {
+		List<Appointment> appointments = new ArrayList<>(dateIndex.size());
+		for (int position = 0; position < dateIndex.size(); position++) {
+			appointments.add(appointmentLog.read(dateIndex.offset(position)));
+		}
+		return Future.succeededFuture(toJson(appointments));
+	}
+
+	@Override
+	public synchronized Future<JsonObject> deleteAllAppointments() {
+		appointmentLog.truncate();
+		flush();
+		idIndex.clear();
+		dateIndex.clear();
+		return Future.succeededFuture(result(true));
+	}
+
+	@Override
+	public Future<JsonObject> bookAppointment(String appointmentID, Long version) {
+		return changeStatus(appointmentID, version, Appointment.Status.AVAILABLE, Appointment.Status.BOOKED);
+	}
+
+	@Override
+	public Future<JsonObject> cancelAppointment(String appointmentID, Long version) {
+		return changeStatus(appointmentID, version, Appointment.Status.BOOKED, Appointment.Status.AVAILABLE);
+	}
+
+	@Override
+	public synchronized Future<JsonObject> insertAppointments(List<Appointment> appointments) {
+		int inserted = 0;
+		try {
+			for (Appointment appointment : appointments) {
+				if (AppointmentLog.fits(appointment)) {
+					put(appointment);
+					inserted++;
+				}
+			}
+			return Future.succeededFuture(result(inserted == appointments.size()).put("inserted", inserted));
+		} catch (IOException e) {
+			return failure(e);
+		}
+	}
+
+	@Override
+	public ReadStream<JsonObject> exportAppointments(Long start, Long end) {
+		long from = start == null ? Long.MIN_VALUE : start;
+		long to = end == null ? Long.MAX_VALUE : end;
+		// continuation: last exported date and number of exported records having that date
+		long[] last = { from, 0 };
+		return new BatchReadStream<>(vertx.getOrCreateContext(), max -> {
+			synchronized (this) {
+				List<JsonObject> batch = new ArrayList<>(max);
+				int position = dateIndex.lowerBound(last[0]) + (int) last[1];
+				int limit = dateIndex.upperBound(to);
+				for (; position < limit && batch.size() < max; position++) {
+					int offset = dateIndex.offset(position);
+					long date = appointmentLog.appointmentDate(offset);
+					last[1] = date == last[0] ? last[1] + 1 : 1;
+					last[0] = date;
+					batch.add(JsonObject.mapFrom(appointmentLog.read(offset)));
+				}
+				return batch;
+			}
+		}, EXPORT_BATCH_SIZE);
+	}
+
+	/**
+	 * Embedded store has no archive, log compaction already keeps it small
+	 */
+	@Override
+	public Future<JsonObject> archiveAppointments(long before, int limit) {
+		return Future.succeededFuture(result(false).put("archived", 0));
+	}
+
+	@Override
+	public AppointmentStore archive() {
+		return null;
+	}
+
+	/**
+	 * Moves appointment from one status to another if it is in expected status and version
+	 */
+	private synchronized Future<JsonObject> changeStatus(String appointmentID, Long version,
+			Appointment.Status from, Appointment.Status to) {
+		int offset = appointmentID == null ? -1 : idIndex.get(appointmentID);
+		if (offset < 0) {
+			return Future.succeededFuture(result(false));
+		}
+		Appointment appointment = appointmentLog.read(offset);
+		if (appointment.getStatus() != from || (version != null && appointment.getVersion() != version)) {
+			return Future.succeededFuture(result(false));
+		}
+		appointment.setStatus(to);
+		appointment.setVersion(appointment.getVersion() + 1);
+		try {
+			put(appointment);
+			return Future.succeededFuture(result(true).put("version", appointment.getVersion()));
+		} catch (IOException e) {
+			return failure(e);
+		}
+	}
+
+	/* ------ INTERNALS ------ */
+
+	/**
+	 * Appends appointment to log and updates indexes
+	 */
+	private void put(Appointment appointment) throws IOException {
+		int offset = appointmentLog.appendPut(appointment);
+		int previous = idIndex.put(appointment.getId(), offset);
+		if (previous >= 0) {
+			dateIndex.remove(appointmentLog.appointmentDate(previous), previous);
+		}
+		dateIndex.add(appointment.getAppointmentDate(), offset);
+		flush();
+	}
+
+	private void flush() {
+		if (fsync) {
+			appointmentLog.force();
+		}
+	}
+
+	/**
+	 * Recovers log into empty indexes
+	 *
+	 * @return number of records in log
+	 */
+	private int rebuildIndexes() {
+		idIndex.clear();
+		dateIndex.clear();
+		return appointmentLog.recover(this::index);
+	}
+
+	/**
+	 * Applies record of log to indexes
+	 */
+	private void index(byte type, int offset) {
+		String id = appointmentLog.id(offset);
+		int previous = type == AppointmentLog.PUT ? idIndex.put(id, offset) : idIndex.remove(id);
+		if (previous >= 0) {
+			dateIndex.remove(appointmentLog.appointmentDate(previous), previous);
+		}
+		if (type == AppointmentLog.PUT) {
+			dateIndex.add(appointmentLog.appointmentDate(offset), offset);
+		}
+	}
+
+	/**
+	 * @return number of records which are overwritten, deleted or tombstones
+	 */
+	synchronized int deadRecords() {
+		return (appointmentLog.end() - AppointmentLog.HEADER_SIZE) / AppointmentLog.RECORD_SIZE - idIndex.size();
+	}
+
+	/**
+	 * Compacts log if it holds more dead records than live ones
+	 */
+	void compactIfNeeded() {
+		int dead;
+		int live;
+		synchronized (this) {
+			dead = deadRecords();
+			live = idIndex.size();
+		}
+		if (dead >= COMPACTION_MIN_DEAD_RECORDS && dead > live) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites log with live records only, blocking. Live records are copied without holding the store, which only
+	 * waits for records written meanwhile to be copied, the file swap and index rebuild
+	 */
+	void compact() {
+		long startTime = System.currentTimeMillis();
+		int dead;
+		AppointmentLog.Compaction compaction;
+		synchronized (this) {
+			if (compacting || closed) {
+				return;
+			}
+			compacting = true;
+			dead = deadRecords();
+			compaction = appointmentLog.startCompaction(dateIndex.offsets(), dateIndex.size());
+		}
+		try (AppointmentLog.Compaction copied = compaction) {
+			copied.copy();
+			synchronized (this) {
+				if (closed || !appointmentLog.finishCompaction(copied)) {
+					log.info("Embedded store {} was closed or cleared during compaction, compaction dropped", path);
+					return;
+				}
+				idIndex.clear();
+				dateIndex.clear();
+				appointmentLog.replay(this::index);
+			}
+			log.info("Embedded store {} compacted, {} dead records removed in {} ms", path, dead,
+					System.currentTimeMillis() - startTime);
+		} catch (IOException e) {
+			log.error("Embedded store {} compaction failed. Details: {}", path, e.toString());
+			synchronized (this) {
+				// log may have been reopened
+				if (!closed) {
+					rebuildIndexes();
+				}
+			}
+		} finally {
+			synchronized (this) {
+				compacting = false;
+			}
+		}
+	}
+
+	private static JsonObject result(boolean result) {
+		return new JsonObject().put("result", result);
+	}
+
+	private static List<JsonObject> toJson(List<Appointment> appointments) {
+		List<JsonObject> result = new ArrayList<>(appointments.size());
+		appointments.forEach(appointment -> result.add(JsonObject.mapFrom(appointment)));
+		return result;
+	}
+
+	private <T> Future<T> failure(IOException e) {
+		log.error("Embedded store {} write failed. Details: {}", path, e.toString());
+		return Future.failedFuture(e);
+	}
+}
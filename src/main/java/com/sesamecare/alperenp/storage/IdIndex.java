@@ -0,0 +1,173 @@
+/**
+Copyright (c) 2018 alperenp
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package com.sesamecare.alperenp.storage;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appointment id -> record offset hash index
+ * <p>
+ * Open addressing with linear probing over primitive arrays, keys are not stored but compared against the id stored
+ * in the log record. Removal uses backward shift deletion so no tombstones are needed.
+ * <p>
+ * Not thread safe
+ *
+ * @author alperenp
+ *
+ */
+class IdIndex {
+
+	private final AppointmentLog log;
+
+	/**
+	 * Record offset + 1, 0 means empty slot
+	 */
+	private int[] offsets;
+
+	private int[] hashes;
+
+	private int size;
+
+	IdIndex(AppointmentLog log) {
+		this.log = log;
+		this.offsets = new int[64];
+		this.hashes = new int[64];
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		offsets = new int[64];
+		hashes = new int[64];
+		size = 0;
+	}
+
+	/**
+	 * @param id
+	 * @return record offset of given id or -1 if it does not exist
+	 */
+	int get(String id) {
+		byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+		int slot = find(idBytes, hash(idBytes));
+		return offsets[slot] == 0 ? -1 : offsets[slot] - 1;
+	}
+
+	/**
+	 * Puts record offset of given id
+	 *
+	 * @param id
+	 * @param offset
+	 * @return previous record offset or -1 if id did not exist
+	 */
+	int put(String id, int offset) {
+		if ((size + 1) * 4 > offsets.length * 3) {
+			resize();
+		}
+		byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(idBytes);
+		int slot = find(idBytes, hash);
+		int previous = offsets[slot] - 1;
+		if (previous < 0) {
+			size++;
+		}
+		offsets[slot] = offset + 1;
+		hashes[slot] = hash;
+		return previous;
+	}
+
+	/**
+	 * Removes given id
+	 *
+	 * @param id
+	 * @return removed record offset or -1 if id did not exist
+	 */
+	int remove(String id) {
+		byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+		int slot = find(idBytes, hash(idBytes));
+		int removed = offsets[slot] - 1;
+		if (removed < 0) {
+			return -1;
+		}
+		size--;
+		int mask = offsets.length - 1;
+		// backward shift deletion
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (offsets[next] != 0) {
+			int home = hashes[next] & mask;
+			// entry can move to hole if its home slot is not in (hole, next]
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				offsets[hole] = offsets[next];
+				hashes[hole] = hashes[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		offsets[hole] = 0;
+		hashes[hole] = 0;
+		return removed;
+	}
+
+	/**
+	 * @return slot holding given id, or empty slot where it would be inserted
+	 */
+	private int find(byte[] idBytes, int hash) {
+		int mask = offsets.length - 1;
+		int slot = hash & mask;
+		while (offsets[slot] != 0) {
+			if (hashes[slot] == hash && log.idEquals(offsets[slot] - 1, idBytes)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void resize() {
+		int[] oldOffsets = offsets;
+		int[] oldHashes = hashes;
+		offsets = new int[oldOffsets.length * 2];
+		hashes = new int[oldOffsets.length * 2];
+		int mask = offsets.length - 1;
+		for (int i = 0; i < oldOffsets.length; i++) {
+			if (oldOffsets[i] != 0) {
+				int slot = oldHashes[i] & mask;
+				while (offsets[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				offsets[slot] = oldOffsets[i];
+				hashes[slot] = oldHashes[i];
+			}
+		}
+	}
+
+	private static int hash(byte[] idBytes) {
+		int hash = 1;
+		for (byte b : idBytes) {
+			hash = 31 * hash + b;
+		}
+		// spread high bits, masks only use the low ones
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,180 @@
+package com.sesamecare.alperenp.loadtest;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.service.AppointmentServiceController;
+import com.sesamecare.alperenp.service.BucketedAppointmentStore;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.MongoClient;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Compares week long range queries on flat schema (one document per appointment) and bucket schema (one document per
+ * doctor per day, see {@link BucketedAppointmentStore}) on the same data set
+ * <p>
+ * Needs a running mongo. Usage:
+ * {@code mvn -Ploadtest test-compile exec:java -Dloadtest.main=com.sesamecare.alperenp.loadtest.BucketSchemaBenchmark}
+ * with optional {@code -Dloadtest.config=benchmark.json}. Config (all optional):
+ *
+ * <pre>
+ * {
+ *   "connection_string": "mongodb://localhost:27017", "db_name": "DB_BENCH",
+ *   "appointments": 100000, "doctors": 50, "days": 90,
+ *   "queries": 500, "warmupQueries": 50,
+ *   "report": "target/bucket-benchmark.json"
+ * }
+ * </pre>
+ *
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class BucketSchemaBenchmark {
+
+	private static final long ONE_HOUR = 3600000;
+
+	private static final long ONE_DAY = 24 * ONE_HOUR;
+
+	private final Vertx vertx;
+
+	private final JsonObject config;
+
+	private final JsonObject storeConfig;
+
+	private final long origin = System.currentTimeMillis() / ONE_DAY * ONE_DAY;
+
+	public BucketSchemaBenchmark(Vertx vertx, JsonObject config) {
+		this.vertx = vertx;
+		this.config = config;
+		this.storeConfig = new JsonObject()
+				.put("connection_string", config.getString("connection_string", "mongodb://localhost:27017"))
+				.put("db_name", config.getString("db_name", "DB_BENCH")).put("mongo_collection", "bench_flat")
+				.put("bucket_collection", "bench_buckets").put("schema", "bucket");
+	}
+
+	/**
+	 * Loads same appointments into both schemas, then runs identical range queries against each
+	 *
+	 * @return report
+	 */
+	public Future<JsonObject> run() {
+		AppointmentStore flat = new AppointmentServiceController(vertx, storeConfig);
+		AppointmentStore buckets = new BucketedAppointmentStore(vertx, storeConfig);
+		MongoClient mongoClient = MongoClient.createShared(vertx, storeConfig);
+		Future<Void> indexed = Future.future();
+		mongoClient.createIndex("bench_flat", new JsonObject().put("appointmentDate", 1), indexed);
+		BucketedAppointmentStore.createIndexes(vertx, storeConfig);
+		JsonObject report = new JsonObject().put("config", config);
+		return indexed.compose(v -> flat.deleteAllAppointments()).compose(v -> buckets.deleteAllAppointments())
+				.compose(v -> load(flat, buckets, 0)).compose(v -> {
+					Future<Long> flatCount = Future.future();
+					mongoClient.count("bench_flat", new JsonObject(), flatCount);
+					return flatCount.compose(count -> {
+						report.put("flatDocuments", count);
+						Future<Long> bucketCount = Future.future();
+						mongoClient.count("bench_buckets", new JsonObject(), bucketCount);
+						return bucketCount;
+					});
+				}).compose(count -> {
+					report.put("bucketDocuments", count);
+					return measure("flat", flat, report);
+				}).compose(v -> measure("bucket", buckets, report)).compose(v -> {
+					log.info("Bucket schema benchmark: {}", report.encodePrettily());
+					return flat.deleteAllAppointments().compose(deleted -> buckets.deleteAllAppointments())
+							.map(deleted -> report);
+				});
+	}
+
+	/**
+	 * Inserts appointments in batches of 1000 into both schemas
+	 */
+	private Future<Void> load(AppointmentStore flat, AppointmentStore buckets, int next) {
+		int total = config.getInteger("appointments", 100000);
+		if (next >= total) {
+			return Future.succeededFuture();
+		}
+		Random random = new Random(next);
+		int doctors = config.getInteger("doctors", 50);
+		int days = config.getInteger("days", 90);
+		List<Appointment> batch = new ArrayList<>(1000);
+		for (int i = next; i < Math.min(total, next + 1000); i++) {
+			long date = origin + random.nextInt(days) * ONE_DAY + random.nextInt(20) * ONE_HOUR / 2;
+			batch.add(new Appointment("bench-" + i, origin, date, ONE_HOUR / 2, "Dr. " + random.nextInt(doctors),
+					random.nextBoolean() ? Appointment.Status.BOOKED : Appointment.Status.AVAILABLE,
+					random.nextInt(100000) / 100.0));
+		}
+		return flat.insertAppointments(batch).compose(v -> buckets.insertAppointments(batch))
+				.compose(v -> load(flat, buckets, next + batch.size()));
+	}
+
+	/**
+	 * Runs warm-up and measured week long range queries one after another
+	 */
+	private Future<Void> measure(String name, AppointmentStore store, JsonObject report) {
+		int warmup = config.getInteger("warmupQueries", 50);
+		int queries = config.getInteger("queries", 500);
+		int days = config.getInteger("days", 90);
+		LatencyHistogram histogram = new LatencyHistogram();
+		Random random = new Random(42);
+		long[] results = new long[1];
+		Future<Void> future = Future.succeededFuture();
+		for (int i = 0; i < warmup + queries; i++) {
+			boolean record = i >= warmup;
+			long start = origin + random.nextInt(Math.max(1, days - 7)) * ONE_DAY;
+			future = future.compose(v -> {
+				long startTime = System.nanoTime();
+				return store.findAppointmentsWithRangeAndSort(start, start + 7 * ONE_DAY).map(found -> {
+					if (record) {
+						histogram.record((System.nanoTime() - startTime) / 1000);
+						results[0] += found.size();
+					}
+					return null;
+				});
+			});
+		}
+		return future.map(v -> {
+			report.put(name, histogram.toJson().put("averageResults", results[0] / Math.max(1, queries)));
+			return null;
+		});
+	}
+
+	/**
+	 * Runs benchmark and writes report
+	 *
+	 * @param args optional path of json config
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		String configPath = args.length > 0 ? args[0] : System.getProperty("loadtest.config");
+		JsonObject config = configPath == null || configPath.isEmpty() ? new JsonObject()
+				: new JsonObject(new String(Files.readAllBytes(Paths.get(configPath)), "UTF-8"));
+		Vertx vertx = Vertx.vertx();
+		new BucketSchemaBenchmark(vertx, config).run().setHandler(result -> {
+			int exitCode = 0;
+			if (result.succeeded()) {
+				String reportPath = config.getString("report", "target/bucket-benchmark.json");
+				try {
+					Files.createDirectories(Paths.get(reportPath).toAbsolutePath().getParent());
+					Files.write(Paths.get(reportPath), result.result().encodePrettily().getBytes("UTF-8"));
+				} catch (Exception e) {
+					log.error("Benchmark report cannot be written. Details: {}", e.toString());
+					exitCode = 1;
+				}
+			} else {
+				log.error("Benchmark failed. Details: {}", result.cause().toString());
+				exitCode = 1;
+			}
+			int code = exitCode;
+			vertx.close(closed -> System.exit(code));
+		});
+	}
+}
@@ -0,0 +1,110 @@
+package com.sesamecare.alperenp.loadtest;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.service.BsonCodec;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Compares size and encode/decode throughput of json and bson (see {@link BsonCodec}) for range query sized lists of
+ * appointments. Runs in-process, no service or mongo needed.
+ * <p>
+ * Usage:
+ * {@code mvn -Ploadtest test-compile exec:java -Dloadtest.main=com.sesamecare.alperenp.loadtest.EncodingBenchmark}
+ * with optional {@code -Dloadtest.config=benchmark.json}. Config (all optional):
+ *
+ * <pre>
+ * {
+ *   "appointments": 1000,         // appointments per response
+ *   "iterations": 2000, "warmupIterations": 500,
+ *   "report": "target/encoding-benchmark.json"
+ * }
+ * </pre>
+ *
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class EncodingBenchmark {
+
+	private final JsonObject config;
+
+	private final List<JsonObject> appointments = new ArrayList<>();
+
+	public EncodingBenchmark(JsonObject config) {
+		this.config = config;
+		Random random = new Random(42);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < config.getInteger("appointments", 1000); i++) {
+			Appointment appointment = new Appointment("bench-" + i, now, now + random.nextInt(1000000000), 1800000,
+					"Dr. " + random.nextInt(100),
+					random.nextBoolean() ? Appointment.Status.BOOKED : Appointment.Status.AVAILABLE,
+					random.nextInt(100000) / 100.0);
+			appointments.add(new JsonObject(Json.encode(appointment)));
+		}
+	}
+
+	/**
+	 * @return report with sizes and operations per second of each format
+	 */
+	public JsonObject run() {
+		Buffer json = Buffer.buffer(new JsonArray(appointments).encode());
+		Buffer bson = BsonCodec.encode(appointments);
+		JsonObject report = new JsonObject().put("config", config).put("appointments", appointments.size());
+		report.put("json", new JsonObject().put("bytes", json.length())
+				.put("encodePerSecond", measure(() -> Buffer.buffer(new JsonArray(appointments).encode())))
+				.put("decodePerSecond", measure(() -> new JsonArray(json.toString()))));
+		report.put("bson", new JsonObject().put("bytes", bson.length())
+				.put("encodePerSecond", measure(() -> BsonCodec.encode(appointments)))
+				.put("decodePerSecond", measure(() -> BsonCodec.decodeAll(bson))));
+		return report;
+	}
+
+	/**
+	 * @return operations per second after warm-up
+	 */
+	private double measure(Supplier<Object> operation) {
+		Object sink = null;
+		for (int i = 0; i < config.getInteger("warmupIterations", 500); i++) {
+			sink = operation.get();
+		}
+		int iterations = config.getInteger("iterations", 2000);
+		long startTime = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink = operation.get();
+		}
+		long duration = System.nanoTime() - startTime;
+		if (sink == null) {
+			throw new IllegalStateException("Operation returned nothing");
+		}
+		return Math.round(iterations * 1e9 / duration * 10) / 10.0;
+	}
+
+	/**
+	 * Runs benchmark and writes report
+	 *
+	 * @param args optional path of json config
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		String configPath = args.length > 0 ? args[0] : System.getProperty("loadtest.config");
+		JsonObject config = configPath == null || configPath.isEmpty() ? new JsonObject()
+				: new JsonObject(new String(Files.readAllBytes(Paths.get(configPath)), "UTF-8"));
+		JsonObject report = new EncodingBenchmark(config).run();
+		log.info("Encoding benchmark: {}", report.encodePrettily());
+		String reportPath = config.getString("report", "target/encoding-benchmark.json");
+		Files.createDirectories(Paths.get(reportPath).toAbsolutePath().getParent());
+		Files.write(Paths.get(reportPath), report.encodePrettily().getBytes("UTF-8"));
+	}
+}
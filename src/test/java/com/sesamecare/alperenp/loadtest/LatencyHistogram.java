@@ -0,0 +1,105 @@
+package com.sesamecare.alperenp.loadtest;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Log-linear latency histogram in the spirit of HdrHistogram
+ * <p>
+ * Values (microseconds) below 128 are recorded exactly, larger values are recorded into 64 sub-buckets per power of
+ * two, so every recorded value is within 1/64 (~1.6%) of its bucket. Memory is fixed and recording never allocates.
+ * <p>
+ * Not thread safe, each load generator records from a single event loop
+ * 
+ * @author alperenp
+ *
+ */
+public class LatencyHistogram {
+	
+	private static final int LINEAR_BUCKETS = 128;
+	
+	private static final int SUB_BUCKETS = 64;
+	
+	/**
+	 * Covers values up to 2^40 us (~12 days)
+	 */
+	private static final int MAX_SHIFT = 34;
+	
+	private final long[] counts = new long[LINEAR_BUCKETS + MAX_SHIFT * SUB_BUCKETS];
+	
+	private long totalCount;
+	
+	private long max;
+	
+	private double sum;
+	
+	/**
+	 * Records a latency
+	 * 
+	 * @param micros
+	 */
+	public void record(long micros) {
+		long value = Math.max(0, micros);
+		counts[index(value)]++;
+		totalCount++;
+		sum += value;
+		max = Math.max(max, value);
+	}
+	
+	public long count() {
+		return totalCount;
+	}
+	
+	public long max() {
+		return max;
+	}
+	
+	public double mean() {
+		return totalCount == 0 ? 0 : sum / totalCount;
+	}
+	
+	/**
+	 * @param percentile between 0 and 100
+	 * @return highest value of bucket holding given percentile (value at or below which percentile of records fall)
+	 */
+	public long valueAtPercentile(double percentile) {
+		if (totalCount == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max);
+			}
+		}
+		return max;
+	}
+	
+	/**
+	 * @return summary with standard percentiles, latencies in microseconds
+	 */
+	public JsonObject toJson() {
+		return new JsonObject().put("count", totalCount).put("meanUs", mean()).put("p50Us", valueAtPercentile(50))
+				.put("p90Us", valueAtPercentile(90)).put("p99Us", valueAtPercentile(99))
+				.put("p999Us", valueAtPercentile(99.9)).put("p9999Us", valueAtPercentile(99.99)).put("maxUs", max);
+	}
+	
+	static int index(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		int shift = Math.min(63 - Long.numberOfLeadingZeros(value) - 6, MAX_SHIFT);
+		long subBucket = Math.min(value >>> shift, 2 * SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (subBucket - SUB_BUCKETS);
+	}
+	
+	static long highestValue(int index) {
+		if (index < LINEAR_BUCKETS) {
+			return index;
+		}
+		int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+		long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
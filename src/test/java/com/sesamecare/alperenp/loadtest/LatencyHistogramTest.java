@@ -0,0 +1,31 @@
+package com.sesamecare.alperenp.loadtest;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+	@Test
+	void bucketBoundariesTest() {
+		for (long value = 0; value < 1 << 20; value++) {
+			int index = LatencyHistogram.index(value);
+			Assertions.assertTrue(LatencyHistogram.highestValue(index) >= value);
+			Assertions.assertTrue(index == 0 || LatencyHistogram.highestValue(index - 1) < value);
+		}
+	}
+
+	@Test
+	void percentileTest() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 10000; value++) {
+			histogram.record(value);
+		}
+		Assertions.assertEquals(10000, histogram.count());
+		Assertions.assertEquals(10000, histogram.max());
+		long p50 = histogram.valueAtPercentile(50);
+		long p99 = histogram.valueAtPercentile(99);
+		Assertions.assertTrue(Math.abs(p50 - 5000) <= 5000 / 64 + 1, "p50: " + p50);
+		Assertions.assertTrue(Math.abs(p99 - 9900) <= 9900 / 64 + 1, "p99: " + p99);
+		Assertions.assertEquals(10000, histogram.valueAtPercentile(100));
+	}
+}
@@ -0,0 +1,290 @@
+package com.sesamecare.alperenp.loadtest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.service.AppointmentService;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Open-loop HTTP load generator for {@link AppointmentService}
+ * <p>
+ * Requests are scheduled at a fixed arrival rate regardless of how fast the service responds, and latency is measured
+ * from the time a request was scheduled to be sent. A slow service therefore shows up as queueing delay in the
+ * percentiles instead of silently lowering the request rate (coordinated omission).
+ * <p>
+ * Usage: {@code mvn -Ploadtest test-compile exec:java -Dloadtest.config=loadtest.json} or run main with an optional
+ * json config path.
+ * Config (all optional):
+ *
+ * <pre>
+ * {
+ *   "deploy": true,              // deploy service in-process with embedded storage (no mongo needed)
+ *   "host": "localhost", "port": 8080,
+ *   "rate": 500,                 // requests per second
+ *   "durationSeconds": 30, "warmupSeconds": 5,
+ *   "keySpace": 10000,           // number of appointment ids used
+ *   "connections": 64,
+ *   "mix": {"insert": 10, "update": 10, "find": 60, "range": 15, "delete": 5},
+ *                                // "all" (bulk allAppointments) can be added to check interactive latency under bulk load
+ *   "report": "target/loadtest-report.json"
+ * }
+ * </pre>
+ *
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class LoadGenerator {
+
+	private static final long ONE_HOUR = 3600000;
+
+	private final Vertx vertx;
+
+	private final JsonObject config;
+
+	private final String host;
+
+	private final int port;
+
+	private final int keySpace;
+
+	private final WebClient client;
+
+	/**
+	 * Operation name -> cumulative weight
+	 */
+	private final Map<String, Integer> mix = new LinkedHashMap<>();
+
+	private final int totalWeight;
+
+	private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+
+	private final Map<String, Long> errors = new LinkedHashMap<>();
+
+	private long outstanding;
+
+	public LoadGenerator(Vertx vertx, JsonObject config) {
+		this.vertx = vertx;
+		this.config = config;
+		this.host = config.getString("host", "localhost");
+		this.port = config.getInteger("port", 8080);
+		this.keySpace = config.getInteger("keySpace", 10000);
+		this.client = WebClient.create(vertx,
+				new WebClientOptions().setMaxPoolSize(config.getInteger("connections", 64)).setMaxWaitQueueSize(-1));
+		JsonObject mixConfig = config.getJsonObject("mix", new JsonObject().put("insert", 10).put("update", 10)
+				.put("find", 60).put("range", 15).put("delete", 5));
+		int weight = 0;
+		for (String operation : mixConfig.fieldNames()) {
+			weight += mixConfig.getInteger(operation);
+			mix.put(operation, weight);
+			histograms.put(operation, new LatencyHistogram());
+			errors.put(operation, 0L);
+		}
+		this.totalWeight = weight;
+	}
+
+	/**
+	 * Preloads key space, then runs warm-up and measured phases
+	 *
+	 * @return report
+	 */
+	public Future<JsonObject> run() {
+		Future<JsonObject> report = Future.future();
+		preload(0, Future.future()).setHandler(preloaded -> {
+			if (preloaded.failed()) {
+				report.fail(preloaded.cause());
+				return;
+			}
+			long warmupMs = config.getInteger("warmupSeconds", 5) * 1000L;
+			long durationMs = config.getInteger("durationSeconds", 30) * 1000L;
+			long rate = config.getInteger("rate", 500);
+			log.info("Load test: {} req/s, warm-up {} ms, duration {} ms, mix {}", rate, warmupMs, durationMs, mix);
+			long startTime = System.nanoTime();
+			long[] sent = new long[1];
+			long timerID = vertx.setPeriodic(1, id -> {
+				long now = System.nanoTime();
+				long due = (now - startTime) * rate / 1000000000L;
+				while (sent[0] < due) {
+					long intendedTime = startTime + sent[0] * 1000000000L / rate;
+					send(pickOperation(), intendedTime, intendedTime - startTime >= warmupMs * 1000000L);
+					sent[0]++;
+				}
+			});
+			vertx.setTimer(warmupMs + durationMs, id -> {
+				vertx.cancelTimer(timerID);
+				drain(System.currentTimeMillis() + 10000, () -> report.complete(report(rate, durationMs)));
+			});
+		});
+		return report;
+	}
+
+	/**
+	 * Inserts every id in key space with bounded concurrency
+	 */
+	private Future<Void> preload(int next, Future<Void> done) {
+		int batch = Math.min(64, keySpace - next);
+		if (batch <= 0) {
+			done.complete();
+			return done;
+		}
+		int[] remaining = { batch };
+		for (int i = next; i < next + batch; i++) {
+			client.post(port, host, "/rest/insertAppointment").sendJsonObject(randomAppointment(i), ar -> {
+				if (ar.failed()) {
+					done.tryFail(ar.cause());
+				} else if (--remaining[0] == 0) {
+					preload(next + batch, done);
+				}
+			});
+		}
+		return done;
+	}
+
+	private String pickOperation() {
+		int value = ThreadLocalRandom.current().nextInt(totalWeight);
+		for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+			if (value < entry.getValue()) {
+				return entry.getKey();
+			}
+		}
+		throw new IllegalStateException("Empty mix");
+	}
+
+	/**
+	 * Sends one request, latency is measured from intended send time
+	 */
+	private void send(String operation, long intendedTime, boolean record) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int key = random.nextInt(keySpace);
+		outstanding++;
+		io.vertx.core.Handler<AsyncResult<HttpResponse<Buffer>>> handler = ar -> {
+			outstanding--;
+			if (!record) {
+				return;
+			}
+			histograms.get(operation).record((System.nanoTime() - intendedTime) / 1000);
+			if (ar.failed() || ar.result().statusCode() >= 500) {
+				errors.merge(operation, 1L, Long::sum);
+			}
+		};
+		switch (operation) {
+		case "insert":
+			client.post(port, host, "/rest/insertAppointment").sendJsonObject(randomAppointment(key), handler);
+			break;
+		case "update":
+			client.put(port, host, "/rest/updateAppointment").sendJsonObject(randomAppointment(key), handler);
+			break;
+		case "find":
+			client.get(port, host, "/rest/findAppointment")
+					.sendJsonObject(new JsonObject().put("id", "lt-" + key), handler);
+			break;
+		case "range":
+			long start = System.currentTimeMillis() + random.nextLong(30 * 24 * ONE_HOUR);
+			client.get(port, host, "/rest/findAppointmentsInRange")
+					.sendJsonObject(new JsonObject().put("start", start).put("end", start + 7 * 24 * ONE_HOUR), handler);
+			break;
+		case "all":
+			client.get(port, host, "/rest/allAppointments/").send(handler);
+			break;
+		case "delete":
+			client.delete(port, host, "/rest/deleteAppointment")
+					.sendJsonObject(new JsonObject().put("id", "lt-" + key), handler);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown operation " + operation);
+		}
+	}
+
+	private JsonObject randomAppointment(int key) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long now = System.currentTimeMillis();
+		Appointment appointment = new Appointment("lt-" + key, now, now + random.nextLong(60 * 24 * ONE_HOUR),
+				ONE_HOUR, "Dr. " + random.nextInt(100),
+				random.nextBoolean() ? Appointment.Status.BOOKED : Appointment.Status.AVAILABLE,
+				random.nextInt(100000) / 100.0);
+		return new JsonObject(Json.encode(appointment));
+	}
+
+	/**
+	 * Waits until every outstanding request completes or deadline passes
+	 */
+	private void drain(long deadline, Runnable done) {
+		if (outstanding == 0 || System.currentTimeMillis() > deadline) {
+			done.run();
+		} else {
+			vertx.setTimer(10, id -> drain(deadline, done));
+		}
+	}
+
+	private JsonObject report(long rate, long durationMs) {
+		JsonObject routes = new JsonObject();
+		long total = 0;
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			total += entry.getValue().count();
+			routes.put(entry.getKey(), entry.getValue().toJson().put("errors", errors.get(entry.getKey())));
+		}
+		return new JsonObject().put("timestamp", System.currentTimeMillis()).put("targetRate", rate)
+				.put("achievedRate", total * 1000.0 / durationMs).put("unfinished", outstanding)
+				.put("config", config).put("routes", routes);
+	}
+
+	/**
+	 * Runs load test and writes report
+	 *
+	 * @param args optional path of json config
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		String configPath = args.length > 0 ? args[0] : System.getProperty("loadtest.config");
+		JsonObject config = configPath == null || configPath.isEmpty() ? new JsonObject()
+				: new JsonObject(new String(Files.readAllBytes(Paths.get(configPath)), "UTF-8"));
+		Vertx vertx = Vertx.vertx();
+		Future<String> deployed = Future.future();
+		if (config.getBoolean("deploy", true)) {
+			File store = File.createTempFile("loadtest", ".db");
+			store.delete();
+			store.deleteOnExit();
+			JsonObject serviceConf = new JsonObject().put("http.port", config.getInteger("port", 8080))
+					.put("storage", "embedded").put("embedded_path", store.getAbsolutePath());
+			vertx.deployVerticle(new AppointmentService(), new DeploymentOptions().setConfig(serviceConf), deployed);
+		} else {
+			deployed.complete();
+		}
+		deployed.compose(v -> new LoadGenerator(vertx, config).run()).setHandler(result -> {
+			int exitCode = 0;
+			if (result.succeeded()) {
+				String reportPath = config.getString("report", "target/loadtest-report.json");
+				try {
+					Files.createDirectories(Paths.get(reportPath).toAbsolutePath().getParent());
+					Files.write(Paths.get(reportPath), result.result().encodePrettily().getBytes("UTF-8"));
+					log.info("Load test report written to {}: {}", reportPath, result.result().getJsonObject("routes"));
+				} catch (Exception e) {
+					log.error("Load test report cannot be written. Details: {}", e.toString());
+					exitCode = 1;
+				}
+			} else {
+				log.error("Load test failed. Details: {}", result.cause().toString());
+				exitCode = 1;
+			}
+			int code = exitCode;
+			vertx.close(closed -> System.exit(code));
+		});
+	}
+}
@@ -0,0 +1,58 @@
+package com.sesamecare.alperenp.service;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.sesamecare.alperenp.data.Appointment;
+
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+
+class AppointmentColumnsTest {
+
+	@Test
+	void upsertAndFindTest() {
+		AppointmentColumns columns = new AppointmentColumns();
+		columns.upsert("a", new Appointment("1", 0, 300, 10, "Dr. A", Appointment.Status.BOOKED, 50));
+		columns.upsert("b", new Appointment("2", 0, 100, 10, "Dr. B", Appointment.Status.AVAILABLE, 20));
+		Assertions.assertEquals(2, columns.size());
+		JsonObject found = columns.find("1");
+		Assertions.assertEquals("Dr. A", found.getString("doctorName"));
+		Appointment decoded = Json.decodeValue(found.toBuffer(), Appointment.class);
+		Assertions.assertEquals(300, decoded.getAppointmentDate());
+
+		// replace moves row to its new date position
+		columns.upsert("a", new Appointment("1", 0, 50, 10, "Dr. A", Appointment.Status.AVAILABLE, 50));
+		Assertions.assertEquals(2, columns.size());
+		Assertions.assertEquals("1", columns.all().get(0).getString("id"));
+		Assertions.assertEquals("AVAILABLE", columns.find("1").getString("status"));
+
+		Assertions.assertEquals("2", columns.remove("b"));
+		Assertions.assertNull(columns.find("2"));
+		Assertions.assertNull(columns.remove("b"));
+	}
+
+	@Test
+	void rangeSortedByPriceTest() {
+		AppointmentColumns columns = new AppointmentColumns();
+		for (int i = 0; i < 100; i++) {
+			Appointment.Status status = i % 3 == 0 ? Appointment.Status.AVAILABLE : Appointment.Status.BOOKED;
+			columns.upsert("m" + i, new Appointment(String.valueOf(i), 0, i * 10, 10, "Dr. " + (i % 7), status,
+					(i * 37) % 101));
+		}
+		List<JsonObject> result = columns.findBookedInRangeSortedByPrice(100, 800);
+		double previousPrice = Double.NEGATIVE_INFINITY;
+		for (JsonObject entry : result) {
+			long date = entry.getLong("appointmentDate");
+			Assertions.assertTrue(date >= 100 && date <= 800);
+			Assertions.assertEquals("BOOKED", entry.getString("status"));
+			Assertions.assertFalse(entry.getDouble("price") < previousPrice);
+			previousPrice = entry.getDouble("price");
+		}
+		// dates 100..800 -> i in 10..80, two of every three are booked
+		long expected = java.util.stream.IntStream.rangeClosed(10, 80).filter(i -> i % 3 != 0).count();
+		Assertions.assertEquals(expected, result.size());
+	}
+}
@@ -1,5 +1,7 @@
 package com.sesamecare.alperenp.service;
 
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -14,6 +16,7 @@ import com.sesamecare.alperenp.data.Appointment;
 
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
@@ -44,8 +47,7 @@ public class AppointmentServiceTest {
 	 */
 	@BeforeEach
 	void initialize(Vertx vertx, VertxTestContext testContext) throws Throwable {
-		JsonObject serviceConf = new JsonObject().put("http.port", port).put("host", "127.0.0.1")
-				.put("db_name", "DB_APP").put("mongo_collection", "appointments");
+		JsonObject serviceConf = serviceConfig();
 		DeploymentOptions options = new DeploymentOptions().setConfig(serviceConf).setInstances(1);
 		AppointmentService server = new AppointmentService();
 		List<Appointment> list = createEntries();
@@ -56,6 +58,16 @@ public class AppointmentServiceTest {
 		});
 	}
 	
+	/**
+	 * Service configuration used in tests
+	 * 
+	 * @return
+	 */
+	JsonObject serviceConfig() {
+		return new JsonObject().put("http.port", port).put("host", "127.0.0.1").put("db_name", "DB_APP")
+				.put("mongo_collection", "appointments").put("conditional_reads", true).put("day_counters", true);
+	}
+	
 	/**
 	 * Defines initial set of entries to be used in tests
 	 * 
@@ -353,6 +365,47 @@ public class AppointmentServiceTest {
 		}));
 	}
 	
+	/**
+	 * Test for finding many entries at once: results follow requested order, missing ids are null, ids are read from
+	 * query parameter or request body
+	 * 
+	 * @param vertx
+	 * @param testContext
+	 */
+	@Test
+	void findEntriesByIdsTest(Vertx vertx, VertxTestContext testContext) {
+		log.info("");
+		log.info("---------------- find entries by ids test ----------------");
+		Checkpoint responsesReceived = testContext.checkpoint(3);
+		String url = "/rest/findAppointments";
+		WebClient client = WebClient.create(vertx);
+		client.get(port, hostname, url + "?ids=5,missing,1,5").send(asyncResult -> testContext.verify(() -> {
+			Assertions.assertTrue(asyncResult.succeeded());
+			JsonArray result = asyncResult.result().bodyAsJsonArray();
+			Assertions.assertEquals(4, result.size());
+			Assertions.assertEquals("5", result.getJsonObject(0).getString("id"));
+			Assertions.assertNull(result.getValue(1));
+			Assertions.assertEquals("Dr. A", result.getJsonObject(2).getString("doctorName"));
+			Assertions.assertFalse(result.getJsonObject(2).containsKey("_id"));
+			Assertions.assertEquals(result.getJsonObject(0), result.getJsonObject(3));
+			Assertions.assertNotNull(asyncResult.result().getHeader("ETag"));
+			responsesReceived.flag();
+		}));
+		JsonObject json = new JsonObject().put("ids", new JsonArray().add("7").add("2"));
+		client.get(port, hostname, url).sendJsonObject(json, asyncResult -> testContext.verify(() -> {
+			Assertions.assertTrue(asyncResult.succeeded());
+			JsonArray result = asyncResult.result().bodyAsJsonArray();
+			Assertions.assertEquals("7", result.getJsonObject(0).getString("id"));
+			Assertions.assertEquals("2", result.getJsonObject(1).getString("id"));
+			responsesReceived.flag();
+		}));
+		client.get(port, hostname, url).sendJsonObject(new JsonObject().put("ids", new JsonArray().add(1)),
+				asyncResult -> testContext.verify(() -> {
+					Assertions.assertEquals(400, asyncResult.result().statusCode());
+					responsesReceived.flag();
+				}));
+	}
+	
 	/**
 	 * Test for finding entries with given criteria from DB using service
 	 * <p>
@@ -396,4 +449,237 @@ public class AppointmentServiceTest {
 			}
 		}));
 	}
+	
+	/**
+	 * Test for cacheable reads: query parameter lookup carries an ETag, repeating it with If-None-Match gives 304
+	 * until appointment is changed
+	 * 
+	 * @param vertx
+	 * @param testContext
+	 */
+	@Test
+	void conditionalGetTest(Vertx vertx, VertxTestContext testContext) {
+		log.info("");
+		log.info("---------------- conditional get test ----------------");
+		Checkpoint responsesReceived = testContext.checkpoint();
+		WebClient client = WebClient.create(vertx);
+		client.get(port, hostname, "/rest/findAppointment?id=2").send(first -> testContext.verify(() -> {
+			Assertions.assertEquals(200, first.result().statusCode());
+			Assertions.assertEquals("2", first.result().bodyAsJsonObject().getString("id"));
+			String etag = first.result().getHeader("ETag");
+			Assertions.assertNotNull(etag);
+			Assertions.assertNotNull(first.result().getHeader("Cache-Control"));
+			client.get(port, hostname, "/rest/findAppointmentsInRange?start=0&end=" + Long.MAX_VALUE)
+					.putHeader("If-None-Match", etag).send(range -> testContext.verify(() -> {
+						Assertions.assertEquals(304, range.result().statusCode());
+						Assertions.assertEquals("Accept", range.result().getHeader("Vary"));
+						client.post(port, hostname, "/rest/book").sendJsonObject(new JsonObject().put("id", "2"),
+								booked -> testContext.verify(() -> {
+									client.get(port, hostname, "/rest/findAppointment?id=2")
+											.putHeader("If-None-Match", etag).send(second -> testContext.verify(() -> {
+												Assertions.assertEquals(200, second.result().statusCode());
+												Assertions.assertNotEquals(etag, second.result().getHeader("ETag"));
+												Assertions.assertEquals("BOOKED",
+														second.result().bodyAsJsonObject().getString("status"));
+												responsesReceived.flag();
+											}));
+								}));
+					}));
+		}));
+	}
+	
+	/**
+	 * Test for request tracing: response carries Server-Timing of request phases, incoming trace context is continued
+	 * 
+	 * @param vertx
+	 * @param testContext
+	 */
+	@Test
+	void serverTimingTest(Vertx vertx, VertxTestContext testContext) {
+		log.info("");
+		log.info("---------------- server timing test ----------------");
+		Checkpoint responsesReceived = testContext.checkpoint();
+		WebClient client = WebClient.create(vertx);
+		client.get(port, hostname, "/rest/findAppointment")
+				.putHeader("traceparent", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01")
+				.sendJsonObject(new JsonObject().put("id", "2"), found -> testContext.verify(() -> {
+					Assertions.assertEquals(200, found.result().statusCode());
+					String serverTiming = found.result().getHeader("Server-Timing");
+					log.info("Server-Timing: {}", serverTiming);
+					Assertions.assertNotNull(serverTiming);
+					Assertions.assertTrue(serverTiming.contains("read;dur="));
+					Assertions.assertTrue(serverTiming.contains("parse;dur="));
+					Assertions.assertTrue(serverTiming.contains(";desc=\"findAppointment"));
+					Assertions.assertTrue(serverTiming.contains("encode;dur="));
+					Assertions.assertTrue(serverTiming.contains("total;dur="));
+					responsesReceived.flag();
+				}));
+	}
+	
+	/**
+	 * Test for bson content negotiation: appointment inserted with a bson body is read back as bson documents, whose
+	 * ETag does not match the json representation
+	 * 
+	 * @param vertx
+	 * @param testContext
+	 */
+	@Test
+	void bsonTest(Vertx vertx, VertxTestContext testContext) {
+		log.info("");
+		log.info("---------------- bson test ----------------");
+		Checkpoint responsesReceived = testContext.checkpoint();
+		WebClient client = WebClient.create(vertx);
+		long now = System.currentTimeMillis();
+		JsonObject appointment = new JsonObject(Json.encode(new Appointment("bson", now, now + 1000, 60,
+				"Dr. Bson", Appointment.Status.BOOKED, 12.5)));
+		client.post(port, hostname, "/rest/insertAppointment").putHeader("Content-Type", BsonCodec.CONTENT_TYPE)
+				.sendBuffer(BsonCodec.encode(appointment), inserted -> testContext.verify(() -> {
+					Assertions.assertTrue(inserted.result().bodyAsJsonObject().getBoolean("result"));
+					client.get(port, hostname, "/rest/findAppointmentsInRange?start=" + now + "&end=" + (now + 2000))
+							.putHeader("Accept", "application/json;q=0.5, application/bson")
+							.send(found -> testContext.verify(() -> {
+								Assertions.assertEquals(BsonCodec.CONTENT_TYPE,
+										found.result().getHeader("content-type"));
+								List<JsonObject> appointments = BsonCodec.decodeAll(found.result().body());
+								Assertions.assertEquals(1, appointments.size());
+								Assertions.assertEquals("bson", appointments.get(0).getString("id"));
+								Assertions.assertEquals(now + 1000,
+										appointments.get(0).getLong("appointmentDate").longValue());
+								String etag = found.result().getHeader("ETag");
+								Assertions.assertTrue(etag.endsWith("-bson\""));
+								client.get(port, hostname,
+										"/rest/findAppointmentsInRange?start=" + now + "&end=" + (now + 2000))
+										.putHeader("If-None-Match", etag).send(json -> testContext.verify(() -> {
+											Assertions.assertEquals(200, json.result().statusCode());
+											Assertions.assertEquals(1, json.result().bodyAsJsonArray().size());
+											responsesReceived.flag();
+										}));
+							}));
+				}));
+	}
+	
+	/**
+	 * Test for daily counts: one entry per day of default window, starting today
+	 * 
+	 * @param vertx
+	 * @param testContext
+	 */
+	@Test
+	void dailyCountsTest(Vertx vertx, VertxTestContext testContext) {
+		log.info("");
+		log.info("---------------- daily counts test ----------------");
+		Checkpoint responsesReceived = testContext.checkpoint();
+		WebClient client = WebClient.create(vertx);
+		client.get(port, hostname, "/rest/dailyCounts").send(counted -> testContext.verify(() -> {
+			Assertions.assertEquals(200, counted.result().statusCode());
+			JsonArray days = counted.result().bodyAsJsonArray();
+			Assertions.assertEquals(90, days.size());
+			Assertions.assertEquals(LocalDate.now(ZoneOffset.UTC).toString(), days.getJsonObject(0).getString("day"));
+			client.get(port, hostname, "/rest/dailyCounts?days=0").send(rejected -> testContext.verify(() -> {
+				Assertions.assertEquals(400, rejected.result().statusCode());
+				responsesReceived.flag();
+			}));
+		}));
+	}
+	
+	/**
+	 * Test for doctor autocomplete: doctors are ranked by upcoming available appointments and follow bookings
+	 * 
+	 * @param vertx
+	 * @param testContext
+	 */
+	@Test
+	void suggestDoctorsTest(Vertx vertx, VertxTestContext testContext) {
+		log.info("");
+		log.info("---------------- suggest doctors test ----------------");
+		Checkpoint responsesReceived = testContext.checkpoint();
+		WebClient client = WebClient.create(vertx);
+		client.get(port, hostname, "/rest/doctors?prefix=DR&limit=3").send(suggested -> testContext.verify(() -> {
+			Assertions.assertEquals(200, suggested.result().statusCode());
+			JsonArray doctors = suggested.result().bodyAsJsonArray();
+			Assertions.assertEquals(3, doctors.size());
+			Assertions.assertEquals("Dr. B", doctors.getJsonObject(0).getString("doctorName"));
+			Assertions.assertEquals(1, (int) doctors.getJsonObject(0).getInteger("available"));
+			Assertions.assertEquals(2, (int) doctors.getJsonObject(0).getInteger("upcoming"));
+			Assertions.assertEquals("Dr. D", doctors.getJsonObject(1).getString("doctorName"));
+			Assertions.assertEquals("Dr. A", doctors.getJsonObject(2).getString("doctorName"));
+			client.post(port, hostname, "/rest/book").sendJsonObject(new JsonObject().put("id", "2"),
+					booked -> testContext.verify(() -> {
+						client.get(port, hostname, "/rest/doctors?prefix=b").send(after -> testContext.verify(() -> {
+							JsonArray bookedDoctors = after.result().bodyAsJsonArray();
+							Assertions.assertEquals(1, bookedDoctors.size());
+							Assertions.assertEquals(0, (int) bookedDoctors.getJsonObject(0).getInteger("available"));
+							responsesReceived.flag();
+						}));
+					}));
+		}));
+	}
+	
+	/**
+	 * Test for NDJSON export and import: exported lines are imported back after everything is deleted, a line which
+	 * is not an appointment is rejected
+	 * 
+	 * @param vertx
+	 * @param testContext
+	 */
+	@Test
+	void exportImportTest(Vertx vertx, VertxTestContext testContext) {
+		log.info("");
+		log.info("---------------- export/import test ----------------");
+		Checkpoint responsesReceived = testContext.checkpoint();
+		WebClient client = WebClient.create(vertx);
+		client.get(port, hostname, "/rest/export").send(exported -> testContext.verify(() -> {
+			Assertions.assertEquals(200, exported.result().statusCode());
+			Assertions.assertEquals("application/x-ndjson", exported.result().getHeader("content-type"));
+			String lines = exported.result().bodyAsString();
+			Assertions.assertEquals(createEntries().size(), lines.split("\n").length);
+			client.get(port, hostname, "/rest/deleteAllAppointments/").send(deleted -> testContext.verify(() -> {
+				Buffer body = Buffer.buffer(lines).appendString("{\"unknown\": 1}\n");
+				client.post(port, hostname, "/rest/import").sendBuffer(body, imported -> testContext.verify(() -> {
+					JsonObject result = imported.result().bodyAsJsonObject();
+					log.info("Import result: {}", result);
+					Assertions.assertEquals(createEntries().size(), (int) result.getInteger("imported"));
+					Assertions.assertEquals(1, (int) result.getInteger("rejected"));
+					client.get(port, hostname, "/rest/allAppointments/").send(all -> testContext.verify(() -> {
+						Assertions.assertEquals(createEntries().size(), all.result().bodyAsJsonArray().size());
+						responsesReceived.flag();
+					}));
+				}));
+			}));
+		}));
+	}
+	
+	/**
+	 * Test for liveness and readiness probes, readiness is polled until service is warmed up
+	 * 
+	 * @param vertx
+	 * @param testContext
+	 */
+	@Test
+	void healthTest(Vertx vertx, VertxTestContext testContext) {
+		log.info("");
+		log.info("---------------- health test ----------------");
+		Checkpoint responsesReceived = testContext.checkpoint(2);
+		WebClient client = WebClient.create(vertx);
+		client.get(port, hostname, "/health/live").send(asyncResult -> testContext.verify(() -> {
+			Assertions.assertEquals(200, asyncResult.result().statusCode());
+			responsesReceived.flag();
+		}));
+		pollReadiness(vertx, client, testContext, responsesReceived, 50);
+	}
+	
+	private void pollReadiness(Vertx vertx, WebClient client, VertxTestContext testContext, Checkpoint checkpoint,
+			int attempts) {
+		client.get(port, hostname, "/health/ready").send(asyncResult -> testContext.verify(() -> {
+			JsonObject readiness = asyncResult.result().bodyAsJsonObject();
+			log.info("Readiness: {}", readiness);
+			if (asyncResult.result().statusCode() == 200) {
+				Assertions.assertEquals("UP", readiness.getString("status"));
+				checkpoint.flag();
+			} else {
+				Assertions.assertTrue(attempts > 0, "Service did not become ready");
+				vertx.setTimer(100, id -> pollReadiness(vertx, client, testContext, checkpoint, attempts - 1));
+			}
+		}));
+	}
 }
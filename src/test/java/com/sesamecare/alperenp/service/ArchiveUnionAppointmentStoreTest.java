@@ -0,0 +1,78 @@
+package com.sesamecare.alperenp.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.EmbeddedAppointmentStore;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Reads over a store and its archive
+ *
+ * @author alperenp
+ *
+ */
+class ArchiveUnionAppointmentStoreTest {
+
+	Vertx vertx;
+
+	Path directory;
+
+	EmbeddedAppointmentStore current;
+
+	EmbeddedAppointmentStore archived;
+
+	@BeforeEach
+	void initialize() throws IOException {
+		vertx = Vertx.vertx();
+		directory = Files.createTempDirectory("archive");
+		current = EmbeddedAppointmentStore.open(vertx,
+				new JsonObject().put("embedded_path", directory.resolve("current.db").toString()));
+		archived = EmbeddedAppointmentStore.open(vertx,
+				new JsonObject().put("embedded_path", directory.resolve("archived.db").toString()));
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		current.close();
+		archived.close();
+		vertx.close();
+		Files.deleteIfExists(directory.resolve("current.db"));
+		Files.deleteIfExists(directory.resolve("archived.db"));
+		Files.deleteIfExists(directory);
+	}
+
+	private Appointment appointment(String id, long date, double price) {
+		return new Appointment(id, 0, date, 10, "Dr. " + id, Appointment.Status.BOOKED, price);
+	}
+
+	@Test
+	void unionTest() {
+		current.insertAppointment(appointment("1", 300, 30));
+		current.insertAppointment(appointment("2", 200, 20));
+		// copy of "2" left in archive by an interrupted archival, store's copy wins
+		archived.insertAppointment(appointment("2", 100, 99));
+		archived.insertAppointment(appointment("3", 100, 25));
+		ArchiveUnionAppointmentStore union = new ArchiveUnionAppointmentStore(current, archived);
+
+		Assertions.assertEquals(3, union.getAllAppointments().result().size());
+		List<JsonObject> range = union.findAppointmentsWithRangeAndSort(0, 1000).result();
+		Assertions.assertEquals(3, range.size());
+		Assertions.assertEquals("2", range.get(0).getString("id"));
+		Assertions.assertEquals(20.0, range.get(0).getDouble("price").doubleValue());
+		Assertions.assertEquals("3", range.get(1).getString("id"));
+		Assertions.assertEquals("1", range.get(2).getString("id"));
+		Assertions.assertEquals("3", union.findAppointment("3").result().get(0).getString("id"));
+		Assertions.assertEquals(300L, union.findAppointment("1").result().get(0).getLong("appointmentDate").longValue());
+	}
+}
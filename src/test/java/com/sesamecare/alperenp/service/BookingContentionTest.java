@@ -0,0 +1,133 @@
+package com.sesamecare.alperenp.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.sesamecare.alperenp.data.Appointment;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.junit5.Checkpoint;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Contention benchmark for atomic booking: many clients race for the same slots and exactly one of them must win
+ * each slot
+ *
+ * @author alperenp
+ *
+ */
+@Slf4j
+@ExtendWith(VertxExtension.class)
+public class BookingContentionTest {
+	String hostname = "localhost";
+	int port = 8080;
+
+	/**
+	 * Number of slots clients are racing for
+	 */
+	int slots = 20;
+
+	/**
+	 * Number of clients racing for each slot
+	 */
+	int clients = 50;
+
+	/**
+	 * Deploys service and creates available slots
+	 *
+	 * @param vertx
+	 * @param testContext
+	 */
+	@BeforeEach
+	void initialize(Vertx vertx, VertxTestContext testContext) {
+		JsonObject serviceConf = new JsonObject().put("http.port", port).put("host", "127.0.0.1")
+				.put("db_name", "DB_APP").put("mongo_collection", "appointments");
+		DeploymentOptions options = new DeploymentOptions().setConfig(serviceConf).setInstances(1);
+		Checkpoint responsesReceived = testContext.checkpoint(slots);
+		vertx.deployVerticle(new AppointmentService(), options, ar -> {
+			log.info("Service deployed with id {}", ar.result());
+			WebClient client = WebClient.create(vertx);
+			long now = System.currentTimeMillis();
+			long oneHour = 3600000;
+			for (int i = 0; i < slots; i++) {
+				Appointment slot = new Appointment("slot-" + i, now, now + oneHour * (i + 1), oneHour, "Dr. Race",
+						Appointment.Status.AVAILABLE, 100 + i);
+				client.post(port, hostname, "/rest/insertAppointment").sendJsonObject(
+						new JsonObject(Json.encode(slot)),
+						asyncResult -> testContext.verify(() -> {
+							Assertions.assertTrue(asyncResult.succeeded());
+							responsesReceived.flag();
+						}));
+			}
+		});
+	}
+
+	/**
+	 * Removes all slots
+	 *
+	 * @param vertx
+	 * @param testContext
+	 */
+	@AfterEach
+	void tearDown(Vertx vertx, VertxTestContext testContext) {
+		Checkpoint responsesReceived = testContext.checkpoint();
+		WebClient.create(vertx).get(port, hostname, "/rest/deleteAllAppointments/")
+				.send(asyncResult -> responsesReceived.flag());
+	}
+
+	/**
+	 * Every client tries to book every slot at the same time. Exactly one booking per slot must succeed, all others
+	 * must be rejected with 409.
+	 *
+	 * @param vertx
+	 * @param testContext
+	 */
+	@Test
+	void bookingContentionTest(Vertx vertx, VertxTestContext testContext) {
+		log.info("");
+		log.info("---------------- booking contention benchmark ----------------");
+		WebClient client = WebClient.create(vertx, new WebClientOptions().setMaxPoolSize(clients));
+		AtomicInteger booked = new AtomicInteger();
+		AtomicInteger conflicts = new AtomicInteger();
+		AtomicInteger pending = new AtomicInteger(slots * clients);
+		long startTime = System.nanoTime();
+		Checkpoint allResponses = testContext.checkpoint();
+		for (int c = 0; c < clients; c++) {
+			for (int i = 0; i < slots; i++) {
+				JsonObject json = new JsonObject().put("id", "slot-" + i).put("version", 0);
+				client.post(port, hostname, "/rest/book").sendJsonObject(json,
+						asyncResult -> testContext.verify(() -> {
+							Assertions.assertTrue(asyncResult.succeeded());
+							int statusCode = asyncResult.result().statusCode();
+							if (statusCode == 200) {
+								booked.incrementAndGet();
+							} else {
+								Assertions.assertEquals(409, statusCode);
+								conflicts.incrementAndGet();
+							}
+							if (pending.decrementAndGet() == 0) {
+								long elapsedMs = (System.nanoTime() - startTime) / 1000000;
+								log.info("{} booking attempts in {} ms ({} req/s), booked: {}, conflicts: {}",
+										slots * clients, elapsedMs, slots * clients * 1000L / Math.max(elapsedMs, 1),
+										booked.get(), conflicts.get());
+								Assertions.assertEquals(slots, booked.get());
+								Assertions.assertEquals(slots * (clients - 1), conflicts.get());
+								allResponses.flag();
+							}
+						}));
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.sesamecare.alperenp.service;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+public class BsonCodecTest {
+	
+	@Test
+	void roundTrip() {
+		JsonObject json = new JsonObject().put("id", "1").put("appointmentDate", 1546300800000L).put("duration", 30)
+				.put("price", 12.5).put("booked", true).put("doctor", (String) null)
+				.put("nested", new JsonObject().put("list", new JsonArray().add(1L).add("a").add(new JsonObject())));
+		Assertions.assertEquals(json, BsonCodec.decode(BsonCodec.encode(json)));
+	}
+	
+	@Test
+	void sequenceOfDocuments() {
+		List<JsonObject> jsons = Arrays.asList(new JsonObject().put("id", "1"), new JsonObject().put("id", "2"));
+		Buffer encoded = BsonCodec.encode(jsons);
+		Assertions.assertEquals(jsons, BsonCodec.decodeAll(encoded));
+		Assertions.assertThrows(DecodeException.class, () -> BsonCodec.decode(encoded));
+		Assertions.assertTrue(BsonCodec.decodeAll(Buffer.buffer()).isEmpty());
+	}
+	
+	@Test
+	void rejectsInvalidInput() {
+		Assertions.assertThrows(DecodeException.class, () -> BsonCodec.decode(Buffer.buffer("{\"id\": 1}")));
+		Buffer truncated = BsonCodec.encode(new JsonObject().put("id", "1"));
+		Assertions.assertThrows(DecodeException.class,
+				() -> BsonCodec.decode(truncated.getBuffer(0, truncated.length() - 1)));
+	}
+}
@@ -0,0 +1,73 @@
+package com.sesamecare.alperenp.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.sesamecare.alperenp.data.Appointment;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.junit5.Checkpoint;
+import io.vertx.junit5.VertxTestContext;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs {@link AppointmentServiceTest} against bucket schema, one mongo document per doctor per day
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class BucketedAppointmentServiceTest extends AppointmentServiceTest {
+	
+	@Override
+	JsonObject serviceConfig() {
+		return super.serviceConfig().put("schema", "bucket");
+	}
+	
+	/**
+	 * Test for replacing an appointment with one of another doctor: it is moved to another bucket, and a copy left in
+	 * a third bucket (by a move whose pull failed) is removed as well
+	 * 
+	 * @param vertx
+	 * @param testContext
+	 */
+	@Test
+	void moveBetweenBucketsTest(Vertx vertx, VertxTestContext testContext) {
+		log.info("");
+		log.info("---------------- move between buckets test ----------------");
+		Checkpoint responsesReceived = testContext.checkpoint();
+		WebClient client = WebClient.create(vertx);
+		long now = System.currentTimeMillis();
+		long oneweek = 604800000;
+		long oneHour = 3600000;
+		Appointment leftover = new Appointment("3", now, now + oneweek, oneHour / 2, "Dr. Z",
+				Appointment.Status.BOOKED, 1950);
+		Appointment moved = new Appointment("3", now, now + oneweek, oneHour / 2, "Dr. E",
+				Appointment.Status.BOOKED, 1950);
+		client.post(port, hostname, "/rest/insertAppointment").sendJsonObject(new JsonObject(Json.encode(leftover)),
+				inserted -> testContext.verify(() -> {
+					Assertions.assertTrue(inserted.result().bodyAsJsonObject().getBoolean("result"));
+					client.put(port, hostname, "/rest/updateAppointment").sendJsonObject(
+							new JsonObject(Json.encode(moved)), replaced -> testContext.verify(() -> {
+								Assertions.assertTrue(replaced.result().bodyAsJsonObject().getBoolean("result"));
+								client.get(port, hostname, "/rest/allAppointments/")
+										.send(all -> testContext.verify(() -> {
+											JsonArray appointments = all.result().bodyAsJsonArray();
+											Assertions.assertEquals(7, appointments.size());
+											for (Object element : appointments) {
+												JsonObject appointment = (JsonObject) element;
+												if ("3".equals(appointment.getString("id"))) {
+													Assertions.assertEquals("Dr. E",
+															appointment.getString("doctorName"));
+												}
+											}
+											responsesReceived.flag();
+										}));
+							}));
+				}));
+	}
+}
@@ -0,0 +1,184 @@
+package com.sesamecare.alperenp.service;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+import com.sesamecare.alperenp.storage.EmbeddedAppointmentStore;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+@ExtendWith(VertxExtension.class)
+public class DayCountersTest {
+	
+	private static final long DAY_MS = 24 * 3600000L;
+	
+	private static Appointment appointment(String id, long day, Appointment.Status status) {
+		return new Appointment(id, 0, day * DAY_MS + 3600000, 3600000, "Dr. A", status, 10);
+	}
+	
+	private static JsonObject json(Appointment appointment) {
+		return new JsonObject(Json.encode(appointment));
+	}
+	
+	private static long[] counts(DayCounters counters, long day) {
+		JsonObject counts = counters.histogram(day, 1).getJsonObject(0);
+		return new long[] { counts.getLong("booked"), counts.getLong("available") };
+	}
+	
+	@Test
+	void countsWritesAndStatusTransitions(Vertx vertx) {
+		DayCounters counters = new DayCounters(vertx, new JsonObject(), false);
+		long today = DayCounters.today();
+		JsonObject available = json(appointment("1", today, Appointment.Status.AVAILABLE));
+		counters.changed(null, available);
+		counters.changed(null, json(appointment("2", today, Appointment.Status.AVAILABLE)));
+		Assertions.assertArrayEquals(new long[] { 0, 2 }, counts(counters, today));
+		// booked
+		JsonObject booked = available.copy().put("status", Appointment.Status.BOOKED.toString());
+		counters.changed(available, booked);
+		Assertions.assertArrayEquals(new long[] { 1, 1 }, counts(counters, today));
+		// replaced by an appointment of next day
+		counters.changed(booked, json(appointment("1", today + 1, Appointment.Status.BOOKED)));
+		Assertions.assertArrayEquals(new long[] { 0, 1 }, counts(counters, today));
+		Assertions.assertArrayEquals(new long[] { 1, 0 }, counts(counters, today + 1));
+		counters.changed(json(appointment("2", today, Appointment.Status.AVAILABLE)), null);
+		JsonArray histogram = counters.histogram(today, 3);
+		Assertions.assertEquals(3, histogram.size());
+		Assertions.assertEquals(0L, (long) histogram.getJsonObject(0).getLong("available"));
+		Assertions.assertEquals(1L, (long) histogram.getJsonObject(1).getLong("booked"));
+		counters.cleared();
+		Assertions.assertArrayEquals(new long[] { 0, 0 }, counts(counters, today + 1));
+	}
+	
+	@Test
+	void reconciliationRepairsDrift(Vertx vertx, VertxTestContext testContext) throws IOException {
+		Path path = Files.createTempFile("day-counters", ".db");
+		Files.delete(path);
+		path.toFile().deleteOnExit();
+		EmbeddedAppointmentStore store = EmbeddedAppointmentStore.open(vertx,
+				new JsonObject().put("embedded_path", path.toString()));
+		long today = DayCounters.today();
+		DayCounters counters = new DayCounters(vertx, new JsonObject(), false);
+		// written while export runs: differs from export, but left to next run
+		AppointmentStore exporting = writingDuringExport(store,
+				() -> counters.changed(null, json(appointment("5", today + 2, Appointment.Status.BOOKED))));
+		store.insertAppointment(appointment("1", today + 1, Appointment.Status.BOOKED))
+				.compose(v -> store.insertAppointment(appointment("2", today + 1, Appointment.Status.AVAILABLE)))
+				.compose(v -> store.insertAppointment(appointment("3", today + 2, Appointment.Status.AVAILABLE)))
+				.compose(v -> {
+					// drifted: an appointment which does not exist anymore
+					counters.changed(null, json(appointment("4", today + 1, Appointment.Status.BOOKED)));
+					Assertions.assertFalse(counters.isReady());
+					return counters.reconcile(exporting);
+				}).setHandler(testContext.succeeding(repaired -> testContext.verify(() -> {
+					Assertions.assertTrue(counters.isReady());
+					Assertions.assertEquals(1, (int) repaired);
+					Assertions.assertArrayEquals(new long[] { 1, 1 }, counts(counters, today + 1));
+					Assertions.assertArrayEquals(new long[] { 1, 0 }, counts(counters, today + 2));
+					Assertions.assertEquals(1L, (long) counters.toJson().getLong("repairedDays"));
+					store.close();
+					testContext.completeNow();
+				})));
+	}
+	
+	/**
+	 * @param store
+	 * @param write run when export of store emits its first appointment
+	 * @return store whose export runs given write while it is in progress
+	 */
+	private static AppointmentStore writingDuringExport(AppointmentStore store, Runnable write) {
+		return (AppointmentStore) Proxy.newProxyInstance(AppointmentStore.class.getClassLoader(),
+				new Class<?>[] { AppointmentStore.class }, (proxy, method, args) -> {
+					Object result;
+					try {
+						result = method.invoke(store, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+					if (!method.getName().equals("exportAppointments")) {
+						return result;
+					}
+					@SuppressWarnings("unchecked")
+					ReadStream<JsonObject> appointments = (ReadStream<JsonObject>) result;
+					return new FirstItemReadStream(appointments, write);
+				});
+	}
+	
+	/**
+	 * Runs an action before its first item is handled
+	 */
+	private static class FirstItemReadStream implements ReadStream<JsonObject> {
+		
+		private final ReadStream<JsonObject> stream;
+		
+		private Runnable action;
+		
+		FirstItemReadStream(ReadStream<JsonObject> stream, Runnable action) {
+			this.stream = stream;
+			this.action = action;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> handler(Handler<JsonObject> handler) {
+			stream.handler(handler == null ? null : item -> {
+				if (action != null) {
+					action.run();
+					action = null;
+				}
+				handler.handle(item);
+			});
+			return this;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> exceptionHandler(Handler<Throwable> handler) {
+			stream.exceptionHandler(handler);
+			return this;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> pause() {
+			stream.pause();
+			return this;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> resume() {
+			stream.resume();
+			return this;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> fetch(long amount) {
+			stream.fetch(amount);
+			return this;
+		}
+		
+		@Override
+		public ReadStream<JsonObject> endHandler(Handler<Void> endHandler) {
+			stream.endHandler(endHandler);
+			return this;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.sesamecare.alperenp.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.EmbeddedAppointmentStore;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+@ExtendWith(VertxExtension.class)
+public class DoctorIndexTest {
+	
+	private static final long ONE_HOUR = 3600000;
+	
+	private static Appointment appointment(String id, String doctorName, long date, Appointment.Status status) {
+		return new Appointment(id, 0, date, ONE_HOUR, doctorName, status, 10);
+	}
+	
+	private static List<String> names(List<JsonObject> suggestions) {
+		List<String> names = new ArrayList<>();
+		suggestions.forEach(suggestion -> names.add(suggestion.getString("doctorName")));
+		return names;
+	}
+	
+	@Test
+	void suggestsByAnyWordRankedByAvailability() {
+		long tomorrow = System.currentTimeMillis() + 24 * ONE_HOUR;
+		DoctorIndex index = new DoctorIndex();
+		index.added(appointment("1", "Dr. Smith", tomorrow, Appointment.Status.AVAILABLE));
+		index.added(appointment("2", "Dr. Smithers", tomorrow, Appointment.Status.AVAILABLE));
+		index.added(appointment("3", "Dr. Smithers", tomorrow, Appointment.Status.AVAILABLE));
+		index.added(appointment("4", "Dr.  Jane Smalls", tomorrow, Appointment.Status.BOOKED));
+		index.added(appointment("5", "Dr. Past", 1000, Appointment.Status.AVAILABLE));
+		
+		Assertions.assertEquals(Arrays.asList("Dr. Smithers", "Dr. Smith", "Dr.  Jane Smalls"),
+				names(index.suggest("sm", 10)));
+		Assertions.assertEquals(Arrays.asList("Dr. Smithers", "Dr. Smith"), names(index.suggest("SMITH", 10)));
+		Assertions.assertEquals(Arrays.asList("Dr.  Jane Smalls"), names(index.suggest("dr. jane", 10)));
+		Assertions.assertEquals(Arrays.asList("Dr. Smithers"), names(index.suggest("", 1)));
+		Assertions.assertTrue(index.suggest("past", 10).isEmpty());
+		JsonObject smithers = index.suggest("smithers", 10).get(0);
+		Assertions.assertEquals(2, (int) smithers.getInteger("available"));
+		Assertions.assertEquals(2, (int) smithers.getInteger("upcoming"));
+	}
+	
+	@Test
+	void followsWrites() {
+		long tomorrow = System.currentTimeMillis() + 24 * ONE_HOUR;
+		DoctorIndex index = new DoctorIndex();
+		index.added(appointment("1", "Dr. A", tomorrow, Appointment.Status.AVAILABLE));
+		index.added(appointment("2", "Dr. A", tomorrow, Appointment.Status.AVAILABLE));
+		index.statusChanged("1", false);
+		Assertions.assertEquals(1, (int) index.suggest("dr", 10).get(0).getInteger("available"));
+		index.statusChanged("1", true);
+		index.removed("2");
+		Assertions.assertEquals(1, (int) index.suggest("dr", 10).get(0).getInteger("available"));
+		// replaced with another doctor
+		index.added(appointment("1", "Dr. B", tomorrow, Appointment.Status.BOOKED));
+		Assertions.assertEquals(Arrays.asList("Dr. B"), names(index.suggest("dr", 10)));
+		Assertions.assertEquals(0, (int) index.suggest("dr", 10).get(0).getInteger("available"));
+		index.cleared();
+		Assertions.assertTrue(index.isReady());
+		Assertions.assertTrue(index.suggest("", 10).isEmpty());
+		Assertions.assertEquals(0, (int) index.toJson().getInteger("tokens"));
+	}
+	
+	@Test
+	void rebuildsFromStoreKeepingConcurrentWrites(Vertx vertx, VertxTestContext testContext) throws IOException {
+		Path path = Files.createTempFile("doctor-index", ".db");
+		Files.delete(path);
+		path.toFile().deleteOnExit();
+		EmbeddedAppointmentStore store = EmbeddedAppointmentStore.open(vertx,
+				new JsonObject().put("embedded_path", path.toString()));
+		long tomorrow = System.currentTimeMillis() + 24 * ONE_HOUR;
+		store.insertAppointment(appointment("1", "Dr. Stored", tomorrow, Appointment.Status.AVAILABLE));
+		store.insertAppointment(appointment("2", "Dr. Old", 1000, Appointment.Status.AVAILABLE));
+		DoctorIndex index = new DoctorIndex();
+		Assertions.assertFalse(index.isReady());
+		index.refresh(store).setHandler(testContext.succeeding(doctors -> testContext.verify(() -> {
+			Assertions.assertTrue(index.isReady());
+			Assertions.assertEquals(Arrays.asList("Dr. Stored", "Dr. Written"), names(index.suggest("dr", 10)));
+			store.close();
+			testContext.completeNow();
+		})));
+		// completed while index is rebuilt
+		index.added(appointment("3", "Dr. Written", tomorrow, Appointment.Status.BOOKED));
+	}
+}
@@ -0,0 +1,21 @@
+package com.sesamecare.alperenp.service;
+
+import java.io.File;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Runs {@link AppointmentServiceTest} against embedded storage, does not need a mongo server
+ * 
+ * @author alperenp
+ *
+ */
+public class EmbeddedAppointmentServiceTest extends AppointmentServiceTest {
+	
+	@Override
+	JsonObject serviceConfig() {
+		File file = new File(System.getProperty("java.io.tmpdir"), "appointment-service-test.db");
+		file.deleteOnExit();
+		return super.serviceConfig().put("storage", "embedded").put("embedded_path", file.getAbsolutePath());
+	}
+}
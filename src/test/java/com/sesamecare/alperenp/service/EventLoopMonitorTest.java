@@ -0,0 +1,42 @@
+package com.sesamecare.alperenp.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+@ExtendWith(VertxExtension.class)
+public class EventLoopMonitorTest {
+	
+	@Test
+	void recordsBlockedEventLoop(Vertx vertx, VertxTestContext testContext) {
+		JsonObject config = new JsonObject().put("loop_probe_interval_ms", 10).put("blocked_loop_warn_ms", 100);
+		vertx.runOnContext(v -> {
+			EventLoopMonitor monitor = EventLoopMonitor.start(vertx, config);
+			Assertions.assertNull(EventLoopMonitor.start(vertx, config));
+			vertx.setTimer(30, id -> {
+				long blockedUntil = System.currentTimeMillis() + 200;
+				while (System.currentTimeMillis() < blockedUntil) {
+					// keeps loop busy
+				}
+				vertx.setTimer(50, next -> testContext.verify(() -> {
+					JsonObject metrics = EventLoopMonitor.toJson(vertx).getJsonObject(Thread.currentThread().getName());
+					Assertions.assertTrue(metrics.getLong("maxBlockedMs") >= 150, metrics.encode());
+					Assertions.assertTrue(metrics.getLong("warnings") >= 1, metrics.encode());
+					monitor.stop();
+					Assertions.assertTrue(EventLoopMonitor.toJson(vertx).isEmpty());
+					testContext.completeNow();
+				}));
+			});
+		});
+	}
+}
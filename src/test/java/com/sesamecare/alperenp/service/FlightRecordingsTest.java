@@ -0,0 +1,59 @@
+package com.sesamecare.alperenp.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+public class FlightRecordingsTest {
+	
+	@Test
+	void recordsMongoOperationEvents() throws Exception {
+		FlightRecordings recordings = new FlightRecordings(60000);
+		Assertions.assertNull(recordings.stop());
+		Assertions.assertEquals("NONE", recordings.toJson().getString("state"));
+		Assertions.assertFalse(MongoOperationEvent.isRecorded());
+		
+		JsonObject status = recordings.start("default", 600000);
+		Assertions.assertEquals("RUNNING", status.getString("state"));
+		Assertions.assertEquals(Long.valueOf(60000), status.getLong("durationMs"));
+		Assertions.assertThrows(IllegalStateException.class, () -> recordings.start("default", 1000));
+		Assertions.assertTrue(MongoOperationEvent.isRecorded());
+		
+		// threshold is high, operation is only emitted as event
+		SlowOperationLog slowOperations = new SlowOperationLog(100000, 10);
+		slowOperations.<Long>track(null, "find", "appointments", new JsonObject().put("id", "a"), null, size -> size,
+				result -> {}).handle(Future.succeededFuture(3L));
+		Assertions.assertEquals(0, slowOperations.toJson().getJsonArray("entries").size());
+		
+		Path file = recordings.stop();
+		try {
+			Assertions.assertFalse(MongoOperationEvent.isRecorded());
+			Set<String> shapes = new HashSet<>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+				if (event.getEventType().getName().equals("com.sesamecare.alperenp.MongoOperation")) {
+					Assertions.assertEquals("find", event.getString("operation"));
+					Assertions.assertEquals(3L, event.getLong("resultSize"));
+					shapes.add(event.getString("queryShape"));
+				}
+			}
+			Assertions.assertEquals(Set.of("{\"id\":\"?\"}"), shapes);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+		Assertions.assertNull(recordings.stop());
+	}
+}
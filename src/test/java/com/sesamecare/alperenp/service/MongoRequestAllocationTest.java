@@ -0,0 +1,39 @@
+package com.sesamecare.alperenp.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Runs {@link RequestAllocationTest} against flat mongo storage, through {@link AppointmentServiceController}
+ * <p>
+ * Mongo driver decodes results on its own threads, budgets cover what service event loop allocates: encoding
+ * queries, converting results to response and everything embedded storage path allocates as well.
+ * 
+ * @author alperenp
+ *
+ */
+public class MongoRequestAllocationTest extends RequestAllocationTest {
+	
+	@Override
+	JsonObject serviceConfig() {
+		return new JsonObject().put("http.port", PORT).put("host", "127.0.0.1").put("db_name", "DB_APP")
+				.put("mongo_collection", "allocation_appointments").put("rate_limits", new JsonObject());
+	}
+	
+	@Override
+	Map<String, Long> budgets() {
+		Map<String, Long> budgets = new LinkedHashMap<>();
+		budgets.put("findAppointment", 30000L);
+		budgets.put("findAppointmentBody", 32000L);
+		budgets.put("findAppointmentsInRange", 64000L);
+		budgets.put("allAppointments", 920000L);
+		budgets.put("updateAppointment", 32000L);
+		budgets.put("book", 24000L);
+		budgets.put("deleteAppointment", 22000L);
+		budgets.put("insertAppointment", 32000L);
+		budgets.put("deleteAllAppointments", 20000L);
+		return budgets;
+	}
+}
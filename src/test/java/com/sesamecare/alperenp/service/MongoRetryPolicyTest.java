@@ -0,0 +1,90 @@
+package com.sesamecare.alperenp.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.mongodb.MongoTimeoutException;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+@ExtendWith(VertxExtension.class)
+public class MongoRetryPolicyTest {
+	
+	@Test
+	void hedgesReadSlowerThanPercentile(Vertx vertx, VertxTestContext testContext) {
+		MongoRetryPolicy policy = new MongoRetryPolicy(
+				new JsonObject().put("hedge_reads", true).put("hedge_min_delay_ms", 5));
+		vertx.runOnContext(v -> {
+			// fast reads teach policy the usual latency, none of them is hedged
+			for (int i = 0; i < 100; i++) {
+				policy.<String>read(vertx, "find", handler -> handler.handle(Future.succeededFuture("primary")),
+						handler -> testContext.failNow(new IllegalStateException("Fast read hedged")), result -> {
+						});
+			}
+			// primary never answers, hedge does
+			policy.<String>read(vertx, "find", handler -> {
+			}, handler -> handler.handle(Future.succeededFuture("hedge")), result -> testContext.verify(() -> {
+				Assertions.assertEquals("hedge", result.result());
+				JsonObject metrics = policy.toJson();
+				Assertions.assertEquals(1L, (long) metrics.getLong("hedges"));
+				Assertions.assertEquals(1L, (long) metrics.getLong("hedgeWins"));
+				Assertions.assertEquals(5L, (long) metrics.getJsonObject("hedgeDelayMs").getLong("find"));
+				testContext.completeNow();
+			}));
+		});
+	}
+	
+	@Test
+	void retriesOnlyWritesThatDidNotReachServer(Vertx vertx, VertxTestContext testContext) {
+		MongoRetryPolicy policy = new MongoRetryPolicy(new JsonObject().put("retry_base_delay_ms", 1));
+		AtomicInteger attempts = new AtomicInteger();
+		policy.<String>write(vertx, handler -> handler.handle(attempts.incrementAndGet() < 3
+				? Future.failedFuture(new MongoTimeoutException("No server selected"))
+				: Future.succeededFuture("written")), result -> testContext.verify(() -> {
+					Assertions.assertEquals("written", result.result());
+					Assertions.assertEquals(3, attempts.get());
+					AtomicInteger ambiguous = new AtomicInteger();
+					policy.<String>write(vertx, handler -> {
+						ambiguous.incrementAndGet();
+						handler.handle(Future.failedFuture(new IllegalStateException("Connection reset")));
+					}, failed -> testContext.verify(() -> {
+						Assertions.assertTrue(failed.failed());
+						Assertions.assertEquals(1, ambiguous.get());
+						Assertions.assertEquals(2L, (long) policy.toJson().getLong("retries"));
+						testContext.completeNow();
+					}));
+				}));
+	}
+	
+	@Test
+	void budgetCapsRetries(Vertx vertx, VertxTestContext testContext) {
+		MongoRetryPolicy policy = new MongoRetryPolicy(new JsonObject().put("retry_base_delay_ms", 1)
+				.put("retry_budget_ratio", 0.5).put("retry_budget_min_per_s", 0));
+		AtomicInteger attempts = new AtomicInteger();
+		policy.<String>write(vertx, handler -> {
+			attempts.incrementAndGet();
+			handler.handle(Future.failedFuture(new MongoTimeoutException("No server selected")));
+		}, first -> policy.<String>write(vertx, handler -> {
+			attempts.incrementAndGet();
+			handler.handle(Future.failedFuture(new MongoTimeoutException("No server selected")));
+		}, second -> testContext.verify(() -> {
+			// half a token per write: first write is not retried, second one is retried once
+			Assertions.assertEquals(3, attempts.get());
+			Assertions.assertEquals(1L, (long) policy.toJson().getLong("retries"));
+			Assertions.assertEquals(2L, (long) policy.toJson().getLong("budgetExhausted"));
+			testContext.completeNow();
+		})));
+	}
+}
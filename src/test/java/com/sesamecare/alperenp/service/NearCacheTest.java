@@ -0,0 +1,103 @@
+package com.sesamecare.alperenp.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+@ExtendWith(VertxExtension.class)
+public class NearCacheTest {
+	
+	private static List<JsonObject> appointment(String id) {
+		return Collections.singletonList(new JsonObject().put("id", id));
+	}
+	
+	@Test
+	void dropsStaleInvalidations() {
+		NearCache cache = new NearCache(10, 10, 60000, 100);
+		long readTime = System.currentTimeMillis();
+		cache.putAppointment("1", appointment("1"), readTime, cache.epoch());
+		cache.putRange(0, 10, appointment("1"), readTime, cache.epoch());
+		// write completed long before read started, entries already reflect it
+		Assertions.assertEquals(1, cache.invalidate(Arrays.asList("1"), readTime - 5000));
+		Assertions.assertNotNull(cache.findAppointment("1"));
+		Assertions.assertNotNull(cache.findAppointmentsWithRangeAndSort(0, 10));
+		// write within clock skew of read is applied
+		Assertions.assertEquals(0, cache.invalidate(Arrays.asList("1"), readTime - 50));
+		Assertions.assertNull(cache.findAppointment("1"));
+		Assertions.assertNull(cache.findAppointmentsWithRangeAndSort(0, 10));
+		Assertions.assertEquals(1L, (long) cache.toJson().getLong("staleInvalidations"));
+	}
+	
+	@Test
+	void skipsReadsRacingInvalidation() {
+		NearCache cache = new NearCache(10, 10, 60000, 100);
+		long readEpoch = cache.epoch();
+		cache.invalidate(Arrays.asList("1"), System.currentTimeMillis());
+		cache.putAppointment("1", appointment("1"), System.currentTimeMillis(), readEpoch);
+		Assertions.assertNull(cache.findAppointment("1"));
+		cache.putAppointment("1", appointment("1"), System.currentTimeMillis(), cache.epoch());
+		List<JsonObject> cached = cache.findAppointment("1");
+		cached.get(0).remove("id");
+		Assertions.assertEquals("1", cache.findAppointment("1").get(0).getString("id"));
+	}
+	
+	@Test
+	void evictsLeastRecentlyUsedAndExpired() {
+		NearCache cache = new NearCache(2, 2, 60000, 100);
+		long now = System.currentTimeMillis();
+		cache.putAppointment("1", appointment("1"), now, cache.epoch());
+		cache.putAppointment("2", appointment("2"), now, cache.epoch());
+		cache.findAppointment("1");
+		cache.putAppointment("3", appointment("3"), now, cache.epoch());
+		Assertions.assertNull(cache.findAppointment("2"));
+		Assertions.assertNotNull(cache.findAppointment("1"));
+		cache.putAppointment("4", appointment("4"), now - 120000, cache.epoch());
+		Assertions.assertNull(cache.findAppointment("4"));
+	}
+	
+	@Test
+	void invalidatesPeersOverEventBus(Vertx vertx, VertxTestContext testContext) {
+		JsonObject config = new JsonObject().put("invalidation_debounce_ms", 20);
+		NearCache local = new NearCache(10, 10, 60000, 100);
+		NearCache peer = new NearCache(10, 10, 60000, 100);
+		ChangeVersion peerVersion = ChangeVersion.get(vertx, config);
+		NearCacheInvalidator localInvalidator = new NearCacheInvalidator(vertx, config, local,
+				ChangeVersion.get(vertx, new JsonObject().put("mongo_collection", "local")));
+		NearCacheInvalidator peerInvalidator = new NearCacheInvalidator(vertx, config, peer, peerVersion);
+		Assertions.assertTrue(localInvalidator.start());
+		Assertions.assertFalse(localInvalidator.start());
+		peerInvalidator.start();
+		long readTime = System.currentTimeMillis();
+		for (String id : Arrays.asList("1", "2", "3")) {
+			local.putAppointment(id, appointment(id), readTime, local.epoch());
+			peer.putAppointment(id, appointment(id), readTime, peer.epoch());
+		}
+		localInvalidator.written("1", readTime + 1);
+		localInvalidator.written("2", readTime + 2);
+		vertx.setTimer(200, id -> testContext.verify(() -> {
+			Assertions.assertNull(peer.findAppointment("1"));
+			Assertions.assertNull(peer.findAppointment("2"));
+			Assertions.assertNotNull(peer.findAppointment("3"));
+			// own messages are ignored, local cache is invalidated by the writing store
+			Assertions.assertNotNull(local.findAppointment("1"));
+			Assertions.assertEquals(1L, (long) localInvalidator.toJson().getLong("published"));
+			Assertions.assertEquals(1L, (long) peerInvalidator.toJson().getLong("received"));
+			Assertions.assertEquals(1L, peerVersion.current());
+			testContext.completeNow();
+		}));
+	}
+}
@@ -0,0 +1,18 @@
+package com.sesamecare.alperenp.service;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Runs {@link AppointmentServiceTest} against embedded storage with near cache, every write must invalidate cached
+ * reads
+ * 
+ * @author alperenp
+ *
+ */
+public class NearCachedAppointmentServiceTest extends EmbeddedAppointmentServiceTest {
+	
+	@Override
+	JsonObject serviceConfig() {
+		return super.serviceConfig().put("near_cache", true);
+	}
+}
@@ -0,0 +1,113 @@
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+@ExtendWith(VertxExtension.class)
+public class RateLimiterTest {
+	
+	private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+	
+	@Test
+	void allowsBurstThenRefillsAtRate() {
+		RateLimiter limiter = new RateLimiter(2, 3, 100, 10);
+		long now = 0;
+		for (int i = 0; i < 3; i++) {
+			Assertions.assertEquals(0, limiter.acquire("a", now));
+		}
+		Assertions.assertEquals(ONE_SECOND / 2, limiter.acquire("a", now));
+		// other clients have their own bucket
+		Assertions.assertEquals(0, limiter.acquire("b", now));
+		Assertions.assertEquals(0, limiter.acquire("a", now + ONE_SECOND / 2));
+		Assertions.assertTrue(limiter.acquire("a", now + ONE_SECOND / 2) > 0);
+		Assertions.assertEquals(5L, (long) limiter.toJson().getLong("allowed"));
+		Assertions.assertEquals(2L, (long) limiter.toJson().getLong("limited"));
+	}
+	
+	@Test
+	void evictsIdleClientsWhenFull() {
+		RateLimiter limiter = new RateLimiter(1, 1, 2, 10);
+		long now = System.nanoTime();
+		Assertions.assertEquals(0, limiter.acquire("a", now));
+		Assertions.assertEquals(0, limiter.acquire("b", now));
+		// table full of active clients, c shares overflow bucket
+		Assertions.assertEquals(0, limiter.acquire("c", now));
+		Assertions.assertTrue(limiter.acquire("d", now) > 0);
+		Assertions.assertEquals(2, limiter.clients());
+		// a and b are full again and can be dropped
+		Assertions.assertEquals(0, limiter.acquire("d", now + 2 * ONE_SECOND));
+		Assertions.assertEquals(1, limiter.clients());
+		Assertions.assertEquals(2L, (long) limiter.toJson().getLong("evicted"));
+	}
+	
+	@Test
+	void limitsKeysOfAnAddress() {
+		RateLimiter limiter = new RateLimiter(1, 1, 4, 2);
+		long now = System.nanoTime();
+		Assertions.assertEquals(0, limiter.acquire("key:10.0.0.1/a", now));
+		Assertions.assertEquals(0, limiter.acquire("key:10.0.0.1/b", now));
+		// further keys share bucket of their address
+		Assertions.assertEquals(0, limiter.acquire("key:10.0.0.1/c", now));
+		Assertions.assertTrue(limiter.acquire("key:10.0.0.1/d", now) > 0);
+		Assertions.assertTrue(limiter.acquire("ip:10.0.0.1", now) > 0);
+		Assertions.assertEquals(0, limiter.acquire("key:10.0.0.2/a", now + 2 * ONE_SECOND));
+		Assertions.assertEquals(4, limiter.clients());
+		// dropped buckets give their keys back
+		Assertions.assertEquals(0, limiter.acquire("key:10.0.0.1/e", now + 4 * ONE_SECOND));
+		Assertions.assertEquals(0, limiter.acquire("key:10.0.0.1/f", now + 4 * ONE_SECOND));
+		Assertions.assertEquals(2, limiter.clients());
+	}
+	
+	@Test
+	void limitsConfiguredRoutesPerClient(Vertx vertx, VertxTestContext testContext) {
+		JsonObject config = new JsonObject().put("rate_limits",
+				new JsonObject().put("/limited/", new JsonObject().put("rate", 0.1).put("burst", 2)));
+		Router router = Router.router(vertx);
+		router.route().handler(RateLimiter.handler(vertx, config));
+		router.get("/limited/").handler(routingContext -> routingContext.response().end());
+		vertx.createHttpServer().requestHandler(router).listen(0, testContext.succeeding(server -> {
+			WebClient client = WebClient.create(vertx);
+			List<Integer> statusCodes = Collections.synchronizedList(new ArrayList<>());
+			String[] keys = { "x", "x", "x", "y" };
+			for (String key : keys) {
+				client.get(server.actualPort(), "localhost", "/limited").putHeader("X-API-Key", key)
+						.send(testContext.succeeding(response -> {
+							statusCodes.add(response.statusCode());
+							if (response.statusCode() == 429) {
+								testContext.verify(
+										() -> Assertions.assertEquals("10", response.getHeader("Retry-After")));
+							}
+							if (statusCodes.size() < keys.length) {
+								return;
+							}
+							testContext.verify(() -> {
+								Collections.sort(statusCodes);
+								Assertions.assertEquals(Arrays.asList(200, 200, 200, 429), statusCodes);
+								Assertions.assertEquals(2, (int) RateLimiter.toJson(vertx).getJsonObject("/limited")
+										.getInteger("clients"));
+							});
+							testContext.completeNow();
+						}));
+			}
+		}));
+	}
+}
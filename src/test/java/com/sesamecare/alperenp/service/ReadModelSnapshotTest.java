@@ -0,0 +1,83 @@
+package com.sesamecare.alperenp.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sesamecare.alperenp.data.Appointment;
+
+class ReadModelSnapshotTest {
+
+	private Path directory;
+
+	private Path path;
+
+	@BeforeEach
+	void initialize() throws IOException {
+		directory = Files.createTempDirectory("snapshot");
+		path = directory.resolve("read-model.snapshot");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		Files.deleteIfExists(path);
+		Files.deleteIfExists(directory);
+	}
+
+	private static AppointmentColumns columns() {
+		AppointmentColumns columns = new AppointmentColumns();
+		for (int i = 0; i < 50; i++) {
+			Appointment.Status status = i % 3 == 0 ? Appointment.Status.AVAILABLE : Appointment.Status.BOOKED;
+			String doctorName = i % 5 == 0 ? null : "Dr. " + i % 7;
+			columns.upsert("m" + i,
+					new Appointment(String.valueOf(i), i, i * 10, 10, doctorName, status, (i * 37) % 101));
+		}
+		return columns;
+	}
+
+	@Test
+	void writeAndReadTest() throws IOException {
+		AppointmentColumns columns = columns();
+		BsonDocument token = new BsonDocument("_data", new BsonString("825C1A"));
+		ReadModelSnapshot.write(path, ReadModelSnapshot.encode(columns, token));
+
+		ReadModelSnapshot snapshot = ReadModelSnapshot.read(path, 60000);
+		Assertions.assertEquals(token, snapshot.getResumeToken());
+		AppointmentColumns restored = snapshot.getColumns();
+		Assertions.assertEquals(columns.size(), restored.size());
+		Assertions.assertEquals(columns.all(), restored.all());
+		Assertions.assertEquals(columns.find("7"), restored.find("7"));
+		Assertions.assertEquals(columns.findBookedInRangeSortedByPrice(100, 400),
+				restored.findBookedInRangeSortedByPrice(100, 400));
+
+		// restored columns keep accepting changes
+		restored.upsert("m7", new Appointment("7", 0, 5, 10, "Dr. X", Appointment.Status.BOOKED, 1));
+		Assertions.assertEquals("7", restored.all().get(1).getString("id"));
+		Assertions.assertEquals(columns.size(), restored.size());
+	}
+
+	@Test
+	void missingOldAndCorruptedTest() throws IOException {
+		Assertions.assertNull(ReadModelSnapshot.read(path, 60000));
+
+		byte[] snapshot = ReadModelSnapshot.encode(columns(), new BsonDocument("_data", new BsonString("01")));
+		ReadModelSnapshot.write(path, snapshot);
+		Assertions.assertNull(ReadModelSnapshot.read(path, -1));
+
+		byte[] corrupted = Files.readAllBytes(path);
+		corrupted[corrupted.length / 2] ^= 1;
+		Files.write(path, corrupted, StandardOpenOption.TRUNCATE_EXISTING);
+		Assertions.assertThrows(IOException.class, () -> ReadModelSnapshot.read(path, 60000));
+
+		Files.write(path, new byte[] { 1, 2, 3 }, StandardOpenOption.TRUNCATE_EXISTING);
+		Assertions.assertThrows(IOException.class, () -> ReadModelSnapshot.read(path, 60000));
+	}
+}
@@ -0,0 +1,161 @@
+package com.sesamecare.alperenp.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.EmbeddedAppointmentStore;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+@ExtendWith(VertxExtension.class)
+public class ReadStreamPublisherTest {
+	
+	private Path path;
+	
+	private EmbeddedAppointmentStore store;
+	
+	@BeforeEach
+	void initialize(Vertx vertx) throws IOException {
+		path = Files.createTempFile("appointments", ".db");
+		Files.delete(path);
+		store = EmbeddedAppointmentStore.open(vertx, new JsonObject().put("embedded_path", path.toString()));
+		for (int i = 0; i < 10; i++) {
+			store.insertAppointment(new Appointment("" + i, 0, 1000 + i, 10, "Dr. A", Appointment.Status.BOOKED, i));
+		}
+	}
+	
+	@AfterEach
+	void tearDown() throws IOException {
+		store.close();
+		Files.deleteIfExists(path);
+	}
+	
+	private ReadStreamPublisher<Appointment> publisher(Vertx vertx, Long start, Long end) {
+		return new ReadStreamPublisher<>(vertx,
+				() -> new AppointmentReadStream(store.exportAppointments(start, end)));
+	}
+	
+	@Test
+	void deliversOnlyRequestedAppointments(Vertx vertx, VertxTestContext testContext) {
+		List<Appointment> received = new ArrayList<>();
+		publisher(vertx, 1002L, null).subscribe(new Subscriber<Appointment>() {
+			
+			Subscription subscription;
+			
+			long requested;
+			
+			@Override
+			public void onSubscribe(Subscription subscription) {
+				this.subscription = subscription;
+				requested = 3;
+				subscription.request(3);
+			}
+			
+			@Override
+			public void onNext(Appointment appointment) {
+				received.add(appointment);
+				testContext.verify(() -> Assertions.assertTrue(received.size() <= requested));
+				if (received.size() == requested) {
+					// next request only after a pause, nothing must arrive meanwhile
+					vertx.setTimer(20, id -> {
+						requested += 3;
+						subscription.request(3);
+					});
+				}
+			}
+			
+			@Override
+			public void onError(Throwable error) {
+				testContext.failNow(error);
+			}
+			
+			@Override
+			public void onComplete() {
+				testContext.verify(() -> {
+					Assertions.assertEquals(8, received.size());
+					for (int i = 0; i < 8; i++) {
+						Assertions.assertEquals("" + (i + 2), received.get(i).getId());
+					}
+				});
+				testContext.completeNow();
+			}
+		});
+	}
+	
+	@Test
+	void cancelAndInvalidRequest(Vertx vertx, VertxTestContext testContext) {
+		List<Appointment> received = new ArrayList<>();
+		publisher(vertx, null, null).subscribe(new Subscriber<Appointment>() {
+			
+			Subscription subscription;
+			
+			@Override
+			public void onSubscribe(Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(Long.MAX_VALUE);
+			}
+			
+			@Override
+			public void onNext(Appointment appointment) {
+				received.add(appointment);
+				subscription.cancel();
+			}
+			
+			@Override
+			public void onError(Throwable error) {
+				testContext.failNow(error);
+			}
+			
+			@Override
+			public void onComplete() {
+				testContext.failNow(new IllegalStateException("Cancelled subscription completed"));
+			}
+		});
+		publisher(vertx, null, null).subscribe(new Subscriber<Appointment>() {
+			
+			@Override
+			public void onSubscribe(Subscription subscription) {
+				subscription.request(0);
+			}
+			
+			@Override
+			public void onNext(Appointment appointment) {
+				testContext.failNow(new IllegalStateException("Item delivered without demand"));
+			}
+			
+			@Override
+			public void onError(Throwable error) {
+				testContext.verify(() -> Assertions.assertTrue(error instanceof IllegalArgumentException));
+				vertx.setTimer(50, id -> {
+					testContext.verify(() -> Assertions.assertEquals(1, received.size()));
+					testContext.completeNow();
+				});
+			}
+			
+			@Override
+			public void onComplete() {
+				testContext.failNow(new IllegalStateException("Invalid request completed"));
+			}
+		});
+	}
+}
@@ -0,0 +1,232 @@
+package com.sesamecare.alperenp.service;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sesamecare.alperenp.data.Appointment;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Guards bytes allocated per request on service event loop, measured with thread allocation counters
+ * <p>
+ * Service runs on a Vert.x instance with a single event loop, client on another one, so allocations of that event
+ * loop thread are the service's own (HTTP decoding, routing, handler, embedded store and response). Every route is
+ * warmed up before measuring, so the JIT has compiled (and scalar replaced) the request path. Budgets are about 1.5
+ * times the measured allocation, a change allocating noticeably more per request fails this test. Budgets include
+ * the {@link RequestTrace} and {@link TracedAppointmentStore} every request creates (about 100 bytes together).
+ * <p>
+ * Runs against embedded storage, see {@link MongoRequestAllocationTest} for mongo controller path.
+ * 
+ * @author alperenp
+ *
+ */
+@Slf4j
+public class RequestAllocationTest {
+	
+	static final int PORT = 8091;
+	
+	private static final int WARMUP = 3000;
+	
+	private static final int MEASURED = 1000;
+	
+	private static final long ONE_HOUR = 3600000;
+	
+	private Vertx serverVertx;
+	
+	private Vertx clientVertx;
+	
+	private WebClient client;
+	
+	private Path path;
+	
+	private long serverThread;
+	
+	private int inserted;
+	
+	@BeforeEach
+	void initialize() throws Exception {
+		path = Files.createTempFile("allocation", ".db");
+		Files.delete(path);
+		serverVertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(1));
+		clientVertx = Vertx.vertx();
+		client = WebClient.create(clientVertx);
+		CompletableFuture<Long> deployed = new CompletableFuture<>();
+		serverVertx.deployVerticle(new AppointmentService(), new DeploymentOptions().setConfig(serviceConfig()), ar -> {
+			if (ar.failed()) {
+				deployed.completeExceptionally(ar.cause());
+			} else {
+				serverVertx.runOnContext(v -> deployed.complete(Thread.currentThread().getId()));
+			}
+		});
+		serverThread = deployed.get(10, TimeUnit.SECONDS);
+		Assertions.assertEquals(200, send(HttpMethod.GET, "/rest/deleteAllAppointments/", null));
+		for (int i = 0; i < 100; i++) {
+			Assertions.assertEquals(200, send(HttpMethod.POST, "/rest/insertAppointment", appointment("" + i)));
+		}
+	}
+	
+	@AfterEach
+	void tearDown() throws IOException {
+		client.close();
+		clientVertx.close();
+		serverVertx.close();
+		Files.deleteIfExists(path);
+	}
+	
+	/**
+	 * Service configuration used in test
+	 * 
+	 * @return
+	 */
+	JsonObject serviceConfig() {
+		return new JsonObject().put("http.port", PORT).put("storage", "embedded").put("embedded_path", path.toString())
+				.put("rate_limits", new JsonObject());
+	}
+	
+	/**
+	 * Bytes a request of each route may allocate on service event loop
+	 * 
+	 * @return
+	 */
+	Map<String, Long> budgets() {
+		Map<String, Long> budgets = new LinkedHashMap<>();
+		budgets.put("findAppointment", 15000L);
+		budgets.put("findAppointmentBody", 16000L);
+		budgets.put("findAppointmentsInRange", 32000L);
+		budgets.put("allAppointments", 460000L);
+		budgets.put("updateAppointment", 16000L);
+		budgets.put("book", 12000L);
+		budgets.put("deleteAppointment", 11000L);
+		budgets.put("insertAppointment", 16000L);
+		budgets.put("deleteAllAppointments", 10000L);
+		return budgets;
+	}
+	
+	private static JsonObject appointment(String id) {
+		long date = 1500000000000L + id.hashCode() % 100 * ONE_HOUR;
+		return new JsonObject(Json.encode(new Appointment(id, 0, date, ONE_HOUR, "Dr. A", Appointment.Status.BOOKED,
+				100)));
+	}
+	
+	@Test
+	void routesStayWithinAllocationBudget() throws Exception {
+		Map<String, Long> budgets = budgets();
+		Map<String, Long> measured = new LinkedHashMap<>();
+		JsonObject range = new JsonObject().put("start", 1500000000000L).put("end", 1500000000000L + 2 * ONE_HOUR);
+		measure(measured, "findAppointment", i -> request(HttpMethod.GET, "/rest/findAppointment?id=" + (i % 100)),
+				null);
+		measure(measured, "findAppointmentBody", i -> request(HttpMethod.GET, "/rest/findAppointment"),
+				i -> new JsonObject().put("id", "" + (i % 100)));
+		measure(measured, "findAppointmentsInRange", i -> request(HttpMethod.GET, "/rest/findAppointmentsInRange"),
+				i -> range);
+		measure(measured, "allAppointments", i -> request(HttpMethod.GET, "/rest/allAppointments/"), null);
+		measure(measured, "updateAppointment", i -> request(HttpMethod.PUT, "/rest/updateAppointment"),
+				i -> appointment("" + (i % 100)));
+		measure(measured, "book", i -> request(HttpMethod.POST, "/rest/book"),
+				i -> new JsonObject().put("id", "" + (i % 100)));
+		measure(measured, "deleteAppointment", i -> request(HttpMethod.DELETE, "/rest/deleteAppointment"),
+				i -> new JsonObject().put("id", "missing"));
+		// every request inserts a new appointment, warm up included
+		measure(measured, "insertAppointment", i -> request(HttpMethod.POST, "/rest/insertAppointment"),
+				i -> appointment("inserted" + inserted++));
+		measure(measured, "deleteAllAppointments", i -> request(HttpMethod.GET, "/rest/deleteAllAppointments/"),
+				null);
+		log.info("Bytes allocated per request: {}", measured);
+		budgets.forEach((route, budget) -> Assertions.assertTrue(measured.get(route) <= budget,
+				route + " allocates " + measured.get(route) + " bytes per request, budget is " + budget));
+	}
+	
+	private HttpRequest<Buffer> request(HttpMethod method, String uri) {
+		return client.request(method, PORT, "localhost", uri);
+	}
+	
+	/**
+	 * Warms route up, then records bytes allocated by service event loop per request
+	 */
+	private void measure(Map<String, Long> measured, String route, IntFunction<HttpRequest<Buffer>> requests,
+			IntFunction<JsonObject> bodies) throws Exception {
+		run(requests, bodies, WARMUP);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long before = threads.getThreadAllocatedBytes(serverThread);
+		run(requests, bodies, MEASURED);
+		long after = threads.getThreadAllocatedBytes(serverThread);
+		measured.put(route, (after - before) / MEASURED);
+	}
+	
+	/**
+	 * Sends requests one after another
+	 */
+	private void run(IntFunction<HttpRequest<Buffer>> requests, IntFunction<JsonObject> bodies, int count)
+			throws Exception {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		clientVertx.runOnContext(v -> next(requests, bodies, 0, count, done));
+		done.get(60, TimeUnit.SECONDS);
+	}
+	
+	private void next(IntFunction<HttpRequest<Buffer>> requests, IntFunction<JsonObject> bodies, int i, int count,
+			CompletableFuture<Void> done) {
+		if (i == count) {
+			done.complete(null);
+			return;
+		}
+		Handler<AsyncResult<HttpResponse<Buffer>>> handler = ar -> {
+			// a conflicting booking is answered with 409, it is a regular outcome of book route
+			if (ar.failed() || (ar.result().statusCode() != 200 && ar.result().statusCode() != 409)) {
+				done.completeExceptionally(new IllegalStateException("Request " + i + " failed: "
+						+ (ar.failed() ? ar.cause() : ar.result().statusCode())));
+			} else {
+				next(requests, bodies, i + 1, count, done);
+			}
+		};
+		if (bodies == null) {
+			requests.apply(i).send(handler);
+		} else {
+			requests.apply(i).sendJsonObject(bodies.apply(i), handler);
+		}
+	}
+	
+	private int send(HttpMethod method, String uri, JsonObject body) throws Exception {
+		CompletableFuture<Integer> status = new CompletableFuture<>();
+		Handler<AsyncResult<HttpResponse<Buffer>>> handler = ar -> {
+			if (ar.failed()) {
+				status.completeExceptionally(ar.cause());
+			} else {
+				status.complete(ar.result().statusCode());
+			}
+		};
+		clientVertx.runOnContext(v -> {
+			if (body == null) {
+				request(method, uri).send(handler);
+			} else {
+				request(method, uri).sendJsonObject(body, handler);
+			}
+		});
+		return status.get(10, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,49 @@
+package com.sesamecare.alperenp.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+public class RequestTraceTest {
+	
+	@Test
+	void continuesIncomingTrace() {
+		RequestTrace trace = new RequestTrace("GET /", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01",
+				false);
+		Assertions.assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", trace.getTraceId());
+		Assertions.assertEquals("00f067aa0ba902b7", trace.getParentSpanId());
+		Assertions.assertTrue(trace.isSampled());
+		RequestTrace.Span span = trace.startSpan("mongo").describe("findAppointment").end();
+		Assertions.assertEquals("00-4bf92f3577b34da6a3ce929d0e0e4736-" + span.getSpanId() + "-01",
+				trace.traceparent(span));
+		Assertions.assertTrue(trace.serverTiming().startsWith("mongo;dur="));
+		JsonObject json = trace.toJson(200);
+		Assertions.assertEquals(1, json.getJsonArray("spans").size());
+		Assertions.assertEquals(16, json.getString("spanId").length());
+	}
+	
+	@Test
+	void startsNewTraceOnInvalidContext() {
+		for (String traceparent : new String[] { null, "garbage",
+				"00-00000000000000000000000000000000-00f067aa0ba902b7-01",
+				"00-4bf92f3577b34da6a3ce929d0e0e4736-0000000000000000-01" }) {
+			RequestTrace trace = new RequestTrace("GET /", traceparent, true);
+			Assertions.assertNull(trace.getParentSpanId());
+			Assertions.assertEquals(32, trace.getTraceId().length());
+			Assertions.assertTrue(trace.isSampled());
+		}
+	}
+	
+	@Test
+	void skipsUnfinishedSpans() {
+		RequestTrace trace = new RequestTrace("GET /", null, false);
+		trace.startSpan("mongo");
+		Assertions.assertTrue(trace.serverTiming().startsWith("total;dur="));
+	}
+}
@@ -0,0 +1,68 @@
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+@ExtendWith(VertxExtension.class)
+public class ResponseEncoderTest {
+	
+	@Test
+	void encodesLargeListOnWorker(Vertx vertx, VertxTestContext testContext) {
+		ResponseEncoder encoder = new ResponseEncoder(vertx, new JsonObject().put("offload_threshold", 2));
+		List<JsonObject> appointments = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			appointments.add(new JsonObject().put("_id", "object" + i).put("id", String.valueOf(i)));
+		}
+		Assertions.assertTrue(encoder.offloads(appointments.size()));
+		Assertions.assertFalse(encoder.offloads(2));
+		vertx.runOnContext(v -> encoder.encode(appointments, false).setHandler(testContext.succeeding(encoded -> {
+			testContext.verify(() -> {
+				Assertions.assertTrue(Vertx.currentContext().isEventLoopContext());
+				JsonArray array = new JsonArray(encoded.toString());
+				Assertions.assertEquals(3, array.size());
+				Assertions.assertEquals(new JsonObject().put("id", "2"), array.getJsonObject(2));
+			});
+			encoder.close();
+			testContext.completeNow();
+		})));
+	}
+	
+	@Test
+	void encodesMissingAppointments(Vertx vertx, VertxTestContext testContext) {
+		ResponseEncoder encoder = new ResponseEncoder(vertx, new JsonObject());
+		List<JsonObject> appointments = new ArrayList<>();
+		appointments.add(new JsonObject().put("_id", "object1").put("id", "1"));
+		appointments.add(null);
+		encoder.encode(appointments, false).compose(json -> {
+			testContext.verify(() -> {
+				JsonArray array = new JsonArray(json.toString());
+				Assertions.assertEquals(new JsonObject().put("id", "1"), array.getJsonObject(0));
+				Assertions.assertNull(array.getValue(1));
+			});
+			return encoder.encode(appointments, true);
+		}).setHandler(testContext.succeeding(bson -> {
+			testContext.verify(() -> {
+				List<JsonObject> documents = BsonCodec.decodeAll(bson);
+				Assertions.assertEquals(2, documents.size());
+				Assertions.assertTrue(documents.get(1).isEmpty());
+			});
+			encoder.close();
+			testContext.completeNow();
+		}));
+	}
+}
@@ -0,0 +1,122 @@
+package com.sesamecare.alperenp.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sesamecare.alperenp.data.Appointment;
+import com.sesamecare.alperenp.storage.AppointmentStore;
+import com.sesamecare.alperenp.storage.EmbeddedAppointmentStore;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Sharding over embedded stores: routing, merged range results and rebalancing after a shard is added
+ *
+ * @author alperenp
+ *
+ */
+class ShardedAppointmentStoreTest {
+
+	Vertx vertx;
+
+	Path directory;
+
+	List<EmbeddedAppointmentStore> stores = new ArrayList<>();
+
+	@BeforeEach
+	void initialize() throws IOException {
+		vertx = Vertx.vertx();
+		directory = Files.createTempDirectory("shards");
+		for (int i = 0; i < 3; i++) {
+			stores.add(EmbeddedAppointmentStore.open(vertx, new JsonObject()
+					.put("embedded_path", directory.resolve("shard" + i + ".db").toString())));
+		}
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		stores.forEach(EmbeddedAppointmentStore::close);
+		vertx.close();
+		for (int i = 0; i < 3; i++) {
+			Files.deleteIfExists(directory.resolve("shard" + i + ".db"));
+		}
+		Files.deleteIfExists(directory);
+	}
+
+	private ShardedAppointmentStore sharded(int shards) {
+		List<String> names = Arrays.asList("a", "b", "c").subList(0, shards);
+		return new ShardedAppointmentStore(names, new ArrayList<AppointmentStore>(stores.subList(0, shards)), 160,
+				null);
+	}
+
+	private static <T> T await(Future<T> future) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		future.setHandler(ar -> {
+			if (ar.succeeded()) {
+				result.complete(ar.result());
+			} else {
+				result.completeExceptionally(ar.cause());
+			}
+		});
+		return result.get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void scatterGatherTest() throws Exception {
+		ShardedAppointmentStore store = sharded(2);
+		for (int i = 0; i < 200; i++) {
+			store.insertAppointment(new Appointment("id" + i, 0, i, 10, "Dr. " + i, Appointment.Status.BOOKED,
+					(i * 37) % 101));
+		}
+		// both shards hold a part of appointments
+		Assertions.assertTrue(stores.get(0).getAllAppointments().result().size() > 50);
+		Assertions.assertTrue(stores.get(1).getAllAppointments().result().size() > 50);
+		Assertions.assertEquals("id42", store.findAppointment("id42").result().get(0).getString("id"));
+
+		List<JsonObject> range = await(store.findAppointmentsWithRangeAndSort(10, 150));
+		Assertions.assertEquals(141, range.size());
+		for (int i = 1; i < range.size(); i++) {
+			Assertions.assertTrue(range.get(i - 1).getDouble("price") <= range.get(i).getDouble("price"));
+		}
+		Assertions.assertEquals(200, await(store.getAllAppointments()).size());
+
+		// multi-get spans shards and keeps requested order
+		List<JsonObject> found = await(store.findAppointments(Arrays.asList("id7", "missing", "id150", "id3")));
+		Assertions.assertEquals("id7", found.get(0).getString("id"));
+		Assertions.assertNull(found.get(1));
+		Assertions.assertEquals("id150", found.get(2).getString("id"));
+		Assertions.assertEquals("id3", found.get(3).getString("id"));
+	}
+
+	@Test
+	void rebalanceTest() throws Exception {
+		ShardedAppointmentStore twoShards = sharded(2);
+		for (int i = 0; i < 300; i++) {
+			twoShards.insertAppointment(new Appointment("id" + i, 0, i, 10, "Dr. A", Appointment.Status.BOOKED, i));
+		}
+		ShardedAppointmentStore threeShards = sharded(3);
+		JsonObject result = await(threeShards.rebalance());
+		long moved = result.getLong("moved");
+		// roughly a third of appointments move to new shard, none move between old shards
+		Assertions.assertTrue(moved > 50 && moved < 150, "moved " + moved);
+		Assertions.assertEquals(moved, stores.get(2).getAllAppointments().result().size());
+		Assertions.assertEquals(300, await(threeShards.getAllAppointments()).size());
+		for (int i = 0; i < 300; i++) {
+			Assertions.assertEquals(1, threeShards.findAppointment("id" + i).result().size());
+		}
+		Assertions.assertEquals(0L, await(threeShards.rebalance()).getLong("moved").longValue());
+	}
+}
@@ -0,0 +1,47 @@
+package com.sesamecare.alperenp.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.FindOptions;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+public class SlowOperationLogTest {
+	
+	@Test
+	void shapeStripsLiterals() {
+		JsonObject query = new JsonObject()
+				.put("appointmentDate", new JsonObject().put("$gte", 10L).put("$lte", 20L))
+				.put("id", new JsonObject().put("$in", new JsonArray().add("a").add("b").add("c")))
+				.put("$or", new JsonArray().add(new JsonObject().put("status", "BOOKED"))
+						.add(new JsonObject().put("status", "AVAILABLE")));
+		JsonObject expected = new JsonObject()
+				.put("appointmentDate", new JsonObject().put("$gte", "?").put("$lte", "?"))
+				.put("id", new JsonObject().put("$in", new JsonArray().add("?")))
+				.put("$or", new JsonArray().add(new JsonObject().put("status", "?")));
+		Assertions.assertEquals(expected, SlowOperationLog.shape(query));
+	}
+	
+	@Test
+	void keepsLastEntriesNewestFirst() {
+		SlowOperationLog slowOperations = new SlowOperationLog(0, 2);
+		FindOptions options = new FindOptions().setSort(new JsonObject().put("price", 1));
+		for (int i = 0; i < 3; i++) {
+			slowOperations.record(null, "find", "appointments", new JsonObject().put("id", "id" + i), options, i,
+					100 + i);
+		}
+		JsonArray entries = slowOperations.toJson().getJsonArray("entries");
+		Assertions.assertEquals(2, entries.size());
+		Assertions.assertEquals(102L, (long) entries.getJsonObject(0).getLong("durationMs"));
+		Assertions.assertEquals(101L, (long) entries.getJsonObject(1).getLong("durationMs"));
+		Assertions.assertEquals(new JsonObject().put("id", "?"), entries.getJsonObject(0).getJsonObject("shape"));
+		Assertions.assertEquals(options.toJson(), entries.getJsonObject(0).getJsonObject("options"));
+		Assertions.assertFalse(entries.getJsonObject(0).containsKey("key"));
+	}
+}
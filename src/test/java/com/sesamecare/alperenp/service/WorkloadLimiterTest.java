@@ -0,0 +1,71 @@
+package com.sesamecare.alperenp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+
+/**
+ * 
+ * @author alperenp
+ *
+ */
+@ExtendWith(VertxExtension.class)
+public class WorkloadLimiterTest {
+	
+	@Test
+	void queuesAndRejectsOverBudget(Vertx vertx, VertxTestContext testContext) {
+		JsonObject config = new JsonObject().put("bulk_max_concurrency", 1).put("bulk_max_queue", 1);
+		Router router = Router.router(vertx);
+		router.get("/bulk").handler(WorkloadLimiter.handler(vertx, config, routingContext -> WorkloadClass.BULK))
+				.handler(routingContext -> {
+					Assertions.assertEquals(WorkloadClass.BULK, WorkloadClass.of(routingContext));
+					vertx.setTimer(200, id -> routingContext.response().end());
+				});
+		vertx.createHttpServer().requestHandler(router).listen(0, testContext.succeeding(server -> {
+			WebClient client = WebClient.create(vertx);
+			List<Integer> statusCodes = Collections.synchronizedList(new ArrayList<>());
+			for (int i = 0; i < 3; i++) {
+				client.get(server.actualPort(), "localhost", "/bulk").send(testContext.succeeding(response -> {
+					statusCodes.add(response.statusCode());
+					if (statusCodes.size() < 3) {
+						return;
+					}
+					testContext.verify(() -> {
+						Collections.sort(statusCodes);
+						Assertions.assertEquals(Arrays.asList(200, 200, 503), statusCodes);
+						JsonObject metrics = WorkloadLimiter.get(vertx, config, WorkloadClass.BULK).toJson();
+						Assertions.assertEquals(2L, (long) metrics.getLong("admitted"));
+						Assertions.assertEquals(1L, (long) metrics.getLong("queued"));
+						Assertions.assertEquals(1L, (long) metrics.getLong("rejected"));
+						Assertions.assertEquals(0, (int) metrics.getInteger("inFlight"));
+					});
+					testContext.completeNow();
+				}));
+			}
+		}));
+	}
+	
+	@Test
+	void interactiveIsUnlimited() {
+		WorkloadLimiter limiter = new WorkloadLimiter(WorkloadClass.INTERACTIVE.maxConcurrency(new JsonObject()), 0);
+		Assertions.assertEquals(-1, (int) limiter.toJson().getInteger("maxConcurrency"));
+		JsonObject config = new JsonObject().put("maxPoolSize", 50).put("minPoolSize", 10);
+		Assertions.assertSame(config, WorkloadClass.INTERACTIVE.mongoConfig(config));
+		JsonObject bulk = WorkloadClass.BULK.mongoConfig(config);
+		Assertions.assertEquals("bulk", bulk.getString("mongo_pool_name"));
+		Assertions.assertEquals(5, (int) bulk.getInteger("maxPoolSize"));
+		Assertions.assertEquals(5, (int) bulk.getInteger("minPoolSize"));
+	}
+}
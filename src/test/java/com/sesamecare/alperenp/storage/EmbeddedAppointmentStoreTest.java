@@ -0,0 +1,213 @@
+package com.sesamecare.alperenp.storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sesamecare.alperenp.data.Appointment;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+
+class EmbeddedAppointmentStoreTest {
+
+	Vertx vertx;
+
+	Path path;
+
+	JsonObject config;
+
+	@BeforeEach
+	void initialize() throws IOException {
+		vertx = Vertx.vertx();
+		path = Files.createTempFile("appointments", ".db");
+		Files.delete(path);
+		config = new JsonObject().put("embedded_path", path.toString()).put("embedded_initial_size", 4096);
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		vertx.close();
+		Files.deleteIfExists(path);
+	}
+
+	private Appointment appointment(String id, long date, Appointment.Status status, double price) {
+		return new Appointment(id, 0, date, 10, "Dr. " + id, status, price);
+	}
+
+	@Test
+	void contractTest() throws IOException {
+		EmbeddedAppointmentStore store = EmbeddedAppointmentStore.open(vertx, config);
+		Assertions.assertTrue(store.insertAppointment(appointment("1", 300, Appointment.Status.BOOKED, 30)).result()
+				.getBoolean("result"));
+		store.insertAppointment(appointment("2", 100, Appointment.Status.BOOKED, 50));
+		store.insertAppointment(appointment("3", 200, Appointment.Status.AVAILABLE, 10));
+		store.insertAppointment(appointment("4", 900, Appointment.Status.BOOKED, 5));
+
+		List<JsonObject> range = store.findAppointmentsWithRangeAndSort(100, 300).result();
+		Assertions.assertEquals(2, range.size());
+		Assertions.assertEquals("1", range.get(0).getString("id"));
+		Assertions.assertEquals("2", range.get(1).getString("id"));
+
+		Assertions.assertFalse(store.replaceAppointment(appointment("5", 1, Appointment.Status.BOOKED, 1)).result()
+				.getBoolean("result"));
+		// version sent with replacement is ignored, stored one is incremented
+		Appointment replacement = appointment("3", 250, Appointment.Status.BOOKED, 1);
+		replacement.setVersion(42);
+		JsonObject replaced = store.replaceAppointment(replacement).result();
+		Assertions.assertTrue(replaced.getBoolean("result"));
+		Assertions.assertEquals(1L, replaced.getLong("version").longValue());
+		Assertions.assertEquals("3", store.findAppointmentsWithRangeAndSort(100, 300).result().get(0).getString("id"));
+
+		Assertions.assertFalse(store.bookAppointment("3", null).result().getBoolean("result"));
+		Assertions.assertFalse(store.cancelAppointment("3", 0L).result().getBoolean("result"));
+		JsonObject cancelled = store.cancelAppointment("3", 1L).result();
+		Assertions.assertEquals(2L, cancelled.getLong("version").longValue());
+		Assertions.assertFalse(store.bookAppointment("3", 1L).result().getBoolean("result"));
+		Assertions.assertTrue(store.bookAppointment("3", 2L).result().getBoolean("result"));
+
+		Assertions.assertTrue(store.deleteOne("2").result().getBoolean("result"));
+		Assertions.assertFalse(store.deleteOne("2").result().getBoolean("result"));
+		Assertions.assertTrue(store.findAppointment("2").result().isEmpty());
+		Assertions.assertEquals(3, store.getAllAppointments().result().size());
+		store.close();
+	}
+
+	@Test
+	void recoveryTest() throws IOException {
+		EmbeddedAppointmentStore store = EmbeddedAppointmentStore.open(vertx, config);
+		for (int i = 0; i < 100; i++) {
+			store.insertAppointment(appointment(String.valueOf(i), i, Appointment.Status.BOOKED, i));
+		}
+		store.deleteOne("7");
+		store.replaceAppointment(appointment("8", 1000, Appointment.Status.AVAILABLE, 8));
+		store.close();
+
+		// simulate a torn write after the last record
+		try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+			long offset = AppointmentLog.HEADER_SIZE + 102L * AppointmentLog.RECORD_SIZE;
+			file.seek(offset);
+			file.writeInt(12345);
+			file.write(AppointmentLog.PUT);
+		}
+
+		store = EmbeddedAppointmentStore.open(vertx, config);
+		Assertions.assertEquals(99, store.getAllAppointments().result().size());
+		Assertions.assertTrue(store.findAppointment("7").result().isEmpty());
+		Assertions.assertEquals(1000L, store.findAppointment("8").result().get(0).getLong("appointmentDate")
+				.longValue());
+		// appends overwrite torn record
+		store.insertAppointment(appointment("100", 100, Appointment.Status.BOOKED, 100));
+		store.close();
+		store = EmbeddedAppointmentStore.open(vertx, config);
+		Assertions.assertEquals(100, store.getAllAppointments().result().size());
+
+		// records written before truncation are not recovered
+		store.deleteAllAppointments();
+		store.insertAppointment(appointment("x", 1, Appointment.Status.BOOKED, 1));
+		store.close();
+		store = EmbeddedAppointmentStore.open(vertx, config);
+		Assertions.assertEquals(1, store.getAllAppointments().result().size());
+		store.close();
+	}
+
+	@Test
+	void compactionTest() throws IOException {
+		EmbeddedAppointmentStore store = EmbeddedAppointmentStore.open(vertx, config);
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 200; i++) {
+				store.insertAppointment(appointment(String.valueOf(i), i * 10 + round, Appointment.Status.BOOKED, i));
+			}
+		}
+		Assertions.assertEquals(19 * 200, store.deadRecords());
+		store.compactIfNeeded();
+		Assertions.assertEquals(0, store.deadRecords());
+		List<JsonObject> all = store.getAllAppointments().result();
+		Assertions.assertEquals(200, all.size());
+		Assertions.assertEquals(19L, all.get(0).getLong("appointmentDate").longValue());
+		store.close();
+
+		store = EmbeddedAppointmentStore.open(vertx, config);
+		Assertions.assertEquals(200, store.getAllAppointments().result().size());
+		Assertions.assertEquals(0, store.deadRecords());
+		store.close();
+	}
+
+	@Test
+	void compactionDuringWritesTest() throws Exception {
+		EmbeddedAppointmentStore store = EmbeddedAppointmentStore.open(vertx, config);
+		for (int i = 0; i < 200; i++) {
+			store.insertAppointment(appointment(String.valueOf(i), i * 100, Appointment.Status.BOOKED, i));
+		}
+		CompletableFuture<Void> written = new CompletableFuture<>();
+		Thread writer = new Thread(() -> {
+			for (int round = 1; round < 50; round++) {
+				for (int i = 0; i < 200; i++) {
+					store.insertAppointment(appointment(String.valueOf(i), i * 100 + round, Appointment.Status.BOOKED,
+							i));
+				}
+				store.deleteOne("deleted" + round);
+				store.insertAppointment(appointment("deleted" + (round + 1), 0, Appointment.Status.BOOKED, 0));
+			}
+			written.complete(null);
+		});
+		writer.start();
+		while (!written.isDone()) {
+			store.compact();
+		}
+		written.get(10, TimeUnit.SECONDS);
+		store.compact();
+		Assertions.assertEquals(0, store.deadRecords());
+		List<JsonObject> all = store.getAllAppointments().result();
+		Assertions.assertEquals(201, all.size());
+		Assertions.assertEquals("deleted50", all.get(0).getString("id"));
+		Assertions.assertEquals(49L, all.get(1).getLong("appointmentDate").longValue());
+		store.close();
+
+		EmbeddedAppointmentStore reopened = EmbeddedAppointmentStore.open(vertx, config);
+		Assertions.assertEquals(201, reopened.getAllAppointments().result().size());
+		Assertions.assertEquals(19949L, reopened.findAppointment("199").result().get(0).getLong("appointmentDate")
+				.longValue());
+		reopened.close();
+	}
+
+	@Test
+	void exportTest() throws Exception {
+		EmbeddedAppointmentStore store = EmbeddedAppointmentStore.open(vertx, config);
+		// more appointments than one export batch, many of them sharing the same date
+		List<Appointment> appointments = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			appointments.add(appointment(Integer.toString(i), i / 7, Appointment.Status.AVAILABLE, i));
+		}
+		Assertions.assertEquals(1000L, store.insertAppointments(appointments).result().getLong("inserted").longValue());
+
+		CompletableFuture<List<String>> exported = new CompletableFuture<>();
+		List<String> ids = new ArrayList<>();
+		ReadStream<JsonObject> stream = store.exportAppointments(10L, 100L);
+		stream.endHandler(v -> exported.complete(ids));
+		stream.exceptionHandler(exported::completeExceptionally);
+		stream.handler(json -> {
+			ids.add(json.getString("id"));
+			// consume slowly, one appointment at a time
+			stream.pause();
+			vertx.runOnContext(v -> stream.resume());
+		});
+		List<String> result = exported.get(10, TimeUnit.SECONDS);
+		Assertions.assertEquals(91 * 7, result.size());
+		Assertions.assertEquals(result.size(), new HashSet<>(result).size());
+		Assertions.assertEquals("70", result.get(0));
+		store.close();
+	}
+}